@@ -7,6 +7,7 @@ import javafx.stage.Stage;
 import ai.cogmission.fxmaps.event.MapReadyListener;
 import ai.cogmission.fxmaps.model.LatLon;
 import ai.cogmission.fxmaps.model.MapOptions;
+import ai.cogmission.fxmaps.model.MapStore;
 import ai.cogmission.fxmaps.model.MapType;
 import ai.cogmission.fxmaps.model.MarkerType;
 import ai.cogmission.fxmaps.model.PersistentMap;
@@ -66,6 +67,17 @@ public class RefImpl extends Application {
         map.setMapOptions(options);
     }
     
+    /**
+     * Flushes any map edits still waiting to be written by the
+     * {@link MapStore}'s background writer.
+     */
+    @Override
+    public void stop() throws Exception {
+        if(map.getMapStore() != null) {
+            map.getMapStore().close();
+        }
+    }
+    
     public Stage getPrimaryStage() {
         return primaryStage;
     }
@@ -78,8 +90,7 @@ public class RefImpl extends Application {
     
     public MapReadyListener getMapReadyListener() {
         return () -> {
-            java.util.Map<String, PersistentMap> maps = map.getMapStore().getMaps();
-            toolBar.addMaps(maps.keySet());
+            toolBar.addMaps(map.getMapStore().getMapNames());
         };
     }
     
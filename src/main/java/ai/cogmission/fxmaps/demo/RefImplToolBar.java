@@ -67,6 +67,8 @@ public class RefImplToolBar extends ToolBar {
     private TextField newRouteField;
     
     private static final String DEFAULT_ROUTE_NAME = "temp (change me)";
+    /** Distance in pixels within which added waypoints snap to existing ones */
+    private static final double SNAP_TOLERANCE = 10;
     private ChangeListener<Flyout.Status> local;
     
     
@@ -113,10 +115,11 @@ public class RefImplToolBar extends ToolBar {
                 try {
                     GPXPersistentMap gpxMap = reader.read(selectedFile.toURI().toURL());
                     PersistentMap mMap = GPXPersistentMap.asFXMap(gpxMap, GPXType.TRACK);
-                    map.getMapStore().getMaps().put(mMap.getName(), mMap);
+                    map.getMapStore().addMap(mMap);
                     map.getMapStore().selectMap(mMap.getName());
+                    map.getMapStore().commit();
                     parent.createOrSelectMap(mMap.getName());
-                    map.setCenter(map.getMapStore().getMap(mMap.getName()).getRoutes().get(0).getOrigin().getLatLon());
+                    map.fitBounds(map.getMapStore().getMap(mMap.getName()));
                     map.refresh();
                 } catch(Exception e1) {
                     e1.printStackTrace();
@@ -250,7 +253,7 @@ public class RefImplToolBar extends ToolBar {
         mapCombo.getEditor().textProperty().addListener((v, o, n) -> {
             if(mapCombo.getEditor().getText() != null && mapCombo.getEditor().getText().length() > 0) {
                 add.disableProperty().set(false);
-                if(map.getMapStore().getMap(mapCombo.getEditor().getText()) != null) {
+                if(map.getMapStore().containsMap(mapCombo.getEditor().getText())) {
                     clr.disableProperty().set(false);
                     del.disableProperty().set(false);
                 }else{
@@ -315,7 +318,11 @@ public class RefImplToolBar extends ToolBar {
                 MarkerType.reset(map.getCurrentRoute());
             }
         });
-        rsMode.getChildren().add(addWaypointBox);
+        CheckBox snapBox = new CheckBox("Snap");
+        snapBox.setTextFill(Color.WHITE);
+        snapBox.setOnAction(e -> map.setSnapTolerance(snapBox.isSelected() ? SNAP_TOLERANCE : 0));
+        rsMode.setSpacing(10);
+        rsMode.getChildren().addAll(addWaypointBox, snapBox);
         Label l = new Label("Select or enter route name:");
         l.setFont(Font.font(l.getFont().getFamily(), 12));
         l.setTextFill(Color.WHITE);
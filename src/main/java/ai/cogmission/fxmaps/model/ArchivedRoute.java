@@ -0,0 +1,324 @@
+package ai.cogmission.fxmaps.model;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javafx.collections.ListChangeListener;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * Read-only {@link Route} of a {@link MapArchive}, whose coordinates are read
+ * straight from the mapped archive file.
+ * <p>
+ * {@link #size()}, {@link #getLatitude(int)} and {@link #getLongitude(int)} never
+ * create any objects. The route's {@link Waypoint}s, their {@link Marker}s and
+ * the leg lines are created once, the first time any of them is requested
+ * (typically when the route is displayed), except for the track points without
+ * marker or leg style, which are only added to the route's {@link RouteGeometry}.
+ * The waypoint list is unmodifiable.
+ * Methods which would change the route throw an {@link UnsupportedOperationException}.
+ * </p>
+ *
+ * @author cogmission
+ * @see MapArchive
+ */
+public class ArchivedRoute extends Route {
+    private static final Animation[] ANIMATIONS = Animation.values();
+
+    private transient int count;
+    private transient DoubleBuffer coordinates;
+    private transient ByteBuffer markers;
+    private transient MapArchive.Strings markerStrings;
+    private transient PolylineOptions[] legStyles;
+    private transient boolean materialized;
+
+
+    /**
+     * Constructs a new {@code ArchivedRoute} over the specified sections of a
+     * mapped archive.
+     *
+     * @param name                      the route's name
+     * @param id                        the route's id
+     * @param interimMarkersVisible     the interim marker visibility
+     * @param lineStyle                 the route's line style or null
+     * @param count                     the number of waypoints
+     * @param coordinates               the latitude column followed by the longitude column
+     * @param markers                   the fixed size marker records
+     * @param markerStrings             the map's marker strings
+     * @param legStyles                 the map's leg styles
+     */
+    ArchivedRoute(String name, String id, boolean interimMarkersVisible, PolylineOptions lineStyle, int count,
+        DoubleBuffer coordinates, ByteBuffer markers, MapArchive.Strings markerStrings, PolylineOptions[] legStyles) {
+
+        super(name);
+        this.id = id;
+        this.interimMarkersVisible = interimMarkersVisible;
+        this.lineStyle = lineStyle;
+        this.count = count;
+        this.coordinates = coordinates;
+        this.markers = markers;
+        this.markerStrings = markerStrings;
+        this.legStyles = legStyles;
+        this.dirty = false;
+    }
+
+    /**
+     * Returns the latitude of the waypoint at the specified index, without
+     * creating the waypoint.
+     *
+     * @param index     the waypoint's index
+     * @return  the latitude
+     */
+    public double getLatitude(int index) {
+        return coordinates.get(checkIndex(index));
+    }
+
+    /**
+     * Returns the longitude of the waypoint at the specified index, without
+     * creating the waypoint.
+     *
+     * @param index     the waypoint's index
+     * @return  the longitude
+     */
+    public double getLongitude(int index) {
+        return coordinates.get(count + checkIndex(index));
+    }
+
+    /**
+     * Returns a flag indicating whether this route's {@link Waypoint}s have been created
+     * @return  true if created, false if still only in the archive
+     */
+    @JsonIgnore
+    public boolean isMaterialized() {
+        return materialized;
+    }
+
+    private int checkIndex(int index) {
+        if(index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        }
+        return index;
+    }
+
+    /**
+     * Creates this route's {@link Waypoint}s, {@link Marker}s and leg lines
+     * from the archive, once.
+     */
+    private synchronized void materialize() {
+        if(materialized) {
+            return;
+        }
+
+        WaypointList waypoints = new WaypointList();
+        waypoints.getGeometry().ensureCapacity(count);
+        for(int i = 0;i < count;i++) {
+            int record = i * MapArchive.MARKER_RECORD_SIZE;
+            int flags = markers.get(record);
+            int legStyle = markers.getInt(record + 10);
+            if((flags & 1) == 0 && legStyle == -1) { // Track point, no waypoint needed
+                waypoints.addPoint(coordinates.get(i), coordinates.get(count + i), Double.NaN, RouteGeometry.NO_TIME);
+                continue;
+            }
+            
+            LatLon ll = new LatLon(coordinates.get(i), coordinates.get(count + i));
+            Waypoint w;
+            if((flags & 1) != 0) {
+                w = Waypoint.create(ll, markerStrings.get(markers.getInt(record + 1)), markerStrings.get(markers.getInt(record + 5)),
+                    (flags & 2) != 0, ANIMATIONS[markers.get(record + 9)]);
+            }else{
+                w = new Waypoint(ll, null);
+            }
+            if(legStyle != -1) {
+                w.setLegStyle(legStyles[legStyle]);
+            }
+            waypoints.add(w);
+        }
+
+        waypoints.setReadOnly();
+        observableDelegate = waypoints;
+        materialized = true;
+        rebuildLines();
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public Waypoint getWaypoint(int index) {
+        materialize();
+        return super.getWaypoint(index);
+    }
+
+    @Override
+    public List<Waypoint> getWaypoints() {
+        materialize();
+        return super.getWaypoints();
+    }
+
+    @Override
+    public RouteGeometry getGeometry() {
+        materialize();
+        return super.getGeometry();
+    }
+
+    @Override
+    public double getElevation(int index) {
+        materialize();
+        return super.getElevation(index);
+    }
+
+    @Override
+    public long getTime(int index) {
+        materialize();
+        return super.getTime(index);
+    }
+
+    @Override
+    public boolean isTrackPoint(int index) {
+        materialize();
+        return super.isTrackPoint(index);
+    }
+
+    @Override
+    Waypoint peekWaypoint(int index) {
+        materialize();
+        return super.peekWaypoint(index);
+    }
+
+    @Override
+    public Waypoint getOrigin() {
+        materialize();
+        return super.getOrigin();
+    }
+
+    @Override
+    public Waypoint getDestination() {
+        materialize();
+        return super.getDestination();
+    }
+
+    @Override
+    public List<Waypoint> getInterimWaypoints() {
+        materialize();
+        return super.getInterimWaypoints();
+    }
+
+    @Override
+    public int indexOf(Waypoint w) {
+        materialize();
+        return super.indexOf(w);
+    }
+
+    @Override
+    public List<Polyline> getLines() {
+        materialize();
+        return super.getLines();
+    }
+
+    @Override
+    public void rebuildLines() {
+        materialize();
+        super.rebuildLines();
+    }
+
+    @Override
+    public void addListener(ListChangeListener<Waypoint> l) {
+        materialize();
+        super.addListener(l);
+    }
+
+    @Override
+    void addCreationListener(Consumer<Waypoint> l) {
+        materialize();
+        super.addCreationListener(l);
+    }
+
+    @Override
+    public void createUnderlying() {
+        materialize();
+        super.createUnderlying();
+    }
+
+    @Override
+    public boolean pathEquals(Route other) {
+        materialize();
+        if(other instanceof ArchivedRoute) {
+            ((ArchivedRoute)other).materialize();
+        }
+        return super.pathEquals(other);
+    }
+
+    @Override
+    public void addWaypoint(Waypoint w) {
+        throw new UnsupportedOperationException("Archived routes are read-only");
+    }
+
+    @Override
+    public void addPoint(double latitude, double longitude, double elevation, long time) {
+        throw new UnsupportedOperationException("Archived routes are read-only");
+    }
+
+    @Override
+    public void setElevation(int index, double elevation) {
+        throw new UnsupportedOperationException("Archived routes are read-only");
+    }
+
+    @Override
+    public void setTime(int index, long time) {
+        throw new UnsupportedOperationException("Archived routes are read-only");
+    }
+
+    @Override
+    public void addWaypoint(int index, Waypoint w) {
+        throw new UnsupportedOperationException("Archived routes are read-only");
+    }
+
+    @Override
+    public void setWaypoint(int index, Waypoint w) {
+        throw new UnsupportedOperationException("Archived routes are read-only");
+    }
+
+    @Override
+    public void removeWaypoint(Waypoint w) {
+        throw new UnsupportedOperationException("Archived routes are read-only");
+    }
+
+    @Override
+    public void removeAllWaypoints() {
+        throw new UnsupportedOperationException("Archived routes are read-only");
+    }
+
+    @Override
+    public Polyline addLeg(PolylineOptions style) {
+        throw new UnsupportedOperationException("Archived routes are read-only");
+    }
+
+    @Override
+    public void setLineStyle(PolylineOptions style) {
+        throw new UnsupportedOperationException("Archived routes are read-only");
+    }
+
+    @Override
+    public void interimMarkersVisible(boolean b) {
+        throw new UnsupportedOperationException("Archived routes are read-only");
+    }
+
+    @Override
+    public String toString() {
+        return "ArchivedRoute [name=" + name + ", size=" + count + "]";
+    }
+
+    @Override
+    public boolean contentEquals(Route other) {
+        materialize();
+        if(other instanceof ArchivedRoute) {
+            ((ArchivedRoute)other).materialize();
+        }
+        return super.contentEquals(other);
+    }
+}
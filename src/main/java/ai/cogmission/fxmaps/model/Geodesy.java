@@ -0,0 +1,266 @@
+package ai.cogmission.fxmaps.model;
+
+/**
+ * Distance calculations on a spherical earth, in meters.
+ * <p>
+ * Distances between points use the haversine formula, which is accurate
+ * for small as well as large distances. Distances from a point to a leg
+ * between two points are found through a local equirectangular projection
+ * around the point, which is accurate for legs of up to a few hundred
+ * kilometers.
+ * </p><p>
+ * Where the flattening of the earth matters, {@link #vincentyDistance(double, double, double, double)}
+ * gives distances on the WGS-84 ellipsoid to within a millimeter. The same
+ * calculations over arrays of coordinates are in {@link GeodesyBatch}.
+ * </p>
+ *
+ * @author cogmission
+ * @see SpatialIndex
+ */
+public final class Geodesy {
+    /** Mean earth radius in meters */
+    public static final double EARTH_RADIUS = 6371008.8;
+    /** Equatorial radius of the Web Mercator projection of map tiles, in meters */
+    public static final double MERCATOR_RADIUS = 6378137;
+    /** Equatorial radius of the WGS-84 ellipsoid in meters */
+    public static final double WGS84_A = 6378137;
+    /** Flattening of the WGS-84 ellipsoid */
+    public static final double WGS84_F = 1 / 298.257223563;
+    /** Polar radius of the WGS-84 ellipsoid in meters */
+    public static final double WGS84_B = WGS84_A * (1 - WGS84_F);
+    /** Size in pixels of the map tile covering the whole earth at zoom level 0 */
+    private static final int TILE_SIZE = 256;
+
+
+    private Geodesy() {}
+
+    /**
+     * Returns the great circle distance between the specified positions
+     *
+     * @param from  the first position
+     * @param to    the second position
+     * @return  the distance in meters
+     */
+    public static double distance(LatLon from, LatLon to) {
+        return distance(from.getLatitude(), from.getLongitude(), to.getLatitude(), to.getLongitude());
+    }
+
+    /**
+     * Returns the great circle distance between the specified coordinates
+     *
+     * @param lat1  the latitude of the first position
+     * @param lon1  the longitude of the first position
+     * @param lat2  the latitude of the second position
+     * @param lon2  the longitude of the second position
+     * @return  the distance in meters
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double sinLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+        double sinLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double a = sinLat * sinLat + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Returns the distance between the specified coordinates on the WGS-84
+     * ellipsoid, by Vincenty's inverse formula. For the nearly antipodal
+     * positions for which the formula does not converge the great circle
+     * distance is returned.
+     *
+     * @param lat1  the latitude of the first position
+     * @param lon1  the longitude of the first position
+     * @param lat2  the latitude of the second position
+     * @param lon2  the longitude of the second position
+     * @return  the distance in meters
+     */
+    public static double vincentyDistance(double lat1, double lon1, double lat2, double lon2) {
+        double l = Math.toRadians(lon2 - lon1);
+        double tanU1 = (1 - WGS84_F) * Math.tan(Math.toRadians(lat1));
+        double tanU2 = (1 - WGS84_F) * Math.tan(Math.toRadians(lat2));
+        double cosU1 = 1 / Math.sqrt(1 + tanU1 * tanU1), sinU1 = tanU1 * cosU1;
+        double cosU2 = 1 / Math.sqrt(1 + tanU2 * tanU2), sinU2 = tanU2 * cosU2;
+
+        double lambda = l, sinSigma, cosSigma, sigma, cosSqAlpha, cos2SigmaM;
+        int iterations = 0;
+        while(true) {
+            double sinLambda = Math.sin(lambda), cosLambda = Math.cos(lambda);
+            double x = cosU2 * sinLambda, y = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            sinSigma = Math.sqrt(x * x + y * y);
+            if(sinSigma == 0) {
+                return 0;
+            }
+            cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+            sigma = Math.atan2(sinSigma, cosSigma);
+            double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+            cosSqAlpha = 1 - sinAlpha * sinAlpha;
+            // Legs along the equator have no cos2SigmaM
+            cos2SigmaM = cosSqAlpha == 0 ? 0 : cosSigma - 2 * sinU1 * sinU2 / cosSqAlpha;
+            double c = WGS84_F / 16 * cosSqAlpha * (4 + WGS84_F * (4 - 3 * cosSqAlpha));
+            double previous = lambda;
+            lambda = l + (1 - c) * WGS84_F * sinAlpha *
+                (sigma + c * sinSigma * (cos2SigmaM + c * cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)));
+            if(Math.abs(lambda - previous) < 1e-12) {
+                break;
+            }
+            if(++iterations == 200) {
+                return distance(lat1, lon1, lat2, lon2);
+            }
+        }
+
+        double uSq = cosSqAlpha * (WGS84_A * WGS84_A - WGS84_B * WGS84_B) / (WGS84_B * WGS84_B);
+        double a = 1 + uSq / 16384 * (4096 + uSq * (-768 + uSq * (320 - 175 * uSq)));
+        double b = uSq / 1024 * (256 + uSq * (-128 + uSq * (74 - 47 * uSq)));
+        double deltaSigma = b * sinSigma * (cos2SigmaM + b / 4 * (cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM) -
+            b / 6 * cos2SigmaM * (-3 + 4 * sinSigma * sinSigma) * (-3 + 4 * cos2SigmaM * cos2SigmaM)));
+        return WGS84_B * a * (sigma - deltaSigma);
+    }
+
+    /**
+     * Returns the initial bearing of the great circle from the first to the
+     * second of the specified positions
+     *
+     * @param lat1  the latitude of the first position
+     * @param lon1  the longitude of the first position
+     * @param lat2  the latitude of the second position
+     * @param lon2  the longitude of the second position
+     * @return  the bearing in degrees clockwise from north, from 0 up to 360
+     */
+    public static double bearing(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1), phi2 = Math.toRadians(lat2);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double y = Math.sin(dLon) * Math.cos(phi2);
+        double x = Math.cos(phi1) * Math.sin(phi2) - Math.sin(phi1) * Math.cos(phi2) * Math.cos(dLon);
+        double bearing = Math.toDegrees(Math.atan2(y, x));
+        return bearing < 0 ? bearing + 360 : bearing;
+    }
+
+    /**
+     * Returns the position reached by following the great circle with the
+     * specified initial bearing for the specified distance
+     *
+     * @param from      the position to start from
+     * @param bearing   the initial bearing in degrees clockwise from north
+     * @param meters    the distance in meters
+     * @return  the position, with a longitude from -180 up to 180
+     */
+    public static LatLon destination(LatLon from, double bearing, double meters) {
+        double phi1 = Math.toRadians(from.getLatitude()), theta = Math.toRadians(bearing);
+        double delta = meters / EARTH_RADIUS;
+        double sinPhi1 = Math.sin(phi1), cosPhi1 = Math.cos(phi1), sinDelta = Math.sin(delta), cosDelta = Math.cos(delta);
+        double sinPhi2 = sinPhi1 * cosDelta + cosPhi1 * sinDelta * Math.cos(theta);
+        double dLon = Math.atan2(Math.sin(theta) * sinDelta * cosPhi1, cosDelta - sinPhi1 * sinPhi2);
+        return new LatLon(Math.toDegrees(Math.asin(sinPhi2)), normalizeLongitude(from.getLongitude() + Math.toDegrees(dLon)));
+    }
+
+    /**
+     * Returns the distance from the specified position to the closest point
+     * of the leg between two other positions.
+     *
+     * @param lat   the latitude of the position
+     * @param lon   the longitude of the position
+     * @param lat1  the latitude the leg starts at
+     * @param lon1  the longitude the leg starts at
+     * @param lat2  the latitude the leg ends at
+     * @param lon2  the longitude the leg ends at
+     * @return  the distance in meters
+     */
+    public static double segmentDistance(double lat, double lon, double lat1, double lon1, double lat2, double lon2) {
+        double t = segmentFraction(lat, lon, lat1, lon1, lat2, lon2);
+        return distance(lat, lon, lat1 + t * (lat2 - lat1), lon1 + t * (lon2 - lon1));
+    }
+
+    /**
+     * Returns the position of the point of the leg between two positions which
+     * is closest to the specified position, as a fraction of the leg. The leg's
+     * points are interpolated linearly in latitude and longitude.
+     *
+     * @param lat   the latitude of the position
+     * @param lon   the longitude of the position
+     * @param lat1  the latitude the leg starts at
+     * @param lon1  the longitude the leg starts at
+     * @param lat2  the latitude the leg ends at
+     * @param lon2  the longitude the leg ends at
+     * @return  the fraction between 0 (the start) and 1 (the end)
+     */
+    public static double segmentFraction(double lat, double lon, double lat1, double lon1, double lat2, double lon2) {
+        double scale = Math.cos(Math.toRadians(lat));
+        double x1 = (lon1 - lon) * scale, y1 = lat1 - lat;
+        double x2 = (lon2 - lon) * scale, y2 = lat2 - lat;
+        double dx = x2 - x1, dy = y2 - y1;
+        double lengthSq = dx * dx + dy * dy;
+        return lengthSq == 0 ? 0 : Math.max(0, Math.min(1, -(x1 * dx + y1 * dy) / lengthSq));
+    }
+
+    /**
+     * Returns the distance from the specified position to the closest point
+     * of the area between two latitudes and two longitudes, which is 0 for
+     * positions within the area.
+     *
+     * @param lat       the latitude of the position
+     * @param lon       the longitude of the position
+     * @param minLat    the southern latitude of the area
+     * @param maxLat    the northern latitude of the area
+     * @param minLon    the western longitude of the area
+     * @param maxLon    the eastern longitude of the area
+     * @return  the distance in meters
+     */
+    public static double boxDistance(double lat, double lon, double minLat, double maxLat, double minLon, double maxLon) {
+        if(lon >= minLon && lon <= maxLon) {
+            // The closest point is on the position's meridian
+            return lat < minLat ? distance(lat, lon, minLat, lon) : lat > maxLat ? distance(lat, lon, maxLat, lon) : 0;
+        }
+
+        // The closest point is on the nearer edge meridian, where its great circle is closest
+        double edge = lon < minLon ? minLon : maxLon;
+        double dLon = Math.toRadians(Math.abs(edge - lon));
+        double closest = dLon >= Math.PI / 2 ? Math.copySign(90, lat) :
+            Math.toDegrees(Math.atan(Math.tan(Math.toRadians(lat)) / Math.cos(dLon)));
+        return distance(lat, lon, Math.max(minLat, Math.min(maxLat, closest)), edge);
+    }
+
+    /**
+     * Returns the number of degrees of latitude spanned by the specified distance
+     *
+     * @param meters    the distance in meters
+     * @return  the latitude difference in degrees
+     */
+    public static double latitudeDegrees(double meters) {
+        return Math.toDegrees(meters / EARTH_RADIUS);
+    }
+
+    /**
+     * Returns the largest number of degrees of longitude a position at the specified
+     * distance from a position at the specified latitude can differ by.
+     *
+     * @param meters    the distance in meters
+     * @param latitude  the latitude of the position
+     * @return  the longitude difference in degrees, 180 if the distance reaches a pole
+     */
+    public static double longitudeDegrees(double meters, double latitude) {
+        double sin = Math.sin(Math.min(Math.PI / 2, meters / EARTH_RADIUS));
+        double cos = Math.cos(Math.toRadians(latitude));
+        return sin >= cos ? 180 : Math.toDegrees(Math.asin(sin / cos));
+    }
+
+    /**
+     * Returns the ground distance covered by one pixel of a Web Mercator map
+     * at the specified latitude and zoom level.
+     *
+     * @param latitude  the latitude
+     * @param zoom      the zoom level
+     * @return  the distance in meters
+     */
+    public static double metersPerPixel(double latitude, double zoom) {
+        return 2 * Math.PI * MERCATOR_RADIUS * Math.cos(Math.toRadians(latitude)) / (TILE_SIZE * Math.pow(2, zoom));
+    }
+
+    /**
+     * Returns the specified longitude moved into the range from -180 up to 180
+     *
+     * @param longitude     the longitude in degrees
+     * @return  the equivalent longitude
+     */
+    static double normalizeLongitude(double longitude) {
+        return longitude >= -180 && longitude < 180 ? longitude : longitude - 360 * Math.floor((longitude + 180) / 360);
+    }
+}
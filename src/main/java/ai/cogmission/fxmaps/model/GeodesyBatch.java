@@ -0,0 +1,277 @@
+package ai.cogmission.fxmaps.model;
+
+import java.util.stream.IntStream;
+
+/**
+ * The calculations of {@link Geodesy} over arrays of coordinates, such as the
+ * columns of a {@link RouteGeometry}.
+ * <p>
+ * Each method computes a range of results into an output array in a single
+ * loop over the primitive arrays, without creating a {@link LatLon} or any
+ * other object per point. Leg lengths compute the cosine of each latitude
+ * once instead of once per leg end. With the parallel flag set, ranges of
+ * more than {@link #PARALLEL_THRESHOLD} results are split into blocks which
+ * are computed on the common fork-join pool.
+ * </p><p>
+ * Results for the leg between two consecutive points are stored at the index
+ * of the point the leg ends at, like the columns of {@link RouteMetrics}, so
+ * ranges of legs start at index 1 or later.
+ * </p>
+ *
+ * @author cogmission
+ * @see Route#getLegLengths()
+ */
+public final class GeodesyBatch {
+    /** Number of results above which the parallel variants use the fork-join pool */
+    public static final int PARALLEL_THRESHOLD = 1 << 16;
+    /** Number of results computed by each parallel task */
+    private static final int BLOCK_SIZE = 1 << 13;
+
+
+    private GeodesyBatch() {}
+
+    /**
+     * Computes the great circle lengths of the legs ending at the points of the specified range
+     *
+     * @param lats      the latitudes of the points
+     * @param lons      the longitudes of the points
+     * @param from      the index of the point the first leg ends at, at least 1
+     * @param to        the index after the point the last leg ends at
+     * @param out       the array receiving the length of each leg in meters at the index of its end
+     * @param parallel  true to compute large ranges on the fork-join pool
+     */
+    public static void legLengths(double[] lats, double[] lons, int from, int to, double[] out, boolean parallel) {
+        checkLegRange(from, to);
+        run(from, to, parallel, (f, t) -> {
+            double cosPrevious = Math.cos(Math.toRadians(lats[f - 1]));
+            for(int i = f;i < t;i++) {
+                double cos = Math.cos(Math.toRadians(lats[i]));
+                out[i] = haversine(lats[i] - lats[i - 1], lons[i] - lons[i - 1], cosPrevious, cos);
+                cosPrevious = cos;
+            }
+        });
+    }
+
+    /**
+     * Computes the great circle distances from a position to each point of the specified range
+     *
+     * @param lat       the latitude of the position
+     * @param lon       the longitude of the position
+     * @param lats      the latitudes of the points
+     * @param lons      the longitudes of the points
+     * @param from      the index of the first point
+     * @param to        the index after the last point
+     * @param out       the array receiving the distance in meters at the index of each point
+     * @param parallel  true to compute large ranges on the fork-join pool
+     */
+    public static void distances(double lat, double lon, double[] lats, double[] lons, int from, int to, double[] out, boolean parallel) {
+        double cos = Math.cos(Math.toRadians(lat));
+        run(from, to, parallel, (f, t) -> {
+            for(int i = f;i < t;i++) {
+                out[i] = haversine(lats[i] - lat, lons[i] - lon, cos, Math.cos(Math.toRadians(lats[i])));
+            }
+        });
+    }
+
+    /**
+     * Computes the great circle distances between the positions at the same
+     * indexes of two sets of arrays
+     *
+     * @param lats1     the latitudes of the first positions
+     * @param lons1     the longitudes of the first positions
+     * @param lats2     the latitudes of the second positions
+     * @param lons2     the longitudes of the second positions
+     * @param from      the index of the first pair
+     * @param to        the index after the last pair
+     * @param out       the array receiving the distance in meters at the index of each pair
+     * @param parallel  true to compute large ranges on the fork-join pool
+     */
+    public static void distances(double[] lats1, double[] lons1, double[] lats2, double[] lons2, int from, int to,
+        double[] out, boolean parallel) {
+
+        run(from, to, parallel, (f, t) -> {
+            for(int i = f;i < t;i++) {
+                out[i] = haversine(lats2[i] - lats1[i], lons2[i] - lons1[i],
+                    Math.cos(Math.toRadians(lats1[i])), Math.cos(Math.toRadians(lats2[i])));
+            }
+        });
+    }
+
+    /**
+     * Computes the distances on the WGS-84 ellipsoid between the positions at
+     * the same indexes of two sets of arrays (see {@link Geodesy#vincentyDistance(double, double, double, double)})
+     *
+     * @param lats1     the latitudes of the first positions
+     * @param lons1     the longitudes of the first positions
+     * @param lats2     the latitudes of the second positions
+     * @param lons2     the longitudes of the second positions
+     * @param from      the index of the first pair
+     * @param to        the index after the last pair
+     * @param out       the array receiving the distance in meters at the index of each pair
+     * @param parallel  true to compute large ranges on the fork-join pool
+     */
+    public static void vincentyDistances(double[] lats1, double[] lons1, double[] lats2, double[] lons2, int from, int to,
+        double[] out, boolean parallel) {
+
+        run(from, to, parallel, (f, t) -> {
+            for(int i = f;i < t;i++) {
+                out[i] = Geodesy.vincentyDistance(lats1[i], lons1[i], lats2[i], lons2[i]);
+            }
+        });
+    }
+
+    /**
+     * Computes the lengths on the WGS-84 ellipsoid of the legs ending at the points of the specified range
+     *
+     * @param lats      the latitudes of the points
+     * @param lons      the longitudes of the points
+     * @param from      the index of the point the first leg ends at, at least 1
+     * @param to        the index after the point the last leg ends at
+     * @param out       the array receiving the length of each leg in meters at the index of its end
+     * @param parallel  true to compute large ranges on the fork-join pool
+     */
+    public static void vincentyLegLengths(double[] lats, double[] lons, int from, int to, double[] out, boolean parallel) {
+        checkLegRange(from, to);
+        run(from, to, parallel, (f, t) -> {
+            for(int i = f;i < t;i++) {
+                out[i] = Geodesy.vincentyDistance(lats[i - 1], lons[i - 1], lats[i], lons[i]);
+            }
+        });
+    }
+
+    /**
+     * Computes the initial bearings of the legs ending at the points of the specified range
+     *
+     * @param lats      the latitudes of the points
+     * @param lons      the longitudes of the points
+     * @param from      the index of the point the first leg ends at, at least 1
+     * @param to        the index after the point the last leg ends at
+     * @param out       the array receiving the bearing of each leg in degrees clockwise
+     *                  from north, from 0 up to 360, at the index of its end
+     * @param parallel  true to compute large ranges on the fork-join pool
+     */
+    public static void bearings(double[] lats, double[] lons, int from, int to, double[] out, boolean parallel) {
+        checkLegRange(from, to);
+        run(from, to, parallel, (f, t) -> {
+            double phi = Math.toRadians(lats[f - 1]);
+            double sinPrevious = Math.sin(phi), cosPrevious = Math.cos(phi);
+            for(int i = f;i < t;i++) {
+                phi = Math.toRadians(lats[i]);
+                double sin = Math.sin(phi), cos = Math.cos(phi);
+                double dLon = Math.toRadians(lons[i] - lons[i - 1]);
+                double bearing = Math.toDegrees(Math.atan2(Math.sin(dLon) * cos, cosPrevious * sin - sinPrevious * cos * Math.cos(dLon)));
+                out[i] = bearing < 0 ? bearing + 360 : bearing;
+                sinPrevious = sin;
+                cosPrevious = cos;
+            }
+        });
+    }
+
+    /**
+     * Computes the positions reached by following great circles from the
+     * specified positions with the specified initial bearings for the specified
+     * distances (see {@link Geodesy#destination(LatLon, double, double)}). The
+     * output arrays may be the input coordinate arrays.
+     *
+     * @param lats      the latitudes of the positions to start from
+     * @param lons      the longitudes of the positions to start from
+     * @param bearings  the initial bearings in degrees clockwise from north
+     * @param meters    the distances in meters
+     * @param from      the index of the first position
+     * @param to        the index after the last position
+     * @param outLats   the array receiving the latitude reached at the index of each position
+     * @param outLons   the array receiving the longitude reached at the index of each position
+     * @param parallel  true to compute large ranges on the fork-join pool
+     */
+    public static void destinations(double[] lats, double[] lons, double[] bearings, double[] meters, int from, int to,
+        double[] outLats, double[] outLons, boolean parallel) {
+
+        run(from, to, parallel, (f, t) -> {
+            for(int i = f;i < t;i++) {
+                double phi1 = Math.toRadians(lats[i]), theta = Math.toRadians(bearings[i]);
+                double delta = meters[i] / Geodesy.EARTH_RADIUS;
+                double sinPhi1 = Math.sin(phi1), cosPhi1 = Math.cos(phi1), sinDelta = Math.sin(delta), cosDelta = Math.cos(delta);
+                double sinPhi2 = sinPhi1 * cosDelta + cosPhi1 * sinDelta * Math.cos(theta);
+                double dLon = Math.atan2(Math.sin(theta) * sinDelta * cosPhi1, cosDelta - sinPhi1 * sinPhi2);
+                outLats[i] = Math.toDegrees(Math.asin(sinPhi2));
+                outLons[i] = Geodesy.normalizeLongitude(lons[i] + Math.toDegrees(dLon));
+            }
+        });
+    }
+
+    /**
+     * Computes the distances from a position to the legs ending at the points
+     * of the specified range (see {@link Geodesy#segmentDistance(double, double, double, double, double, double)})
+     *
+     * @param lat       the latitude of the position
+     * @param lon       the longitude of the position
+     * @param lats      the latitudes of the points
+     * @param lons      the longitudes of the points
+     * @param from      the index of the point the first leg ends at, at least 1
+     * @param to        the index after the point the last leg ends at
+     * @param out       the array receiving the distance in meters to each leg at the index of its end
+     * @param parallel  true to compute large ranges on the fork-join pool
+     */
+    public static void segmentDistances(double lat, double lon, double[] lats, double[] lons, int from, int to,
+        double[] out, boolean parallel) {
+
+        checkLegRange(from, to);
+        double cos = Math.cos(Math.toRadians(lat));
+        run(from, to, parallel, (f, t) -> {
+            for(int i = f;i < t;i++) {
+                // The closest point of the leg in a local equirectangular projection around the position
+                double x1 = (lons[i - 1] - lon) * cos, y1 = lats[i - 1] - lat;
+                double dx = (lons[i] - lon) * cos - x1, dy = lats[i] - lat - y1;
+                double lengthSq = dx * dx + dy * dy;
+                double s = lengthSq == 0 ? 0 : Math.max(0, Math.min(1, -(x1 * dx + y1 * dy) / lengthSq));
+                double closestLat = lats[i - 1] + s * (lats[i] - lats[i - 1]);
+                double closestLon = lons[i - 1] + s * (lons[i] - lons[i - 1]);
+                out[i] = haversine(closestLat - lat, closestLon - lon, cos, Math.cos(Math.toRadians(closestLat)));
+            }
+        });
+    }
+
+    /**
+     * Returns the haversine distance for the specified coordinate differences
+     * and cosines of the latitudes
+     */
+    private static double haversine(double dLat, double dLon, double cos1, double cos2) {
+        double sinLat = Math.sin(Math.toRadians(dLat) / 2);
+        double sinLon = Math.sin(Math.toRadians(dLon) / 2);
+        double a = sinLat * sinLat + cos1 * cos2 * sinLon * sinLon;
+        return 2 * Geodesy.EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static void checkLegRange(int from, int to) {
+        if(from < 1 && from < to) {
+            throw new IndexOutOfBoundsException("Legs end at index 1 or later: " + from);
+        }
+    }
+
+    /**
+     * Applies the kernel to the specified range, in blocks on the common
+     * fork-join pool if requested and the range is large enough
+     */
+    private static void run(int from, int to, boolean parallel, Kernel kernel) {
+        if(from >= to) {
+            return;
+        }
+        if(!parallel || to - from <= PARALLEL_THRESHOLD) {
+            kernel.apply(from, to);
+            return;
+        }
+        int blocks = (to - from + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        IntStream.range(0, blocks).parallel().forEach(b -> {
+            int start = from + b * BLOCK_SIZE;
+            kernel.apply(start, Math.min(to, start + BLOCK_SIZE));
+        });
+    }
+
+    /**
+     * A loop over a range of results
+     */
+    @FunctionalInterface
+    private interface Kernel {
+        void apply(int from, int to);
+    }
+}
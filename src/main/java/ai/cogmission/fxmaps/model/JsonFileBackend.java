@@ -0,0 +1,829 @@
+package ai.cogmission.fxmaps.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * {@link MapStoreBackend} keeping all maps in a single store file, in json or
+ * in the binary format of {@link MapStoreCodec} and optionally compressed, with
+ * its {@link MapStoreIndex} and generations. When sharded, the path names a
+ * directory in which every map has a file of its own (see {@link MapStoreShards}),
+ * and a {@link MapArchive} is opened read-only.
+ * <p>
+ * This is the storage {@link MapStore#load(String)} opens. The store file is
+ * only read when the backend's maps are first listed: when a valid index is
+ * found only the index is read, and a map's section of the store file is
+ * decoded when the map is requested. A section failing its checksum is read
+ * from the newest generation holding a valid copy of the map instead. On {@link #store(Map, Set, String)}, the
+ * sections of maps which aren't loaded or haven't changed are copied into the
+ * new snapshot without being serialized. Mutations can't be applied to the
+ * file incrementally and are written by the next store.
+ * </p><p>
+ * The snapshot is encoded when the store is captured; its {@link MapStoreBackend.Write}
+ * writes and forces it to a temporary file and only holds this backend's file
+ * lock, which map reads take too, while the store file is renamed into place.
+ * </p>
+ *
+ * @author cogmission
+ * @see MapStoreBackend
+ */
+public class JsonFileBackend implements MapStoreBackend {
+    private String path;
+
+    /** Set once the store file has been read */
+    private boolean opened;
+
+    private String selectedMap;
+
+    /** Sequence number of the last {@link MapStoreJournal} entry contained in the store file */
+    private Long journalSequence;
+
+    /** Index entries of the maps' sections in the store file (or archive), in file order */
+    private Map<String, MapStoreIndex.Entry> sections = new LinkedHashMap<>();
+
+    /** Maps of a store file without a valid index, which was read in full */
+    private Map<String, PersistentMap> parsed;
+
+    private MapStoreShards shards;
+
+    private MapArchive archive;
+
+    private int generations = MapStore.DEFAULT_GENERATIONS;
+
+    private boolean binary;
+
+    private boolean compressed;
+
+    private int compressionLevel = MapStoreCompression.DEFAULT_LEVEL;
+
+    /** Held while the store's files are replaced, and while maps are read from them */
+    private final Object fileLock = new Object();
+
+
+    /**
+     * Constructs a new {@code JsonFileBackend} over the store file (or sharded
+     * store directory, or archive) at the specified path, which is read when
+     * its maps are first listed and created by the first store.
+     *
+     * @param path  the path of the store file
+     */
+    public JsonFileBackend(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public Set<String> listMaps() {
+        open();
+        Set<String> names = new LinkedHashSet<>();
+        if(shards != null) {
+            for(MapStoreShards.Entry e : shards.getEntries()) {
+                names.add(e.getName());
+            }
+        }else{
+            names.addAll(sections.keySet());
+        }
+        if(parsed != null) {
+            names.addAll(parsed.keySet());
+        }
+        return names;
+    }
+
+    @Override
+    public String getSelectedMap() {
+        open();
+        return selectedMap;
+    }
+
+    /**
+     * Returns the sequence number of the last {@link MapStoreJournal} entry
+     * contained in the store file.
+     *
+     * @return  the journal sequence or null
+     */
+    public Long getJournalSequence() {
+        open();
+        return journalSequence;
+    }
+
+    /**
+     * Sets the sequence number of the last {@link MapStoreJournal} entry
+     * contained in the maps written by the next store.
+     *
+     * @param sequence  the journal sequence or null
+     */
+    public void setJournalSequence(Long sequence) {
+        this.journalSequence = sequence;
+    }
+
+    /**
+     * Returns a flag indicating whether the store file had no valid index and
+     * was read in full, in which case all of its maps are in memory already.
+     *
+     * @return  true if read in full, false if maps are read when requested
+     */
+    public boolean isParsed() {
+        open();
+        return parsed != null;
+    }
+
+    @Override
+    public PersistentMap getMap(String name) throws IOException {
+        open();
+        if(parsed != null && parsed.containsKey(name)) {
+            return parsed.get(name);
+        }
+        byte[] bytes;
+        synchronized(fileLock) {
+            if(shards != null) {
+                if(shards.getEntry(name) == null) {
+                    return null;
+                }
+                bytes = shards.readMap(name);
+            }else{
+                MapStoreIndex.Entry entry = sections.get(name);
+                if(entry == null) {
+                    return null;
+                }
+                if(archive != null) {
+                    return archive.readMap(entry);
+                }
+                try {
+                    bytes = MapStoreIndex.readSegment(path, entry);
+                }catch(IOException e) {
+                    bytes = readGeneration(name, e);
+                    // The map is serialized again by the next store rather than copied
+                    sections.remove(name);
+                    if(bytes == null) {
+                        return null;
+                    }
+                }
+            }
+        }
+        return decodeMap(bytes);
+    }
+
+    /**
+     * Reads the section of the specified map, whose section in the store file
+     * is damaged, from the newest generation which holds a valid copy of it.
+     *
+     * @param name      the name of the map
+     * @param damaged   the error reading the store file's section
+     * @return  the section's bytes, or null if no generation holds a valid copy
+     */
+    private byte[] readGeneration(String name, IOException damaged) {
+        System.out.println("Reading map from previous generations: " + damaged.getMessage());
+        String generation = MapStoreFiles.generationPath(path, 1);
+        for(int g = 1;Files.exists(Paths.get(generation));generation = MapStoreFiles.generationPath(path, ++g)) {
+            MapStoreIndex index = MapStoreIndex.read(generation);
+            if(index == null) {
+                continue;
+            }
+            for(MapStoreIndex.Entry e : index.getEntries()) {
+                if(e.getName().equals(name)) {
+                    try {
+                        byte[] bytes = MapStoreIndex.readSegment(generation, e);
+                        System.out.println("Restored map " + name + " from previous generation: " + generation);
+                        return bytes;
+                    }catch(IOException ex) {
+                        System.out.println("Ignoring damaged map in " + generation + ": " + ex.getMessage());
+                    }
+                }
+            }
+        }
+
+        System.out.println("No valid copy of map found: " + name);
+        return null;
+    }
+
+    @Override
+    public Route getRoute(String mapName, String routeId) throws IOException {
+        PersistentMap map = getMap(mapName);
+        return map == null ? null : map.getRouteById(routeId);
+    }
+
+    /**
+     * Encodes the specified maps into a new snapshot of the store file (or, when
+     * sharded, the files of the dirty maps). The returned write replaces the
+     * file atomically, keeping the previous snapshot as the newest generation,
+     * and returns the serialized json string which was written (the manifest
+     * for sharded stores, an empty string for binary or compressed stores).
+     */
+    @Override
+    public Write store(Map<String, PersistentMap> loaded, Set<String> mapNames, String selectedMap) throws IOException {
+        if(archive != null) {
+            throw new IOException("Map archives are read-only: " + path);
+        }
+        if(shards != null) {
+            return storeShards(loaded, mapNames, selectedMap);
+        }
+
+        Snapshot snapshot = encodeSnapshot(loaded, mapNames, selectedMap, binary, compressed);
+        return () -> {
+            Path temp = MapStoreFiles.writeTemp(Paths.get(path), snapshot.bytes);
+            synchronized(fileLock) {
+                // Keep the previous snapshot as the newest generation, then replace the
+                // store file in one durable step, as unloaded maps are copied from it
+                MapStoreFiles.rotate(path, generations);
+                MapStoreFiles.rename(temp, Paths.get(path));
+                sections.clear();
+                for(MapStoreIndex.Entry e : snapshot.index.getEntries()) {
+                    sections.put(e.getName(), e);
+                }
+                this.selectedMap = selectedMap;
+                parsed = null;
+            }
+            snapshot.index.write(path);
+            return snapshot.getJson();
+        };
+    }
+
+    /**
+     * Writes a copy of the specified maps, in json or binary format and optionally
+     * compressed, to the specified file. Maps which aren't loaded are copied from
+     * this backend's store file, which is left untouched, as are its format options.
+     *
+     * @param target        the path of the file to write
+     * @param loaded        the loaded maps by name
+     * @param mapNames      the names of all maps of the store
+     * @param selectedMap   the name of the selected map or null
+     * @param binary        true to write the binary format, false for json
+     * @param compressed    true to compress the file
+     * @return  the serialized json string which was written (an empty string
+     * for the binary format or a compressed file)
+     * @throws IOException  if the file could not be written
+     */
+    public String storeAs(String target, Map<String, PersistentMap> loaded, Set<String> mapNames, String selectedMap,
+        boolean binary, boolean compressed) throws IOException {
+
+        Snapshot snapshot = encodeSnapshot(loaded, mapNames, selectedMap, binary, compressed);
+        MapStoreFiles.write(Paths.get(target), snapshot.bytes);
+        return snapshot.getJson();
+    }
+
+    @Override
+    public boolean mutate(MapStoreJournal.Entry mutation, PersistentMap map, Route route) {
+        return false;
+    }
+
+    @Override
+    public void close() {}
+
+    /**
+     * Sets the number of previous snapshots kept beside the store file (see
+     * {@link MapStoreFiles#rotate(String, int)}). Zero keeps none.
+     *
+     * @param generations   the number of previous snapshots to keep
+     */
+    public void setGenerations(int generations) {
+        this.generations = generations;
+    }
+
+    /**
+     * Returns the number of previous snapshots kept beside the store file.
+     * @return  the number of generations
+     */
+    public int getGenerations() {
+        return generations;
+    }
+
+    /**
+     * Switches between the single store file and the sharded layout, in which
+     * the path names a directory with a file per map. All maps must be loaded,
+     * as the sections of the previous layout are not copied.
+     *
+     * @param b     true to shard, false for a single file
+     */
+    public void setSharded(boolean b) {
+        synchronized(fileLock) {
+            sections.clear();
+            shards = b ? new MapStoreShards(path) : null;
+        }
+    }
+
+    /**
+     * Returns the {@link MapStoreShards} describing the files of a sharded
+     * store, or null if the store is a single file.
+     *
+     * @return  the shards or null
+     */
+    public MapStoreShards getShards() {
+        return shards;
+    }
+
+    /**
+     * Returns a flag indicating whether this backend was opened on a read-only
+     * {@link MapArchive}.
+     *
+     * @return  true if opened on an archive, false if not
+     */
+    public boolean isArchive() {
+        return archive != null;
+    }
+
+    /**
+     * Selects the binary format of {@link MapStoreCodec} (or json) for the store
+     * file written by subsequent stores.
+     *
+     * @param b     true for binary, false for json
+     */
+    public void setBinary(boolean b) {
+        this.binary = b;
+    }
+
+    /**
+     * Returns a flag indicating whether the store file is written in binary format.
+     * @return  true if binary, false if json
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Selects gzip compression (see {@link MapStoreCompression}) of the store file
+     * written by subsequent stores.
+     *
+     * @param b     true to compress, false to write plain files
+     */
+    public void setCompressed(boolean b) {
+        this.compressed = b;
+    }
+
+    /**
+     * Returns a flag indicating whether the store file is written compressed.
+     * @return  true if compressed, false if plain
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Sets the deflate level used when the store file is compressed.
+     * @param level     the compression level
+     */
+    public void setCompressionLevel(int level) {
+        this.compressionLevel = level;
+    }
+
+    /**
+     * Returns the deflate level used when the store file is compressed.
+     * @return  the compression level
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Reads the store's index (or its manifest, or archive directory) once. A
+     * store which doesn't exist or can't be read is opened empty.
+     */
+    private void open() {
+        if(opened) {
+            return;
+        }
+        opened = true;
+
+        Path file = Paths.get(path);
+        if(Files.isDirectory(file)) {
+            openShards();
+        }else if(MapArchive.isArchive(file)) {
+            openArchive();
+        }else{
+            openSnapshot();
+        }
+    }
+
+    /**
+     * Opens the snapshot file. If it can't be read, the generations of previous
+     * snapshots are tried from newest to oldest and the first valid one is
+     * restored in place of the store file, which is kept aside (see
+     * {@link MapStoreFiles#CORRUPT_EXTENSION}) rather than deleted.
+     * <p>
+     * A store file with a matching index is trusted at this point; each map's
+     * checksum is checked when its section is first read (see {@link #getMap(String)}).
+     * </p>
+     */
+    private void openSnapshot() {
+        if(!Files.exists(Paths.get(path))) {
+            System.out.println("No map store found, creating new map store.");
+            return;
+        }
+
+        String generation = path;
+        for(int g = 0;Files.exists(Paths.get(generation));generation = MapStoreFiles.generationPath(path, ++g)) {
+            if(readSnapshot(generation)) {
+                if(g > 0) {
+                    restore(generation);
+                }
+                return;
+            }
+        }
+
+        System.out.println("No valid map store found, creating new map store.");
+    }
+
+    /**
+     * Reads the {@link MapStoreIndex} of the snapshot file at the specified path,
+     * when there is one matching the file, and otherwise parses the file in full.
+     *
+     * @param file  the path to the snapshot file
+     * @return  true if the file was read, false if it is invalid
+     */
+    private boolean readSnapshot(String file) {
+        MapStoreIndex index = MapStoreIndex.read(file);
+        if(index != null) {
+            for(MapStoreIndex.Entry e : index.getEntries()) {
+                sections.put(e.getName(), e);
+            }
+            selectedMap = index.getSelectedMap();
+            journalSequence = index.getJournalSequence();
+            binary = index.isBinary();
+            compressed = index.isCompressed();
+            return true;
+        }
+
+        try {
+            Path p = Paths.get(file);
+            if(MapStoreCodec.isBinary(p)) {
+                readBinary(p);
+            }else{
+                readJson(p);
+            }
+            compressed = MapStoreCompression.isCompressed(p);
+            return true;
+        }catch(Exception e) {
+            System.out.println("Ignoring unreadable map store " + file + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the store file (and its index) with the specified generation,
+     * keeping the replaced file aside.
+     *
+     * @param generation    the path of the valid generation
+     */
+    private void restore(String generation) {
+        try {
+            MapStoreIndex index = MapStoreIndex.read(generation);
+            Path store = Paths.get(path);
+            Files.move(store, Paths.get(path.concat(MapStoreFiles.CORRUPT_EXTENSION)), StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(MapStoreIndex.indexPath(path));
+            MapStoreFiles.copy(Paths.get(generation), store);
+            if(index != null) {
+                index.write(path);
+            }
+            System.out.println("Restored map store from previous generation: " + generation);
+        }catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Streams all maps of the json store file at the specified path, inflating
+     * it if compressed.
+     *
+     * @param file  the path to the store file
+     * @throws IOException  if the file could not be read or is malformed
+     */
+    private void readJson(Path file) throws IOException {
+        Map<String, PersistentMap> maps = new LinkedHashMap<>();
+        String selected = null;
+        Long sequence = null;
+        try(InputStream in = MapStoreCompression.open(file);
+            JsonParser p = MapStoreJson.createParser(in)) {
+
+            if(p.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("Map store is not a json object", p.getCurrentLocation());
+            }
+            while(p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                p.nextToken();
+                switch(field) {
+                    case "maps": {
+                        if(p.getCurrentToken() != JsonToken.START_OBJECT) {
+                            p.skipChildren();
+                            break;
+                        }
+                        while(p.nextToken() == JsonToken.FIELD_NAME) {
+                            String name = p.getCurrentName();
+                            p.nextToken();
+                            PersistentMap map = MapStoreJson.readMap(p);
+                            if(map != null) {
+                                maps.put(name, map);
+                            }
+                        }
+                        break;
+                    }
+                    case "selectedMap":
+                    case "selectedMapName": selected = p.getValueAsString(); break;
+                    case "journalSequence": {
+                        sequence = p.getCurrentToken() == JsonToken.VALUE_NULL ? null : p.getValueAsLong();
+                        break;
+                    }
+                    default: p.skipChildren();
+                }
+            }
+        }
+
+        parsed = maps;
+        selectedMap = selected;
+        journalSequence = sequence;
+    }
+
+    /**
+     * Reads all maps of the binary store file at the specified path, inflating
+     * it if compressed.
+     *
+     * @param file  the path to the store file
+     * @throws IOException  if the file could not be read or is malformed
+     */
+    private void readBinary(Path file) throws IOException {
+        // Plain block lengths are bounded by the file, inflated ones only by their type
+        long limit = MapStoreCompression.isCompressed(file) ? Integer.MAX_VALUE : Files.size(file);
+        try(DataInputStream in = new DataInputStream(MapStoreCompression.open(file))) {
+            MapStoreCodec.Header header = MapStoreCodec.readHeader(in);
+            Map<String, PersistentMap> maps = new LinkedHashMap<>();
+            for(int i = 0;i < header.getMapCount();i++) {
+                int length = in.readInt();
+                if(length < 0 || length > limit) {
+                    throw new IOException("Malformed map block length: " + length);
+                }
+                byte[] block = new byte[length];
+                in.readFully(block);
+                PersistentMap map = MapStoreCodec.decodeMap(block);
+                maps.put(map.getName(), map);
+            }
+            parsed = maps;
+            selectedMap = header.getSelectedMap();
+            journalSequence = header.getJournalSequence();
+            binary = true;
+        }
+    }
+
+    /**
+     * Opens the {@link MapArchive} at this backend's path. Maps are read from
+     * the archive when requested.
+     */
+    private void openArchive() {
+        try {
+            archive = MapArchive.open(Paths.get(path));
+        }catch(IOException e) {
+            System.out.println("Ignoring unreadable map archive " + path + ": " + e.getMessage());
+            return;
+        }
+
+        for(MapStoreIndex.Entry e : archive.getEntries()) {
+            sections.put(e.getName(), e);
+        }
+        selectedMap = archive.getSelectedMap();
+    }
+
+    /**
+     * Reads the manifest of the sharded store in this backend's directory.
+     * Maps are read from their files when requested.
+     */
+    private void openShards() {
+        shards = MapStoreShards.read(path);
+        if(shards == null) {
+            System.out.println("No map store manifest found, creating new map store.");
+            shards = new MapStoreShards(path);
+            return;
+        }
+
+        selectedMap = shards.getSelectedMap();
+        journalSequence = shards.getJournalSequence();
+    }
+
+    /**
+     * Encodes all maps into the content of a single store file, copying the
+     * sections of maps which aren't loaded or haven't changed from this
+     * backend's store file.
+     *
+     * @param loaded        the loaded maps by name
+     * @param mapNames      the names of all maps of the store
+     * @param selectedMap   the name of the selected map or null
+     * @param binary        true to write the binary format, false for json
+     * @param compressed    true to compress the file
+     * @return  the encoded snapshot and its index
+     * @throws IOException  if a map could not be encoded or copied
+     */
+    private Snapshot encodeSnapshot(Map<String, PersistentMap> loaded, Set<String> mapNames, String selectedMap,
+        boolean binary, boolean compressed) throws IOException {
+
+        synchronized(fileLock) {
+            return encodeSections(loaded, mapNames, selectedMap, binary, compressed);
+        }
+    }
+
+    private Snapshot encodeSections(Map<String, PersistentMap> loaded, Set<String> mapNames, String selectedMap,
+        boolean binary, boolean compressed) throws IOException {
+
+        // convert user object to json, one map at a time, recording each map's byte range
+        MapStoreIndex index = new MapStoreIndex();
+        index.setSelectedMap(selectedMap);
+        index.setJournalSequence(journalSequence);
+        index.setBinary(binary);
+        index.setCompressed(compressed);
+
+        MapStoreCompression.SectionOutputStream out = new MapStoreCompression.SectionOutputStream(compressed, compressionLevel);
+        DataOutputStream data = new DataOutputStream(out);
+        if(binary) {
+            MapStoreCodec.writeHeader(data, selectedMap, journalSequence, mapNames.size());
+        }else{
+            out.write("{\"maps\":{".getBytes(StandardCharsets.UTF_8));
+        }
+        boolean first = true;
+        for(String name : mapNames) {
+            PersistentMap map = loaded.get(name);
+            if(map == null && parsed != null) {
+                map = parsed.get(name);
+            }
+            MapStoreIndex.Entry old = null;
+            byte[] stored = null;
+            if(map == null) {
+                old = sections.get(name);
+                if(old == null) {
+                    throw new IOException("No stored section of map: " + name);
+                }
+                stored = MapStoreIndex.readSegment(path, old);
+            }else if(!map.isDirty() && sections.containsKey(name)) {
+                // Clean maps are copied like unloaded ones, unless their section can't be read
+                stored = readCleanSection(name, sections.get(name));
+                old = stored != null ? sections.get(name) : null;
+            }
+            if(stored != null && MapStoreCodec.isBinary(MapStoreCompression.peek(stored, 4)) != binary) {
+                // Sections are copied verbatim unless the format changes
+                if(map == null) {
+                    map = decodeMap(stored);
+                }
+                old = null;
+                stored = null;
+            }
+
+            // Binary blocks are prefixed with their plain length
+            byte[] mapBytes = null;
+            if(stored != null && (binary || MapStoreCompression.isCompressed(stored) != compressed)) {
+                mapBytes = MapStoreCompression.decompress(stored);
+                stored = null;
+            }else if(stored == null && binary) {
+                mapBytes = MapStoreCodec.encodeMap(map);
+            }
+            int routeCount = old != null ? old.routes : map.getRoutes().size();
+            int waypointCount = old != null ? old.waypoints : waypointCount(map);
+
+            if(binary) {
+                data.writeInt(mapBytes.length);
+            }else{
+                if(!first) out.write(',');
+                MapStoreJson.writeString(out, name);
+                out.write(':');
+            }
+            first = false;
+
+            // Loaded maps are streamed straight into the store file's buffer
+            int offset = out.beginSection();
+            if(stored != null) {
+                out.writeRaw(stored);
+            }else if(mapBytes != null) {
+                out.write(mapBytes);
+            }else{
+                MapStoreJson.writeMap(out, map);
+            }
+            index.add(new MapStoreIndex.Entry(name, offset, out.endSection() - offset, routeCount, waypointCount, null));
+        }
+        if(!binary) {
+            out.write("},\"selectedMapName\":".getBytes(StandardCharsets.UTF_8));
+            MapStoreJson.writeString(out, selectedMap);
+            if(journalSequence != null) {
+                out.write((",\"journalSequence\":" + journalSequence).getBytes(StandardCharsets.UTF_8));
+            }
+            out.write('}');
+        }
+
+        byte[] bytes = out.toByteArray();
+        for(MapStoreIndex.Entry e : index.getEntries()) {
+            e.checksum = MapStoreIndex.checksum(bytes, (int)e.offset, (int)e.length);
+        }
+
+        return new Snapshot(bytes, index);
+    }
+
+    /**
+     * Reads the section of the specified clean map from the store file, or
+     * returns null if it can't be read, so that the map is serialized instead.
+     *
+     * @param name      the name of the map
+     * @param entry     the entry of the map's section
+     * @return  the section's bytes or null
+     */
+    private byte[] readCleanSection(String name, MapStoreIndex.Entry entry) {
+        try {
+            return MapStoreIndex.readSegment(path, entry);
+        }catch(IOException e) {
+            System.out.println("Serializing map again, its stored section can't be reused: " + e.getMessage());
+            sections.remove(name);
+        }
+        return null;
+    }
+
+    /**
+     * Encodes the maps which changed, returning the write which writes them to
+     * their own files, followed by the {@link MapStoreShards} manifest.
+     *
+     * @return  the write, returning the manifest json which was written
+     * @throws IOException  if a map could not be encoded
+     */
+    private Write storeShards(Map<String, PersistentMap> loaded, Set<String> mapNames, String selectedMap) throws IOException {
+        Map<String, byte[]> changed = new LinkedHashMap<>();
+        Map<String, int[]> counts = new LinkedHashMap<>();
+        synchronized(fileLock) {
+            for(Map.Entry<String, PersistentMap> e : loaded.entrySet()) {
+                PersistentMap map = e.getValue();
+                if(map.isDirty() || shards.getEntry(e.getKey()) == null) {
+                    changed.put(e.getKey(), MapStoreJson.encodeMap(map));
+                    counts.put(e.getKey(), new int[] { map.getRoutes().size(), waypointCount(map) });
+                }
+            }
+        }
+        Set<String> names = new LinkedHashSet<>(mapNames);
+        Long sequence = journalSequence;
+
+        return () -> {
+            synchronized(fileLock) {
+                for(Map.Entry<String, byte[]> e : changed.entrySet()) {
+                    int[] count = counts.get(e.getKey());
+                    shards.writeMap(e.getKey(), e.getValue(), count[0], count[1]);
+                }
+                shards.retain(names);
+                this.selectedMap = selectedMap;
+                return shards.writeManifest(selectedMap, sequence);
+            }
+        };
+    }
+
+    /**
+     * Deserializes a single map from its json or binary form.
+     *
+     * @param bytes     the serialized map
+     * @return  the map
+     * @throws IOException  if the map is malformed
+     */
+    private static PersistentMap decodeMap(byte[] bytes) throws IOException {
+        bytes = MapStoreCompression.decompress(bytes);
+        if(MapStoreCodec.isBinary(bytes)) {
+            return MapStoreCodec.decodeMap(bytes);
+        }
+
+        return MapStoreJson.decodeMap(bytes);
+    }
+
+    /**
+     * The encoded content of a store file and its index
+     */
+    private static class Snapshot {
+        private final byte[] bytes;
+        private final MapStoreIndex index;
+
+        private Snapshot(byte[] bytes, MapStoreIndex index) {
+            this.bytes = bytes;
+            this.index = index;
+        }
+
+        /**
+         * Returns the snapshot as a json string, or an empty string for the
+         * binary format or a compressed file
+         */
+        private String getJson() {
+            return index.isBinary() || index.isCompressed() ? "" : new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Returns the number of {@link Waypoint}s in all routes of the specified map
+     * @param map   the map
+     * @return  the number of waypoints
+     */
+    private static int waypointCount(PersistentMap map) {
+        return map.getRoutes().stream().mapToInt(r -> r.size()).sum();
+    }
+}
@@ -0,0 +1,433 @@
+package ai.cogmission.fxmaps.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ai.cogmission.fxmaps.model.MapStoreCodec.StringTable;
+import ai.cogmission.fxmaps.model.MapStoreJournal.Op;
+
+/**
+ * {@link MapStoreBackend} keeping maps in an embedded {@link MapStoreLog}, one
+ * record per map, per route and per chunk of a route's waypoints.
+ * <p>
+ * A map's record holds its settings and the ids of its routes, so that
+ * {@link #getRoute(String, String)} reads a single route by looking up its
+ * record. Each route's waypoints are split into chunks of at most {@link #CHUNK_SIZE}
+ * waypoints, encoded like the {@link MapStoreCodec} map blocks, so adding or
+ * removing a waypoint through the {@link MapStore} rewrites only the route's
+ * record and one chunk, in one transaction, and {@link #store(Map, Set, String)}
+ * only rewrites the records of dirty routes. No operation pays for the size
+ * of the whole store.
+ * </p>
+ *
+ * @author cogmission
+ * @see MapStoreLog
+ */
+public class KeyValueBackend implements MapStoreBackend {
+    /** The maximum number of waypoints per chunk */
+    public static final int CHUNK_SIZE = 256;
+
+    private static final String SEPARATOR = "\u001f";
+    private static final String SELECTED_KEY = "selected";
+    private static final String MAP_PREFIX = "map" + SEPARATOR;
+    private static final String ROUTE_PREFIX = "route" + SEPARATOR;
+    private static final String CHUNK_PREFIX = "chunk" + SEPARATOR;
+
+    private String path;
+    private MapStoreLog log;
+
+
+    /**
+     * Constructs a new {@code KeyValueBackend}, opening (or creating) the
+     * log file at the specified path.
+     *
+     * @param path  the path of the log file
+     * @throws IOException  if the log could not be opened
+     */
+    public KeyValueBackend(String path) throws IOException {
+        this.path = path;
+        this.log = MapStoreLog.open(FileSystems.getDefault().getPath(path));
+    }
+
+    /**
+     * Returns the underlying key-value log
+     * @return  the log
+     */
+    public MapStoreLog getLog() {
+        return log;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public Set<String> listMaps() {
+        Set<String> names = new LinkedHashSet<>();
+        for(String key : log.keys(MAP_PREFIX)) {
+            names.add(key.substring(MAP_PREFIX.length()));
+        }
+        return names;
+    }
+
+    @Override
+    public String getSelectedMap() throws IOException {
+        byte[] bytes = log.get(SELECTED_KEY);
+        return bytes == null ? null : new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+
+    @Override
+    public PersistentMap getMap(String name) throws IOException {
+        byte[] bytes = log.get(MAP_PREFIX + name);
+        if(bytes == null) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        String[] strings = StringTable.read(in);
+        PersistentMap map = new PersistentMap(MapStoreCodec.string(strings, in.readInt()));
+        map.width = in.readDouble();
+        map.height = in.readDouble();
+        map.mapOptions = MapStoreCodec.readMapOptions(in, strings);
+        int routeCount = in.readInt();
+        for(int i = 0;i < routeCount;i++) {
+            String id = MapStoreCodec.string(strings, in.readInt());
+            Route r = getRoute(name, id);
+            if(r == null) {
+                throw new IOException("Missing route " + id + " of map: " + name);
+            }
+            map.routes.add(r);
+        }
+        map.setDirty(false);
+
+        return map;
+    }
+
+    @Override
+    public Route getRoute(String mapName, String routeId) throws IOException {
+        RouteRecord record = readRoute(log.get(routeKey(mapName, routeId)));
+        if(record == null) {
+            return null;
+        }
+
+        Route r = new Route(record.name);
+        r.id = routeId;
+        r.interimMarkersVisible = record.interimMarkersVisible;
+        r.lineStyle = record.lineStyle;
+        for(int[] chunk : record.chunks) {
+            byte[] bytes = log.get(chunkKey(mapName, routeId, chunk[0]));
+            if(bytes == null) {
+                throw new IOException("Missing waypoints of route: " + routeId);
+            }
+            readChunk(bytes, r);
+        }
+        r.rebuildLines();
+        r.setDirty(false);
+
+        return r;
+    }
+
+    /**
+     * Commits the changed records in a single transaction right away, so that
+     * it can't overwrite mutations applied after it. Log appends are small, and
+     * the log is compacted in the background.
+     */
+    @Override
+    public Write store(Map<String, PersistentMap> loaded, Set<String> mapNames, String selectedMap) throws IOException {
+        MapStoreLog.Transaction t = log.begin();
+        for(String name : listMaps()) {
+            if(!mapNames.contains(name)) {
+                deleteMap(t, name);
+            }
+        }
+
+        for(Map.Entry<String, PersistentMap> e : loaded.entrySet()) {
+            String name = e.getKey();
+            PersistentMap map = e.getValue();
+            if(!map.isDirty() && log.contains(MAP_PREFIX + name)) {
+                continue;
+            }
+
+            writeMap(t, name, map);
+            Set<String> ids = new HashSet<>();
+            for(Route r : map.getRoutes()) {
+                ids.add(r.getId());
+                if(r.isDirty() || !log.contains(routeKey(name, r.getId()))) {
+                    writeRoute(t, name, r);
+                }
+            }
+            String routes = ROUTE_PREFIX + name + SEPARATOR;
+            for(String key : log.keys(routes)) {
+                if(!ids.contains(key.substring(routes.length()))) {
+                    deleteRoute(t, name, key.substring(routes.length()));
+                }
+            }
+        }
+
+        if(selectedMap == null) {
+            t.delete(SELECTED_KEY);
+        }else{
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(selectedMap);
+            t.put(SELECTED_KEY, bytes.toByteArray());
+        }
+        t.commit();
+        return () -> "";
+    }
+
+    @Override
+    public boolean mutate(MapStoreJournal.Entry mutation, PersistentMap map, Route route) throws IOException {
+        String name = mutation.getMap();
+        MapStoreLog.Transaction t = log.begin();
+        Op op = mutation.getOp();
+        if(op == Op.DELETE_MAP) {
+            deleteMap(t, name);
+        }else if(op == Op.ADD_MAP || op == Op.ADD_ROUTE || op == Op.REMOVE_ROUTE) {
+            writeMap(t, name, map);
+            if(op == Op.ADD_ROUTE) {
+                writeRoute(t, name, route);
+            }else if(op == Op.REMOVE_ROUTE) {
+                deleteRoute(t, name, route.getId());
+            }
+        }else{
+            RouteRecord record = readRoute(log.get(routeKey(name, route.getId())));
+            if(record == null) {
+                return false;
+            }
+            switch(op) {
+                case CLEAR_ROUTE: writeRoute(t, name, route); break;
+                case ADD_WAYPOINT: {
+                    if(!appendWaypoint(t, name, route, record, mutation.getIndex())) {
+                        return false;
+                    }
+                    break;
+                }
+                case REMOVE_WAYPOINT: {
+                    if(!removeWaypoint(t, name, route, record, mutation.getIndex())) {
+                        return false;
+                    }
+                    break;
+                }
+                default: return false;
+            }
+        }
+        t.commit();
+        return true;
+    }
+
+    /**
+     * Rewrites the last chunk of the route (or starts a new one) to hold the
+     * waypoint which was appended at the specified index.
+     *
+     * @return  false if the stored route doesn't match the route before the append
+     */
+    private boolean appendWaypoint(MapStoreLog.Transaction t, String name, Route route, RouteRecord record, int index) throws IOException {
+        if(index != route.size() - 1 || record.size() != index) {
+            return false;
+        }
+
+        int[] last = record.chunks.isEmpty() ? null : record.chunks.get(record.chunks.size() - 1);
+        if(last == null || last[1] >= CHUNK_SIZE) {
+            last = new int[] { record.nextChunk++, 0 };
+            record.chunks.add(last);
+        }
+        last[1]++;
+        // The first leg with a style sets the route's line style
+        record.lineStyle = route.getLineStyle();
+        t.put(chunkKey(name, route.getId(), last[0]), writeChunk(route, index - last[1] + 1, index + 1));
+        t.put(routeKey(name, route.getId()), writeRoute(record));
+        return true;
+    }
+
+    /**
+     * Rewrites the chunk which held the waypoint removed from the specified index,
+     * dropping the chunk once it is empty.
+     *
+     * @return  false if the stored route doesn't match the route before the removal
+     */
+    private boolean removeWaypoint(MapStoreLog.Transaction t, String name, Route route, RouteRecord record, int index) throws IOException {
+        if(record.size() != route.size() + 1 || index < 0 || index > route.size()) {
+            return false;
+        }
+
+        int start = 0;
+        for(int c = 0;c < record.chunks.size();c++) {
+            int[] chunk = record.chunks.get(c);
+            if(index < start + chunk[1]) {
+                chunk[1]--;
+                String key = chunkKey(name, route.getId(), chunk[0]);
+                if(chunk[1] == 0) {
+                    record.chunks.remove(c);
+                    t.delete(key);
+                }else{
+                    t.put(key, writeChunk(route, start, start + chunk[1]));
+                }
+                break;
+            }
+            start += chunk[1];
+        }
+        t.put(routeKey(name, route.getId()), writeRoute(record));
+        return true;
+    }
+
+    private void deleteMap(MapStoreLog.Transaction t, String name) {
+        t.delete(MAP_PREFIX + name);
+        t.deletePrefix(ROUTE_PREFIX + name + SEPARATOR);
+        t.deletePrefix(CHUNK_PREFIX + name + SEPARATOR);
+    }
+
+    private void deleteRoute(MapStoreLog.Transaction t, String name, String routeId) {
+        t.delete(routeKey(name, routeId));
+        t.deletePrefix(chunkKey(name, routeId, 0).substring(0, chunkKey(name, routeId, 0).length() - 1));
+    }
+
+    /**
+     * Writes the record of the specified map: its settings and route ids
+     */
+    private void writeMap(MapStoreLog.Transaction t, String name, PersistentMap map) throws IOException {
+        StringTable strings = new StringTable();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeInt(strings.index(map.getName()));
+        out.writeDouble(map.getWidth());
+        out.writeDouble(map.getHeight());
+        MapStoreCodec.writeMapOptions(out, map.getMapOptions(), strings);
+        out.writeInt(map.getRoutes().size());
+        for(Route r : map.getRoutes()) {
+            out.writeInt(strings.index(r.getId()));
+        }
+        t.put(MAP_PREFIX + name, withStrings(strings, body));
+    }
+
+    /**
+     * Replaces the record and all chunks of the specified route
+     */
+    private void writeRoute(MapStoreLog.Transaction t, String name, Route route) throws IOException {
+        t.deletePrefix(chunkKey(name, route.getId(), 0).substring(0, chunkKey(name, route.getId(), 0).length() - 1));
+
+        RouteRecord record = new RouteRecord();
+        record.name = route.getName();
+        record.interimMarkersVisible = route.getInterimMarkersVisible();
+        record.lineStyle = route.getLineStyle();
+        int size = route.size();
+        for(int start = 0;start < size;start += CHUNK_SIZE) {
+            int end = Math.min(size, start + CHUNK_SIZE);
+            record.chunks.add(new int[] { record.nextChunk, end - start });
+            t.put(chunkKey(name, route.getId(), record.nextChunk++), writeChunk(route, start, end));
+        }
+        t.put(routeKey(name, route.getId()), writeRoute(record));
+    }
+
+    private static byte[] writeRoute(RouteRecord record) throws IOException {
+        StringTable strings = new StringTable();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeInt(strings.index(record.name));
+        out.writeBoolean(record.interimMarkersVisible);
+        out.writeBoolean(record.lineStyle != null);
+        if(record.lineStyle != null) {
+            MapStoreCodec.writeStyle(out, record.lineStyle, strings);
+        }
+        out.writeInt(record.nextChunk);
+        out.writeInt(record.chunks.size());
+        for(int[] chunk : record.chunks) {
+            out.writeInt(chunk[0]);
+            out.writeInt(chunk[1]);
+        }
+        return withStrings(strings, body);
+    }
+
+    private static RouteRecord readRoute(byte[] bytes) throws IOException {
+        if(bytes == null) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        String[] strings = StringTable.read(in);
+        RouteRecord record = new RouteRecord();
+        record.name = MapStoreCodec.string(strings, in.readInt());
+        record.interimMarkersVisible = in.readBoolean();
+        record.lineStyle = in.readBoolean() ? MapStoreCodec.readStyle(in, strings) : null;
+        record.nextChunk = in.readInt();
+        int chunkCount = in.readInt();
+        for(int i = 0;i < chunkCount;i++) {
+            record.chunks.add(new int[] { in.readInt(), in.readInt() });
+        }
+        return record;
+    }
+
+    /**
+     * Encodes the specified range of the route's points, as {@link MapStoreCodec} does
+     */
+    private static byte[] writeChunk(Route route, int from, int to) throws IOException {
+        StringTable strings = new StringTable();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeInt(to - from);
+        MapStoreCodec.writePoints(out, route, from, to, strings);
+        return withStrings(strings, body);
+    }
+
+    /**
+     * Appends the points of the specified chunk to the route
+     */
+    private static void readChunk(byte[] bytes, Route route) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        String[] strings = StringTable.read(in);
+        MapStoreCodec.readPoints(in, route, in.readInt(), true, strings);
+    }
+
+    /**
+     * Prefixes the specified encoded body with the table of the strings it refers to
+     */
+    private static byte[] withStrings(StringTable strings, ByteArrayOutputStream body) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(body.size() + 64);
+        DataOutputStream out = new DataOutputStream(record);
+        strings.write(out);
+        body.writeTo(out);
+        return record.toByteArray();
+    }
+
+    private static String routeKey(String map, String routeId) {
+        return ROUTE_PREFIX + map + SEPARATOR + routeId;
+    }
+
+    private static String chunkKey(String map, String routeId, int chunk) {
+        return CHUNK_PREFIX + map + SEPARATOR + routeId + SEPARATOR + chunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    /**
+     * The decoded record of a route: its settings and its chunks as (id, size) pairs
+     */
+    private static class RouteRecord {
+        String name;
+        boolean interimMarkersVisible;
+        PolylineOptions lineStyle;
+        int nextChunk;
+        List<int[]> chunks = new ArrayList<>();
+
+        int size() {
+            int size = 0;
+            for(int[] chunk : chunks) {
+                size += chunk[1];
+            }
+            return size;
+        }
+    }
+}
@@ -89,6 +89,18 @@ public class LatLon {
 
     @Override
     public int hashCode() {
+        return hashCode(latitude, longitude);
+    }
+    
+    /**
+     * Returns the hash code of a {@code LatLon} with the specified coordinates,
+     * without creating one.
+     * 
+     * @param latitude      the latitude
+     * @param longitude     the longitude
+     * @return  the hash code
+     */
+    static int hashCode(double latitude, double longitude) {
         final int prime = 31;
         int result = 1;
         long temp;
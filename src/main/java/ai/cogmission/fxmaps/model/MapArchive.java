@@ -0,0 +1,420 @@
+package ai.cogmission.fxmaps.model;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import ai.cogmission.fxmaps.model.MapStoreCodec.StringTable;
+
+/**
+ * Read-only archive of many {@link PersistentMap}s, opened by memory mapping
+ * the archive file.
+ * <p>
+ * Opening an archive only reads its directory, at the end of the file, which
+ * lists each map's name, counts and the location of its map record. A map's
+ * record (names, styles and options) is read when the map is requested, and
+ * yields {@link ArchivedRoute}s which read their coordinates straight from the
+ * mapped file; a route's {@link Waypoint}s and {@link Marker}s are only created
+ * when they are first needed, e.g. for display. The heap cost of an open archive
+ * is therefore independent of the number of waypoints it holds.
+ * </p><p>
+ * Per map, the file holds the packed latitude and longitude columns of every
+ * route, a fixed size marker record per waypoint, the marker strings (icons
+ * and titles) behind an offset table and finally the map record. A single
+ * archive is limited to 2 GB, the largest region which can be mapped at once.
+ * </p><p>
+ * {@link MapStore#load(String)} recognizes archives and opens them as read-only
+ * stores; {@link MapStore#storeArchive(String)} writes one.
+ * </p>
+ *
+ * @author cogmission
+ * @see ArchivedRoute
+ */
+public class MapArchive {
+    /** Leading and trailing bytes of an archive file ("FMPA") */
+    public static final int MAGIC = 0x464D5041;
+    /** The current format version */
+    public static final short VERSION = 1;
+
+    /** Size of each waypoint's marker record: flags, icon, title, animation and leg style */
+    static final int MARKER_RECORD_SIZE = 14;
+    /** Size of the trailer holding the directory's offset */
+    private static final int TRAILER_SIZE = 12;
+
+    private ByteBuffer buffer;
+    private String selectedMap;
+    private List<MapStoreIndex.Entry> entries = new ArrayList<>();
+
+
+    private MapArchive(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Returns a flag indicating whether the file at the specified path is a map archive
+     *
+     * @param path  the file to check
+     * @return  true if an archive, false if not or if the file can't be read
+     */
+    public static boolean isArchive(Path path) {
+        if(!Files.isRegularFile(path)) {
+            return false;
+        }
+        try(InputStream in = Files.newInputStream(path)) {
+            byte[] magic = new byte[4];
+            return in.read(magic) == 4 && ByteBuffer.wrap(magic).getInt() == MAGIC;
+        }catch(IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Maps the archive file at the specified path and reads its directory.
+     *
+     * @param path  the archive file
+     * @return  the open archive
+     * @throws IOException  if the file could not be mapped or is not a valid archive
+     */
+    public static MapArchive open(Path path) throws IOException {
+        ByteBuffer buffer;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Map archive exceeds 2 GB: " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int size = buffer.capacity();
+        if(size < 6 + TRAILER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(size - 4) != MAGIC) {
+            throw new IOException("Not a map archive: " + path);
+        }
+        short version = buffer.getShort(4);
+        if(version < 1 || version > VERSION) {
+            throw new IOException("Unsupported map archive version: " + version);
+        }
+
+        long directory = buffer.getLong(size - TRAILER_SIZE);
+        if(directory < 6 || directory > size - TRAILER_SIZE) {
+            throw new IOException("Malformed map archive directory offset: " + directory);
+        }
+
+        MapArchive archive = new MapArchive(buffer);
+        DataInputStream in = archive.stream(directory, (int)(size - TRAILER_SIZE - directory));
+        archive.selectedMap = in.readBoolean() ? in.readUTF() : null;
+        int mapCount = in.readInt();
+        for(int i = 0;i < mapCount;i++) {
+            archive.entries.add(new MapStoreIndex.Entry(
+                in.readUTF(), in.readLong(), in.readInt(), in.readInt(), in.readInt(), null));
+        }
+        return archive;
+    }
+
+    /**
+     * Returns the name of the map which was selected when the archive was written
+     * @return  the selected map's name or null
+     */
+    public String getSelectedMap() {
+        return selectedMap;
+    }
+
+    /**
+     * Returns the directory entries of the archived maps, each addressing its
+     * map record
+     * @return  the unmodifiable list of entries
+     */
+    public List<MapStoreIndex.Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Reads the map record described by the specified entry, returning a map of
+     * {@link ArchivedRoute}s backed by this archive.
+     *
+     * @param entry     the map's directory entry
+     * @return  the map
+     * @throws IOException  if the map record is malformed
+     */
+    public PersistentMap readMap(MapStoreIndex.Entry entry) throws IOException {
+        if(entry.offset < 6 || entry.offset + entry.length > buffer.capacity()) {
+            throw new IOException("Malformed map archive entry: " + entry.name);
+        }
+        DataInputStream in = stream(entry.offset, (int)entry.length);
+        String[] strings = StringTable.read(in);
+
+        PersistentMap map = new PersistentMap(MapStoreCodec.string(strings, in.readInt()));
+        map.width = in.readDouble();
+        map.height = in.readDouble();
+        map.mapOptions = MapStoreCodec.readMapOptions(in, strings);
+
+        PolylineOptions[] legStyles = new PolylineOptions[in.readInt()];
+        for(int i = 0;i < legStyles.length;i++) {
+            legStyles[i] = MapStoreCodec.readStyle(in, strings);
+        }
+        Strings markerStrings = new Strings(slice(in.readLong(), in.readInt()));
+
+        int routeCount = in.readInt();
+        for(int i = 0;i < routeCount;i++) {
+            String name = MapStoreCodec.string(strings, in.readInt());
+            String id = MapStoreCodec.string(strings, in.readInt());
+            boolean interimMarkersVisible = in.readBoolean();
+            PolylineOptions lineStyle = in.readBoolean() ? MapStoreCodec.readStyle(in, strings) : null;
+            int n = in.readInt();
+            ByteBuffer coordinates = slice(in.readLong(), n * 16);
+            ByteBuffer markers = slice(in.readLong(), n * MARKER_RECORD_SIZE);
+
+            map.routes.add(new ArchivedRoute(name, id, interimMarkersVisible, lineStyle, n,
+                coordinates.asDoubleBuffer(), markers, markerStrings, legStyles));
+        }
+        map.setDirty(false);
+
+        return map;
+    }
+
+    /**
+     * Returns a stream over the specified range of the mapped file
+     */
+    private DataInputStream stream(long offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer range = buffer.duplicate();
+        range.position((int)offset);
+        range.get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Returns a view of the specified range of the mapped file
+     */
+    private ByteBuffer slice(long offset, int length) throws IOException {
+        if(offset < 6 || length < 0 || offset + length > buffer.capacity()) {
+            throw new IOException("Malformed map archive section at: " + offset);
+        }
+        ByteBuffer range = buffer.duplicate();
+        range.position((int)offset);
+        range.limit((int)offset + length);
+        return range.slice();
+    }
+
+    /**
+     * Writes the specified maps to an archive at the specified path, replacing
+     * the file once it is completely written.
+     *
+     * @param path          the archive file to write
+     * @param maps          the maps to archive
+     * @param selectedMap   the name of the selected map or null
+     * @throws IOException  if the archive could not be written
+     */
+    public static void write(Path path, Collection<PersistentMap> maps, String selectedMap) throws IOException {
+        Path temp = MapStoreFiles.tempPath(path);
+        List<MapStoreIndex.Entry> directory = new ArrayList<>();
+        try(CountingOutputStream counter = new CountingOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(temp), MapStoreCompression.BUFFER_SIZE))) {
+
+            DataOutputStream out = new DataOutputStream(counter);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+
+            for(PersistentMap map : maps) {
+                directory.add(writeMap(out, counter, map));
+            }
+
+            long directoryOffset = counter.count;
+            out.writeBoolean(selectedMap != null);
+            if(selectedMap != null) {
+                out.writeUTF(selectedMap);
+            }
+            out.writeInt(directory.size());
+            for(MapStoreIndex.Entry e : directory) {
+                out.writeUTF(e.name);
+                out.writeLong(e.offset);
+                out.writeInt((int)e.length);
+                out.writeInt(e.routes);
+                out.writeInt(e.waypoints);
+            }
+            out.writeLong(directoryOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+
+            if(counter.count > Integer.MAX_VALUE) {
+                throw new IOException("Map archive exceeds 2 GB: " + path);
+            }
+        }catch(IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        MapStoreFiles.replace(temp, path);
+    }
+
+    /**
+     * Writes the coordinate columns and marker records of all routes of the
+     * specified map, followed by its marker strings and its map record.
+     *
+     * @return  the directory entry of the map
+     */
+    private static MapStoreIndex.Entry writeMap(DataOutputStream out, CountingOutputStream counter, PersistentMap map) throws IOException {
+        StringTable markerStrings = new StringTable();
+        List<PolylineOptions> legStyles = new ArrayList<>();
+        long[] coordinateOffsets = new long[map.routes.size()];
+        long[] markerOffsets = new long[map.routes.size()];
+        int waypointCount = 0;
+
+        for(int r = 0;r < map.routes.size();r++) {
+            Route route = map.routes.get(r);
+            RouteGeometry geometry = route.getGeometry();
+            int n = geometry.size();
+            waypointCount += n;
+
+            coordinateOffsets[r] = counter.count;
+            MapStoreCodec.writeDoubles(out, geometry.getLatitudes(0, n));
+            MapStoreCodec.writeDoubles(out, geometry.getLongitudes(0, n));
+
+            markerOffsets[r] = counter.count;
+            for(int i = 0;i < n;i++) {
+                Waypoint w = route.peekWaypoint(i); // Null for track points
+                boolean marked = w != null && w.hasMarker();
+                int legStyle = -1;
+                if(w != null && w.getLegStyle() != null) {
+                    legStyle = legStyles.size();
+                    legStyles.add(w.getLegStyle());
+                }
+                if(!marked) {
+                    out.writeByte(0);
+                    out.writeInt(-1);
+                    out.writeInt(-1);
+                    out.writeByte(0);
+                }else{
+                    Animation animation = w.markerAnimation();
+                    out.writeByte(1 | (w.markerVisible() ? 2 : 0));
+                    out.writeInt(markerStrings.index(w.markerIcon()));
+                    out.writeInt(markerStrings.index(w.markerTitle()));
+                    out.writeByte(animation == null ? 0 : animation.ordinal());
+                }
+                out.writeInt(legStyle);
+            }
+        }
+
+        // Marker strings: count, start offsets and utf-8 bytes, decoded one at a time when needed
+        long stringsOffset = counter.count;
+        byte[][] encoded = new byte[markerStrings.size()][];
+        int start = 0;
+        out.writeInt(encoded.length);
+        for(int i = 0;i < encoded.length;i++) {
+            encoded[i] = markerStrings.get(i).getBytes(StandardCharsets.UTF_8);
+            out.writeInt(start);
+            start += encoded[i].length;
+        }
+        out.writeInt(start);
+        for(byte[] bytes : encoded) {
+            out.write(bytes);
+        }
+        int stringsLength = (int)(counter.count - stringsOffset);
+
+        // The map record, with its own table of names, ids and style colors
+        StringTable strings = new StringTable();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(body);
+        record.writeInt(strings.index(map.name));
+        record.writeDouble(map.width);
+        record.writeDouble(map.height);
+        MapStoreCodec.writeMapOptions(record, map.mapOptions, strings);
+        record.writeInt(legStyles.size());
+        for(PolylineOptions style : legStyles) {
+            MapStoreCodec.writeStyle(record, style, strings);
+        }
+        record.writeLong(stringsOffset);
+        record.writeInt(stringsLength);
+        record.writeInt(map.routes.size());
+        for(int r = 0;r < map.routes.size();r++) {
+            Route route = map.routes.get(r);
+            record.writeInt(strings.index(route.name));
+            record.writeInt(strings.index(route.id));
+            record.writeBoolean(route.interimMarkersVisible);
+            record.writeBoolean(route.lineStyle != null);
+            if(route.lineStyle != null) {
+                MapStoreCodec.writeStyle(record, route.lineStyle, strings);
+            }
+            record.writeInt(route.size());
+            record.writeLong(coordinateOffsets[r]);
+            record.writeLong(markerOffsets[r]);
+        }
+        record.flush();
+
+        long recordOffset = counter.count;
+        strings.write(out);
+        body.writeTo(out);
+
+        return new MapStoreIndex.Entry(map.name, recordOffset, counter.count - recordOffset,
+            map.routes.size(), waypointCount, null);
+    }
+
+    /**
+     * The marker strings of an archived map, decoded from the mapped file on request
+     */
+    static class Strings {
+        private ByteBuffer buffer;
+        private int count;
+
+        Strings(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.count = buffer.getInt(0);
+        }
+
+        /**
+         * Returns the string with the specified index, or null for index -1
+         */
+        String get(int index) {
+            if(index == -1) {
+                return null;
+            }
+            if(index < 0 || index >= count) {
+                throw new IllegalStateException("Malformed map archive, bad string index: " + index);
+            }
+            int data = 4 + (count + 1) * 4;
+            int start = buffer.getInt(4 + index * 4);
+            int end = buffer.getInt(8 + index * 4);
+            byte[] bytes = new byte[end - start];
+            ByteBuffer range = buffer.duplicate();
+            range.position(data + start);
+            range.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Keeps track of the offset within the archive file being written
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
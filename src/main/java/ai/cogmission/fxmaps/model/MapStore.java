@@ -1,43 +1,133 @@
 package ai.cogmission.fxmaps.model;
 
-import java.io.File;
+import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import ai.cogmission.fxmaps.exception.MapDoesNotExistException;
+import ai.cogmission.fxmaps.model.MapStoreJournal.Entry;
+import ai.cogmission.fxmaps.model.MapStoreJournal.Op;
 import ai.cogmission.fxmaps.ui.Map;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.gson.Gson;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.google.gson.stream.MalformedJsonException;
 
 /**
  * Implements application {@link Map} persistence.
+ * <p>
+ * When journaling is enabled (see {@link #setJournalEnabled(boolean)}), mutations
+ * made through this store's mutator methods are appended to a {@link MapStoreJournal}
+ * and {@link #commit()} only rewrites the whole store once the journal grows past
+ * the compaction threshold.
+ * <p>
+ * When write-behind is enabled (see {@link #setWriteBehindInterval(long)}), 
+ * {@link #commit()} only marks the store dirty and a {@link MapStoreWriter} 
+ * persists it on a background thread at most once per interval. Call 
+ * {@link #close()} before exiting so that pending changes are flushed.
+ * <p>
+ * The store's maps are kept by a {@link MapStoreBackend}: a store file, which
+ * {@link #load(String)} opens with a {@link JsonFileBackend}, or any backend 
+ * passed to {@link #open(MapStoreBackend)} such as the embedded {@link KeyValueBackend},
+ * which applies each mutation incrementally instead of rewriting a store file.
+ * The backend's maps are listed when the store is opened, and a map's routes are
+ * deserialized the first time the map is requested via {@link #getMap(String)} or 
+ * {@link #selectMap(String)}. Maps which were never requested, and loaded maps 
+ * which haven't changed since they were loaded or last stored (see 
+ * {@link PersistentMap#isDirty()}), are not serialized again by {@link #store()},
+ * so that its cost is proportional to what changed.
+ * <p>
+ * The remaining options apply to store files (see {@link JsonFileBackend}).
+ * Each snapshot is accompanied by a {@link MapStoreIndex}, so that opening a 
+ * store file only reads the index.
+ * <p>
+ * When sharding is enabled (see {@link #setSharded(boolean)}), the store path names
+ * a directory in which every map is written to a file of its own (see 
+ * {@link MapStoreShards}); {@link #store()} then only rewrites the files of maps
+ * whose content changed.
+ * <p>
+ * The store file is written as json, or in the compact binary format of 
+ * {@link MapStoreCodec} when {@link #setBinary(boolean)} is enabled. Either format
+ * is detected on load, and {@link #storeAs(String, boolean)} exports a copy of the 
+ * store in either format.
+ * <p>
+ * When {@link #setCompressed(boolean)} is enabled, the store file is written as 
+ * gzip members (see {@link MapStoreCompression}), one per map, so that maps can 
+ * still be loaded lazily. Compression is likewise detected on load.
+ * <p>
+ * Reference map sets which are only viewed can be written as a read-only, memory
+ * mapped {@link MapArchive} (see {@link #storeArchive(String)}), which {@link #load(String)}
+ * opens without reading any waypoints.
+ * <p>
+ * Store files are replaced atomically and durably (see {@link MapStoreFiles}), 
+ * and the previous snapshots are kept as a rolling set of generations. The index
+ * records a checksum per map, which is checked when the map is first loaded,
+ * falling back to the newest generation holding a valid copy of the map.
  *  
  * @author cogmission
  */
 public class MapStore {
     public static final String DEFAULT_STORE_PATH = System.getProperty("user.home").concat("/map_store.json");
     
+    /** Number of journal entries after which {@link #commit()} compacts the journal into a snapshot */
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 500;
+    
+    /** Number of previous snapshots kept beside the store file */
+    public static final int DEFAULT_GENERATIONS = 2;
+    
     private java.util.Map<String, PersistentMap> maps = new java.util.HashMap<>();
     
     private String storePath = DEFAULT_STORE_PATH;
     
     private String selectedMap;
     
+    /** Sequence number of the last journal entry contained in this snapshot */
+    private Long journalSequence;
+    
+    private transient MapStoreJournal journal;
+    
+    private transient int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    
+    private transient boolean snapshotPending;
+    
+    private transient MapStoreWriter writer;
+    
+    /** Names of maps which are in the backend but haven't been loaded yet */
+    private transient Set<String> unloaded = new HashSet<>();
+    
+    /** The backend keeping this store's maps */
+    private transient MapStoreBackend backend;
+    
+    /** Serializes stores, which write the captured maps without holding this store's monitor */
+    private final transient Object storeLock = new Object();
+    
     
     /**
      * Construct a new {@code MapStore}
      */
-    public MapStore() {}
+    public MapStore() {
+        this(DEFAULT_STORE_PATH);
+    }
     
     /**
-     * Create a MapStore with a specified path.
+     * Create a MapStore with a specified path, which replaces any store
+     * file at that path when it is first stored.
      * @param storePath
      */
     public MapStore(String storePath) {
+        this(storePath, new JsonFileBackend(storePath));
+    }
+    
+    private MapStore(String storePath, MapStoreBackend backend) {
         this.storePath = storePath;
+        this.backend = backend;
     }
     
     /**
@@ -47,29 +137,81 @@ public class MapStore {
      * 
      * @param newMapName    the name for the new map.
      */
-    public void addMap(String newMapName) {
+    public synchronized void addMap(String newMapName) {
         if(newMapName == null) {
             return;
         }
         
-        if(maps.get(newMapName) == null) {
-            maps.put(newMapName, new PersistentMap(selectedMap = newMapName));
+        if(!containsMap(newMapName)) {
+            PersistentMap map = new PersistentMap(selectedMap = newMapName);
+            maps.put(newMapName, map);
+            record(new Entry(Op.ADD_MAP, newMapName), map, null, true);
         }
     }
     
+    /**
+     * Adds the specified, fully populated {@link PersistentMap} (such as one 
+     * imported from a GPX file) replacing any map stored under the same name. 
+     * Because a whole map is too large to journal, the next call to 
+     * {@link #commit()} writes a full snapshot.
+     * 
+     * @param map   the map to add
+     */
+    public synchronized void addMap(PersistentMap map) {
+        unloaded.remove(map.getName());
+        // The section stored under its name belongs to the replaced map
+        map.setDirty(true);
+        maps.put(map.getName(), map);
+        snapshotPending = true;
+    }
+    
     /**
      * Selects the currently active map
      * @param mapName   the name of the map to select
      * @throws MapDoesNotExistException
      */
     public void selectMap(String mapName) throws MapDoesNotExistException {
-        if(!maps.containsKey(mapName)) {
+        if(getMap(mapName) == null) {
             throw new MapDoesNotExistException("No map exists with name: " + mapName);
         }
         
         selectedMap = mapName;
     }
     
+    /**
+     * Returns a flag indicating whether a map with the specified name exists,
+     * without loading the map.
+     * 
+     * @param mapName   the name of the map
+     * @return  true if the map exists, false if not
+     */
+    public synchronized boolean containsMap(String mapName) {
+        return maps.containsKey(mapName) || unloaded.contains(mapName);
+    }
+    
+    /**
+     * Returns the names of all maps in this store, without loading them.
+     * 
+     * @return  the sorted set of map names
+     */
+    @JsonIgnore
+    public synchronized Set<String> getMapNames() {
+        Set<String> names = new TreeSet<>(maps.keySet());
+        names.addAll(unloaded);
+        return names;
+    }
+    
+    /**
+     * Returns a flag indicating whether the map with the specified name has 
+     * been deserialized.
+     * 
+     * @param mapName   the name of the map
+     * @return  true if the map is loaded, false if it is only indexed or doesn't exist
+     */
+    public synchronized boolean isMapLoaded(String mapName) {
+        return maps.containsKey(mapName);
+    }
+    
     /**
      * Returns the currently selected {@link PersistentMap} name.
      * @return
@@ -82,31 +224,472 @@ public class MapStore {
      * Removes the map with the specified name. 
      * @param mapName   the name of the map to remove
      */
-    public void deleteMap(String mapName) {
-        maps.remove(mapName);
+    public synchronized void deleteMap(String mapName) {
+        if(maps.remove(mapName) != null | unloaded.remove(mapName)) {
+            record(new Entry(Op.DELETE_MAP, mapName), null, null, true);
+        }
+    }
+    
+    /**
+     * Adds the specified {@link Route} to the currently selected map.
+     * 
+     * @param route     the route to add
+     */
+    public synchronized void addRoute(Route route) {
+        PersistentMap map = maps.get(selectedMap);
+        if(map == null || map.getRoutes().contains(route)) {
+            return;
+        }
+        
+        map.addRoute(route);
+        record(Entry.ofRoute(Op.ADD_ROUTE, selectedMap, route), map, route, true);
+    }
+    
+    /**
+     * Removes the specified {@link Route} from the currently selected map.
+     * 
+     * @param route     the route to remove
+     */
+    public synchronized void removeRoute(Route route) {
+        PersistentMap map = maps.get(selectedMap);
+        if(map == null) {
+            return;
+        }
+        
+        map.removeRoute(route);
+        record(Entry.ofRoute(Op.REMOVE_ROUTE, selectedMap, route), map, route, true);
+    }
+    
+    /**
+     * Removes all {@link Waypoint}s and lines from the specified {@link Route}
+     * 
+     * @param route     the route to clear
+     */
+    public synchronized void clearRoute(Route route) {
+        route.removeAllWaypoints();
+        record(Entry.ofRoute(Op.CLEAR_ROUTE, selectedMap, route), maps.get(selectedMap), route, true);
+    }
+    
+    /**
+     * Appends the specified {@link Waypoint} to the specified {@link Route}
+     * of the currently selected map. Any connecting line must be added to 
+     * the route by the caller.
+     * 
+     * @param route     the route to add to
+     * @param w         the waypoint to add
+     * @see #addWaypoint(Route, Waypoint, PolylineOptions)
+     */
+    public synchronized void addWaypoint(Route route, Waypoint w) {
+        boolean clean = !route.isDirty();
+        route.addWaypoint(w);
+        record(Entry.ofWaypoint(Op.ADD_WAYPOINT, selectedMap, route, route.size() - 1, w, null), maps.get(selectedMap), route, clean);
+    }
+    
+    /**
+     * Appends the specified {@link Waypoint} to the specified {@link Route}
+     * of the currently selected map and connects it to the preceding waypoint
+     * with a leg of the specified style (see {@link Route#addLeg(PolylineOptions)}),
+     * which is journaled with the waypoint. The leg is created while this store 
+     * is locked, so a background store never sees a partly applied style.
+     * 
+     * @param route     the route to add to
+     * @param w         the waypoint to add
+     * @param style     the style of the leg or null for the route's line style
+     * @return  the new leg line or null if the waypoint is the route's first
+     */
+    public synchronized Polyline addWaypoint(Route route, Waypoint w, PolylineOptions style) {
+        boolean clean = !route.isDirty();
+        route.addWaypoint(w);
+        Polyline leg = route.addLeg(style);
+        record(Entry.ofWaypoint(Op.ADD_WAYPOINT, selectedMap, route, route.size() - 1, w, style), maps.get(selectedMap), route, clean);
+        return leg;
+    }
+    
+    /**
+     * Removes the specified {@link Waypoint} (and its connecting line) from 
+     * the specified {@link Route} of the currently selected map.
+     * 
+     * @param route     the route to remove from
+     * @param w         the waypoint to remove
+     */
+    public synchronized void removeWaypoint(Route route, Waypoint w) {
+        int index = route.indexOf(w);
+        if(index == -1) {
+            return;
+        }
+        
+        boolean clean = !route.isDirty();
+        route.removeWaypoint(w);
+        record(Entry.ofWaypoint(Op.REMOVE_WAYPOINT, selectedMap, route, index, w, null), maps.get(selectedMap), route, clean);
+    }
+    
+    /**
+     * Enables or disables journaling of mutations. While enabled, every mutation
+     * made through this store is appended to a {@link MapStoreJournal} located
+     * beside the store file.
+     * 
+     * @param b     true to enable, false to disable
+     */
+    public void setJournalEnabled(boolean b) {
+        if(b && journal == null) {
+            journal = new MapStoreJournal(storePath, journalSequence == null ? 0 : journalSequence);
+        }else if(!b && journal != null) {
+            try {
+                journal.close();
+            }catch(IOException e) {
+                e.printStackTrace();
+            }
+            journalSequence = journal.getLastSequence();
+            journal = null;
+        }
+    }
+    
+    /**
+     * Returns a flag indicating whether journaling is enabled.
+     * @return  true if enabled, false if not
+     */
+    @JsonIgnore
+    public boolean isJournalEnabled() {
+        return journal != null;
+    }
+    
+    /**
+     * Sets the number of journal entries after which {@link #commit()}
+     * compacts the journal into a new snapshot.
+     * 
+     * @param threshold     the number of entries
+     */
+    public void setCompactionThreshold(int threshold) {
+        this.compactionThreshold = threshold;
+    }
+    
+    /**
+     * Returns the number of journal entries after which {@link #commit()}
+     * compacts the journal into a new snapshot.
+     * 
+     * @return  the compaction threshold
+     */
+    @JsonIgnore
+    public int getCompactionThreshold() {
+        return compactionThreshold;
+    }
+    
+    /**
+     * Sets the number of previous snapshots kept beside the store file (see 
+     * {@link MapStoreFiles#rotate(String, int)}), which {@link #load(String)} falls
+     * back to if the store file or a map's section of it is damaged. Zero keeps none.
+     * 
+     * @param generations   the number of previous snapshots to keep
+     */
+    public void setGenerations(int generations) {
+        fileBackend().setGenerations(generations);
+    }
+    
+    /**
+     * Returns the number of previous snapshots kept beside the store file.
+     * 
+     * @return  the number of generations
+     */
+    @JsonIgnore
+    public int getGenerations() {
+        return backend instanceof JsonFileBackend ? fileBackend().getGenerations() : 0;
+    }
+    
+    /**
+     * Returns the sequence number of the last journal entry reflected in this
+     * store, or null if journaling has never been used.
+     * 
+     * @return  the last journal sequence number
+     */
+    @JsonInclude(Include.NON_NULL)
+    public Long getJournalSequence() {
+        return journal != null ? Long.valueOf(journal.getLastSequence()) : journalSequence;
+    }
+    
+    /**
+     * Enables write-behind persistence. {@link #commit()} will then only mark
+     * this store dirty, and a background {@link MapStoreWriter} persists it at
+     * most once per the specified interval. An interval of zero or less flushes
+     * pending changes and disables write-behind.
+     * 
+     * @param intervalMillis    the minimum number of milliseconds between two writes
+     */
+    public void setWriteBehindInterval(long intervalMillis) {
+        if(writer != null) {
+            writer.close();
+            writer = null;
+        }
+        
+        if(intervalMillis > 0) {
+            writer = new MapStoreWriter(this, intervalMillis);
+        }
+    }
+    
+    /**
+     * Enables or disables the directory based layout, in which every map is
+     * written to a file of its own beneath the store path. A store loaded from
+     * a directory is sharded already. Switching the layout loads all maps, 
+     * which are written in the new layout by the next {@link #store()}; the
+     * store path must then be a directory (or not exist) when enabling and
+     * a file (or not exist) when disabling.
+     * 
+     * @param b     true to enable, false to disable
+     */
+    public void setSharded(boolean b) {
+        // Not while a store is writing the current layout
+        synchronized(storeLock) {
+            synchronized(this) {
+                if(b == isSharded()) {
+                    return;
+                }
+                
+                getMaps();
+                fileBackend().setSharded(b);
+                snapshotPending = true;
+            }
+        }
+    }
+    
+    /**
+     * Returns a flag indicating whether every map is stored in a file of its own.
+     * @return  true if sharded, false if stored in a single file
+     */
+    @JsonIgnore
+    public boolean isSharded() {
+        return getShards() != null;
+    }
+    
+    /**
+     * Selects the binary format of {@link MapStoreCodec} (or json) for the store 
+     * file written by subsequent calls to {@link #store()}. A store loaded from
+     * a binary file is binary already. Sharded stores always write their map 
+     * files as json.
+     * 
+     * @param b     true for binary, false for json
+     */
+    public void setBinary(boolean b) {
+        fileBackend().setBinary(b);
+    }
+    
+    /**
+     * Returns a flag indicating whether the store file is written in binary format.
+     * @return  true if binary, false if json
+     */
+    @JsonIgnore
+    public boolean isBinary() {
+        return backend instanceof JsonFileBackend && fileBackend().isBinary();
+    }
+    
+    /**
+     * Selects gzip compression (see {@link MapStoreCompression}) of the store file
+     * written by subsequent calls to {@link #store()}, in either format. A store 
+     * loaded from a compressed file is compressed already. Sharded stores always
+     * write their map files uncompressed.
+     * 
+     * @param b     true to compress, false to write plain files
+     */
+    public void setCompressed(boolean b) {
+        fileBackend().setCompressed(b);
+    }
+    
+    /**
+     * Returns a flag indicating whether the store file is written compressed.
+     * @return  true if compressed, false if plain
+     */
+    @JsonIgnore
+    public boolean isCompressed() {
+        return backend instanceof JsonFileBackend && fileBackend().isCompressed();
+    }
+    
+    /**
+     * Sets the deflate level used when the store file is compressed, from 
+     * 1 (fastest) to 9 (smallest), or {@link MapStoreCompression#DEFAULT_LEVEL}.
+     * 
+     * @param level     the compression level
+     */
+    public void setCompressionLevel(int level) {
+        fileBackend().setCompressionLevel(level);
+    }
+    
+    /**
+     * Returns the deflate level used when the store file is compressed.
+     * @return  the compression level
+     */
+    @JsonIgnore
+    public int getCompressionLevel() {
+        return backend instanceof JsonFileBackend ? fileBackend().getCompressionLevel() : MapStoreCompression.DEFAULT_LEVEL;
+    }
+    
+    /**
+     * Returns the {@link MapStoreShards} describing the files of a sharded
+     * store, or null if the store is a single file.
+     * 
+     * @return  the shards or null
+     */
+    @JsonIgnore
+    public MapStoreShards getShards() {
+        return backend instanceof JsonFileBackend ? fileBackend().getShards() : null;
+    }
+    
+    /**
+     * Returns the {@link MapStoreWriter} used for write-behind persistence
+     * (whose metrics may be queried) or null if write-behind is disabled.
+     * 
+     * @return  the background writer or null
+     */
+    @JsonIgnore
+    public MapStoreWriter getWriter() {
+        return writer;
+    }
+    
+    /**
+     * Persists the mutations made since the last call. If journaling is enabled
+     * the mutations are already durable and a full snapshot is only written once
+     * the journal reaches the compaction threshold; otherwise this is equivalent 
+     * to {@link #store()}. If write-behind is enabled, the snapshot is written
+     * later by the background writer.
+     */
+    public void commit() {
+        synchronized(this) {
+            if(journal != null && !snapshotPending && journal.size() < compactionThreshold) {
+                return;
+            }
+        }
+        
+        if(writer != null) {
+            writer.requestStore();
+        }else{
+            store();
+        }
+    }
+    
+    /**
+     * Synchronously persists any changes still pending in the background writer.
+     */
+    public void flush() {
+        if(writer != null) {
+            writer.flush();
+        }
+    }
+    
+    /**
+     * Flushes pending changes and releases the background writer and journal.
+     * This store may continue to be used afterwards, with synchronous commits.
+     */
+    public void close() {
+        setWriteBehindInterval(0);
+        setJournalEnabled(false);
+    }
+    
+    /**
+     * Journals the specified mutation and applies it to the backend, if this
+     * store was opened with one. When the backend applied it, the mutated map
+     * or route is marked clean unless it had unstored changes before (which
+     * the next {@link #store()} still has to write).
+     * 
+     * @param entry     the mutation
+     * @param map       the mutated map, null if deleted
+     * @param route     the mutated route, null for mutations of maps
+     * @param clean     true if the mutated map or route was clean before the mutation
+     */
+    private void record(Entry entry, PersistentMap map, Route route, boolean clean) {
+        journal(entry);
+        try {
+            if(backend.mutate(entry, map, route) && clean) {
+                if(route != null) {
+                    route.setDirty(false);
+                }
+                if(map != null && entry.getOp() != Op.ADD_WAYPOINT && entry.getOp() != Op.REMOVE_WAYPOINT && entry.getOp() != Op.CLEAR_ROUTE) {
+                    map.dirty = false;
+                }
+            }
+        }catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Appends the specified entry to the journal if journaling is enabled. If
+     * the journal cannot be written, a full snapshot is scheduled instead.
+     * 
+     * @param entry     the entry to append
+     */
+    private void journal(Entry entry) {
+        if(journal == null) {
+            return;
+        }
+        
+        try {
+            journal.append(entry);
+        }catch(IOException e) {
+            e.printStackTrace();
+            snapshotPending = true;
+        }
     }
     
     /**
      * Returns the {@link PersistentMap} with the specified
-     * name or null if it doesn't exist.
+     * name or null if it doesn't exist. A map which has not
+     * been loaded yet is read from the backend.
      * 
      * @param name  the name of the desired map to return
      * @return  the {@code PersistentMap} with the specified name
      */
-    public PersistentMap getMap(String name) {
-        return maps.get(name);
+    public synchronized PersistentMap getMap(String name) {
+        PersistentMap map = maps.get(name);
+        if(map == null && unloaded.contains(name)) {
+            map = loadMap(name);
+        }
+        return map;
     }
     
     /**
-     * Returns the {@link HashMap} of {@link PersistentMap}s.
+     * Returns the {@link HashMap} of {@link PersistentMap}s, first loading any 
+     * maps which have not been loaded yet. Use {@link #getMapNames()} to list 
+     * the maps without loading them.
+     * 
      * @return  the {@link HashMap} of {@link PersistentMap}s.
      */
-    public java.util.Map<String, PersistentMap> getMaps() {
+    public synchronized java.util.Map<String, PersistentMap> getMaps() {
+        for(String name : new ArrayList<>(unloaded)) {
+            loadMap(name);
+        }
         return maps;
     }
     
+    /**
+     * Reads the map with the specified name, which hasn't been loaded yet,
+     * from the backend.
+     * 
+     * @param name  the name of the map to load
+     * @return  the loaded map or null if it could not be read
+     */
+    private synchronized PersistentMap loadMap(String name) {
+        if(!unloaded.contains(name)) {
+            return maps.get(name);
+        }
+        
+        try {
+            PersistentMap map = backend.getMap(name);
+            if(map == null) {
+                System.out.println("Dropping map which could not be read: " + name);
+                unloaded.remove(name);
+                return null;
+            }
+            map.setDirty(false);
+            maps.put(name, map);
+            unloaded.remove(name);
+            return map;
+        }catch(Exception e) {
+            e.printStackTrace();
+        }
+        
+        return null;
+    }
+    
     /**
      * Called prior to serialization to load the serializable data structure.
+     * Not needed by {@link #store()}, which streams the routes' observable lists.
      */
     public void preSerialize() {
         if(selectedMap == null || maps.get(selectedMap) == null) {
@@ -124,39 +707,159 @@ public class MapStore {
      * for serialization and then copy the data over, after deserialization.
      */
     public void postDeserialize() throws MalformedJsonException {
-        for(Route r : maps.get(selectedMap).getRoutes()) {
-            r.postDeserialize();
-        }
+        maps.get(selectedMap).postDeserialize();
     }
     
     /**
-     * Implements the {@link Route} storage persistence.
+     * Implements the {@link Route} storage persistence. The loaded maps are handed
+     * to the backend, which only serializes those which changed since they were 
+     * loaded or last stored (see {@link PersistentMap#isDirty()}).
+     * <p>
+     * Only capturing the maps holds this store's monitor; the backend writes and
+     * forces its files afterwards, so that the mutator methods aren't blocked by
+     * the write. Stores run one at a time.
+     * </p>
      * 
-     * @return  the serialized json string.
+     * @return  the serialized json string which was written (the manifest for 
+     * sharded stores, an empty string for binary or compressed stores and other
+     * backends), or null if the store could not be written.
      */
     public String store() {
-        System.out.println("MapStore.store()");
-        preSerialize();
+        if(isArchive()) {
+            System.out.println("Map archives are read-only, not storing: " + storePath);
+            return null;
+        }
         
-        //System.getProperty("user.home")
-        ObjectMapper mapper = new ObjectMapper();
+        synchronized(storeLock) {
+            MapStoreBackend.Write write;
+            List<PersistentMap> captured = new ArrayList<>();
+            boolean pending;
+            Long sequence;
+            synchronized(this) {
+                try {
+                    sequence = getJournalSequence();
+                    if(backend instanceof JsonFileBackend) {
+                        fileBackend().setJournalSequence(sequence);
+                    }
+                    write = backend.store(maps, getMapNames(), selectedMap);
+                }catch(Exception e) {
+                    e.printStackTrace();
+                    return null;
+                }
+                
+                // Changes made from now on are written by the next store
+                for(PersistentMap map : maps.values()) {
+                    if(map.isDirty()) {
+                        captured.add(map);
+                        map.setDirty(false);
+                    }
+                }
+                pending = snapshotPending;
+                snapshotPending = false;
+            }
+            
+            try {
+                String json = write.write();
+                
+                synchronized(this) {
+                    // The snapshot contains every mutation journaled before it was captured
+                    if(journal != null) {
+                        if(sequence != null && journal.getLastSequence() == sequence) {
+                            journal.truncate();
+                        }
+                    }else{
+                        Files.deleteIfExists(MapStoreJournal.journalPath(storePath));
+                    }
+                }
+                
+                return json; 
+            } catch (Exception e) {
+                e.printStackTrace();
+                
+                synchronized(this) {
+                    for(PersistentMap map : captured) {
+                        map.setDirty(true);
+                    }
+                    snapshotPending |= pending;
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Writes a copy of this store, in json or binary format, to the specified 
+     * file. The store's own path, format and files are left untouched. 
+     * 
+     * @param path      the path of the file to write
+     * @param binary    true to write the binary format, false for json
+     * @return  the serialized json string which was written (an empty string 
+     * for the binary format), or null if the file could not be written.
+     */
+    public synchronized String storeAs(String path, boolean binary) {
+        return storeAs(path, binary, false);
+    }
+    
+    /**
+     * Writes a copy of this store, in json or binary format and optionally
+     * compressed, to the specified file. The store's own path, format and files
+     * are left untouched. 
+     * 
+     * @param path          the path of the file to write
+     * @param binary        true to write the binary format, false for json
+     * @param compressed    true to compress the file
+     * @return  the serialized json string which was written (an empty string 
+     * for the binary format or a compressed file), or null if the file could 
+     * not be written.
+     */
+    public synchronized String storeAs(String path, boolean binary, boolean compressed) {
+        // Only store files can copy the maps which aren't loaded
+        JsonFileBackend file = backend instanceof JsonFileBackend && !isArchive() ? fileBackend() : null;
+        if(file == null) {
+            getMaps();
+            file = new JsonFileBackend(path);
+        }
         
         try {
-            // convert user object to json string, and save to a file
-            mapper.writeValue(new File(storePath), this);
-
-            String json = null;
-            // display to console
-            System.out.println(json = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(this));
-            
-            return json; 
-        } catch (Exception e) {
+            file.setJournalSequence(getJournalSequence());
+            return file.storeAs(path, maps, getMapNames(), selectedMap, binary, compressed);
+        }catch(Exception e) {
             e.printStackTrace();
         }
         
         return null;
     }
     
+    /**
+     * Writes all maps to a read-only {@link MapArchive} at the specified path,
+     * which {@link #load(String)} opens without reading the maps' waypoints.
+     * 
+     * @param path  the path of the archive file to write
+     * @return  true if the archive was written, false if not
+     */
+    public synchronized boolean storeArchive(String path) {
+        try {
+            MapArchive.write(FileSystems.getDefault().getPath(path), getMaps().values(), selectedMap);
+            return true;
+        }catch(IOException e) {
+            e.printStackTrace();
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Returns a flag indicating whether this store was opened from a read-only
+     * {@link MapArchive}, in which case {@link #store()} writes nothing.
+     * 
+     * @return  true if opened from an archive, false if not
+     */
+    @JsonIgnore
+    public boolean isArchive() {
+        return backend instanceof JsonFileBackend && fileBackend().isArchive();
+    }
+    
     /**
      * Called to load the serialized {@link Routes} into this store. Uses the store
      * path defined in the creation of this instance.
@@ -169,7 +872,57 @@ public class MapStore {
     }
     
     /**
-     * Called to load the serialized {@link Routes} into this store.
+     * Returns the path of the file (or directory) this store is persisted to
+     * @return  the store path
+     */
+    @JsonIgnore
+    public String getStorePath() {
+        return storePath;
+    }
+    
+    /**
+     * Opens a store on the specified {@link MapStoreBackend}. The backend's maps 
+     * are listed but only read when first requested, mutations made through this
+     * store's mutator methods are applied to the backend as they are made (when 
+     * it supports that), and {@link #store()} hands the changed maps to the backend.
+     * 
+     * @param backend   the backend
+     * @return  the opened store
+     * @throws IOException  if the backend could not be read
+     */
+    public static MapStore open(MapStoreBackend backend) throws IOException {
+        MapStore mapStore = new MapStore(backend.getPath(), backend);
+        mapStore.unloaded.addAll(backend.listMaps());
+        mapStore.selectedMap = backend.getSelectedMap();
+        return mapStore;
+    }
+    
+    /**
+     * Returns the backend keeping this store's maps (see {@link #open(MapStoreBackend)})
+     * @return  the backend, a {@link JsonFileBackend} for store files
+     */
+    @JsonIgnore
+    public MapStoreBackend getBackend() {
+        return backend;
+    }
+    
+    /**
+     * Returns the backend of a store file, whose format options this store exposes
+     * @return  the file backend
+     * @throws IllegalStateException    if this store was opened with another backend
+     */
+    private JsonFileBackend fileBackend() {
+        if(!(backend instanceof JsonFileBackend)) {
+            throw new IllegalStateException("Map store is not a store file: " + storePath);
+        }
+        return (JsonFileBackend)backend;
+    }
+    
+    /**
+     * Called to load the serialized {@link Routes} into this store, opening the
+     * store file (or sharded store directory, or archive) with a {@link JsonFileBackend}.
+     * Any {@link MapStoreJournal} found beside the store file is replayed on
+     * top of the loaded snapshot.
      * 
      * @return  a {@code RouteStore} containing previously serialized {@link Route}s
      * or an empty store if there were no Routes previously persisted.
@@ -179,26 +932,27 @@ public class MapStore {
     public static MapStore load(String path) {
         path = path == null ? DEFAULT_STORE_PATH : path;
         
+        JsonFileBackend file = new JsonFileBackend(path);
+        MapStore mapStore;
         try {
-            Gson gson = new Gson();
-            MapStore mapStore = gson.fromJson(
-                Files.newBufferedReader(FileSystems.getDefault().getPath(path)), MapStore.class);
-            
-            for(String mapName : mapStore.getMaps().keySet()) {
-                mapStore.selectMap(mapName);
-                mapStore.postDeserialize();
-            }
-           
-            mapStore.storePath = path;
-            
-            return mapStore;
-        }catch(MalformedJsonException m) {
-            System.out.println(m.getMessage());
-            File f = new File(path);
-            f.delete();
-        }catch(Exception e) {
-            System.out.println("No map store found, creating new map store.");
+            mapStore = open(file);
+        }catch(IOException e) {
+            System.out.println("Could not open map store, creating new map store: " + e.getMessage());
+            return new MapStore(path);
+        }
+        mapStore.journalSequence = file.getJournalSequence();
+        
+        // A store file without a valid index has been read in full already
+        if(file.isParsed()) {
+            mapStore.getMaps();
+        }
+        
+        if(Files.exists(MapStoreJournal.journalPath(path))) {
+            String selected = mapStore.selectedMap;
+            mapStore.journalSequence = MapStoreJournal.replay(path, mapStore);
+            mapStore.selectedMap = mapStore.containsMap(selected) ? selected : null;
         }
-        return new MapStore();
+        
+        return mapStore;
     }
 }
@@ -0,0 +1,117 @@
+package ai.cogmission.fxmaps.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Service provider interface for the storage behind a {@link MapStore}.
+ * <p>
+ * A store opened with {@link MapStore#open(MapStoreBackend)} lists its maps
+ * through the backend, loads each map from it when first requested, passes
+ * every mutation made through the store's mutator methods to {@link #mutate(MapStoreJournal.Entry, PersistentMap, Route)}
+ * and hands its loaded maps to {@link #store(Map, Set, String)} on {@link MapStore#store()}.
+ * Backends which can apply mutations incrementally save the whole file costs of
+ * a store; the others persist the mutations with the next store.
+ * </p>
+ * Implementations:
+ * <ul>
+ *  <li>{@link JsonFileBackend} - the single json (or binary) store file, with
+ *  its index and generations, or a sharded store directory</li>
+ *  <li>{@link KeyValueBackend} - an embedded, transactional key-value log with
+ *  per route records and incremental waypoint updates</li>
+ * </ul>
+ *
+ * @author cogmission
+ * @see MapStore#open(MapStoreBackend)
+ */
+public interface MapStoreBackend extends Closeable {
+    /**
+     * Returns the location of this backend's storage
+     * @return  the path
+     */
+    public String getPath();
+
+    /**
+     * Returns the names of all stored maps
+     *
+     * @return  the map names
+     * @throws IOException  if the storage could not be read
+     */
+    public Set<String> listMaps() throws IOException;
+
+    /**
+     * Returns the name of the map which was selected when last stored
+     *
+     * @return  the selected map's name or null
+     * @throws IOException  if the storage could not be read
+     */
+    public String getSelectedMap() throws IOException;
+
+    /**
+     * Reads the stored map with the specified name
+     *
+     * @param name  the name of the map
+     * @return  the map or null if no such map is stored
+     * @throws IOException  if the map could not be read
+     */
+    public PersistentMap getMap(String name) throws IOException;
+
+    /**
+     * Reads a single stored route without reading the rest of its map
+     *
+     * @param mapName   the name of the map
+     * @param routeId   the id of the route
+     * @return  the route or null if no such route is stored
+     * @throws IOException  if the route could not be read
+     */
+    public Route getRoute(String mapName, String routeId) throws IOException;
+
+    /**
+     * Persists the specified loaded maps, which have changed if they are dirty
+     * (see {@link PersistentMap#isDirty()}); maps which are not loaded are unchanged.
+     * Stored maps which are not named anymore are deleted.
+     * <p>
+     * This is called while the {@link MapStore}'s monitor is held, so that the
+     * maps can't change meanwhile, and should only capture what is to be written.
+     * The returned {@link Write} is run after the monitor is released, so that
+     * mutations aren't blocked while the file is written and forced to disk.
+     * </p>
+     *
+     * @param loaded        the loaded maps by name
+     * @param mapNames      the names of all maps of the store
+     * @param selectedMap   the name of the selected map or null
+     * @return  the write which persists the captured maps
+     * @throws IOException  if the maps could not be captured or stored
+     */
+    public Write store(Map<String, PersistentMap> loaded, Set<String> mapNames, String selectedMap) throws IOException;
+
+    /**
+     * Applies the specified mutation, which has already been made to the loaded
+     * map, to the storage.
+     *
+     * @param mutation  the mutation
+     * @param map       the modified map, null if deleted
+     * @param route     the modified route, or null for mutations of maps
+     * @return  true if the storage now reflects the mutation, false if it is
+     * only persisted by the next {@link #store(Map, Set, String)}
+     * @throws IOException  if the storage could not be written
+     */
+    public boolean mutate(MapStoreJournal.Entry mutation, PersistentMap map, Route route) throws IOException;
+
+    /**
+     * The second phase of {@link MapStoreBackend#store(Map, Set, String)},
+     * writing what was captured.
+     */
+    public interface Write {
+        /**
+         * Writes the captured maps to the storage
+         *
+         * @return  the json which was written, or an empty string if the maps
+         * are not stored as json
+         * @throws IOException  if the maps could not be stored
+         */
+        public String write() throws IOException;
+    }
+}
@@ -0,0 +1,614 @@
+package ai.cogmission.fxmaps.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Versioned binary codec for {@link MapStore}s and {@link PersistentMap}s.
+ * <p>
+ * The json format repeats every {@link LatLon} twice per {@link Waypoint}
+ * (in the waypoint and in its {@link MarkerOptions}) and repeats full icon paths
+ * per {@link Marker}. The binary format stores each {@link Route}'s coordinates
+ * once, as packed columns of latitudes and longitudes, keeps icons, titles and
+ * names in a per map string table, and rebuilds the markers and connecting lines
+ * on load. As in the json format, only the route's line style and any per leg
+ * style overrides are written for the connecting lines. Version 1 blocks, which
+ * still carried the lines, remain readable. Since version 3 the columns are
+ * followed by elevation and time columns for routes which have them, and track
+ * points (see {@link Route#addPoint(double, double, double, long)}) are read
+ * back without creating waypoints.
+ * </p><p>
+ * A binary store file consists of a header (see {@link #writeHeader(DataOutputStream, String, Long, int)})
+ * followed by one length prefixed map block per map, so that the {@link MapStoreIndex}
+ * can address each map's block just like it addresses each map's json.
+ * </p><p>
+ * Json remains supported as an import/export format: {@link MapStore#load(String)}
+ * detects the format of the file it loads and {@link MapStore#storeAs(String, boolean)}
+ * writes either format. Running this class converts between the two formats:
+ * <pre>
+ *     MapStoreCodec &lt;input store&gt; &lt;output store&gt; [json|binary]
+ * </pre>
+ * </p>
+ *
+ * @author cogmission
+ * @see MapStore#setBinary(boolean)
+ */
+public class MapStoreCodec {
+    /** Leading bytes of a binary store file ("FMPS") */
+    public static final int STORE_MAGIC = 0x464D5053;
+    /** Leading bytes of a binary map block ("FMPM") */
+    public static final int MAP_MAGIC = 0x464D504D;
+    /** The current format version */
+    public static final short VERSION = 3;
+
+    /** Version 1 flag of connecting lines reduced to a shared style */
+    private static final byte V1_LINES_DERIVED = 0;
+
+    private static final Animation[] ANIMATIONS = Animation.values();
+
+
+    /**
+     * Returns a flag indicating whether the specified bytes begin with a binary
+     * store header or map block.
+     *
+     * @param bytes     the bytes to check
+     * @return  true if binary, false if not
+     */
+    public static boolean isBinary(byte[] bytes) {
+        if(bytes.length < 4) {
+            return false;
+        }
+        int magic = ByteBuffer.wrap(bytes, 0, 4).getInt();
+        return magic == STORE_MAGIC || magic == MAP_MAGIC;
+    }
+
+    /**
+     * Returns a flag indicating whether the file at the specified path is a
+     * binary store file, looking through gzip compression.
+     *
+     * @param path  the path of the file to check
+     * @return  true if binary, false if not (or if the file can't be read)
+     */
+    public static boolean isBinary(Path path) {
+        try(DataInputStream in = new DataInputStream(MapStoreCompression.open(path))) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            return isBinary(magic);
+        }catch(IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the header of a binary store file.
+     *
+     * @param out               the stream to write to
+     * @param selectedMap       the name of the selected map
+     * @param journalSequence   the sequence number of the last journal entry contained or null
+     * @param mapCount          the number of map blocks which follow
+     * @throws IOException  if the header could not be written
+     */
+    public static void writeHeader(DataOutputStream out, String selectedMap, Long journalSequence, int mapCount) throws IOException {
+        out.writeInt(STORE_MAGIC);
+        out.writeShort(VERSION);
+        writeNullableString(out, selectedMap);
+        out.writeBoolean(journalSequence != null);
+        out.writeLong(journalSequence == null ? 0 : journalSequence);
+        out.writeInt(mapCount);
+    }
+
+    /**
+     * Reads the header of a binary store file.
+     *
+     * @param in    the stream to read from
+     * @return  the header
+     * @throws IOException  if the stream is not a binary store file of a supported version
+     */
+    public static Header readHeader(DataInputStream in) throws IOException {
+        if(in.readInt() != STORE_MAGIC) {
+            throw new IOException("Not a binary map store");
+        }
+        checkVersion(in.readShort());
+
+        Header h = new Header();
+        h.selectedMap = readNullableString(in);
+        boolean hasSequence = in.readBoolean();
+        long sequence = in.readLong();
+        h.journalSequence = hasSequence ? Long.valueOf(sequence) : null;
+        h.mapCount = in.readInt();
+        return h;
+    }
+
+    /**
+     * Encodes the specified map as a self contained map block.
+     *
+     * @param map   the map to encode
+     * @return  the map block
+     * @throws IOException  if the map could not be encoded
+     */
+    public static byte[] encodeMap(PersistentMap map) throws IOException {
+        StringTable strings = new StringTable();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+
+        out.writeInt(strings.index(map.name));
+        out.writeDouble(map.width);
+        out.writeDouble(map.height);
+        writeMapOptions(out, map.mapOptions, strings);
+
+        out.writeInt(map.routes.size());
+        for(Route r : map.routes) {
+            writeRoute(out, r, strings);
+        }
+        out.flush();
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream(body.size() + 256);
+        DataOutputStream bout = new DataOutputStream(block);
+        bout.writeInt(MAP_MAGIC);
+        bout.writeShort(VERSION);
+        strings.write(bout);
+        body.writeTo(bout);
+        bout.flush();
+
+        return block.toByteArray();
+    }
+
+    /**
+     * Decodes a map block, rebuilding the markers and connecting lines of
+     * every route.
+     *
+     * @param block     the map block
+     * @return  the decoded map
+     * @throws IOException  if the block is malformed or of an unsupported version
+     */
+    public static PersistentMap decodeMap(byte[] block) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+        if(in.readInt() != MAP_MAGIC) {
+            throw new IOException("Not a binary map block");
+        }
+        short version = in.readShort();
+        checkVersion(version);
+
+        String[] strings = StringTable.read(in);
+
+        PersistentMap map = new PersistentMap(string(strings, in.readInt()));
+        map.width = in.readDouble();
+        map.height = in.readDouble();
+        map.mapOptions = readMapOptions(in, strings);
+
+        int routeCount = in.readInt();
+        for(int i = 0;i < routeCount;i++) {
+            map.routes.add(readRoute(in, strings, version));
+        }
+
+        return map;
+    }
+
+    private static void writeRoute(DataOutputStream out, Route r, StringTable strings) throws IOException {
+        RouteGeometry geometry = r.getGeometry();
+        int n = geometry.size();
+
+        out.writeInt(strings.index(r.name));
+        out.writeInt(strings.index(r.id));
+        out.writeBoolean(r.interimMarkersVisible);
+        out.writeBoolean(r.lineStyle != null);
+        if(r.lineStyle != null) {
+            writeStyle(out, r.lineStyle, strings);
+        }
+        out.writeInt(n);
+        writePoints(out, r, 0, n, strings);
+    }
+
+    /**
+     * Writes the specified range of a route's points: the coordinate columns,
+     * the elevation and time columns the route has, and the attributes of each
+     * point. Track points are written without creating their waypoints.
+     */
+    static void writePoints(DataOutputStream out, Route r, int from, int to, StringTable strings) throws IOException {
+        RouteGeometry geometry = r.getGeometry();
+        writeDoubles(out, geometry.getLatitudes(from, to));
+        writeDoubles(out, geometry.getLongitudes(from, to));
+
+        int columns = (geometry.hasElevations() ? 1 : 0) | (geometry.hasTimes() ? 2 : 0);
+        out.writeByte(columns);
+        if((columns & 1) != 0) {
+            double[] elevations = new double[to - from];
+            for(int i = from;i < to;i++) {
+                elevations[i - from] = geometry.getElevation(i);
+            }
+            writeDoubles(out, elevations);
+        }
+        if((columns & 2) != 0) {
+            long[] times = new long[to - from];
+            for(int i = from;i < to;i++) {
+                times[i - from] = geometry.getTime(i);
+            }
+            writeLongs(out, times);
+        }
+
+        for(int i = from;i < to;i++) {
+            writeWaypointAttributes(out, r.peekWaypoint(i), strings);
+        }
+    }
+
+    /**
+     * Reads the points written by {@link #writePoints(DataOutputStream, Route, int, int, StringTable)}
+     * and appends them to the specified route.
+     *
+     * @param columns   false for blocks of version 1 and 2, which have no elevation and time columns
+     */
+    static void readPoints(DataInputStream in, Route r, int n, boolean columns, String[] strings) throws IOException {
+        double[] lats = readDoubles(in, n);
+        double[] lons = readDoubles(in, n);
+        double[] elevations = null;
+        long[] times = null;
+        if(columns) {
+            int flags = in.readByte();
+            elevations = (flags & 1) != 0 ? readDoubles(in, n) : null;
+            times = (flags & 2) != 0 ? readLongs(in, n) : null;
+        }
+
+        r.getGeometry().ensureCapacity(r.size() + n);
+        for(int i = 0;i < n;i++) {
+            double ele = elevations == null ? Double.NaN : elevations[i];
+            long time = times == null ? RouteGeometry.NO_TIME : times[i];
+            Waypoint w = readWaypoint(in, lats[i], lons[i], strings);
+            if(w == null) {
+                r.observableDelegate.addPoint(lats[i], lons[i], ele, time);
+            }else{
+                r.addWaypoint(w);
+                RouteGeometry geometry = r.getGeometry();
+                geometry.setElevation(r.size() - 1, ele);
+                geometry.setTime(r.size() - 1, time);
+            }
+        }
+    }
+
+    /**
+     * Writes everything of the specified waypoint except its coordinates: its
+     * marker and its leg style. Track points, for which no waypoint may exist,
+     * are written as null.
+     */
+    static void writeWaypointAttributes(DataOutputStream out, Waypoint w, StringTable strings) throws IOException {
+        PolylineOptions legStyle = w == null ? null : w.getLegStyle();
+        if(w == null || !w.hasMarker()) {
+            out.writeByte(legStyle != null ? 4 : 0);
+        }else{
+            // Written from the marker's style, unless the marker was created
+            Animation animation = w.markerAnimation();
+            out.writeByte(1 | (w.markerVisible() ? 2 : 0) | (legStyle != null ? 4 : 0));
+            out.writeInt(strings.index(w.markerIcon()));
+            out.writeInt(strings.index(w.markerTitle()));
+            out.writeByte(animation == null ? 0 : animation.ordinal());
+        }
+        if(legStyle != null) {
+            writeStyle(out, legStyle, strings);
+        }
+    }
+
+    /**
+     * Reads the attributes written by {@link #writeWaypointAttributes(DataOutputStream, Waypoint, StringTable)}
+     * and creates the waypoint at the specified coordinates, unless it is a
+     * track point without any attributes.
+     *
+     * @return  the waypoint or null for a track point
+     */
+    static Waypoint readWaypoint(DataInputStream in, double latitude, double longitude, String[] strings) throws IOException {
+        int flags = in.readByte();
+        if(flags == 0) {
+            return null;
+        }
+
+        LatLon ll = new LatLon(latitude, longitude);
+        Waypoint w;
+        if((flags & 1) != 0) {
+            String icon = string(strings, in.readInt());
+            String title = string(strings, in.readInt());
+            w = Waypoint.create(ll, icon, title, (flags & 2) != 0, ANIMATIONS[in.readByte()]);
+        }else{
+            w = new Waypoint(ll, null);
+        }
+        if((flags & 4) != 0) {
+            w.setLegStyle(readStyle(in, strings));
+        }
+        return w;
+    }
+
+    private static Route readRoute(DataInputStream in, String[] strings, short version) throws IOException {
+        Route r = new Route(string(strings, in.readInt()));
+        r.id = string(strings, in.readInt());
+        r.interimMarkersVisible = in.readBoolean();
+        if(version > 1 && in.readBoolean()) {
+            r.lineStyle = readStyle(in, strings);
+        }
+        int n = in.readInt();
+        readPoints(in, r, n, version > 2, strings);
+
+        if(version == 1) {
+            skipVersion1Lines(in, r, strings, n);
+        }
+
+        r.rebuildLines();
+        return r;
+    }
+
+    /**
+     * Skips the connecting lines written by version 1, which are now derived
+     * from the waypoints on load, keeping the shared style of reduced lines.
+     */
+    private static void skipVersion1Lines(DataInputStream in, Route r, String[] strings, int n) throws IOException {
+        if(in.readByte() == V1_LINES_DERIVED) {
+            if(n > 1) {
+                r.lineStyle = readStyle(in, strings);
+            }
+            return;
+        }
+
+        int lineCount = in.readInt();
+        for(int i = 0;i < lineCount;i++) {
+            readStyle(in, strings);
+            in.readFully(new byte[in.readInt() * 16]);
+        }
+        in.readFully(new byte[n * 4]);
+    }
+
+    static void writeStyle(DataOutputStream out, PolylineOptions opts, StringTable strings) throws IOException {
+        out.writeInt(strings.index(opts.getStrokeColor()));
+        out.writeDouble(opts.getStrokeOpacity());
+        out.writeDouble(opts.getStrokeWeight());
+        out.writeInt(opts.getZIndex());
+        out.writeByte((opts.isClickable() ? 1 : 0) | (opts.isDraggable() ? 2 : 0) | (opts.isEditable() ? 4 : 0) |
+            (opts.isGeodesic() ? 8 : 0) | (opts.isVisible() ? 16 : 0));
+    }
+
+    static PolylineOptions readStyle(DataInputStream in, String[] strings) throws IOException {
+        PolylineOptions opts = new PolylineOptions()
+            .strokeColor(string(strings, in.readInt()))
+            .strokeOpacity(in.readDouble())
+            .strokeWeight(in.readDouble())
+            .zIndex(in.readInt());
+        int flags = in.readByte();
+        return opts.clickable((flags & 1) != 0)
+            .draggable((flags & 2) != 0)
+            .editable((flags & 4) != 0)
+            .geodesic((flags & 8) != 0)
+            .visible((flags & 16) != 0);
+    }
+
+    static void writeMapOptions(DataOutputStream out, MapOptions opts, StringTable strings) throws IOException {
+        out.writeBoolean(opts != null);
+        if(opts == null) {
+            return;
+        }
+
+        out.writeBoolean(opts.center != null);
+        out.writeDouble(opts.center == null ? 0 : opts.center.getLatitude());
+        out.writeDouble(opts.center == null ? 0 : opts.center.getLongitude());
+        out.writeInt(strings.index(opts.mapType == null ? null : opts.mapType.name()));
+        out.writeInt(opts.zoom);
+        out.writeShort((opts.mapMarker ? 1 : 0) | (opts.overviewMapControl ? 2 : 0) | (opts.panControl ? 4 : 0) |
+            (opts.rotateControl ? 8 : 0) | (opts.scaleControl ? 16 : 0) | (opts.streetViewControl ? 32 : 0) |
+                (opts.zoomControl ? 64 : 0) | (opts.mapTypeControl ? 128 : 0));
+    }
+
+    static MapOptions readMapOptions(DataInputStream in, String[] strings) throws IOException {
+        if(!in.readBoolean()) {
+            return null;
+        }
+
+        MapOptions opts = new MapOptions();
+        boolean hasCenter = in.readBoolean();
+        double lat = in.readDouble();
+        double lon = in.readDouble();
+        opts.center = hasCenter ? new LatLon(lat, lon) : null;
+        String mapType = string(strings, in.readInt());
+        opts.mapType = mapType == null ? null : MapType.valueOf(mapType);
+        opts.zoom = in.readInt();
+        int flags = in.readShort();
+        opts.mapMarker = (flags & 1) != 0;
+        opts.overviewMapControl = (flags & 2) != 0;
+        opts.panControl = (flags & 4) != 0;
+        opts.rotateControl = (flags & 8) != 0;
+        opts.scaleControl = (flags & 16) != 0;
+        opts.streetViewControl = (flags & 32) != 0;
+        opts.zoomControl = (flags & 64) != 0;
+        opts.mapTypeControl = (flags & 128) != 0;
+        return opts;
+    }
+
+    static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(values.length * 8);
+        buf.asDoubleBuffer().put(values);
+        out.write(buf.array());
+    }
+
+    private static double[] readDoubles(DataInputStream in, int n) throws IOException {
+        byte[] bytes = new byte[n * 8];
+        in.readFully(bytes);
+        double[] values = new double[n];
+        ByteBuffer.wrap(bytes).asDoubleBuffer().get(values);
+        return values;
+    }
+
+    static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(values.length * 8);
+        buf.asLongBuffer().put(values);
+        out.write(buf.array());
+    }
+
+    private static long[] readLongs(DataInputStream in, int n) throws IOException {
+        byte[] bytes = new byte[n * 8];
+        in.readFully(bytes);
+        long[] values = new long[n];
+        ByteBuffer.wrap(bytes).asLongBuffer().get(values);
+        return values;
+    }
+
+    private static void writeNullableString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if(s != null) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        if(!in.readBoolean()) {
+            return null;
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static String string(String[] strings, int index) throws IOException {
+        if(index == -1) {
+            return null;
+        }
+        if(index < 0 || index >= strings.length) {
+            throw new IOException("Malformed map block, bad string index: " + index);
+        }
+        return strings[index];
+    }
+
+    private static void checkVersion(short version) throws IOException {
+        if(version < 1 || version > VERSION) {
+            throw new IOException("Unsupported map store version: " + version);
+        }
+    }
+
+    /**
+     * Converts a store file between the json and binary formats, reporting
+     * the sizes and load times of both.
+     *
+     * @param args  the input path, the output path and optionally "json" or
+     *              "binary" (defaults to the format the input is not in)
+     */
+    public static void main(String[] args) {
+        if(args.length < 2) {
+            System.out.println("Usage: MapStoreCodec <input store> <output store> [json|binary]");
+            return;
+        }
+
+        boolean binaryIn = isBinary(Paths.get(args[0]));
+        boolean binaryOut = args.length > 2 ? args[2].equalsIgnoreCase("binary") : !binaryIn;
+
+        long start = System.nanoTime();
+        MapStore store = MapStore.load(args[0]);
+        store.getMaps();
+        long loadIn = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        if(store.storeAs(args[1], binaryOut) == null) {
+            System.out.println("Could not write " + args[1]);
+            return;
+        }
+        long storeOut = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        MapStore.load(args[1]).getMaps();
+        long loadOut = System.nanoTime() - start;
+
+        try {
+            System.out.println(String.format("%s (%s): %d bytes, loaded in %.1f ms", args[0],
+                binaryIn ? "binary" : "json", Files.size(Paths.get(args[0])), loadIn / 1e6));
+            System.out.println(String.format("%s (%s): %d bytes, stored in %.1f ms, loaded in %.1f ms", args[1],
+                binaryOut ? "binary" : "json", Files.size(Paths.get(args[1])), storeOut / 1e6, loadOut / 1e6));
+        }catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The contents of a binary store file's header
+     */
+    public static class Header {
+        String selectedMap;
+        Long journalSequence;
+        int mapCount;
+
+        /**
+         * Returns the name of the selected map
+         * @return  the selected map name
+         */
+        public String getSelectedMap() {
+            return selectedMap;
+        }
+
+        /**
+         * Returns the sequence number of the last journal entry contained in the store
+         * @return  the journal sequence or null
+         */
+        public Long getJournalSequence() {
+            return journalSequence;
+        }
+
+        /**
+         * Returns the number of map blocks which follow the header
+         * @return  the number of maps
+         */
+        public int getMapCount() {
+            return mapCount;
+        }
+    }
+
+    /**
+     * Assigns each distinct string of a map block an index
+     */
+    static class StringTable {
+        private Map<String, Integer> indexes = new HashMap<>();
+        private List<String> strings = new ArrayList<>();
+
+        int index(String s) {
+            if(s == null) {
+                return -1;
+            }
+            Integer idx = indexes.get(s);
+            if(idx == null) {
+                indexes.put(s, idx = strings.size());
+                strings.add(s);
+            }
+            return idx;
+        }
+
+        int size() {
+            return strings.size();
+        }
+
+        String get(int index) {
+            return strings.get(index);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(strings.size());
+            for(String s : strings) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        static String[] read(DataInputStream in) throws IOException {
+            String[] strings = new String[in.readInt()];
+            for(int i = 0;i < strings.length;i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return strings;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package ai.cogmission.fxmaps.model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compression of {@link MapStore} files.
+ * <p>
+ * A compressed store file is a sequence of gzip members: every map's section
+ * is compressed as a member of its own, and so is the envelope between the
+ * sections. Decompressing the whole file therefore yields exactly the plain
+ * json (or binary) store, while the {@link MapStoreIndex} still addresses each
+ * map's member, so that a single map can be loaded by inflating only its own
+ * bytes and unloaded maps can be copied into the next snapshot without being
+ * recompressed. Compressed files are recognized by the gzip magic number.
+ * </p>
+ *
+ * @author cogmission
+ * @see MapStore#setCompressed(boolean)
+ */
+public class MapStoreCompression {
+    /** Size of the deflate and inflate buffers, sized for files of many megabytes */
+    public static final int BUFFER_SIZE = 65536;
+    /** The default compression level */
+    public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+
+    /**
+     * Returns a flag indicating whether the specified bytes begin with a gzip member
+     *
+     * @param bytes     the bytes to check
+     * @return  true if compressed, false if not
+     */
+    public static boolean isCompressed(byte[] bytes) {
+        return bytes.length >= 2 && (bytes[0] & 0xff) == (GZIPInputStream.GZIP_MAGIC & 0xff) &&
+            (bytes[1] & 0xff) == (GZIPInputStream.GZIP_MAGIC >> 8);
+    }
+
+    /**
+     * Returns a flag indicating whether the file at the specified path begins
+     * with a gzip member
+     *
+     * @param path  the file to check
+     * @return  true if compressed, false if not or if the file can't be read
+     */
+    public static boolean isCompressed(Path path) {
+        try(InputStream in = Files.newInputStream(path)) {
+            byte[] magic = new byte[2];
+            return in.read(magic) == 2 && isCompressed(magic);
+        }catch(IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens the file at the specified path for buffered reading, inflating
+     * it if it is compressed.
+     *
+     * @param path  the file to read
+     * @return  the stream of plain bytes
+     * @throws IOException  if the file could not be opened
+     */
+    public static InputStream open(Path path) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE);
+        return isCompressed(path) ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+    }
+
+    /**
+     * Returns up to the specified number of leading plain bytes of the specified
+     * bytes, inflating only as much as needed if they are compressed.
+     *
+     * @param bytes     the plain or compressed bytes
+     * @param n         the number of bytes to return
+     * @return  the leading plain bytes
+     * @throws IOException  if the bytes could not be inflated
+     */
+    public static byte[] peek(byte[] bytes, int n) throws IOException {
+        if(!isCompressed(bytes)) {
+            return bytes;
+        }
+
+        try(InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            byte[] head = new byte[n];
+            int len = 0;
+            for(int read;len < n && (read = in.read(head, len, n - len)) > 0;len += read);
+            byte[] result = new byte[len];
+            System.arraycopy(head, 0, result, 0, len);
+            return result;
+        }
+    }
+
+    /**
+     * Inflates the specified bytes if they are compressed
+     *
+     * @param bytes     the plain or compressed bytes
+     * @return  the plain bytes
+     * @throws IOException  if the bytes could not be inflated
+     */
+    public static byte[] decompress(byte[] bytes) throws IOException {
+        if(!isCompressed(bytes)) {
+            return bytes;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 8);
+        try(InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes), BUFFER_SIZE)) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            for(int read;(read = in.read(buf)) > 0;) {
+                out.write(buf, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns a stream which deflates everything written to it into a single
+     * gzip member appended to the specified stream. Closing the returned stream
+     * finishes the member but leaves the specified stream open.
+     *
+     * @param out       the stream to append the member to
+     * @param level     the compression level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}
+     * @return  the compressing stream
+     * @throws IOException  if the member header could not be written
+     */
+    public static OutputStream member(OutputStream out, int level) throws IOException {
+        return new GZIPOutputStream(out, BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+
+            @Override
+            public void close() throws IOException {
+                finish();
+                def.end();
+            }
+        };
+    }
+
+    /**
+     * Output stream assembling a store file out of the envelope and the map
+     * sections, which are compressed as separate gzip members when a compression
+     * level is given. Offsets returned by {@link #beginSection()} and {@link #endSection()}
+     * refer to the assembled (compressed) file.
+     */
+    public static class SectionOutputStream extends OutputStream {
+        private ByteArrayOutputStream file;
+        private boolean compress;
+        private int level;
+        private OutputStream member;
+
+        /**
+         * Constructs a new {@code SectionOutputStream}
+         *
+         * @param compress  true to compress each section and envelope part
+         * @param level     the compression level
+         */
+        public SectionOutputStream(boolean compress, int level) {
+            this.file = new ByteArrayOutputStream(BUFFER_SIZE);
+            this.compress = compress;
+            this.level = level;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        /**
+         * Appends the specified bytes as they are, e.g. an already compressed section
+         *
+         * @param bytes     the bytes to append
+         * @throws IOException  if a pending member could not be finished
+         */
+        public void writeRaw(byte[] bytes) throws IOException {
+            finishMember();
+            file.write(bytes);
+        }
+
+        /**
+         * Ends the current envelope part and returns the offset of the next section
+         *
+         * @return  the offset at which the section starts
+         * @throws IOException  if a pending member could not be finished
+         */
+        public int beginSection() throws IOException {
+            finishMember();
+            return file.size();
+        }
+
+        /**
+         * Ends the current section and returns the offset following it
+         *
+         * @return  the offset at which the section ends
+         * @throws IOException  if a pending member could not be finished
+         */
+        public int endSection() throws IOException {
+            finishMember();
+            return file.size();
+        }
+
+        /**
+         * Finishes any pending member and returns the assembled file
+         *
+         * @return  the file's bytes
+         * @throws IOException  if a pending member could not be finished
+         */
+        public byte[] toByteArray() throws IOException {
+            finishMember();
+            return file.toByteArray();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finishMember();
+        }
+
+        private OutputStream target() throws IOException {
+            if(!compress) {
+                return file;
+            }
+            if(member == null) {
+                member = member(file, level);
+            }
+            return member;
+        }
+
+        private void finishMember() throws IOException {
+            if(member != null) {
+                member.close();
+                member = null;
+            }
+        }
+    }
+}
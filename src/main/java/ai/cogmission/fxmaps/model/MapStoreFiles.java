@@ -0,0 +1,199 @@
+package ai.cogmission.fxmaps.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Crash safe file operations shared by the {@link MapStore} files.
+ * <p>
+ * Files are never rewritten in place: {@link #write(Path, byte[])} writes a temporary
+ * sibling, forces it to the storage device, renames it over the target in a single
+ * step and finally forces the directory entry. A crash therefore leaves either the
+ * complete old or the complete new file, never a torn one.
+ * </p><p>
+ * Store files additionally keep a rolling set of previous snapshots, the generations
+ * {@code <store>.1} (the newest) to {@code <store>.n}, each with its {@link MapStoreIndex},
+ * which {@link MapStore#load(String)} falls back to when the current file can't
+ * be read, and from which a map whose section fails its checksum is read.
+ * </p>
+ *
+ * @author cogmission
+ * @see MapStore#setGenerations(int)
+ */
+public class MapStoreFiles {
+    /** File name extension of the temporary file written before each rename */
+    public static final String TEMP_EXTENSION = ".tmp";
+    /** File name extension under which a store file which couldn't be read is kept */
+    public static final String CORRUPT_EXTENSION = ".corrupt";
+
+
+    /**
+     * Returns the location of the specified generation of the store at the
+     * specified path, generation 0 being the current store file.
+     *
+     * @param storePath     the path of the {@link MapStore} file
+     * @param generation    the generation, 0 for the current file
+     * @return  the generation's path
+     */
+    public static String generationPath(String storePath, int generation) {
+        return generation == 0 ? storePath : storePath.concat(".").concat(String.valueOf(generation));
+    }
+
+    /**
+     * Atomically and durably replaces the specified file with the specified bytes.
+     *
+     * @param target    the file to write
+     * @param bytes     the new content
+     * @throws IOException  if the file could not be written
+     */
+    public static void write(Path target, byte[] bytes) throws IOException {
+        rename(writeTemp(target, bytes), target);
+    }
+
+    /**
+     * Writes the specified bytes to the temporary sibling of the specified file
+     * and forces them to the storage device. {@link #rename(Path, Path)} then
+     * replaces the file, so that only the rename needs to be serialized with
+     * readers of the file.
+     *
+     * @param target    the file to be replaced
+     * @param bytes     the new content
+     * @return  the temporary file's path
+     * @throws IOException  if the file could not be written
+     */
+    public static Path writeTemp(Path target, byte[] bytes) throws IOException {
+        Path temp = tempPath(target);
+        try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while(buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(true);
+        }
+        return temp;
+    }
+
+    /**
+     * Atomically and durably renames the specified temporary file, which has
+     * been forced to the storage device already, over the specified target.
+     *
+     * @param temp      the written and forced temporary file
+     * @param target    the file to replace
+     * @throws IOException  if the file could not be renamed
+     */
+    public static void rename(Path temp, Path target) throws IOException {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(target);
+    }
+
+    /**
+     * Returns the temporary sibling of the specified file, to which files too 
+     * large to be buffered are streamed before being committed with
+     * {@link #replace(Path, Path)}.
+     *
+     * @param target    the file to be replaced
+     * @return  the temporary file's path
+     */
+    public static Path tempPath(Path target) {
+        return target.resolveSibling(target.getFileName() + TEMP_EXTENSION);
+    }
+
+    /**
+     * Forces the specified, completely written temporary file to the storage device
+     * and atomically and durably renames it over the specified target.
+     *
+     * @param temp      the written temporary file
+     * @param target    the file to replace
+     * @throws IOException  if the file could not be replaced
+     */
+    public static void replace(Path temp, Path target) throws IOException {
+        try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        rename(temp, target);
+    }
+
+    /**
+     * Atomically and durably replaces the specified target with a copy of the
+     * specified source.
+     *
+     * @param source    the file to copy
+     * @param target    the file to replace
+     * @throws IOException  if the file could not be copied
+     */
+    public static void copy(Path source, Path target) throws IOException {
+        Path temp = tempPath(target);
+        Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+        replace(temp, target);
+    }
+
+    /**
+     * Shifts the generations of the store at the specified path by one, dropping
+     * the oldest, and makes the current store file (with its index) the newest
+     * generation. The current store file itself stays in place until it is replaced.
+     *
+     * @param storePath     the path of the {@link MapStore} file
+     * @param generations   the number of generations to keep
+     * @throws IOException  if a generation could not be moved
+     */
+    public static void rotate(String storePath, int generations) throws IOException {
+        Path store = Paths.get(storePath);
+        if(generations < 1 || !Files.exists(store)) {
+            return;
+        }
+
+        Files.deleteIfExists(Paths.get(generationPath(storePath, generations)));
+        Files.deleteIfExists(MapStoreIndex.indexPath(generationPath(storePath, generations)));
+        for(int g = generations - 1;g > 0;g--) {
+            moveIfExists(Paths.get(generationPath(storePath, g)), Paths.get(generationPath(storePath, g + 1)));
+            moveIfExists(MapStoreIndex.indexPath(generationPath(storePath, g)),
+                MapStoreIndex.indexPath(generationPath(storePath, g + 1)));
+        }
+
+        // Link rather than copy where possible; the store file is replaced by rename, never rewritten
+        link(store, Paths.get(generationPath(storePath, 1)));
+        Path index = MapStoreIndex.indexPath(storePath);
+        if(Files.exists(index)) {
+            link(index, MapStoreIndex.indexPath(generationPath(storePath, 1)));
+        }
+        forceDirectory(store);
+    }
+
+    private static void link(Path existing, Path link) throws IOException {
+        try {
+            Files.createLink(link, existing);
+        }catch(UnsupportedOperationException | IOException e) {
+            Files.copy(existing, link, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    private static void moveIfExists(Path source, Path target) throws IOException {
+        if(Files.exists(source)) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Forces the directory entries of the specified file's directory to the storage
+     * device, so that a completed rename survives a crash. Not every platform allows
+     * opening a directory, in which case this is a no-op.
+     *
+     * @param file  the file whose directory to force
+     */
+    private static void forceDirectory(Path file) {
+        Path dir = file.toAbsolutePath().getParent();
+        try(FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }catch(IOException e) {
+            // Directories can't be opened on this platform
+        }
+    }
+}
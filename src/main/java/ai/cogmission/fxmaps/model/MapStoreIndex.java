@@ -0,0 +1,292 @@
+package ai.cogmission.fxmaps.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.google.gson.Gson;
+
+/**
+ * Lightweight on-disk index of the {@link PersistentMap}s contained in a
+ * {@link MapStore} file.
+ * <p>
+ * For every map the index records its name, the byte range its json occupies
+ * within the store file and its number of {@link Route}s and {@link Waypoint}s.
+ * Reading the index at startup is enough to list the available maps; a map's
+ * routes are only deserialized (from its byte range) the first time the map is
+ * requested. The index also records the length and modification time of the
+ * store file it describes, so an index which no longer matches its store file
+ * is ignored and the store is loaded in full.
+ * </p><p>
+ * Each entry carries the CRC32 checksum of its map's bytes, which is checked
+ * when the map is read, so that opening a store never reads the whole file.
+ * </p>
+ *
+ * @author cogmission
+ * @see MapStore#load(String)
+ */
+public class MapStoreIndex {
+    /** File name extension appended to the store path to locate the index */
+    public static final String INDEX_EXTENSION = ".index";
+
+    private static final Gson GSON = new Gson();
+
+    private long storeLength;
+    private long storeModified;
+    private String selectedMap;
+    private Long journalSequence;
+    private boolean binary;
+    private boolean compressed;
+    private List<Entry> maps = new ArrayList<>();
+
+
+    /**
+     * Returns the location of the index belonging to the store at the specified path
+     * @param storePath     the path of the {@link MapStore} file
+     * @return  the index's path
+     */
+    public static Path indexPath(String storePath) {
+        return Paths.get(storePath.concat(INDEX_EXTENSION));
+    }
+
+    /**
+     * Reads the index belonging to the store at the specified path, returning
+     * null if there is no index or it does not describe the current store file.
+     *
+     * @param storePath     the path of the {@link MapStore} file
+     * @return  the index or null
+     */
+    public static MapStoreIndex read(String storePath) {
+        Path p = indexPath(storePath);
+        Path store = Paths.get(storePath);
+        if(!Files.exists(p) || !Files.exists(store)) {
+            return null;
+        }
+
+        try(BufferedReader reader = Files.newBufferedReader(p, StandardCharsets.UTF_8)) {
+            MapStoreIndex index = GSON.fromJson(reader, MapStoreIndex.class);
+            if(index == null || index.maps == null ||
+                index.storeLength != Files.size(store) ||
+                    index.storeModified != Files.getLastModifiedTime(store).toMillis()) {
+                return null;
+            }
+            return index;
+        }catch(Exception e) {
+            System.out.println("Ignoring unreadable map store index: " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * Writes this index beside the store file at the specified path, stamping
+     * it with the store file's current length and modification time.
+     *
+     * @param storePath     the path of the {@link MapStore} file
+     * @throws IOException  if the index could not be written
+     */
+    public void write(String storePath) throws IOException {
+        Path store = Paths.get(storePath);
+        storeLength = Files.size(store);
+        storeModified = Files.getLastModifiedTime(store).toMillis();
+
+        MapStoreFiles.write(indexPath(storePath), GSON.toJson(this).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads the json of the map described by the specified entry from the store
+     * file, verifying its checksum.
+     *
+     * @param storePath     the path of the {@link MapStore} file
+     * @param entry         the entry describing the map's byte range
+     * @return  the raw json bytes of the map
+     * @throws IOException  if the store file could not be read or the checksum doesn't match
+     */
+    public static byte[] readSegment(String storePath, Entry entry) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int)entry.length);
+        try(FileChannel channel = FileChannel.open(Paths.get(storePath), StandardOpenOption.READ)) {
+            long pos = entry.offset;
+            while(buf.hasRemaining()) {
+                int read = channel.read(buf, pos);
+                if(read < 0) {
+                    throw new IOException("Unexpected end of map store reading map: " + entry.name);
+                }
+                pos += read;
+            }
+        }
+        if(entry.checksum != null) {
+            CRC32 crc = new CRC32();
+            crc.update(buf.array());
+            if(crc.getValue() != entry.checksum) {
+                throw new IOException("Checksum mismatch reading map: " + entry.name);
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * Returns the CRC32 checksum of the specified range of bytes
+     *
+     * @param bytes     the bytes
+     * @param offset    the start of the range
+     * @param length    the length of the range
+     * @return  the checksum
+     */
+    public static long checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+
+    /**
+     * Adds an entry describing a single map.
+     * @param entry     the entry to add
+     */
+    public void add(Entry entry) {
+        maps.add(entry);
+    }
+
+    /**
+     * Returns the entries of all indexed maps in store file order.
+     * @return  the list of entries
+     */
+    public List<Entry> getEntries() {
+        return maps;
+    }
+
+    /**
+     * Returns the name of the map selected when the store was written
+     * @return  the selected map name
+     */
+    public String getSelectedMap() {
+        return selectedMap;
+    }
+
+    /**
+     * Sets the name of the selected map
+     * @param name  the selected map name
+     */
+    public void setSelectedMap(String name) {
+        this.selectedMap = name;
+    }
+
+    /**
+     * Returns the sequence number of the last journal entry contained in the store file
+     * @return  the journal sequence or null
+     */
+    public Long getJournalSequence() {
+        return journalSequence;
+    }
+
+    /**
+     * Sets the sequence number of the last journal entry contained in the store file
+     * @param sequence  the journal sequence or null
+     */
+    public void setJournalSequence(Long sequence) {
+        this.journalSequence = sequence;
+    }
+
+    /**
+     * Returns a flag indicating whether the store file is in the binary format
+     * of {@link MapStoreCodec}
+     * @return  true if binary, false if json
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Sets the flag indicating whether the store file is in the binary format
+     * @param b     true if binary, false if json
+     */
+    public void setBinary(boolean b) {
+        this.binary = b;
+    }
+
+    /**
+     * Returns a flag indicating whether the store file is compressed, in which
+     * case each entry addresses its map's gzip member
+     * @return  true if compressed, false if plain
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Sets the flag indicating whether the store file is compressed
+     * @param b     true if compressed, false if plain
+     */
+    public void setCompressed(boolean b) {
+        this.compressed = b;
+    }
+
+    /**
+     * Index information for a single {@link PersistentMap}
+     */
+    public static class Entry {
+        String name;
+        long offset;
+        long length;
+        int routes;
+        int waypoints;
+        Long checksum;
+
+        Entry(String name, long offset, long length, int routes, int waypoints, Long checksum) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.routes = routes;
+            this.waypoints = waypoints;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Returns the name of the map
+         * @return  the map name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the number of bytes the map occupies in the store file
+         * @return  the size of the map in bytes
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Returns the number of {@link Route}s in the map
+         * @return  the number of routes
+         */
+        public int getRouteCount() {
+            return routes;
+        }
+
+        /**
+         * Returns the number of {@link Waypoint}s in all routes of the map
+         * @return  the number of waypoints
+         */
+        public int getWaypointCount() {
+            return waypoints;
+        }
+
+        /**
+         * Returns the CRC32 checksum of the map's bytes
+         * @return  the checksum or null if the index predates checksums
+         */
+        public Long getChecksum() {
+            return checksum;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package ai.cogmission.fxmaps.model;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * Append-only write-ahead journal for a {@link MapStore}.
+ * <p>
+ * Every mutation made through the {@code MapStore} (adding or deleting maps,
+ * adding, removing or clearing {@link Route}s and adding or removing
+ * {@link Waypoint}s) is appended to the journal as a single small json line
+ * instead of rewriting the whole store. {@link MapStore#load(String)} replays
+ * the journal on top of the last snapshot, and {@link MapStore#store()} folds
+ * the journal into a new snapshot (compaction) after which the journal is truncated.
+ * </p><p>
+ * Each entry carries a monotonically increasing sequence number. The snapshot
+ * records the sequence number of the last entry it contains, so that a crash
+ * between writing the snapshot and truncating the journal never causes an entry
+ * to be applied twice.
+ * </p>
+ *
+ * @author cogmission
+ * @see MapStore#setJournalEnabled(boolean)
+ */
+public class MapStoreJournal {
+    /** File name extension appended to the store path to locate the journal */
+    public static final String JOURNAL_EXTENSION = ".journal";
+
+    /** The kinds of mutations recorded by the journal */
+    public enum Op { ADD_MAP, DELETE_MAP, ADD_ROUTE, REMOVE_ROUTE, CLEAR_ROUTE, ADD_WAYPOINT, REMOVE_WAYPOINT };
+
+    private static final Gson GSON = new Gson();
+
+    private Path path;
+    private BufferedWriter writer;
+
+    private long lastSequence;
+    private int entryCount;
+
+
+    /**
+     * Constructs a new {@code MapStoreJournal} located beside the specified
+     * store file.
+     *
+     * @param storePath         the path of the {@link MapStore} snapshot file
+     * @param lastSequence      the sequence number of the last entry already applied
+     */
+    public MapStoreJournal(String storePath, long lastSequence) {
+        this.path = journalPath(storePath);
+        this.lastSequence = lastSequence;
+    }
+
+    /**
+     * Returns the location of the journal belonging to the store at the specified path
+     * @param storePath     the path of the {@link MapStore} snapshot file
+     * @return  the journal's path
+     */
+    public static Path journalPath(String storePath) {
+        return Paths.get(storePath.concat(JOURNAL_EXTENSION));
+    }
+
+    /**
+     * Appends the specified entry, assigning it the next sequence number. The
+     * entry is flushed to the file system before this method returns.
+     *
+     * @param entry     the entry to append
+     * @throws IOException  if the journal could not be written
+     */
+    public void append(Entry entry) throws IOException {
+        if(writer == null) {
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        entry.seq = ++lastSequence;
+        writer.write(GSON.toJson(entry));
+        writer.newLine();
+        writer.flush();
+
+        entryCount++;
+    }
+
+    /**
+     * Returns the number of entries written since the last truncation.
+     * @return  the number of entries awaiting compaction
+     */
+    public int size() {
+        return entryCount;
+    }
+
+    /**
+     * Returns the sequence number of the last entry written or replayed.
+     * @return  the last sequence number
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Discards all journal entries. Called once their effects have been
+     * captured by a snapshot. Sequence numbering continues where it left off.
+     *
+     * @throws IOException  if the journal could not be truncated
+     */
+    public void truncate() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+        entryCount = 0;
+    }
+
+    /**
+     * Closes the underlying file.
+     * @throws IOException  if the file could not be closed
+     */
+    public void close() throws IOException {
+        if(writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * Reads all well formed entries from the journal belonging to the store at
+     * the specified path. A torn trailing line (from a crash in the middle of an
+     * append) terminates reading.
+     *
+     * @param storePath     the path of the {@link MapStore} snapshot file
+     * @return  the list of entries in the order they were written
+     */
+    public static List<Entry> read(String storePath) {
+        List<Entry> entries = new ArrayList<>();
+        Path p = journalPath(storePath);
+        if(!Files.exists(p)) {
+            return entries;
+        }
+
+        try(BufferedReader reader = Files.newBufferedReader(p, StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(line.isEmpty()) continue;
+                try {
+                    Entry e = GSON.fromJson(line, Entry.class);
+                    if(e == null || e.op == null) break;
+                    entries.add(e);
+                }catch(JsonSyntaxException j) {
+                    System.out.println("Ignoring torn journal entry: " + j.getMessage());
+                    break;
+                }
+            }
+        }catch(IOException e) {
+            e.printStackTrace();
+        }
+
+        return entries;
+    }
+
+    /**
+     * Applies the journal entries belonging to the store at the specified path
+     * to the specified {@link MapStore}, skipping those already contained in
+     * its snapshot.
+     *
+     * @param storePath     the path of the {@link MapStore} snapshot file
+     * @param store         the store to apply the entries to
+     * @return  the sequence number of the last entry seen
+     */
+    static long replay(String storePath, MapStore store) {
+        long last = store.getJournalSequence() == null ? 0 : store.getJournalSequence();
+        for(Entry e : read(storePath)) {
+            if(e.seq <= last) continue;
+
+            try {
+                apply(e, store);
+            }catch(Exception ex) {
+                System.out.println("Could not replay journal entry " + e.seq + ": " + ex.getMessage());
+            }
+            last = e.seq;
+        }
+        return last;
+    }
+
+    /**
+     * Applies a single entry to the specified store.
+     *
+     * @param e         the entry to apply
+     * @param store     the store to modify
+     */
+    private static void apply(Entry e, MapStore store) {
+        if(e.op == Op.ADD_MAP) {
+            store.addMap(e.map);
+            return;
+        }else if(e.op == Op.DELETE_MAP) {
+            store.deleteMap(e.map);
+            return;
+        }
+
+        PersistentMap map = store.getMap(e.map);
+        if(map == null) {
+            throw new IllegalStateException("No map exists with name: " + e.map);
+        }
+
+        if(e.op == Op.ADD_ROUTE) {
+            Route r = new Route(e.name);
+            r.id = e.route;
+            map.addRoute(r);
+            return;
+        }
+
+        Route route = findRoute(map, e.route);
+        if(route == null) {
+            throw new IllegalStateException("No route exists with id: " + e.route);
+        }
+
+        switch(e.op) {
+            case REMOVE_ROUTE: map.removeRoute(route); break;
+            case CLEAR_ROUTE: route.removeAllWaypoints(); break;
+            case ADD_WAYPOINT: {
+                Waypoint wp = Waypoint.create(new LatLon(e.lat, e.lon), e.icon, e.title, true, Animation.NULL);
+                route.addWaypoint(wp);
+                route.addLeg(e.legStyle == null ? null : e.legStyle.toOptions());
+                break;
+            }
+            case REMOVE_WAYPOINT: route.removeWaypoint(route.getWaypoint(e.index)); break;
+            default: break;
+        }
+    }
+
+    private static Route findRoute(PersistentMap map, String id) {
+        for(Route r : map.getRoutes()) {
+            if(r.getId().equals(id)) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A single journal record. Only the fields relevant to a given
+     * {@link Op} are populated.
+     */
+    public static class Entry {
+        long seq;
+        Op op;
+        String map;
+        String route;
+        String name;
+        int index;
+        double lat;
+        double lon;
+        String icon;
+        String title;
+        /** Style of the leg connecting an added waypoint, null for the route's line style */
+        LegStyle legStyle;
+
+        Entry(Op op, String map) {
+            this.op = op;
+            this.map = map;
+        }
+
+        static Entry ofRoute(Op op, String map, Route r) {
+            Entry e = new Entry(op, map);
+            e.route = r.getId();
+            e.name = r.getName();
+            return e;
+        }
+
+        static Entry ofWaypoint(Op op, String map, Route r, int index, Waypoint w, PolylineOptions legStyle) {
+            Entry e = ofRoute(op, map, r);
+            e.legStyle = legStyle == null ? null : new LegStyle(legStyle);
+            e.index = index;
+            e.lat = w.getLatLon().getLatitude();
+            e.lon = w.getLatLon().getLongitude();
+            if(w.hasMarker()) {
+                e.icon = w.markerIcon();
+                e.title = w.markerTitle();
+            }
+            return e;
+        }
+
+        /**
+         * Returns the sequence number of this entry
+         * @return  the sequence number
+         */
+        public long getSequence() {
+            return seq;
+        }
+
+        /**
+         * Returns the type of mutation this entry records
+         * @return  the mutation type
+         */
+        public Op getOp() {
+            return op;
+        }
+
+        /**
+         * Returns the name of the map this entry modifies
+         * @return  the map's name
+         */
+        public String getMap() {
+            return map;
+        }
+
+        /**
+         * Returns the id of the route this entry modifies, or null for map mutations
+         * @return  the route's id
+         */
+        public String getRouteId() {
+            return route;
+        }
+
+        /**
+         * Returns the index of the added or removed waypoint
+         * @return  the waypoint's index
+         */
+        public int getIndex() {
+            return index;
+        }
+    }
+
+    /**
+     * The style of a leg line as plain values, which unlike {@link PolylineOptions}
+     * holds no underlying map object and can be written by any thread.
+     */
+    static class LegStyle {
+        String strokeColor;
+        double strokeOpacity;
+        double strokeWeight;
+        int zIndex;
+        boolean clickable;
+        boolean draggable;
+        boolean editable;
+        boolean visible;
+        boolean geodesic;
+
+        LegStyle(PolylineOptions p) {
+            strokeColor = p.getStrokeColor();
+            strokeOpacity = p.getStrokeOpacity();
+            strokeWeight = p.getStrokeWeight();
+            zIndex = p.getZIndex();
+            clickable = p.isClickable();
+            draggable = p.isDraggable();
+            editable = p.isEditable();
+            visible = p.isVisible();
+            geodesic = p.isGeodesic();
+        }
+
+        PolylineOptions toOptions() {
+            return new PolylineOptions()
+                .strokeColor(strokeColor)
+                .strokeOpacity(strokeOpacity)
+                .strokeWeight(strokeWeight)
+                .zIndex(zIndex)
+                .clickable(clickable)
+                .draggable(draggable)
+                .editable(editable)
+                .visible(visible)
+                .geodesic(geodesic);
+        }
+    }
+}
@@ -0,0 +1,616 @@
+package ai.cogmission.fxmaps.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Streaming json codec for {@link PersistentMap}s and the model classes they
+ * contain ({@link Route}, {@link Waypoint}, {@link Marker}, {@link MarkerOptions},
+ * {@link PolylineOptions}, {@link MapOptions} and {@link LatLon}).
+ * <p>
+ * Maps are written and read token by token through a single shared {@link JsonFactory},
+ * without building an intermediate tree or String and without reflection. The
+ * written document is the one previously produced by Jackson's data binding, so
+ * existing store files remain readable and newly written files remain readable
+ * by older versions. Fields which are derived on load (a route's origin, destination
+ * and interim waypoints, as well as the connecting lines persisted by older
+ * versions) are skipped when reading, as are unknown fields.
+ * </p>
+ *
+ * @author cogmission
+ * @see MapStore
+ */
+public class MapStoreJson {
+    /** Shared factory; factories are thread safe and recycle their buffers */
+    private static final JsonFactory FACTORY = new JsonFactory()
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+        .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+
+    /**
+     * Returns a new generator writing utf-8 json to the specified stream. Closing
+     * the generator flushes it but leaves the stream open.
+     *
+     * @param out   the stream to write to
+     * @return  the generator
+     * @throws IOException  if the generator could not be created
+     */
+    public static JsonGenerator createGenerator(OutputStream out) throws IOException {
+        return FACTORY.createGenerator(out, JsonEncoding.UTF8);
+    }
+
+    /**
+     * Returns a new parser reading json from the specified stream. Closing
+     * the parser leaves the stream open.
+     *
+     * @param in    the stream to read from
+     * @return  the parser
+     * @throws IOException  if the parser could not be created
+     */
+    public static JsonParser createParser(InputStream in) throws IOException {
+        return FACTORY.createParser(in);
+    }
+
+    /**
+     * Returns the json of the specified map
+     *
+     * @param map   the map to serialize
+     * @return  the utf-8 json bytes
+     * @throws IOException  if the map could not be serialized
+     */
+    public static byte[] encodeMap(PersistentMap map) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        writeMap(out, map);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the json of the specified map to the specified stream
+     *
+     * @param out   the stream to write to
+     * @param map   the map to serialize
+     * @throws IOException  if the map could not be written
+     */
+    public static void writeMap(OutputStream out, PersistentMap map) throws IOException {
+        try(JsonGenerator gen = createGenerator(out)) {
+            writeMap(gen, map);
+        }
+    }
+
+    /**
+     * Writes the specified string as a json string literal to the specified stream
+     *
+     * @param out   the stream to write to
+     * @param s     the string to write, may be null
+     * @throws IOException  if the string could not be written
+     */
+    public static void writeString(OutputStream out, String s) throws IOException {
+        try(JsonGenerator gen = createGenerator(out)) {
+            gen.writeString(s);
+        }
+    }
+
+    /**
+     * Reads a map from its json, rebuilding the connecting lines of every route.
+     *
+     * @param json  the utf-8 json bytes of the map
+     * @return  the map
+     * @throws IOException  if the json is malformed
+     */
+    public static PersistentMap decodeMap(byte[] json) throws IOException {
+        try(JsonParser p = FACTORY.createParser(json)) {
+            p.nextToken();
+            return readMap(p);
+        }
+    }
+
+    /**
+     * Writes a map as a json object
+     *
+     * @param gen   the generator to write to
+     * @param map   the map to write
+     * @throws IOException  if the map could not be written
+     */
+    public static void writeMap(JsonGenerator gen, PersistentMap map) throws IOException {
+        gen.writeStartObject();
+        gen.writeArrayFieldStart("routes");
+        for(Route r : map.routes) {
+            writeRoute(gen, r);
+        }
+        gen.writeEndArray();
+        gen.writeFieldName("mapOptions");
+        writeMapOptions(gen, map.mapOptions);
+        gen.writeStringField("name", map.name);
+        gen.writeNumberField("width", map.width);
+        gen.writeNumberField("height", map.height);
+        gen.writeEndObject();
+    }
+
+    /**
+     * Reads a map from the json object at the parser's current token
+     *
+     * @param p     the parser positioned at the map's start object (or null) token
+     * @return  the map or null
+     * @throws IOException  if the json is malformed
+     */
+    public static PersistentMap readMap(JsonParser p) throws IOException {
+        if(!startObject(p)) {
+            return null;
+        }
+
+        List<Route> routes = new ArrayList<>();
+        MapOptions mapOptions = null;
+        String name = null;
+        double width = 0;
+        double height = 0;
+        while(p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            p.nextToken();
+            switch(field) {
+                case "routes": {
+                    if(p.getCurrentToken() == JsonToken.START_ARRAY) {
+                        while(p.nextToken() != JsonToken.END_ARRAY) {
+                            Route r = readRoute(p);
+                            if(r != null) routes.add(r);
+                        }
+                    }
+                    break;
+                }
+                case "mapOptions": mapOptions = readMapOptions(p); break;
+                case "name": name = p.getValueAsString(); break;
+                case "width": width = p.getValueAsDouble(); break;
+                case "height": height = p.getValueAsDouble(); break;
+                default: p.skipChildren();
+            }
+        }
+
+        PersistentMap map = new PersistentMap(name);
+        map.routes = routes;
+        map.mapOptions = mapOptions;
+        map.width = width;
+        map.height = height;
+        return map;
+    }
+
+    private static void writeRoute(JsonGenerator gen, Route r) throws IOException {
+        gen.writeStartObject();
+        if(r.lineStyle != null) {
+            gen.writeFieldName("lineStyle");
+            writePolylineOptions(gen, r.lineStyle);
+        }
+        gen.writeStringField("name", r.name);
+        int n = r.size();
+        gen.writeFieldName("origin");
+        writePoint(gen, r, n == 0 ? -1 : 0);
+        gen.writeFieldName("destination");
+        writePoint(gen, r, n - 1);
+        gen.writeBooleanField("interimMarkersVisible", r.interimMarkersVisible);
+        gen.writeStringField("id", r.id);
+        gen.writeArrayFieldStart("interimWaypoints");
+        for(int i = 1;i < n - 1 && n > 2;i++) {
+            writePoint(gen, r, i);
+        }
+        gen.writeEndArray();
+        gen.writeArrayFieldStart("waypoints");
+        for(int i = 0;i < n;i++) {
+            writePoint(gen, r, i);
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+    }
+
+    /**
+     * Writes the point of the specified route at the specified index as a
+     * waypoint, without creating the waypoints of track points. Elevations and
+     * times are only written for the points which have them.
+     *
+     * @param index     the index of the point or -1 for null
+     */
+    private static void writePoint(JsonGenerator gen, Route r, int index) throws IOException {
+        if(index < 0) {
+            gen.writeNull();
+            return;
+        }
+
+        Waypoint w = r.peekWaypoint(index);
+        gen.writeStartObject();
+        gen.writeFieldName("latLon");
+        if(w == null) {
+            gen.writeStartObject();
+            gen.writeNumberField("latitude", r.getLatitude(index));
+            gen.writeNumberField("longitude", r.getLongitude(index));
+            gen.writeStringField("variableName", "None");
+            gen.writeEndObject();
+            gen.writeFieldName("marker");
+            gen.writeNull();
+        }else{
+            writeWaypointFields(gen, w);
+        }
+        double elevation = r.getElevation(index);
+        if(!Double.isNaN(elevation)) {
+            gen.writeNumberField("elevation", elevation);
+        }
+        long time = r.getTime(index);
+        if(time != RouteGeometry.NO_TIME) {
+            gen.writeNumberField("time", time);
+        }
+        gen.writeEndObject();
+    }
+
+    private static Route readRoute(JsonParser p) throws IOException {
+        if(!startObject(p)) {
+            return null;
+        }
+
+        // The points are appended as they are read; the name is set once known
+        Route r = new Route(null);
+        while(p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            p.nextToken();
+            switch(field) {
+                case "waypoints": {
+                    if(p.getCurrentToken() == JsonToken.START_ARRAY) {
+                        while(p.nextToken() != JsonToken.END_ARRAY) {
+                            readPoint(p, r);
+                        }
+                    }
+                    break;
+                }
+                case "lineStyle": r.lineStyle = readPolylineOptions(p); break;
+                case "name": r.name = p.getValueAsString(); break;
+                case "id": r.id = p.getValueAsString(); break;
+                case "interimMarkersVisible": r.interimMarkersVisible = p.getValueAsBoolean(); break;
+                default: p.skipChildren();
+            }
+        }
+
+        r.rebuildLines();
+        return r;
+    }
+
+    /**
+     * Reads a waypoint written by {@link #writePoint(JsonGenerator, Route, int)}
+     * and appends it to the specified route; waypoints without marker and leg
+     * style are appended as track points, without creating a waypoint.
+     */
+    private static void readPoint(JsonParser p, Route r) throws IOException {
+        if(!startObject(p)) {
+            return;
+        }
+
+        LatLon latLon = null;
+        Marker marker = null;
+        PolylineOptions legStyle = null;
+        double elevation = Double.NaN;
+        long time = RouteGeometry.NO_TIME;
+        while(p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            p.nextToken();
+            switch(field) {
+                case "latLon": latLon = readLatLon(p); break;
+                case "marker": marker = readMarker(p); break;
+                case "legStyle": legStyle = readPolylineOptions(p); break;
+                case "elevation": elevation = p.getValueAsDouble(Double.NaN); break;
+                case "time": time = p.getValueAsLong(RouteGeometry.NO_TIME); break;
+                default: p.skipChildren();
+            }
+        }
+
+        if(latLon == null) {
+            throw new IOException("Waypoint without latLon in route: " + r.id);
+        }
+        if(marker == null && legStyle == null) {
+            r.observableDelegate.addPoint(latLon.getLatitude(), latLon.getLongitude(), elevation, time);
+        }else{
+            Waypoint w = new Waypoint(latLon, marker);
+            MarkerOptions opts = marker == null ? null : marker.getMarkerOptions();
+            if(opts != null && latLon.equals(opts.getPosition())) {
+                // Markers of a marker type's icon only keep their shared style
+                MarkerStyle style = MarkerStyle.forIcon(opts.getIcon(), opts.getTitle(), opts.isVisible(), opts.getAnimation());
+                if(style != null) {
+                    w = new Waypoint(latLon, style, MarkerType.labelOf(opts.getIcon()));
+                }
+            }
+            w.setLegStyle(legStyle);
+            r.addWaypoint(w);
+            r.getGeometry().setElevation(r.size() - 1, elevation);
+            r.getGeometry().setTime(r.size() - 1, time);
+        }
+    }
+
+    /**
+     * Writes the fields of the specified waypoint, from its coordinates on
+     */
+    private static void writeWaypointFields(JsonGenerator gen, Waypoint w) throws IOException {
+        writeLatLon(gen, w.getLatLon());
+        gen.writeFieldName("marker");
+        if(w.hasMarker() && !w.isMarkerCreated()) {
+            writeMarkerStyle(gen, w);
+        }else{
+            writeMarker(gen, w.getMarker());
+        }
+        if(w.getLegStyle() != null) {
+            gen.writeFieldName("legStyle");
+            writePolylineOptions(gen, w.getLegStyle());
+        }
+    }
+
+    private static void writeMarker(JsonGenerator gen, Marker m) throws IOException {
+        if(m == null) {
+            gen.writeNull();
+            return;
+        }
+
+        gen.writeStartObject();
+        gen.writeStringField("title", m.getTitle());
+        writeEnumField(gen, "animation", m.getAnimation());
+        gen.writeFieldName("markerOptions");
+        MarkerOptions opts = m.getMarkerOptions();
+        if(opts == null) {
+            gen.writeNull();
+        }else{
+            gen.writeStartObject();
+            gen.writeFieldName("position");
+            writeLatLon(gen, opts.getPosition());
+            gen.writeStringField("title", opts.getTitle());
+            gen.writeBooleanField("visible", opts.isVisible());
+            writeEnumField(gen, "animation", opts.getAnimation());
+            gen.writeStringField("icon", opts.getIcon());
+            gen.writeEndObject();
+        }
+        gen.writeEndObject();
+    }
+
+    /**
+     * Writes the marker the specified waypoint's {@link MarkerStyle} creates,
+     * without creating it.
+     */
+    private static void writeMarkerStyle(JsonGenerator gen, Waypoint w) throws IOException {
+        MarkerStyle style = w.getMarkerStyle();
+        gen.writeStartObject();
+        gen.writeStringField("title", style.getTitle());
+        writeEnumField(gen, "animation", Animation.NULL);
+        gen.writeFieldName("markerOptions");
+        gen.writeStartObject();
+        gen.writeFieldName("position");
+        writeLatLon(gen, w.getLatLon());
+        gen.writeStringField("title", style.getTitle());
+        gen.writeBooleanField("visible", style.isVisible());
+        writeEnumField(gen, "animation", style.getAnimation());
+        gen.writeStringField("icon", style.getIcon(w.getLabel()));
+        gen.writeEndObject();
+        gen.writeEndObject();
+    }
+
+    private static Marker readMarker(JsonParser p) throws IOException {
+        if(!startObject(p)) {
+            return null;
+        }
+
+        MarkerOptions opts = null;
+        while(p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            p.nextToken();
+            if(field.equals("markerOptions")) {
+                opts = readMarkerOptions(p);
+            }else{
+                p.skipChildren();
+            }
+        }
+
+        return opts == null ? null : new Marker(opts);
+    }
+
+    private static MarkerOptions readMarkerOptions(JsonParser p) throws IOException {
+        if(!startObject(p)) {
+            return null;
+        }
+
+        MarkerOptions opts = new MarkerOptions();
+        while(p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            p.nextToken();
+            switch(field) {
+                case "position": {
+                    LatLon ll = readLatLon(p);
+                    if(ll != null) opts.position(ll);
+                    break;
+                }
+                case "title": opts.title(p.getValueAsString()); break;
+                case "visible": opts.visible(p.getValueAsBoolean()); break;
+                case "animation": {
+                    String animation = p.getValueAsString();
+                    if(animation != null) opts.animation(Animation.valueOf(animation));
+                    break;
+                }
+                case "icon": {
+                    String icon = p.getValueAsString();
+                    if(icon != null) opts.icon(icon);
+                    break;
+                }
+                default: p.skipChildren();
+            }
+        }
+        return opts;
+    }
+
+    private static void writePolylineOptions(JsonGenerator gen, PolylineOptions opts) throws IOException {
+        gen.writeStartObject();
+        gen.writeBooleanField("clickable", opts.isClickable());
+        gen.writeBooleanField("draggable", opts.isDraggable());
+        gen.writeBooleanField("editable", opts.isEditable());
+        gen.writeBooleanField("geodesic", opts.isGeodesic());
+        gen.writeStringField("strokeColor", opts.getStrokeColor());
+        gen.writeNumberField("strokeOpacity", opts.getStrokeOpacity());
+        gen.writeNumberField("strokeWeight", opts.getStrokeWeight());
+        gen.writeBooleanField("visible", opts.isVisible());
+        gen.writeNumberField("zindex", opts.getZIndex());
+        if(opts.getPath() != null) {
+            gen.writeArrayFieldStart("path");
+            for(LatLon ll : opts.getPath()) {
+                writeLatLon(gen, ll);
+            }
+            gen.writeEndArray();
+        }
+        gen.writeEndObject();
+    }
+
+    private static PolylineOptions readPolylineOptions(JsonParser p) throws IOException {
+        if(!startObject(p)) {
+            return null;
+        }
+
+        PolylineOptions opts = new PolylineOptions();
+        while(p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            p.nextToken();
+            switch(field) {
+                case "clickable": opts.clickable(p.getValueAsBoolean()); break;
+                case "draggable": opts.draggable(p.getValueAsBoolean()); break;
+                case "editable": opts.editable(p.getValueAsBoolean()); break;
+                case "geodesic": opts.geodesic(p.getValueAsBoolean()); break;
+                case "strokeColor": {
+                    String color = p.getValueAsString();
+                    if(color != null) opts.strokeColor(color);
+                    break;
+                }
+                case "strokeOpacity": opts.strokeOpacity(p.getValueAsDouble()); break;
+                case "strokeWeight": opts.strokeWeight(p.getValueAsDouble()); break;
+                case "visible": opts.visible(p.getValueAsBoolean()); break;
+                case "zindex":
+                case "zIndex": opts.zIndex(p.getValueAsInt()); break;
+                case "path": {
+                    if(p.getCurrentToken() == JsonToken.START_ARRAY) {
+                        List<LatLon> path = new ArrayList<>();
+                        while(p.nextToken() != JsonToken.END_ARRAY) {
+                            LatLon ll = readLatLon(p);
+                            if(ll != null) path.add(ll);
+                        }
+                        opts.path(path);
+                    }
+                    break;
+                }
+                default: p.skipChildren();
+            }
+        }
+        return opts;
+    }
+
+    private static void writeMapOptions(JsonGenerator gen, MapOptions opts) throws IOException {
+        if(opts == null) {
+            gen.writeNull();
+            return;
+        }
+
+        gen.writeStartObject();
+        gen.writeFieldName("center");
+        writeLatLon(gen, opts.center);
+        writeEnumField(gen, "mapType", opts.mapType);
+        gen.writeBooleanField("mapMarker", opts.mapMarker);
+        gen.writeBooleanField("overviewMapControl", opts.overviewMapControl);
+        gen.writeBooleanField("panControl", opts.panControl);
+        gen.writeBooleanField("rotateControl", opts.rotateControl);
+        gen.writeBooleanField("scaleControl", opts.scaleControl);
+        gen.writeBooleanField("streetViewControl", opts.streetViewControl);
+        gen.writeNumberField("zoom", opts.zoom);
+        gen.writeBooleanField("zoomControl", opts.zoomControl);
+        gen.writeBooleanField("mapTypeControl", opts.mapTypeControl);
+        gen.writeEndObject();
+    }
+
+    private static MapOptions readMapOptions(JsonParser p) throws IOException {
+        if(!startObject(p)) {
+            return null;
+        }
+
+        MapOptions opts = new MapOptions();
+        while(p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            p.nextToken();
+            switch(field) {
+                case "center": opts.center = readLatLon(p); break;
+                case "mapType": {
+                    String mapType = p.getValueAsString();
+                    opts.mapType = mapType == null ? null : MapType.valueOf(mapType);
+                    break;
+                }
+                case "mapMarker": opts.mapMarker = p.getValueAsBoolean(); break;
+                case "overviewMapControl": opts.overviewMapControl = p.getValueAsBoolean(); break;
+                case "panControl": opts.panControl = p.getValueAsBoolean(); break;
+                case "rotateControl": opts.rotateControl = p.getValueAsBoolean(); break;
+                case "scaleControl": opts.scaleControl = p.getValueAsBoolean(); break;
+                case "streetViewControl": opts.streetViewControl = p.getValueAsBoolean(); break;
+                case "zoom": opts.zoom = p.getValueAsInt(); break;
+                case "zoomControl": opts.zoomControl = p.getValueAsBoolean(); break;
+                case "mapTypeControl": opts.mapTypeControl = p.getValueAsBoolean(); break;
+                default: p.skipChildren();
+            }
+        }
+        return opts;
+    }
+
+    private static void writeLatLon(JsonGenerator gen, LatLon ll) throws IOException {
+        if(ll == null) {
+            gen.writeNull();
+            return;
+        }
+
+        gen.writeStartObject();
+        gen.writeNumberField("latitude", ll.getLatitude());
+        gen.writeNumberField("longitude", ll.getLongitude());
+        gen.writeStringField("variableName", ll.getVariableName());
+        gen.writeEndObject();
+    }
+
+    private static LatLon readLatLon(JsonParser p) throws IOException {
+        if(!startObject(p)) {
+            return null;
+        }
+
+        double latitude = 0;
+        double longitude = 0;
+        while(p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            p.nextToken();
+            switch(field) {
+                case "latitude": latitude = p.getValueAsDouble(); break;
+                case "longitude": longitude = p.getValueAsDouble(); break;
+                default: p.skipChildren();
+            }
+        }
+        return new LatLon(latitude, longitude);
+    }
+
+    private static void writeEnumField(JsonGenerator gen, String name, Enum<?> value) throws IOException {
+        gen.writeStringField(name, value == null ? null : value.name());
+    }
+
+    /**
+     * Checks that the parser's current token starts an object, returning false
+     * for a null value.
+     *
+     * @param p     the parser
+     * @return  true if an object follows, false if the value is null
+     * @throws JsonParseException   if the current token is neither an object nor null
+     */
+    private static boolean startObject(JsonParser p) throws JsonParseException {
+        JsonToken t = p.getCurrentToken();
+        if(t == JsonToken.START_OBJECT) {
+            return true;
+        }else if(t == JsonToken.VALUE_NULL) {
+            return false;
+        }
+        throw new JsonParseException("Expected an object but found: " + t, p.getCurrentLocation());
+    }
+}
@@ -0,0 +1,492 @@
+package ai.cogmission.fxmaps.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded, log-structured and transactional key-value store, backing the
+ * {@link KeyValueBackend}.
+ * <p>
+ * All writes are grouped into {@link Transaction}s, each appended to the log
+ * file as a single checksummed record and forced to the storage device on
+ * commit, so a transaction is either applied completely or not at all. The
+ * location of every key's latest value is held in a sorted in-memory index,
+ * rebuilt by scanning the log on open, so that a value is read with a single
+ * positional read and keys can be listed by prefix. A torn record at the end of
+ * the log (from a crash during a commit) is discarded on open.
+ * </p><p>
+ * Overwritten and deleted values remain in the log as garbage until the log
+ * is compacted, which happens automatically once the garbage outweighs the
+ * live values. Both are measured in bytes on disk, keys and record headers
+ * included, so logs of small values are not compacted needlessly. Automatic
+ * compaction runs on a background thread, so it never delays a commit;
+ * transactions committed while the live values are copied are carried over
+ * to the compacted log unchanged.
+ * </p>
+ *
+ * @author cogmission
+ * @see KeyValueBackend
+ */
+public class MapStoreLog implements Closeable {
+    /** Leading bytes of every transaction record ("FMPL") */
+    public static final int RECORD_MAGIC = 0x464D504C;
+    /** Log size below which the log is never compacted automatically */
+    public static final long COMPACTION_MINIMUM = 1 << 20;
+
+    private static final byte PUT = 0;
+    private static final byte DELETE = 1;
+    /** Size of a record's header: magic, payload length and checksum */
+    private static final int RECORD_HEADER_SIZE = 16;
+    /** Size of a record's header and operation count */
+    private static final int RECORD_OVERHEAD = RECORD_HEADER_SIZE + 4;
+
+    private Path path;
+    private FileChannel channel;
+    /** Offset and length of each key's value, and the size of the operation which put it */
+    private TreeMap<String, long[]> index = new TreeMap<>();
+    private long size;
+    /** Total size of the operations putting the current values */
+    private long liveBytes;
+    /** False for the temporary log written by {@link #compact()} */
+    private boolean autoCompact = true;
+    /** Serializes compactions, which only hold this log's monitor while replacing the file */
+    private final Object compactLock = new Object();
+    private ExecutorService compactor;
+    /** The scheduled automatic compaction, or null if none is pending */
+    private Future<?> compaction;
+    private boolean closed;
+
+
+    private MapStoreLog(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Opens (or creates) the log at the specified path and rebuilds its index.
+     *
+     * @param path  the log file
+     * @return  the open log
+     * @throws IOException  if the log could not be opened
+     */
+    public static MapStoreLog open(Path path) throws IOException {
+        MapStoreLog log = new MapStoreLog(path);
+        log.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        log.recover();
+        return log;
+    }
+
+    /**
+     * Scans all records, indexing the values of every complete transaction, and
+     * truncates the log after the last one.
+     */
+    private void recover() throws IOException {
+        long end = channel.size();
+        long pos = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while(pos + RECORD_HEADER_SIZE <= end) {
+            header.clear();
+            readFully(header, pos);
+            header.flip();
+            int magic = header.getInt();
+            long length = header.getInt() & 0xffffffffL;
+            long checksum = header.getLong();
+            if(magic != RECORD_MAGIC || pos + RECORD_HEADER_SIZE + length > end) {
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate((int)length);
+            readFully(payload, pos + RECORD_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if(crc.getValue() != checksum) {
+                break;
+            }
+            apply(payload.array(), pos + RECORD_HEADER_SIZE);
+            pos += RECORD_HEADER_SIZE + length;
+        }
+
+        if(pos < end) {
+            System.out.println("Discarding torn map store log record at: " + pos);
+            channel.truncate(pos);
+            channel.force(true);
+        }
+        size = pos;
+    }
+
+    /**
+     * Applies the operations of a committed transaction to the index.
+     *
+     * @param payload   the transaction's payload
+     * @param offset    the payload's offset within the log
+     */
+    private void apply(byte[] payload, long offset) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int count = in.readInt();
+        for(int i = 0;i < count;i++) {
+            int start = payload.length - in.available();
+            byte op = in.readByte();
+            String key = in.readUTF();
+            long[] old;
+            if(op == PUT) {
+                int length = in.readInt();
+                long valueOffset = offset + (payload.length - in.available());
+                in.skipBytes(length);
+                long opSize = payload.length - in.available() - start;
+                old = index.put(key, new long[] { valueOffset, length, opSize });
+                liveBytes += opSize;
+            }else{
+                old = index.remove(key);
+            }
+            if(old != null) {
+                liveBytes -= old[2];
+            }
+        }
+    }
+
+    /**
+     * Returns the latest value of the specified key
+     *
+     * @param key   the key
+     * @return  the value or null if the key doesn't exist
+     * @throws IOException  if the value could not be read
+     */
+    public synchronized byte[] get(String key) throws IOException {
+        long[] location = index.get(key);
+        if(location == null) {
+            return null;
+        }
+        ByteBuffer value = ByteBuffer.allocate((int)location[1]);
+        readFully(value, location[0]);
+        return value.array();
+    }
+
+    /**
+     * Returns a flag indicating whether the specified key exists
+     *
+     * @param key   the key
+     * @return  true if it exists, false if not
+     */
+    public synchronized boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Returns the existing keys starting with the specified prefix, in order
+     *
+     * @param prefix    the prefix
+     * @return  the matching keys
+     */
+    public synchronized NavigableSet<String> keys(String prefix) {
+        return new TreeSet<>(index.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet());
+    }
+
+    /**
+     * Returns the size of the log file
+     * @return  the size in bytes
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Returns the size the log would have if compacted: the current values
+     * with their keys, in a single record
+     * @return  the size in bytes
+     */
+    public synchronized long getLiveBytes() {
+        return index.isEmpty() ? 0 : RECORD_OVERHEAD + liveBytes;
+    }
+
+    /**
+     * Begins a new transaction
+     * @return  the transaction
+     */
+    public Transaction begin() {
+        return new Transaction();
+    }
+
+    /**
+     * Appends the specified transaction as one checksummed record and forces it
+     * to the storage device.
+     */
+    private synchronized void commit(Transaction t) throws IOException {
+        if(t.ops.isEmpty()) {
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeLong(0);
+        out.writeInt(t.ops.size());
+        for(Map.Entry<String, byte[]> e : t.ops.entrySet()) {
+            out.writeByte(e.getValue() == null ? DELETE : PUT);
+            out.writeUTF(e.getKey());
+            if(e.getValue() != null) {
+                out.writeInt(e.getValue().length);
+                out.write(e.getValue());
+            }
+        }
+        out.flush();
+
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        int length = record.capacity() - RECORD_HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, length);
+        record.putInt(0, RECORD_MAGIC).putInt(4, length).putLong(8, crc.getValue());
+
+        long pos = size;
+        while(record.hasRemaining()) {
+            pos += channel.write(record, pos);
+        }
+        channel.force(false);
+
+        byte[] payload = new byte[length];
+        System.arraycopy(record.array(), RECORD_HEADER_SIZE, payload, 0, length);
+        apply(payload, size + RECORD_HEADER_SIZE);
+        size = pos;
+
+        long live = getLiveBytes();
+        if(autoCompact && compaction == null && size > COMPACTION_MINIMUM && size - live > live) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Compacts the log on the background thread, which is started on first use.
+     */
+    private void scheduleCompaction() {
+        if(compactor == null) {
+            compactor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "MapStoreLog");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        compaction = compactor.submit(() -> {
+            try {
+                compact();
+            }catch(IOException e) {
+                e.printStackTrace();
+            }finally{
+                synchronized(MapStoreLog.this) {
+                    compaction = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for a pending automatic compaction to finish
+     */
+    void awaitCompaction() {
+        Future<?> pending;
+        synchronized(this) {
+            pending = compaction;
+        }
+        if(pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        }catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }catch(ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Rewrites the log with only the current values, as a single transaction,
+     * replacing the log file in one step. The values are copied without
+     * holding this log's monitor; transactions committed meanwhile are then
+     * appended to the compacted log as they are.
+     * <p>
+     * The log keeps using the old file and index until the compacted log has
+     * replaced the file and been reopened, so a failure leaves it usable.
+     * </p>
+     *
+     * @throws IOException  if the log could not be compacted
+     */
+    public void compact() throws IOException {
+        synchronized(compactLock) {
+            FileChannel source;
+            Map<String, long[]> live;
+            long end;
+            synchronized(this) {
+                if(closed) {
+                    return;
+                }
+                // The index replaces, never modifies, a key's location
+                source = channel;
+                live = new TreeMap<>(index);
+                end = size;
+            }
+
+            Path temp = MapStoreFiles.tempPath(path);
+            Files.deleteIfExists(temp);
+            MapStoreLog compacted = open(temp);
+            try {
+                compacted.autoCompact = false;
+                Transaction t = compacted.begin();
+                for(Map.Entry<String, long[]> e : live.entrySet()) {
+                    ByteBuffer value = ByteBuffer.allocate((int)e.getValue()[1]);
+                    readFully(source, value, e.getValue()[0]);
+                    t.put(e.getKey(), value.array());
+                }
+                compacted.commit(t);
+
+                synchronized(this) {
+                    if(closed) {
+                        return;
+                    }
+                    ByteBuffer tail = ByteBuffer.allocate((int)(size - end));
+                    readFully(channel, tail, end);
+                    tail.flip();
+                    long pos = compacted.size;
+                    while(tail.hasRemaining()) {
+                        pos += compacted.channel.write(tail, pos);
+                    }
+                    compacted.channel.force(false);
+                    compacted.close();
+
+                    MapStoreFiles.replace(temp, path);
+                    MapStoreLog reopened = open(path);
+                    channel.close();
+                    channel = reopened.channel;
+                    index = reopened.index;
+                    size = reopened.size;
+                    liveBytes = reopened.liveBytes;
+                }
+            }finally{
+                compacted.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        readFully(channel, buf, pos);
+    }
+
+    private void readFully(FileChannel source, ByteBuffer buf, long pos) throws IOException {
+        while(buf.hasRemaining()) {
+            int read = source.read(buf, pos);
+            if(read < 0) {
+                throw new IOException("Unexpected end of map store log: " + path);
+            }
+            pos += read;
+        }
+    }
+
+    /**
+     * Closes the log, after waiting for a pending automatic compaction.
+     */
+    @Override
+    public void close() throws IOException {
+        awaitCompaction();
+        synchronized(this) {
+            closed = true;
+            if(compactor != null) {
+                compactor.shutdown();
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * A set of puts and deletes which is committed atomically. Later operations
+     * on the same key replace earlier ones.
+     */
+    public class Transaction {
+        private LinkedHashMap<String, byte[]> ops = new LinkedHashMap<>();
+
+        /**
+         * Sets the value of the specified key
+         *
+         * @param key       the key
+         * @param value     the new value
+         * @return  this transaction
+         */
+        public Transaction put(String key, byte[] value) {
+            ops.remove(key);
+            ops.put(key, value);
+            return this;
+        }
+
+        /**
+         * Deletes the specified key
+         *
+         * @param key   the key
+         * @return  this transaction
+         */
+        public Transaction delete(String key) {
+            ops.remove(key);
+            ops.put(key, null);
+            return this;
+        }
+
+        /**
+         * Deletes all keys starting with the specified prefix, including keys
+         * put earlier in this transaction.
+         *
+         * @param prefix    the prefix
+         * @return  this transaction
+         */
+        public Transaction deletePrefix(String prefix) {
+            List<String> keys = new ArrayList<>(keys(prefix));
+            for(String key : ops.keySet()) {
+                if(key.startsWith(prefix)) {
+                    keys.add(key);
+                }
+            }
+            for(String key : keys) {
+                delete(key);
+            }
+            return this;
+        }
+
+        /**
+         * Returns the value of the specified key as of this transaction
+         *
+         * @param key   the key
+         * @return  the value or null if the key doesn't exist
+         * @throws IOException  if the value could not be read
+         */
+        public byte[] get(String key) throws IOException {
+            return ops.containsKey(key) ? ops.get(key) : MapStoreLog.this.get(key);
+        }
+
+        /**
+         * Appends this transaction to the log
+         *
+         * @throws IOException  if the transaction could not be written, in
+         * which case none of it is applied
+         */
+        public void commit() throws IOException {
+            MapStoreLog.this.commit(this);
+        }
+    }
+}
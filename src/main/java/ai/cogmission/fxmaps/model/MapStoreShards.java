@@ -0,0 +1,302 @@
+package ai.cogmission.fxmaps.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.google.gson.Gson;
+
+/**
+ * Directory based layout of a {@link MapStore}, where every {@link PersistentMap}
+ * is written to a file of its own.
+ * <p>
+ * The store directory contains a small {@code manifest.json}, which records the
+ * selected map, the journal sequence and one entry per map, and a {@code maps}
+ * directory holding one json file per map. Each manifest entry carries the length
+ * and CRC32 checksum of the map's json, so {@link #writeMap(String, byte[], int, int)}
+ * only rewrites files whose content actually changed, and loading a single map
+ * only reads that map's file.
+ * </p>
+ *
+ * @author cogmission
+ * @see MapStore#setSharded(boolean)
+ */
+public class MapStoreShards {
+    /** Name of the manifest file within the store directory */
+    public static final String MANIFEST_FILE = "manifest.json";
+    /** Name of the directory holding the map files within the store directory */
+    public static final String MAPS_DIRECTORY = "maps";
+    /** File name extension of the map files */
+    public static final String MAP_EXTENSION = ".json";
+
+    private static final Gson GSON = new Gson();
+
+    private transient Path directory;
+    private transient int writeCount;
+
+    private String selectedMap;
+    private Long journalSequence;
+    private List<Entry> maps = new ArrayList<>();
+
+
+    /**
+     * Constructs a new {@code MapStoreShards} for the specified store directory
+     *
+     * @param directory     the directory of the {@link MapStore}
+     */
+    public MapStoreShards(String directory) {
+        this.directory = Paths.get(directory);
+    }
+
+    /**
+     * Returns the location of the manifest within the specified store directory
+     * @param directory     the directory of the {@link MapStore}
+     * @return  the manifest's path
+     */
+    public static Path manifestPath(String directory) {
+        return Paths.get(directory, MANIFEST_FILE);
+    }
+
+    /**
+     * Returns the location of the file of the map with the specified name
+     * @param name  the name of the map
+     * @return  the map file's path
+     */
+    public Path mapPath(String name) {
+        try {
+            return directory.resolve(MAPS_DIRECTORY).resolve(URLEncoder.encode(name, "UTF-8").concat(MAP_EXTENSION));
+        }catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the manifest of the store in the specified directory, returning
+     * null if there is no readable manifest.
+     *
+     * @param directory     the directory of the {@link MapStore}
+     * @return  the shards described by the manifest or null
+     */
+    public static MapStoreShards read(String directory) {
+        Path p = manifestPath(directory);
+        if(!Files.exists(p)) {
+            return null;
+        }
+
+        try(BufferedReader reader = Files.newBufferedReader(p, StandardCharsets.UTF_8)) {
+            MapStoreShards shards = GSON.fromJson(reader, MapStoreShards.class);
+            if(shards == null || shards.maps == null) {
+                return null;
+            }
+            shards.directory = Paths.get(directory);
+            return shards;
+        }catch(Exception e) {
+            System.out.println("Ignoring unreadable map store manifest: " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * Writes the json of the specified map to its file, unless the file
+     * already holds exactly this content.
+     *
+     * @param name          the name of the map
+     * @param json          the serialized map
+     * @param routes        the number of routes in the map
+     * @param waypoints     the number of waypoints in the map
+     * @return  true if the file was written, false if it was unchanged
+     * @throws IOException  if the file could not be written
+     */
+    public boolean writeMap(String name, byte[] json, int routes, int waypoints) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(json);
+
+        Entry old = getEntry(name);
+        if(old != null && old.length == json.length && old.checksum == crc.getValue() && Files.exists(mapPath(name))) {
+            return false;
+        }
+
+        Path target = mapPath(name);
+        Files.createDirectories(target.getParent());
+        MapStoreFiles.write(target, json);
+
+        if(old != null) {
+            maps.remove(old);
+        }
+        maps.add(new Entry(name, json.length, crc.getValue(), routes, waypoints));
+        writeCount++;
+
+        return true;
+    }
+
+    /**
+     * Reads the json of the map with the specified name from its file,
+     * verifying its checksum.
+     *
+     * @param name  the name of the map
+     * @return  the raw json bytes of the map
+     * @throws IOException  if the map file could not be read or the checksum doesn't match
+     */
+    public byte[] readMap(String name) throws IOException {
+        byte[] json = Files.readAllBytes(mapPath(name));
+        Entry e = getEntry(name);
+        if(e != null) {
+            CRC32 crc = new CRC32();
+            crc.update(json);
+            if(crc.getValue() != e.checksum) {
+                throw new IOException("Checksum mismatch reading map: " + name);
+            }
+        }
+        return json;
+    }
+
+    /**
+     * Deletes the files of all maps not named in the specified collection.
+     *
+     * @param names     the names of the maps which still exist
+     * @throws IOException  if a file could not be deleted
+     */
+    public void retain(Collection<String> names) throws IOException {
+        for(Entry e : new ArrayList<>(maps)) {
+            if(!names.contains(e.name)) {
+                Files.deleteIfExists(mapPath(e.name));
+                maps.remove(e);
+            }
+        }
+    }
+
+    /**
+     * Writes the manifest, which is replaced in a single step once all map
+     * files have been written.
+     *
+     * @param selectedMap       the name of the selected map
+     * @param journalSequence   the sequence number of the last journal entry contained
+     * @return  the manifest json
+     * @throws IOException  if the manifest could not be written
+     */
+    public String writeManifest(String selectedMap, Long journalSequence) throws IOException {
+        this.selectedMap = selectedMap;
+        this.journalSequence = journalSequence;
+
+        String json = GSON.toJson(this);
+        Files.createDirectories(directory);
+        MapStoreFiles.write(directory.resolve(MANIFEST_FILE), json.getBytes(StandardCharsets.UTF_8));
+
+        return json;
+    }
+
+    /**
+     * Returns the manifest entry of the map with the specified name
+     * @param name  the name of the map
+     * @return  the entry or null
+     */
+    public Entry getEntry(String name) {
+        for(Entry e : maps) {
+            if(e.name.equals(name)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the manifest entries of all maps
+     * @return  the list of entries
+     */
+    public List<Entry> getEntries() {
+        return maps;
+    }
+
+    /**
+     * Returns the name of the map selected when the manifest was written
+     * @return  the selected map name
+     */
+    public String getSelectedMap() {
+        return selectedMap;
+    }
+
+    /**
+     * Returns the sequence number of the last journal entry contained in the shards
+     * @return  the journal sequence or null
+     */
+    public Long getJournalSequence() {
+        return journalSequence;
+    }
+
+    /**
+     * Returns the number of map files written by this instance
+     * @return  the number of map files written
+     */
+    public int getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Manifest information for a single {@link PersistentMap}
+     */
+    public static class Entry {
+        String name;
+        long length;
+        long checksum;
+        int routes;
+        int waypoints;
+
+        Entry(String name, long length, long checksum, int routes, int waypoints) {
+            this.name = name;
+            this.length = length;
+            this.checksum = checksum;
+            this.routes = routes;
+            this.waypoints = waypoints;
+        }
+
+        /**
+         * Returns the name of the map
+         * @return  the map name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the number of bytes of the map's file
+         * @return  the size of the map in bytes
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Returns the CRC32 checksum of the map's file
+         * @return  the checksum
+         */
+        public long getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * Returns the number of {@link Route}s in the map
+         * @return  the number of routes
+         */
+        public int getRouteCount() {
+            return routes;
+        }
+
+        /**
+         * Returns the number of {@link Waypoint}s in all routes of the map
+         * @return  the number of waypoints
+         */
+        public int getWaypointCount() {
+            return waypoints;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package ai.cogmission.fxmaps.model;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind persistence for a {@link MapStore}.
+ * <p>
+ * Instead of rewriting the store on the calling (usually the JavaFX) thread
+ * after every edit, callers invoke {@link #requestStore()} which only marks the
+ * store dirty. A single background thread snapshots and persists the store at
+ * most once per interval, so a burst of edits (such as rapid clicking while
+ * adding waypoints) is coalesced into a single write.
+ * </p><p>
+ * {@link #flush()} persists any pending changes synchronously and should be
+ * called (via {@link #close()}) before the application exits.
+ * </p>
+ *
+ * @author cogmission
+ * @see MapStore#setWriteBehindInterval(long)
+ */
+public class MapStoreWriter {
+    /** The default minimum number of milliseconds between two writes */
+    public static final long DEFAULT_INTERVAL = 2000;
+
+    private final MapStore store;
+    private final long interval;
+
+    private final ScheduledExecutorService executor;
+    private ScheduledFuture<?> pending;
+
+    private boolean dirty;
+    private long lastWrite;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /** Held by the running write, so that {@link #flush()} waits for it */
+    private final Object writing = new Object();
+
+
+    /**
+     * Constructs a new {@code MapStoreWriter}
+     *
+     * @param store         the store to persist
+     * @param intervalMillis    the minimum number of milliseconds between two writes
+     */
+    public MapStoreWriter(MapStore store, long intervalMillis) {
+        this.store = store;
+        this.interval = intervalMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "MapStoreWriter");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Marks the store dirty and schedules a background write if none is
+     * pending. Requests arriving while a write is pending are coalesced
+     * into that write.
+     */
+    public synchronized void requestStore() {
+        if(executor.isShutdown()) {
+            throw new IllegalStateException("MapStoreWriter has been closed");
+        }
+
+        queued.incrementAndGet();
+
+        if(dirty) {
+            coalesced.incrementAndGet();
+            return;
+        }
+
+        dirty = true;
+        schedule();
+    }
+
+    /**
+     * Schedules the next write no sooner than one interval after the last one.
+     */
+    private void schedule() {
+        long delay = Math.max(0, lastWrite + interval - System.currentTimeMillis());
+        pending = executor.schedule(this::write, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Persists the store if it is dirty. Runs on the writer thread, or on the
+     * caller's thread from {@link #flush()}.
+     */
+    private void write() {
+        synchronized(writing) {
+            synchronized(this) {
+                if(!dirty) {
+                    return;
+                }
+                dirty = false;
+                pending = null;
+                // Set before writing so requests arriving during the write wait an interval
+                lastWrite = System.currentTimeMillis();
+            }
+
+            String json = store.store();
+
+            synchronized(this) {
+                if(json == null) {
+                    failed.incrementAndGet();
+                    // Keep the changes and try again on the next interval
+                    if(!dirty && !executor.isShutdown()) {
+                        dirty = true;
+                        schedule();
+                    }
+                }else{
+                    written.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Synchronously persists any pending changes on the calling thread.
+     */
+    public void flush() {
+        ScheduledFuture<?> p;
+        synchronized(this) {
+            p = pending;
+        }
+        if(p != null) {
+            p.cancel(false);
+        }
+
+        // Waits for a write which may already be running on the writer thread
+        write();
+    }
+
+    /**
+     * Flushes any pending changes and stops the writer thread.
+     */
+    public void close() {
+        flush();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(interval, TimeUnit.MILLISECONDS);
+        }catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns a flag indicating whether there are changes not yet persisted.
+     * @return  true if dirty, false if not
+     */
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Returns the number of times a store was requested.
+     * @return  the number of requested saves
+     */
+    public long getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * Returns the number of requests that were folded into an already pending write.
+     * @return  the number of coalesced saves
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the number of writes actually performed.
+     * @return  the number of written saves
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * Returns the number of writes which failed and were rescheduled.
+     * @return  the number of failed saves
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "MapStoreWriter [queued=" + queued + ", coalesced=" + coalesced +
+            ", written=" + written + ", failed=" + failed + "]";
+    }
+}
@@ -0,0 +1,195 @@
+package ai.cogmission.fxmaps.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, shared display style of {@link Marker}s: the {@link MarkerType}
+ * of the icon, the title, the visibility and the {@link Animation}.
+ * <p>
+ * Styles are interned by {@link #of(MarkerType, String, boolean, Animation)},
+ * so each distinct style exists once and is identified by its {@link #getId()}.
+ * A {@link Waypoint} created with a style (see {@link Waypoint#Waypoint(LatLon, MarkerStyle, char)})
+ * only references the style and the label of its icon; its {@link Marker} and
+ * {@link MarkerOptions} are created from the style and the waypoint's position
+ * when they are first requested, e.g. when the waypoint is displayed. The
+ * icon paths are shared too (see {@link MarkerType#iconPath(char)}).
+ * </p>
+ *
+ * @author cogmission
+ * @see Waypoint#getMarkerStyle()
+ */
+public final class MarkerStyle {
+    private static final Map<MarkerStyle, MarkerStyle> STYLES = new HashMap<>();
+    private static final List<MarkerStyle> IDS = new ArrayList<>();
+
+    private final MarkerType type;
+    private final String title;
+    private final boolean visible;
+    private final Animation animation;
+    private int id;
+
+
+    private MarkerStyle(MarkerType type, String title, boolean visible, Animation animation) {
+        this.type = type;
+        this.title = title;
+        this.visible = visible;
+        this.animation = animation;
+    }
+
+    /**
+     * Returns the shared style with the specified properties
+     *
+     * @param type          the marker type of the icon
+     * @param title         the title or null
+     * @param visible       the visibility
+     * @param animation     the animation or null for {@link Animation#NULL}
+     * @return  the style
+     */
+    public static MarkerStyle of(MarkerType type, String title, boolean visible, Animation animation) {
+        if(type == null) {
+            throw new IllegalArgumentException("MarkerType was null");
+        }
+
+        MarkerStyle style = new MarkerStyle(type, title, visible, animation == null ? Animation.NULL : animation);
+        synchronized(STYLES) {
+            MarkerStyle shared = STYLES.get(style);
+            if(shared == null) {
+                style.id = IDS.size();
+                IDS.add(style);
+                STYLES.put(style, shared = style);
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * Returns the shared style of a marker with the specified icon and
+     * properties, if the icon is a {@link MarkerType}'s icon.
+     *
+     * @param icon          the icon path
+     * @param title         the title or null
+     * @param visible       the visibility
+     * @param animation     the animation or null
+     * @return  the style or null if the icon is not a marker type's icon
+     */
+    public static MarkerStyle forIcon(String icon, String title, boolean visible, Animation animation) {
+        MarkerType type = MarkerType.typeOf(icon);
+        return type == null ? null : of(type, title, visible, animation);
+    }
+
+    /**
+     * Returns the style with the specified id
+     *
+     * @param id    the id
+     * @return  the style
+     * @throws IndexOutOfBoundsException if no style has the specified id
+     */
+    public static MarkerStyle forId(int id) {
+        synchronized(STYLES) {
+            return IDS.get(id);
+        }
+    }
+
+    /**
+     * Returns the id of this style, unique within the running application
+     * @return  the id
+     */
+    public int getId() {
+        return id;
+    }
+
+    public MarkerType getType() {
+        return type;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public Animation getAnimation() {
+        return animation;
+    }
+
+    /**
+     * Returns the path of the icon with the specified label
+     *
+     * @param label     the label, from 'A' to 'Z'
+     * @return  the icon path
+     */
+    public String getIcon(char label) {
+        return type.iconPath(label);
+    }
+
+    /**
+     * Creates a new {@link Marker} of this style
+     *
+     * @param position  the marker's position
+     * @param label     the label of the icon
+     * @return  the marker
+     */
+    public Marker createMarker(LatLon position, char label) {
+        MarkerOptions opts = new MarkerOptions()
+            .position(position)
+            .title(title)
+            .icon(getIcon(label))
+            .visible(visible)
+            .animation(animation);
+
+        return new Marker(opts);
+    }
+
+    /**
+     * Returns the part of the icon path {@link MarkerOptions#equals(Object)}
+     * compares, which is the same for all labels.
+     */
+    String getIconPrefix() {
+        String icon = getIcon('A');
+        return icon.substring(0, icon.indexOf("_"));
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + animation.hashCode();
+        result = prime * result + ((title == null) ? 0 : title.hashCode());
+        result = prime * result + type.hashCode();
+        result = prime * result + (visible ? 1231 : 1237);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(this == obj)
+            return true;
+        if(obj == null)
+            return false;
+        if(getClass() != obj.getClass())
+            return false;
+        MarkerStyle other = (MarkerStyle)obj;
+        if(animation != other.animation)
+            return false;
+        if(title == null) {
+            if(other.title != null)
+                return false;
+        } else if(!title.equals(other.title))
+            return false;
+        if(type != other.type)
+            return false;
+        if(visible != other.visible)
+            return false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "MarkerStyle [id=" + id + ", type=" + type + ", title=" + title + ", visible=" + visible + "]";
+    }
+}
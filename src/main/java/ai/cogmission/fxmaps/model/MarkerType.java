@@ -25,6 +25,9 @@ public enum MarkerType {
     
     private String path;
     
+    /** Icon paths by label, created once and shared by all markers using them */
+    private String[] icons = new String[26];
+    
     private static EnumMap<MarkerType, Character> cursors;
     static {
         cursors = new EnumMap<MarkerType, Character>(MarkerType.class);
@@ -86,10 +89,10 @@ public enum MarkerType {
      */
     public static void reset(Route r) {
         // This is an empty route
-        if(r.getDestination() == null) return;
+        if(r.getDestination() == null || !r.getDestination().hasMarker()) return;
         
         Waypoint dest = r.getDestination();
-        String desc = dest.getMarker().getMarkerOptions().getIcon();
+        String desc = dest.markerIcon();
         MarkerType color = valueOf(desc.substring(desc.lastIndexOf("/") + 1, desc.indexOf("_")).toUpperCase());
         Character chr = desc.substring(desc.lastIndexOf(".") - 1, desc.lastIndexOf(".")).toUpperCase().charAt(0);
         cursors.put(color, chr);
@@ -98,10 +101,65 @@ public enum MarkerType {
     public String iconPath() {
         if(chr() == 'A' - 1) next();
         
-        return path.concat(Character.toString(chr()).concat(".png"));
+        return iconPath(chr());
     }
     
     public String nextPath() {
-        return path.concat(Character.toString(next()).concat(".png"));
+        return iconPath(next());
+    }
+    
+    /**
+     * Returns the path of this {@code MarkerType}'s icon with the specified
+     * label. The same String instance is returned for each label.
+     * 
+     * @param label     the label, from 'A' to 'Z'
+     * @return  the icon path
+     */
+    public String iconPath(char label) {
+        if(label < 'A' || label > 'Z') {
+            throw new IllegalArgumentException("Not a marker label: " + label);
+        }
+        
+        String icon = icons[label - 'A'];
+        if(icon == null) {
+            icons[label - 'A'] = icon = path.concat(Character.toString(label).concat(".png"));
+        }
+        return icon;
+    }
+    
+    /**
+     * Returns the {@code MarkerType} of the specified icon path, if it is
+     * one of the paths returned by {@link #iconPath(char)}.
+     * 
+     * @param icon  the icon path
+     * @return  the marker type or null if the icon is not a marker type's icon
+     */
+    public static MarkerType typeOf(String icon) {
+        char label = labelOf(icon);
+        if(label == 0) {
+            return null;
+        }
+        
+        for(MarkerType mt : values()) {
+            if(icon.length() == mt.path.length() + 5 && icon.startsWith(mt.path) && icon.endsWith(".png")) {
+                return mt;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the label of the specified icon path (see {@link #iconPath(char)})
+     * 
+     * @param icon  the icon path
+     * @return  the label or 0 if the path has none
+     */
+    public static char labelOf(String icon) {
+        if(icon == null || icon.length() < 5) {
+            return 0;
+        }
+        
+        char label = icon.charAt(icon.length() - 5);
+        return label < 'A' || label > 'Z' ? 0 : label;
     }
 }
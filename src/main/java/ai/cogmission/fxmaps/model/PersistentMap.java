@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.gson.stream.MalformedJsonException;
 import com.sun.javafx.UnmodifiableArrayList;
 
 import ai.cogmission.fxmaps.ui.MapPane;
@@ -24,6 +26,16 @@ public class PersistentMap {
     protected double width;
     protected double height;
     
+    /** Set when this map's own fields or route list changed since it was last stored or loaded */
+    protected transient boolean dirty = true;
+    
+    /** Reverse indexes of the routes' waypoints and lines, created on the first lookup */
+    private transient RouteIndex routeIndex;
+    /** Index of the routes by name and id, created on the first lookup */
+    private transient RouteNameIndex nameIndex;
+    /** Spatial index of the routes' points and segments, created on first use */
+    private transient SpatialIndex spatialIndex;
+    
     
     /**
      * Constructs a new {@code PersistentMap}
@@ -47,6 +59,42 @@ public class PersistentMap {
      */
     public void setName(String name) {
         this.name = name;
+        this.dirty = true;
+    }
+    
+    /**
+     * Returns a flag indicating whether this map or any of its {@link Route}s 
+     * changed since it was last stored or loaded, in which case it has to be
+     * serialized again.
+     * 
+     * @return  true if changed, false if not
+     */
+    @JsonIgnore
+    public boolean isDirty() {
+        if(dirty) {
+            return true;
+        }
+        for(Route r : routes) {
+            if(r.isDirty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Sets the flag indicating whether this map changed since it was last
+     * stored or loaded. Clearing the flag also clears it on all routes.
+     * 
+     * @param b     true if changed, false once stored or loaded
+     */
+    public void setDirty(boolean b) {
+        this.dirty = b;
+        if(!b) {
+            for(Route r : routes) {
+                r.setDirty(false);
+            }
+        }
     }
     
     /**
@@ -56,6 +104,16 @@ public class PersistentMap {
     public void addRoute(Route r) {
         if(!routes.contains(r)) {
             routes.add(r);
+            dirty = true;
+            if(routeIndex != null) {
+                routeIndex.add(r);
+            }
+            if(nameIndex != null) {
+                nameIndex.add(r);
+            }
+            if(spatialIndex != null) {
+                spatialIndex.add(r);
+            }
         }
     }
     
@@ -65,7 +123,20 @@ public class PersistentMap {
      * @param r     the route to remove
      */
     public void removeRoute(Route r) {
-        routes.remove(r);
+        int index = routes.indexOf(r);
+        if(index != -1) {
+            Route removed = routes.remove(index);
+            dirty = true;
+            if(routeIndex != null) {
+                routeIndex.remove(removed);
+            }
+            if(nameIndex != null) {
+                nameIndex.remove(removed);
+            }
+            if(spatialIndex != null) {
+                spatialIndex.remove(removed);
+            }
+        }
     }
     
     /**
@@ -84,7 +155,30 @@ public class PersistentMap {
      * @return  the Route with the specified name
      */
     public Route getRoute(String name) {
-        return routes.stream().filter(r -> r.getName().equals(name)).findFirst().orElse(null);
+        return getNameIndex().get(name);
+    }
+    
+    /**
+     * Returns the {@link Route} with the specified id or null if
+     * none has that id.
+     * 
+     * @param id    the id of the route to return
+     * @return  the Route with the specified id
+     * @see Route#getId()
+     */
+    public Route getRouteById(String id) {
+        return getNameIndex().getById(id);
+    }
+    
+    /**
+     * Returns the {@link Route}s whose names start with the specified 
+     * prefix, ordered by name.
+     * 
+     * @param prefix    the prefix of the names, or "" for all routes
+     * @return  the list of matching routes
+     */
+    public List<Route> getRoutesByPrefix(String prefix) {
+        return getNameIndex().getByPrefix(prefix);
     }
     
     /**
@@ -93,6 +187,113 @@ public class PersistentMap {
      */
     public void setRoutes(List<Route> routes) {
         this.routes = routes;
+        this.dirty = true;
+        invalidateIndexes();
+    }
+    
+    /**
+     * Returns the {@link Route} containing the specified {@link Waypoint}
+     * instance, or null if no route of this map contains it.
+     * 
+     * @param wp    the waypoint
+     * @return  the route containing the waypoint
+     */
+    public Route getRouteForWaypoint(Waypoint wp) {
+        return getRouteIndex().getRoute(wp);
+    }
+    
+    /**
+     * Returns the {@link Route} containing the specified {@link Polyline}
+     * instance, or null if no route of this map contains it.
+     * 
+     * @param line  the line
+     * @return  the route containing the line
+     */
+    public Route getRouteForLine(Polyline line) {
+        return getRouteIndex().getRoute(line);
+    }
+    
+    /**
+     * Returns the {@link Waypoint} whose leg is the specified {@link Polyline},
+     * or null if the line is no leg of a waypoint of this map.
+     * 
+     * @param line  the leg line
+     * @return  the waypoint the leg ends at
+     */
+    public Waypoint getWaypointForLine(Polyline line) {
+        return getRouteIndex().getWaypoint(line);
+    }
+    
+    /**
+     * Returns the bounding box of the points of all {@link Route}s of this map,
+     * which is combined from the bounds each route keeps up to date, without 
+     * visiting any points.
+     * 
+     * @return  the bounds or null if no route has points
+     * @see Route#getBounds()
+     */
+    @JsonIgnore
+    public LatLonBounds getBounds() {
+        double south = Double.POSITIVE_INFINITY, west = Double.POSITIVE_INFINITY;
+        double north = Double.NEGATIVE_INFINITY, east = Double.NEGATIVE_INFINITY;
+        for(Route r : routes) {
+            if(r.size() > 0) {
+                south = Math.min(south, r.getSouth());
+                north = Math.max(north, r.getNorth());
+                west = Math.min(west, r.getWest());
+                east = Math.max(east, r.getEast());
+            }
+        }
+        return south > north ? null : new LatLonBounds(new LatLon(south, west), new LatLon(north, east));
+    }
+    
+    /**
+     * Returns the spatial index of the points and segments of this map's
+     * {@link Route}s, creating it on first use. The index follows the changes
+     * of the routes and of the route list.
+     * 
+     * @return  the spatial index
+     */
+    @JsonIgnore
+    public SpatialIndex getSpatialIndex() {
+        if(spatialIndex == null) {
+            spatialIndex = new SpatialIndex(routes);
+        }
+        return spatialIndex;
+    }
+    
+    /**
+     * Returns the reverse indexes of the routes, creating them on first use.
+     * Routes added to or removed from {@link #routes} directly are only seen
+     * by the indexes if they are invalidated.
+     */
+    private RouteIndex getRouteIndex() {
+        if(routeIndex == null) {
+            routeIndex = new RouteIndex(routes);
+        }
+        return routeIndex;
+    }
+    
+    private RouteNameIndex getNameIndex() {
+        if(nameIndex == null) {
+            nameIndex = new RouteNameIndex(routes);
+        }
+        return nameIndex;
+    }
+    
+    /**
+     * Discards the reverse, name and spatial indexes, which are recreated on the next lookup
+     */
+    protected void invalidateIndexes() {
+        if(routeIndex != null) {
+            routeIndex.clear();
+            routeIndex = null;
+        }
+        nameIndex = null;
+        if(spatialIndex != null) {
+            spatialIndex.clear();
+            spatialIndex = null;
+        }
     }
     
     /**
@@ -109,6 +310,7 @@ public class PersistentMap {
      */
     public void setWidth(double width) {
         this.width = width;
+        this.dirty = true;
     }
 
     /**
@@ -125,6 +327,7 @@ public class PersistentMap {
      */
     public void setHeight(double height) {
         this.height = height;
+        this.dirty = true;
     }
 
     /**
@@ -141,6 +344,20 @@ public class PersistentMap {
      */
     public void setMapOptions(MapOptions mapOptions) {
         this.mapOptions = mapOptions;
+        this.dirty = true;
+    }
+    
+    /**
+     * Called following deserialization to load the observable lists of 
+     * this map's {@link Route}s.
+     * 
+     * @throws MalformedJsonException   if a route is malformed
+     */
+    public void postDeserialize() throws MalformedJsonException {
+        for(Route r : routes) {
+            r.postDeserialize();
+        }
+        invalidateIndexes();
     }
     
     /**
@@ -155,19 +372,12 @@ public class PersistentMap {
         // If deserializing in non-headless mode, build javascript peers
         if(Platform.isFxApplicationThread()) {
             for(Route r : routes) {
-                if(r.origin == null || r.origin.getMarker() == null) {
+                if(r.size() == 0) {
                     continue;
                 }
                 
-                r.origin.getMarker().createUnderlying();
-                r.destination.getMarker().createUnderlying();
-                for(Waypoint wp : r.observableDelegate) {
-                    wp.getMarker().createUnderlying();
-                }
-                
-                for(Polyline line : r.lines) {
-                    line.createUnderlying();
-                }
+                // Creates the markers of marked waypoints only, not of track points
+                r.createUnderlying();
             }
         }
     }
@@ -198,8 +408,15 @@ public class PersistentMap {
         if(routes == null) {
             if(other.routes != null)
                 return false;
-        } else if(!routes.equals(other.routes))
+        } else if(other.routes == null || routes.size() != other.routes.size())
             return false;
+        else {
+            // Routes are equal by id, maps compare their contents
+            for(int i = 0;i < routes.size();i++) {
+                if(!routes.get(i).contentEquals(other.routes.get(i)))
+                    return false;
+            }
+        }
         return true;
     }
      
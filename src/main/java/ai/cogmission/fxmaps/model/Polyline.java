@@ -1,13 +1,23 @@
 package ai.cogmission.fxmaps.model;
 
+import java.util.List;
+
 import javafx.application.Platform;
 
+import com.lynden.gmapsfx.javascript.object.LatLong;
+import com.lynden.gmapsfx.javascript.object.MVCArray;
+
 
 public class Polyline extends MapShape {
     private com.lynden.gmapsfx.shapes.Polyline line;
     
     private PolylineOptions options;
     
+    /** The waypoint whose leg this line is, or null; maintained by {@link Waypoint#setConnection(Polyline)} */
+    private transient Waypoint waypoint;
+    /** Last known position in the owning {@link Route}'s lines, validated on use */
+    private transient int indexHint;
+    
     public Polyline(PolylineOptions options) {
         this.options = options;
         
@@ -43,29 +53,61 @@ public class Polyline extends MapShape {
     public com.lynden.gmapsfx.shapes.Polyline convert() {
         return line;
     }
-
-    @Override
-    public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + ((options == null) ? 0 : options.hashCode());
-        return result;
+    
+    /**
+     * Replaces the path drawn by the underlying line, e.g. with a simplified
+     * version of it, leaving the path of this line's options unchanged.
+     * 
+     * @param path  the points to draw
+     */
+    public void showPath(List<LatLon> path) {
+        if(line != null && Platform.isFxApplicationThread()) {
+            LatLong[] ary = new LatLong[path.size()];
+            for(int i = 0;i < ary.length;i++) {
+                LatLon ll = path.get(i);
+                ary[i] = new LatLong(ll.getLatitude(), ll.getLongitude());
+            }
+            line.setPath(new MVCArray(ary));
+        }
+    }
+    
+    /**
+     * Returns the {@link Waypoint} this line is the leg of, i.e. the 
+     * waypoint whose connection it is.
+     * 
+     * @return  the waypoint the leg ends at, or null
+     */
+    Waypoint getWaypoint() {
+        return waypoint;
+    }
+    
+    void setWaypoint(Waypoint w) {
+        this.waypoint = w;
+    }
+    
+    int getIndexHint() {
+        return indexHint;
+    }
+    
+    void setIndexHint(int index) {
+        this.indexHint = index;
     }
 
-    @Override
-    public boolean equals(Object obj) {
-        if(this == obj)
-            return true;
-        if(obj == null)
-            return false;
-        if(getClass() != obj.getClass())
+    /**
+     * Compares the specified {@code Polyline} with this line using their
+     * options, i.e. their styles and paths. Lines are otherwise only equal
+     * to themselves, as each is a distinct shape on the map whose path 
+     * changes as its {@link Route} is edited.
+     * 
+     * @param other     the other line to compare
+     * @return  true if both lines have equal options
+     */
+    public boolean contentEquals(Polyline other) {
+        if(other == null)
             return false;
-        Polyline other = (Polyline)obj;
         if(options == null) {
-            if(other.options != null)
-                return false;
-        } else if(!options.equals(other.options))
-            return false;
-        return true;
+            return other.options == null;
+        }
+        return options.equals(other.options);
     }
 }
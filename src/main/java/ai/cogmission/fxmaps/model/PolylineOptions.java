@@ -6,6 +6,8 @@ import java.util.stream.Collectors;
 
 import javafx.application.Platform;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.lynden.gmapsfx.javascript.object.LatLong;
 import com.lynden.gmapsfx.javascript.object.MVCArray;
 
@@ -27,10 +29,21 @@ public class PolylineOptions extends MapShapeOptions<PolylineOptions> {
      * @param p options to copy
      */
     public static PolylineOptions copy(PolylineOptions p) {
-        PolylineOptions copy = new PolylineOptions();
+        PolylineOptions copy = copyStyle(p);
         if(p.path != null) {
             copy.path = new ArrayList<>(p.path);
         }
+        return copy;
+    }
+    
+    /**
+     * Returns a copy of the specified {@code PolylineOptions} without 
+     * its path, i.e. only the rendering style.
+     * 
+     * @param p options to copy
+     */
+    public static PolylineOptions copyStyle(PolylineOptions p) {
+        PolylineOptions copy = new PolylineOptions();
         copy.strokeColor(p.getStrokeColor())
             .clickable(p.isClickable())
             .draggable(p.isDraggable())
@@ -97,6 +110,7 @@ public class PolylineOptions extends MapShapeOptions<PolylineOptions> {
      * Returns the list of lat/lons
      * @return
      */
+    @JsonInclude(Include.NON_NULL)
     public List<LatLon> getPath() {
         return path;
     }
@@ -109,6 +123,21 @@ public class PolylineOptions extends MapShapeOptions<PolylineOptions> {
         return options;
     }
 
+    /**
+     * Compares the rendering style of the specified {@code PolylineOptions}
+     * with this one's, ignoring their paths.
+     * 
+     * @param other     the options to compare
+     * @return  true if both render alike, false if not
+     */
+    public boolean styleEquals(PolylineOptions other) {
+        return other != null && isClickable() == other.isClickable() && isDraggable() == other.isDraggable() &&
+            isEditable() == other.isEditable() && isGeodesic() == other.isGeodesic() &&
+                isVisible() == other.isVisible() && getZIndex() == other.getZIndex() &&
+                    getStrokeOpacity() == other.getStrokeOpacity() && getStrokeWeight() == other.getStrokeWeight() &&
+                        (getStrokeColor() == null ? other.getStrokeColor() == null : getStrokeColor().equals(other.getStrokeColor()));
+    }
+    
     @Override
     public int hashCode() {
         final int prime = 31;
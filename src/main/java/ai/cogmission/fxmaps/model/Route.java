@@ -4,43 +4,229 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 
+import ai.cogmission.fxmaps.ui.MapPane;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.google.gson.annotations.SerializedName;
 import com.google.gson.stream.MalformedJsonException;
 
 /**
  * Abstraction of a given path which connects a series of {@link Waypoint}s.
+ * <p>
+ * The {@link Polyline}s connecting consecutive waypoints (the legs) are derived
+ * from the ordered waypoints and are never persisted. Only the route's line 
+ * style and any per leg style overrides (see {@link Waypoint#setLegStyle(PolylineOptions)})
+ * are stored; the legs are rebuilt by {@link #rebuildLines()} on load.
+ * <p>
+ * The points of a route are held in a packed {@link RouteGeometry}, along with
+ * their elevations and times. Recorded tracks are added as bare track points 
+ * (see {@link #addPoint(double, double, double, long)}) which have no 
+ * {@link Waypoint}, {@link Marker} or leg line of their own: consecutive track
+ * points are drawn by a single line, and a marker-less waypoint is only created
+ * for a track point when it is requested through the waypoint list. Points which
+ * need a marker are added as waypoints, as before.
+ * <p>
+ * Routes are identified by their id: {@link #equals(Object)} and {@link #hashCode()}
+ * only consider the id, so sets and maps of routes don't traverse their points.
+ * Routes are compared by their contents with {@link #contentEquals(Route)} and
+ * {@link #pathEquals(Route)}.
  * 
  * @author cogmission
  * @see Waypoint
  */
+@JsonPropertyOrder({ "lineStyle", "name", "origin", "destination", "interimMarkersVisible", "id", "interimWaypoints", "waypoints" })
 public class Route {
     
-    protected ObservableList<Waypoint> observableDelegate = FXCollections.observableArrayList();
+    protected WaypointList observableDelegate = new WaypointList();
     
     @SerializedName("waypoints")
     protected List<Waypoint> delegate = new ArrayList<>();
     
-    protected List<Polyline> lines = new ArrayList<>();
+    protected transient ObservableList<Polyline> lines = FXCollections.observableArrayList();
+    
+    /** Style of this route's leg lines, or null for the default line style */
+    protected PolylineOptions lineStyle;
     
     protected String name;
-    protected Waypoint origin;
-    protected Waypoint destination;
     
     protected boolean interimMarkersVisible;
     
     protected String id;
     
+    /** Set when this route changed since it was last stored or loaded */
+    protected transient boolean dirty = true;
+    
+    /** Set when {@link #lines} contain lines through consecutive track points */
+    private transient boolean trackLines;
+    
+    /** Bounding box of this route's points, valid while {@link #boundsValid} is set */
+    private transient double south, north, west, east;
+    private transient boolean boundsValid;
+    
+    /** Distance, elevation and duration totals, created on first use */
+    private transient RouteMetrics metrics;
+    /** Spatial tree of the points and segments, created on first use */
+    private transient SpatialIndex.RouteTree spatialTree;
+    /** Simplified paths for each zoom level, created on first use */
+    private transient RouteSimplification simplification;
+    
+    private static PolylineOptions defaultLineStyle;
+    
 
     /** Constructs a new {@code Route} */
     public Route(String name) {
         this.name = name;
         this.id = UUID.randomUUID().toString();
+        observeWaypoints();
+    }
+    
+    /**
+     * Marks this route dirty and updates its bounds whenever its list of 
+     * {@link Waypoint}s changes.
+     */
+    private void observeWaypoints() {
+        boundsValid = false;
+        metrics = null;
+        spatialTree = null;
+        simplification = null;
+        observableDelegate.addListener((ListChangeListener<Waypoint>)c -> {
+            dirty = true;
+            updateBounds(c);
+        });
+    }
+    
+    /**
+     * Extends the bounds by added points. Removing a point on the edge of the
+     * bounds invalidates them, they are computed again when requested.
+     */
+    private void updateBounds(ListChangeListener.Change<? extends Waypoint> c) {
+        while(boundsValid && c.next()) {
+            if(c.wasRemoved()) {
+                List<? extends Waypoint> removed = c.getRemoved();
+                RouteGeometry g = removed instanceof WaypointList ? ((WaypointList)removed).getGeometry() : null;
+                for(int i = 0;i < removed.size();i++) {
+                    double lat = g != null ? g.getLatitude(i) : removed.get(i).getLatLon().getLatitude();
+                    double lon = g != null ? g.getLongitude(i) : removed.get(i).getLatLon().getLongitude();
+                    if(lat <= south || lat >= north || lon <= west || lon >= east) {
+                        boundsValid = false;
+                        return;
+                    }
+                }
+            }
+            if(c.wasAdded()) {
+                for(int i = c.getFrom();i < c.getTo();i++) {
+                    includeInBounds(getLatitude(i), getLongitude(i));
+                }
+            }
+        }
+    }
+    
+    private void includeInBounds(double lat, double lon) {
+        south = Math.min(south, lat);
+        north = Math.max(north, lat);
+        west = Math.min(west, lon);
+        east = Math.max(east, lon);
+    }
+    
+    /**
+     * Computes the bounds of all points if they are invalid
+     */
+    private void validateBounds() {
+        if(boundsValid) {
+            return;
+        }
+        
+        south = west = Double.POSITIVE_INFINITY;
+        north = east = Double.NEGATIVE_INFINITY;
+        for(int i = 0;i < size();i++) {
+            includeInBounds(getLatitude(i), getLongitude(i));
+        }
+        boundsValid = true;
+    }
+    
+    /**
+     * Returns the bounding box of this route's points. The box is kept up to 
+     * date as points are added, and only computed again after a point on its 
+     * edge was removed or replaced.
+     * 
+     * @return  the bounds or null if this route has no points
+     */
+    @JsonIgnore
+    public LatLonBounds getBounds() {
+        if(size() == 0) {
+            return null;
+        }
+        validateBounds();
+        return new LatLonBounds(new LatLon(south, west), new LatLon(north, east));
+    }
+    
+    /**
+     * Returns the southern latitude of this route's bounds
+     * @return  the latitude, positive infinity if this route has no points
+     */
+    double getSouth() {
+        validateBounds();
+        return south;
+    }
+    
+    /**
+     * Returns the northern latitude of this route's bounds
+     * @return  the latitude, negative infinity if this route has no points
+     */
+    double getNorth() {
+        validateBounds();
+        return north;
+    }
+    
+    /**
+     * Returns the western longitude of this route's bounds
+     * @return  the longitude, positive infinity if this route has no points
+     */
+    double getWest() {
+        validateBounds();
+        return west;
+    }
+    
+    /**
+     * Returns the eastern longitude of this route's bounds
+     * @return  the longitude, negative infinity if this route has no points
+     */
+    double getEast() {
+        validateBounds();
+        return east;
+    }
+    
+    /**
+     * Returns a flag indicating whether this route changed since it was last
+     * stored or loaded, in which case it has to be serialized again.
+     * 
+     * @return  true if changed, false if not
+     */
+    @JsonIgnore
+    public boolean isDirty() {
+        return dirty;
+    }
+    
+    /**
+     * Sets the flag indicating whether this route changed since it was last
+     * stored or loaded. Changes to the list of {@link Waypoint}s, to the line 
+     * style or to the leg styles set by {@link #addLeg(PolylineOptions)} mark
+     * the route dirty automatically.
+     * 
+     * @param b     true if changed, false once stored or loaded
+     */
+    public void setDirty(boolean b) {
+        this.dirty = b;
     }
     
     /**
@@ -64,35 +250,448 @@ public class Route {
      * @param w
      */
     public void addWaypoint(Waypoint w) {
-        if(observableDelegate.isEmpty()) {
-            origin = w;
-        }
-        destination = w;
         observableDelegate.add(w);
     }
     
     /**
-     * Removes the specified {@link Waypoint} from this list.
+     * Appends a track point, without a marker, which is connected to the
+     * preceding point by this route's line style. No {@link Waypoint} or
+     * {@link LatLon} objects are created.
+     * 
+     * @param latitude      the latitude
+     * @param longitude     the longitude
+     */
+    public void addPoint(double latitude, double longitude) {
+        addPoint(latitude, longitude, Double.NaN, RouteGeometry.NO_TIME);
+    }
+    
+    /**
+     * Appends a track point, without a marker, which is connected to the
+     * preceding point by this route's line style. No {@link Waypoint} or
+     * {@link LatLon} objects are created, and consecutive track points share
+     * a single line.
+     * 
+     * @param latitude      the latitude
+     * @param longitude     the longitude
+     * @param elevation     the elevation in meters or NaN if unknown
+     * @param time          the time in milliseconds since the epoch or {@link RouteGeometry#NO_TIME}
+     */
+    public void addPoint(double latitude, double longitude, double elevation, long time) {
+        observableDelegate.addPoint(latitude, longitude, elevation, time);
+        int to = observableDelegate.size();
+        if(to < 2) {
+            return;
+        }
+        
+        // Extend the line through the preceding track points, if the new point continues it
+        Polyline last = lines.isEmpty() ? null : lines.get(lines.size() - 1);
+        List<LatLon> path = last == null ? null : last.getOptions().getPath();
+        if(path instanceof RouteGeometry.Path && ((RouteGeometry.Path)path).getTo() == to - 1) {
+            ((RouteGeometry.Path)path).extend(to);
+        }else{
+            appendLine(createTrackLine(to - 2, to));
+        }
+    }
+    
+    /**
+     * Returns the packed coordinates, elevations and times of this route's points
+     * @return  the geometry
+     */
+    @JsonIgnore
+    public RouteGeometry getGeometry() {
+        return observableDelegate.getGeometry();
+    }
+    
+    /**
+     * Returns the distance, elevation and duration totals of this route, 
+     * which follow its changes.
+     * 
+     * @return  the metrics
+     */
+    @JsonIgnore
+    public RouteMetrics getMetrics() {
+        if(metrics == null) {
+            metrics = new RouteMetrics(this);
+        }
+        return metrics;
+    }
+    
+    /**
+     * Returns the simplified paths of this route for each zoom level of the
+     * map, which follow its changes.
+     * 
+     * @return  the simplification
+     */
+    @JsonIgnore
+    public RouteSimplification getSimplification() {
+        if(simplification == null) {
+            simplification = new RouteSimplification(this);
+        }
+        return simplification;
+    }
+    
+    /**
+     * Returns the great circle length of each leg of this route, computed over
+     * its geometry columns (see {@link GeodesyBatch}).
+     * 
+     * @return  the array of lengths in meters, one per point, holding the length
+     *          of the leg ending at each point and 0 for the first
+     */
+    @JsonIgnore
+    public double[] getLegLengths() {
+        RouteGeometry g = getGeometry();
+        double[] lengths = new double[g.size()];
+        GeodesyBatch.legLengths(g.latitudeColumn(), g.longitudeColumn(), 1, g.size(), lengths, true);
+        return lengths;
+    }
+    
+    /**
+     * Returns the initial bearing of each leg of this route, computed over
+     * its geometry columns (see {@link GeodesyBatch}).
+     * 
+     * @return  the array of bearings in degrees clockwise from north, one per point,
+     *          holding the bearing of the leg ending at each point and NaN for the first
+     */
+    @JsonIgnore
+    public double[] getBearings() {
+        RouteGeometry g = getGeometry();
+        double[] bearings = new double[g.size()];
+        if(bearings.length > 0) {
+            bearings[0] = Double.NaN;
+        }
+        GeodesyBatch.bearings(g.latitudeColumn(), g.longitudeColumn(), 1, g.size(), bearings, true);
+        return bearings;
+    }
+    
+    /**
+     * Returns the great circle distance from the specified position to each
+     * point of this route, computed over its geometry columns (see {@link GeodesyBatch}).
+     * 
+     * @param position  the position
+     * @return  the array of distances in meters, one per point
+     */
+    public double[] getDistancesFrom(LatLon position) {
+        RouteGeometry g = getGeometry();
+        double[] distances = new double[g.size()];
+        GeodesyBatch.distances(position.getLatitude(), position.getLongitude(), 
+            g.latitudeColumn(), g.longitudeColumn(), 0, g.size(), distances, true);
+        return distances;
+    }
+    
+    /**
+     * Returns the spatial tree of this route's points and segments, which
+     * follows its changes. The tree is shared by the {@link SpatialIndex}es
+     * of the maps containing this route.
+     * 
+     * @return  the tree
+     */
+    synchronized SpatialIndex.RouteTree getSpatialTree() {
+        if(spatialTree == null) {
+            spatialTree = new SpatialIndex.RouteTree(this);
+        }
+        return spatialTree;
+    }
+    
+    /**
+     * Returns the latitude of the point at the specified index, without
+     * creating its waypoint.
+     * 
+     * @param index     the point's index
+     * @return  the latitude
+     */
+    public double getLatitude(int index) {
+        return getGeometry().getLatitude(index);
+    }
+    
+    /**
+     * Returns the longitude of the point at the specified index, without
+     * creating its waypoint.
+     * 
+     * @param index     the point's index
+     * @return  the longitude
+     */
+    public double getLongitude(int index) {
+        return getGeometry().getLongitude(index);
+    }
+    
+    /**
+     * Returns the elevation of the point at the specified index
+     * 
+     * @param index     the point's index
+     * @return  the elevation in meters or NaN if unknown
+     */
+    public double getElevation(int index) {
+        return getGeometry().getElevation(index);
+    }
+    
+    /**
+     * Sets the elevation of the point at the specified index
+     * 
+     * @param index         the point's index
+     * @param elevation     the elevation in meters or NaN if unknown
+     */
+    public void setElevation(int index, double elevation) {
+        getGeometry().setElevation(index, elevation);
+        dirty = true;
+        if(metrics != null) {
+            metrics.elevationChanged(index);
+        }
+    }
+    
+    /**
+     * Returns the time of the point at the specified index
+     * 
+     * @param index     the point's index
+     * @return  the time in milliseconds since the epoch or {@link RouteGeometry#NO_TIME}
+     */
+    public long getTime(int index) {
+        return getGeometry().getTime(index);
+    }
+    
+    /**
+     * Sets the time of the point at the specified index
+     * 
+     * @param index     the point's index
+     * @param time      the time in milliseconds since the epoch or {@link RouteGeometry#NO_TIME}
+     */
+    public void setTime(int index, long time) {
+        getGeometry().setTime(index, time);
+        dirty = true;
+    }
+    
+    /**
+     * Returns a flag indicating whether the point at the specified index is a
+     * track point, i.e. has neither a marker nor a leg style of its own.
+     * 
+     * @param index     the point's index
+     * @return  true for a track point, false for a marked waypoint
+     */
+    public boolean isTrackPoint(int index) {
+        return observableDelegate.isTrackPoint(index);
+    }
+    
+    /**
+     * Returns the waypoint held for the specified point, without creating one
+     * for a track point.
+     * 
+     * @param index     the point's index
+     * @return  the waypoint or null
+     */
+    Waypoint peekWaypoint(int index) {
+        return observableDelegate.peek(index);
+    }
+    
+    /**
+     * Returns the number of {@link Waypoint} objects this route holds, which
+     * excludes the track points whose waypoints were never requested.
+     * 
+     * @return  the number of waypoint objects
+     */
+    @JsonIgnore
+    public int getWaypointObjectCount() {
+        return observableDelegate.getWaypointCount();
+    }
+    
+    /**
+     * Releases the unused capacity of this route's point storage, once
+     * all points were added.
+     */
+    public void trimToSize() {
+        observableDelegate.trimToSize();
+    }
+    
+    /**
+     * Connects the destination to the preceding {@link Waypoint} with a new
+     * leg line, which is returned. If a style is specified and this route has
+     * no line style yet, it becomes the route's line style; a style differing
+     * from the route's line style is recorded as the destination's leg style.
+     * 
+     * @param style     the style of the new leg or null for the route's line style
+     * @return  the new leg line or null if this route has less than two waypoints
+     */
+    public Polyline addLeg(PolylineOptions style) {
+        int size = observableDelegate.size();
+        if(size < 2) {
+            return null;
+        }
+        
+        Waypoint w = observableDelegate.get(size - 1);
+        if(style != null) {
+            if(lineStyle == null && lines.isEmpty()) {
+                lineStyle = PolylineOptions.copyStyle(style);
+            }else if(!style.styleEquals(getEffectiveLineStyle())) {
+                w.setLegStyle(PolylineOptions.copyStyle(style));
+            }
+            dirty = true;
+        }
+        
+        Polyline line = createLeg(pointLatLon(size - 2), w);
+        w.setConnection(line);
+        appendLine(line);
+        return line;
+    }
+    
+    /**
+     * Returns the coordinates of the specified point, which are only created
+     * for track points without a waypoint.
+     */
+    private LatLon pointLatLon(int index) {
+        Waypoint w = observableDelegate.peek(index);
+        return w != null ? w.getLatLon() : new LatLon(getLatitude(index), getLongitude(index));
+    }
+    
+    /**
+     * Regenerates all leg lines from the ordered {@link Waypoint}s, their leg
+     * styles and this route's line style.
+     */
+    public void rebuildLines() {
+        List<Polyline> lines = new ArrayList<>();
+        trackLines = false;
+        int n = observableDelegate.size();
+        for(int i = 0;i < n;i++) {
+            if(i > 0 && observableDelegate.isTrackPoint(i)) {
+                // One line through this and all directly following track points
+                int to = i + 1;
+                while(to < n && observableDelegate.isTrackPoint(to)) {
+                    to++;
+                }
+                for(int t = i;t < to;t++) {
+                    Waypoint w = observableDelegate.peek(t);
+                    if(w != null) {
+                        w.setConnection(null);
+                    }
+                }
+                lines.add(createTrackLine(i - 1, to));
+                i = to - 1;
+            }else if(i == 0) {
+                Waypoint w = observableDelegate.peek(0);
+                if(w != null) {
+                    w.setConnection(null);
+                }
+            }else{
+                Waypoint w = observableDelegate.get(i);
+                Polyline line = createLeg(pointLatLon(i - 1), w);
+                w.setConnection(line);
+                lines.add(line);
+            }
+        }
+        
+        if(this.lines == null) {
+            this.lines = FXCollections.observableArrayList(); // Not initialized by Gson
+        }
+        for(int i = 0;i < lines.size();i++) {
+            lines.get(i).setIndexHint(i);
+        }
+        this.lines.setAll(lines);
+    }
+    
+    /**
+     * Creates the line of the leg from the specified coordinates to the next waypoint.
+     * 
+     * @param from  the coordinates the leg starts at
+     * @param to    the waypoint the leg ends at, whose leg style applies
+     * @return  the leg line
+     */
+    private Polyline createLeg(LatLon from, Waypoint to) {
+        List<LatLon> path = new ArrayList<>(2);
+        path.add(from);
+        path.add(to.getLatLon());
+        
+        PolylineOptions style = to.getLegStyle() != null ? to.getLegStyle() : getEffectiveLineStyle();
+        return new Polyline(PolylineOptions.copyStyle(style).path(path));
+    }
+    
+    /**
+     * Creates the line through the specified range of points, whose path is
+     * a view of this route's geometry.
+     * 
+     * @param from  the index of the point the line starts at
+     * @param to    the index after the last track point of the line
+     * @return  the line
+     */
+    private Polyline createTrackLine(int from, int to) {
+        trackLines = true;
+        return new Polyline(PolylineOptions.copyStyle(getEffectiveLineStyle()).path(getGeometry().path(from, to)));
+    }
+    
+    /**
+     * Sets the style of this route's leg lines. Takes effect for lines 
+     * created afterwards (see {@link #rebuildLines()}).
+     * 
+     * @param style     the line style (path is ignored) or null for the default style
+     */
+    public void setLineStyle(PolylineOptions style) {
+        this.lineStyle = style == null ? null : PolylineOptions.copyStyle(style);
+        this.dirty = true;
+    }
+    
+    /**
+     * Returns the style of this route's leg lines, or null if the default
+     * line style applies.
+     * 
+     * @return  the line style or null
+     */
+    @JsonInclude(Include.NON_NULL)
+    public PolylineOptions getLineStyle() {
+        return lineStyle;
+    }
+    
+    /**
+     * Returns the line style in effect for legs without a style override
+     * @return  the line style or the default line style
+     */
+    private PolylineOptions getEffectiveLineStyle() {
+        if(lineStyle != null) {
+            return lineStyle;
+        }
+        if(defaultLineStyle == null) {
+            defaultLineStyle = MapPane.getDefaultPolylineOptions();
+        }
+        return defaultLineStyle;
+    }
+    
+    /**
+     * Removes the specified {@link Waypoint} from this list, along with 
+     * its leg line. The following waypoint's leg is reconnected to the
+     * removed waypoint's predecessor. If this route contains track points,
+     * all lines are rebuilt instead.
+     * 
      * @param w
      */
     public void removeWaypoint(Waypoint w) {
-        int loc = observableDelegate.indexOf(w);
-        if(loc > 0) {
-            Polyline p = w.getConnection();
-                  
-            // If removing the last waypoint, make next-to-last, the destination
-            if(loc == observableDelegate.size() - 1) {
-                destination = observableDelegate.get(loc - 1);
-            }else{ // Removing waypoint from middle of route
-                int lineIdx = lines.indexOf(p);
-                Polyline nextLine = lines.get(lineIdx + 1);
-                Waypoint prevWaypoint = observableDelegate.get(loc - 1);
-                nextLine.getOptions().getPath().set(0, prevWaypoint.getLatLon());
-                createUnderlying();
+        int loc = indexOf(w);
+        if(loc == -1) {
+            return;
+        }
+        w = observableDelegate.get(loc);
+        
+        if(trackLines) {
+            observableDelegate.remove(loc);
+            w.setConnection(null);
+            rebuildLines();
+            return;
+        }
+        
+        int last = observableDelegate.size() - 1;
+        if(loc < last) {
+            Waypoint next = observableDelegate.get(loc + 1);
+            Polyline nextLine = next.getConnection();
+            if(loc == 0) { // Removing the origin, its successor has no leg anymore
+                if(nextLine != null) {
+                    removeLine(nextLine);
+                }
+                next.setConnection(null);
+            }else if(nextLine != null) { // Removing waypoint from middle of route
+                nextLine.getOptions().getPath().set(0, pointLatLon(loc - 1));
+                nextLine.createUnderlying();
             }
-            removeLine(p);
         }
-        observableDelegate.remove(w);
+        
+        if(w.getConnection() != null) {
+            removeLine(w.getConnection());
+            w.setConnection(null);
+        }
+        observableDelegate.remove(loc);
     }
     
     /**
@@ -101,6 +700,7 @@ public class Route {
     public void removeAllWaypoints() {
         observableDelegate.clear();
         lines.clear();
+        trackLines = false;
     }
     
     /**
@@ -124,6 +724,9 @@ public class Route {
      */
     public void addWaypoint(int index, Waypoint w) {
         observableDelegate.add(index, w);
+        if(trackLines) {
+            rebuildLines();
+        }
     }
     
     /**
@@ -145,6 +748,25 @@ public class Route {
         observableDelegate.removeListener(l);
     }
     
+    /**
+     * Adds a listener which is notified of the {@link Waypoint}s created for 
+     * track points when they are first requested.
+     * 
+     * @param l     the listener to add
+     */
+    void addCreationListener(Consumer<Waypoint> l) {
+        observableDelegate.addCreationListener(l);
+    }
+    
+    /**
+     * Removes the specified creation listener.
+     * 
+     * @param l     the listener to remove
+     */
+    void removeCreationListener(Consumer<Waypoint> l) {
+        observableDelegate.removeCreationListener(l);
+    }
+    
     /**
      * Replaces the element at the specified index with the 
      * specified {@link Waypoint}.
@@ -154,6 +776,9 @@ public class Route {
      */
     public void setWaypoint(int index, Waypoint w) {
         observableDelegate.set(index, w);
+        if(trackLines) {
+            rebuildLines();
+        }
     }
     
     /**
@@ -163,7 +788,7 @@ public class Route {
      * @return  the starting {@link Waypoint}
      */
     public Waypoint getOrigin() {
-        return origin;
+        return observableDelegate.isEmpty() ? null : observableDelegate.get(0);
     }
     
     /**
@@ -175,7 +800,7 @@ public class Route {
      * @return  the end point {@link Waypoint}
      */
     public Waypoint getDestination() {
-        return destination;
+        return observableDelegate.isEmpty() ? null : observableDelegate.get(observableDelegate.size() - 1);
     }
     
     /**
@@ -188,11 +813,46 @@ public class Route {
     }
     
     /**
-     * Adds a {@link Polyline} to this {@code Route}
+     * Returns the position of the specified {@link Waypoint} in this route.
+     * The waypoint instance is found from the position it was last seen at,
+     * which takes constant time unless many points were inserted or removed
+     * before it since; a waypoint which is only equal to one of this route's
+     * waypoints is searched for by {@link List#indexOf(Object)}.
+     * 
+     * @param w     the waypoint to find
+     * @return  the index of the waypoint or -1 if this route doesn't contain it
+     */
+    public int indexOf(Waypoint w) {
+        int index = observableDelegate.indexOfInstance(w);
+        return index != -1 ? index : observableDelegate.indexOf(w);
+    }
+    
+    /**
+     * Returns the leg line starting at the specified {@link Waypoint}, which
+     * is the connection of the following waypoint. The leg ending at a 
+     * waypoint is its {@link Waypoint#getConnection()}.
+     * 
+     * @param w     the waypoint the leg starts at
+     * @return  the outgoing leg or null if there is none
+     */
+    public Polyline getOutgoingLeg(Waypoint w) {
+        int index = indexOf(w);
+        if(index == -1 || index == observableDelegate.size() - 1) {
+            return null;
+        }
+        Waypoint next = observableDelegate.peek(index + 1);
+        return next == null ? null : next.getConnection();
+    }
+    
+    /**
+     * Adds a {@link Polyline} to this {@code Route}. Lines added directly are
+     * only displayed, not persisted; use {@link #addLeg(PolylineOptions)} to
+     * connect waypoints.
+     * 
      * @param line  the line to add
      */
     public void addLine(Polyline line) {
-        lines.add(line);
+        appendLine(line);
     }
     
     /**
@@ -200,7 +860,37 @@ public class Route {
      * @param line  the line to remove
      */
     public void removeLine(Polyline line) {
-        lines.remove(line);
+        int index = indexOfLine(line);
+        if(index != -1) {
+            lines.remove(index);
+        }
+    }
+    
+    private void appendLine(Polyline line) {
+        line.setIndexHint(lines.size());
+        lines.add(line);
+    }
+    
+    /**
+     * Returns the position of the specified line instance, searching outwards
+     * from the position it was last found at.
+     */
+    private int indexOfLine(Polyline line) {
+        int size = lines.size();
+        int hint = line.getIndexHint();
+        for(int d = 0;hint - d >= 0 || hint + d < size;d++) {
+            int i = hint + d;
+            if(i >= 0 && i < size && lines.get(i) == line) {
+                line.setIndexHint(i);
+                return i;
+            }
+            i = hint - d;
+            if(d > 0 && i >= 0 && i < size && lines.get(i) == line) {
+                line.setIndexHint(i);
+                return i;
+            }
+        }
+        return -1;
     }
     
     /**
@@ -208,10 +898,31 @@ public class Route {
      * between {@link Waypoints}
      * @return  the list of lines
      */
+    @JsonIgnore
     public List<Polyline> getLines() {
         return lines;
     }
     
+    /**
+     * Adds the {@link ListChangeListener} which will be notified 
+     * of changes to this route's lines.
+     * 
+     * @param l     the listener to add
+     */
+    void addLinesListener(ListChangeListener<Polyline> l) {
+        getLines(); // Creates the lines of archived routes
+        lines.addListener(l);
+    }
+    
+    /**
+     * Removes the specified lines listener.
+     * 
+     * @param l     the listener to remove
+     */
+    void removeLinesListener(ListChangeListener<Polyline> l) {
+        lines.removeListener(l);
+    }
+    
     /**
      * Returns the number of {@link Waypoint}s in this {@code Route}
      * @return  the number of Waypoints
@@ -242,12 +953,16 @@ public class Route {
     
     public void interimMarkersVisible(boolean b) {
         this.interimMarkersVisible = b;
+        this.dirty = true;
     }
     
     /**
      * Called prior to serialization to load the serializable data structure.
+     * The list is replaced rather than appended to, so repeated calls don't 
+     * accumulate copies of the waypoints.
      */
     public void preSerialize() {
+        delegate.clear();
         delegate.addAll(observableDelegate);
     }
     
@@ -257,8 +972,11 @@ public class Route {
      * for serialization and then copy the data over, after deserialization.
      */
     public void postDeserialize() throws MalformedJsonException {
-        observableDelegate = FXCollections.observableArrayList(delegate);
+        observableDelegate = new WaypointList();
+        observableDelegate.addAll(delegate);
+        observeWaypoints();
         delegate.clear();
+        rebuildLines();
         
         try {
             createUnderlying();
@@ -270,14 +988,16 @@ public class Route {
     public void createUnderlying() {
         // If deserializing in non-headless mode, build javascript peers
         if(Platform.isFxApplicationThread()) {
-            if(origin == null || origin.getMarker() == null) {
+            if(observableDelegate.isEmpty()) {
                 throw new NullPointerException("Route had malformed origin");
             }
             
-            origin.getMarker().createUnderlying();
-            destination.getMarker().createUnderlying();
-            for(Waypoint wp : observableDelegate) {
-                wp.getMarker().createUnderlying();
+            // Track points have no markers
+            for(int i = 0;i < observableDelegate.size();i++) {
+                Waypoint wp = observableDelegate.peek(i);
+                if(wp != null && wp.hasMarker()) {
+                    wp.getMarker().createUnderlying();
+                }
             }
             
             for(Polyline line : lines) {
@@ -303,24 +1023,49 @@ public class Route {
         return true;
     }
     
+    /**
+     * Compares the specified {@code Route} with this Route using their
+     * ids, line styles and paths, which is what a stored and reloaded
+     * route has to preserve.
+     * 
+     * @param other     the other route to compare
+     * @return  true if both routes have the same id, line style and path
+     */
+    public boolean contentEquals(Route other) {
+        if(other == null)
+            return false;
+        if(id == null) {
+            if(other.id != null)
+                return false;
+        } else if(!id.equals(other.id))
+            return false;
+        if(lineStyle == null) {
+            if(other.lineStyle != null)
+                return false;
+        } else if(!lineStyle.styleEquals(other.lineStyle))
+            return false;
+        return pathEquals(other);
+    }
+    
     @Override
     public String toString() {
         return "Route [name=" + name + ", origin=" + getOrigin() + ", destination=" + getDestination() + 
                 ", interim=" + getInterimWaypoints() + "]";
     }
 
+    /**
+     * Returns the hash code of this route's id, which is computed once
+     * by the id string.
+     */
     @Override
     public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + ((destination == null) ? 0 : destination.hashCode());
-        result = prime * result + ((id == null) ? 0 : id.hashCode());
-        result = prime * result + ((lines == null) ? 0 : lines.hashCode());
-        result = prime * result + ((observableDelegate == null) ? 0 : observableDelegate.hashCode());
-        result = prime * result + ((origin == null) ? 0 : origin.hashCode());
-        return result;
+        return id == null ? System.identityHashCode(this) : id.hashCode();
     }
 
+    /**
+     * Routes are equal if they have the same id. Routes without an id are
+     * only equal to themselves. See {@link #contentEquals(Route)}.
+     */
     @Override
     public boolean equals(Object obj) {
         if(this == obj)
@@ -330,32 +1075,7 @@ public class Route {
         if(getClass() != obj.getClass())
             return false;
         Route other = (Route)obj;
-        if(destination == null) {
-            if(other.destination != null)
-                return false;
-        } else if(!destination.equals(other.destination))
-            return false;
-        if(id == null) {
-            if(other.id != null)
-                return false;
-        } else if(!id.equals(other.id))
-            return false;
-        if(lines == null) {
-            if(other.lines != null)
-                return false;
-        } else if(!lines.equals(other.lines))
-            return false;
-        if(observableDelegate == null) {
-            if(other.observableDelegate != null)
-                return false;
-        } else if(!observableDelegate.equals(other.observableDelegate))
-            return false;
-        if(origin == null) {
-            if(other.origin != null)
-                return false;
-        } else if(!origin.equals(other.origin))
-            return false;
-        return true;
+        return id != null && id.equals(other.id);
     }
 
     
@@ -0,0 +1,372 @@
+package ai.cogmission.fxmaps.model;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * Packed, columnar storage of the points of a {@link Route}: parallel arrays
+ * of latitudes and longitudes and, once any point has one, of elevations and
+ * times.
+ * <p>
+ * A point costs 16 bytes (plus 8 for each of the optional columns) instead of
+ * the {@link Waypoint}, {@link LatLon}, {@link Marker} and {@link MarkerOptions}
+ * objects of a marked waypoint, so long recorded tracks can be held, stored and
+ * scanned without creating any objects per point. The route's {@link Waypoint}
+ * list is a view over its geometry (see {@link Route#getWaypoints()}).
+ * </p><p>
+ * The geometry is modified through its {@link Route}; this class only exposes
+ * read access publicly.
+ * </p>
+ *
+ * @author cogmission
+ * @see Route#getGeometry()
+ */
+public class RouteGeometry {
+    /** Time of points without a recorded time */
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    private static final double[] EMPTY = new double[0];
+
+    private int size;
+    private double[] latitudes = EMPTY;
+    private double[] longitudes = EMPTY;
+    /** Elevations in meters, NaN where unknown; null while no point has one */
+    private double[] elevations;
+    /** Times in milliseconds since the epoch, {@link #NO_TIME} where unknown; null while no point has one */
+    private long[] times;
+
+
+    /**
+     * Returns the number of points
+     * @return  the number of points
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the latitude of the point at the specified index
+     *
+     * @param index     the index of the point
+     * @return  the latitude
+     */
+    public double getLatitude(int index) {
+        return latitudes[checkIndex(index)];
+    }
+
+    /**
+     * Returns the longitude of the point at the specified index
+     *
+     * @param index     the index of the point
+     * @return  the longitude
+     */
+    public double getLongitude(int index) {
+        return longitudes[checkIndex(index)];
+    }
+
+    /**
+     * Returns the elevation of the point at the specified index
+     *
+     * @param index     the index of the point
+     * @return  the elevation in meters or NaN if unknown
+     */
+    public double getElevation(int index) {
+        checkIndex(index);
+        return elevations == null ? Double.NaN : elevations[index];
+    }
+
+    /**
+     * Returns the time of the point at the specified index
+     *
+     * @param index     the index of the point
+     * @return  the time in milliseconds since the epoch or {@link #NO_TIME}
+     */
+    public long getTime(int index) {
+        checkIndex(index);
+        return times == null ? NO_TIME : times[index];
+    }
+
+    /**
+     * Returns a flag indicating whether any point has an elevation
+     * @return  true if the elevation column exists, false if not
+     */
+    public boolean hasElevations() {
+        return elevations != null;
+    }
+
+    /**
+     * Returns a flag indicating whether any point has a time
+     * @return  true if the time column exists, false if not
+     */
+    public boolean hasTimes() {
+        return times != null;
+    }
+
+    /**
+     * Copies the latitudes of the specified range of points into a new array
+     *
+     * @param from  the index of the first point
+     * @param to    the index after the last point
+     * @return  the latitudes
+     */
+    public double[] getLatitudes(int from, int to) {
+        checkRange(from, to);
+        return Arrays.copyOfRange(latitudes, from, to);
+    }
+
+    /**
+     * Copies the longitudes of the specified range of points into a new array
+     *
+     * @param from  the index of the first point
+     * @param to    the index after the last point
+     * @return  the longitudes
+     */
+    public double[] getLongitudes(int from, int to) {
+        checkRange(from, to);
+        return Arrays.copyOfRange(longitudes, from, to);
+    }
+
+    /**
+     * Returns the latitude column itself, whose first {@link #size()} entries
+     * are valid, for calculations over all points without copying them. The
+     * array is replaced as the geometry grows.
+     */
+    double[] latitudeColumn() {
+        return latitudes;
+    }
+
+    /**
+     * Returns the longitude column itself, whose first {@link #size()} entries are valid
+     * @see #latitudeColumn()
+     */
+    double[] longitudeColumn() {
+        return longitudes;
+    }
+
+    /**
+     * Returns a read-only list of the coordinates of the specified range of
+     * points, whose {@link LatLon}s are created as they are requested.
+     *
+     * @param from  the index of the first point
+     * @param to    the index after the last point
+     * @return  the path
+     */
+    public Path path(int from, int to) {
+        checkRange(from, to);
+        return new Path(from, to);
+    }
+
+    /**
+     * Returns the number of bytes held by the columns, including unused capacity
+     * @return  the size of the columns in bytes
+     */
+    public long getColumnBytes() {
+        long bytes = (latitudes.length + longitudes.length) * 8L;
+        bytes += elevations == null ? 0 : elevations.length * 8L;
+        bytes += times == null ? 0 : times.length * 8L;
+        return bytes;
+    }
+
+    void add(double latitude, double longitude, double elevation, long time) {
+        insert(size, latitude, longitude, elevation, time);
+    }
+
+    void insert(int index, double latitude, double longitude, double elevation, long time) {
+        if(index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+
+        if(size == latitudes.length) {
+            grow();
+        }
+        int moved = size - index;
+        if(moved > 0) {
+            System.arraycopy(latitudes, index, latitudes, index + 1, moved);
+            System.arraycopy(longitudes, index, longitudes, index + 1, moved);
+            if(elevations != null) {
+                System.arraycopy(elevations, index, elevations, index + 1, moved);
+            }
+            if(times != null) {
+                System.arraycopy(times, index, times, index + 1, moved);
+            }
+        }
+        size++;
+        latitudes[index] = latitude;
+        longitudes[index] = longitude;
+        if(elevations != null || !Double.isNaN(elevation)) {
+            setElevation(index, elevation);
+        }
+        if(times != null || time != NO_TIME) {
+            setTime(index, time);
+        }
+    }
+
+    void set(int index, double latitude, double longitude) {
+        latitudes[checkIndex(index)] = latitude;
+        longitudes[index] = longitude;
+    }
+
+    void setElevation(int index, double elevation) {
+        checkIndex(index);
+        if(elevations == null) {
+            if(Double.isNaN(elevation)) {
+                return;
+            }
+            elevations = new double[latitudes.length];
+            Arrays.fill(elevations, Double.NaN);
+        }
+        elevations[index] = elevation;
+    }
+
+    void setTime(int index, long time) {
+        checkIndex(index);
+        if(times == null) {
+            if(time == NO_TIME) {
+                return;
+            }
+            times = new long[latitudes.length];
+            Arrays.fill(times, NO_TIME);
+        }
+        times[index] = time;
+    }
+
+    void remove(int from, int to) {
+        checkRange(from, to);
+        int moved = size - to;
+        System.arraycopy(latitudes, to, latitudes, from, moved);
+        System.arraycopy(longitudes, to, longitudes, from, moved);
+        if(elevations != null) {
+            System.arraycopy(elevations, to, elevations, from, moved);
+            Arrays.fill(elevations, size - (to - from), size, Double.NaN);
+        }
+        if(times != null) {
+            System.arraycopy(times, to, times, from, moved);
+            Arrays.fill(times, size - (to - from), size, NO_TIME);
+        }
+        size -= to - from;
+    }
+
+    void clear() {
+        size = 0;
+        latitudes = longitudes = EMPTY;
+        elevations = null;
+        times = null;
+    }
+
+    /**
+     * Returns a copy of the specified range of points
+     */
+    RouteGeometry copy(int from, int to) {
+        checkRange(from, to);
+        RouteGeometry copy = new RouteGeometry();
+        copy.size = to - from;
+        copy.latitudes = Arrays.copyOfRange(latitudes, from, to);
+        copy.longitudes = Arrays.copyOfRange(longitudes, from, to);
+        copy.elevations = elevations == null ? null : Arrays.copyOfRange(elevations, from, to);
+        copy.times = times == null ? null : Arrays.copyOfRange(times, from, to);
+        return copy;
+    }
+
+    /**
+     * Sets the capacity of the columns, which must hold at least {@link #size()} points
+     */
+    void ensureCapacity(int capacity) {
+        if(capacity > latitudes.length) {
+            resize(capacity);
+        }
+    }
+
+    /**
+     * Releases the unused capacity of the columns
+     */
+    void trimToSize() {
+        if(size < latitudes.length) {
+            resize(size);
+        }
+    }
+
+    private void grow() {
+        resize(Math.max(8, latitudes.length + (latitudes.length >> 1)));
+    }
+
+    private void resize(int capacity) {
+        latitudes = Arrays.copyOf(latitudes, capacity);
+        longitudes = Arrays.copyOf(longitudes, capacity);
+        if(elevations != null) {
+            int length = elevations.length;
+            elevations = Arrays.copyOf(elevations, capacity);
+            if(capacity > length) {
+                Arrays.fill(elevations, length, capacity, Double.NaN);
+            }
+        }
+        if(times != null) {
+            int length = times.length;
+            times = Arrays.copyOf(times, capacity);
+            if(capacity > length) {
+                Arrays.fill(times, length, capacity, NO_TIME);
+            }
+        }
+    }
+
+    private int checkIndex(int index) {
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return index;
+    }
+
+    private void checkRange(int from, int to) {
+        if(from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("Range: " + from + " to " + to + ", Size: " + size);
+        }
+    }
+
+    /**
+     * Read-only list of the coordinates of a range of points, used as the path
+     * of the line through consecutive track points (see {@link Route#rebuildLines()}).
+     * The range is extended as points are appended to the route.
+     */
+    public class Path extends AbstractList<LatLon> {
+        private int from;
+        private int to;
+
+        private Path(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public LatLon get(int index) {
+            if(index < 0 || index >= to - from) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (to - from));
+            }
+            return new LatLon(latitudes[from + index], longitudes[from + index]);
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        /**
+         * Returns the index of the path's first point within the geometry
+         * @return  the index of the first point
+         */
+        public int getFrom() {
+            return from;
+        }
+
+        /**
+         * Returns the index after the path's last point within the geometry
+         * @return  the index after the last point
+         */
+        public int getTo() {
+            return to;
+        }
+
+        void extend(int to) {
+            checkRange(from, to);
+            this.to = to;
+        }
+    }
+}
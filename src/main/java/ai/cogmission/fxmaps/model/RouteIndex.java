@@ -0,0 +1,161 @@
+package ai.cogmission.fxmaps.model;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import javafx.collections.ListChangeListener;
+
+/**
+ * Identity based reverse indexes of the {@link Route}s of a {@link PersistentMap}:
+ * from each {@link Waypoint} and each {@link Polyline} to the route containing it.
+ * Leg lines reference the waypoint they end at themselves.
+ * <p>
+ * The indexes are kept up to date by listening to the waypoints and the lines
+ * of each indexed route, including the waypoints a route only creates for track
+ * points when they are requested (see {@link Route#addPoint(double, double)}),
+ * and by {@link PersistentMap#addRoute(Route)} and {@link PersistentMap#removeRoute(Route)}.
+ * Every waypoint of an indexed route is therefore indexed, and neither a lookup
+ * nor removing a route scans any other route.
+ * </p>
+ *
+ * @author cogmission
+ * @see PersistentMap#getRouteForWaypoint(Waypoint)
+ */
+class RouteIndex {
+    private Map<Waypoint, Route> waypointRoutes = new IdentityHashMap<>();
+    private Map<Polyline, Route> lineRoutes = new IdentityHashMap<>();
+    private Map<Route, Listeners> listeners = new IdentityHashMap<>();
+
+
+    /**
+     * Constructs a new {@code RouteIndex} of the specified routes
+     * @param routes    the routes to index
+     */
+    RouteIndex(List<Route> routes) {
+        for(Route r : routes) {
+            add(r);
+        }
+    }
+
+    /**
+     * Indexes the specified route and starts following its changes
+     * @param r     the route to add
+     */
+    void add(Route r) {
+        if(listeners.containsKey(r)) {
+            return;
+        }
+
+        Listeners l = new Listeners(r);
+        listeners.put(r, l);
+        r.addListener(l.waypoints);
+        r.addLinesListener(l.lines);
+        r.addCreationListener(l.created);
+
+        for(int i = 0;i < r.size();i++) {
+            Waypoint w = r.peekWaypoint(i);
+            if(w != null) {
+                waypointRoutes.put(w, r);
+            }
+        }
+        for(Polyline line : r.getLines()) {
+            lineRoutes.put(line, r);
+        }
+    }
+
+    /**
+     * Removes the specified route and stops following its changes
+     * @param r     the route to remove
+     */
+    void remove(Route r) {
+        Listeners l = listeners.remove(r);
+        if(l == null) {
+            return;
+        }
+
+        r.removeListener(l.waypoints);
+        r.removeLinesListener(l.lines);
+        r.removeCreationListener(l.created);
+        for(int i = 0;i < r.size();i++) {
+            Waypoint w = r.peekWaypoint(i);
+            if(w != null) {
+                waypointRoutes.remove(w, r);
+            }
+        }
+        for(Polyline line : r.getLines()) {
+            lineRoutes.remove(line, r);
+        }
+    }
+
+    /**
+     * Stops following the changes of all routes
+     */
+    void clear() {
+        for(Route r : listeners.keySet().toArray(new Route[listeners.size()])) {
+            remove(r);
+        }
+    }
+
+    Route getRoute(Waypoint w) {
+        return waypointRoutes.get(w);
+    }
+
+    Route getRoute(Polyline line) {
+        return lineRoutes.get(line);
+    }
+
+    Waypoint getWaypoint(Polyline line) {
+        return lineRoutes.containsKey(line) ? line.getWaypoint() : null;
+    }
+
+    private void waypointsChanged(Route r, ListChangeListener.Change<? extends Waypoint> c) {
+        while(c.next()) {
+            if(c.wasRemoved()) {
+                List<? extends Waypoint> removed = c.getRemoved();
+                for(int i = 0;i < removed.size();i++) {
+                    // Removed ranges are reported as waypoint lists, whose track points have no waypoint
+                    Waypoint w = removed instanceof WaypointList ? ((WaypointList)removed).peek(i) : removed.get(i);
+                    if(w != null) {
+                        waypointRoutes.remove(w, r);
+                    }
+                }
+            }
+            if(c.wasAdded()) {
+                for(int i = c.getFrom();i < c.getTo();i++) {
+                    Waypoint w = r.peekWaypoint(i);
+                    if(w != null) {
+                        waypointRoutes.put(w, r);
+                    }
+                }
+            }
+        }
+    }
+
+    private void linesChanged(Route r, ListChangeListener.Change<? extends Polyline> c) {
+        while(c.next()) {
+            for(Polyline line : c.getRemoved()) {
+                lineRoutes.remove(line, r);
+            }
+            for(Polyline line : c.getAddedSubList()) {
+                lineRoutes.put(line, r);
+            }
+        }
+    }
+
+    /**
+     * The listeners registered with an indexed route
+     */
+    private class Listeners {
+        private ListChangeListener<Waypoint> waypoints;
+        private ListChangeListener<Polyline> lines;
+        private Consumer<Waypoint> created;
+
+        private Listeners(Route r) {
+            waypoints = c -> waypointsChanged(r, c);
+            lines = c -> linesChanged(r, c);
+            created = w -> waypointRoutes.put(w, r);
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package ai.cogmission.fxmaps.model;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javafx.collections.ListChangeListener;
+
+/**
+ * Distance, elevation and duration totals of a {@link Route}, which are kept
+ * up to date as the route changes.
+ * <p>
+ * The length and the elevation change of the segment ending at each point are
+ * held in columns, and their prefix sums in Fenwick trees, so the distance along
+ * the route to any point takes O(log n). Appending points and replacing points
+ * or elevations update the totals in O(1) and the prefix sums in O(log n).
+ * Inserting or removing points elsewhere, which shifts the route's geometry
+ * columns, has the metrics computed again when they are next requested.
+ * </p><p>
+ * The distance sums also find the position at a distance along the route
+ * ({@link #getPosition(double)}), and with the route's spatial tree the
+ * distance along the route of any position ({@link #getProgress(LatLon)}).
+ * </p><p>
+ * Distances are great circle distances in meters (see {@link Geodesy}). Segments
+ * with an unknown elevation at either end add neither gain nor loss.
+ * </p>
+ *
+ * @author cogmission
+ * @see Route#getMetrics()
+ */
+public class RouteMetrics {
+    private static final double[] EMPTY = new double[0];
+
+    private final Route route;
+
+    /** The length of the segment ending at each point, 0 for the first */
+    private double[] lengths = EMPTY;
+    /** The elevation change of the segment ending at each point, 0 if unknown */
+    private double[] climbs = EMPTY;
+    private Sums lengthSums = new Sums();
+    private Sums gainSums = new Sums();
+    private Sums lossSums = new Sums();
+    private int size;
+
+    private double distance;
+    private double gain;
+    private double loss;
+
+    /** Set when the columns have to be computed again */
+    private boolean stale = true;
+
+
+    /**
+     * Constructs a new {@code RouteMetrics} following the changes of the specified route
+     * @param route     the route
+     */
+    RouteMetrics(Route route) {
+        this.route = route;
+        route.addListener((ListChangeListener<Waypoint>)this::changed);
+    }
+
+    /**
+     * Returns the length of the route
+     * @return  the distance in meters
+     */
+    public double getDistance() {
+        validate();
+        return distance;
+    }
+
+    /**
+     * Returns the distance along the route from its origin to the specified point
+     *
+     * @param index     the index of the point
+     * @return  the distance in meters
+     */
+    public double getDistance(int index) {
+        validate();
+        checkIndex(index);
+        return lengthSums.prefix(index + 1);
+    }
+
+    /**
+     * Returns the distance along the route between the specified points
+     *
+     * @param from  the index of the first point
+     * @param to    the index of the second point, not before the first
+     * @return  the distance in meters
+     */
+    public double getDistance(int from, int to) {
+        return getDistance(to) - getDistance(from);
+    }
+
+    /**
+     * Returns the distance along the route from its origin to each point
+     * @return  the array of distances in meters, one per point
+     */
+    public double[] getCumulativeDistances() {
+        validate();
+        double[] distances = new double[size];
+        for(int i = 1;i < size;i++) {
+            distances[i] = distances[i - 1] + lengths[i];
+        }
+        return distances;
+    }
+
+    /**
+     * Returns the position at the specified distance along the route, which
+     * is interpolated between the points before and after it. The segment is
+     * found by a binary search of the distance sums in O(log n).
+     *
+     * @param distance  the distance from the origin in meters, which is
+     *                  limited to the length of the route
+     * @return  the position or null if the route has no points
+     */
+    public LatLon getPosition(double distance) {
+        validate();
+        if(size == 0) {
+            return null;
+        }
+
+        int index = lengthSums.countAtMost(Math.max(0, distance)) - 1;
+        if(index >= size - 1) {
+            return new LatLon(route.getLatitude(size - 1), route.getLongitude(size - 1));
+        }
+        double t = (distance - lengthSums.prefix(index + 1)) / lengths[index + 1];
+        t = Math.max(0, Math.min(1, t));
+        double lat = route.getLatitude(index), lon = route.getLongitude(index);
+        return new LatLon(lat + t * (route.getLatitude(index + 1) - lat), lon + t * (route.getLongitude(index + 1) - lon));
+    }
+
+    /**
+     * Returns how far along the route the point of the route closest to the
+     * specified position is. The closest segment is found through the route's
+     * spatial tree (see {@link SpatialIndex}).
+     *
+     * @param position  the position, e.g. a GPS fix
+     * @return  the distance from the origin in meters, or NaN if the route has no points
+     */
+    public double getProgress(LatLon position) {
+        validate();
+        if(size < 2) {
+            return size == 0 ? Double.NaN : 0;
+        }
+
+        List<SpatialIndex.Hit> hits = SpatialIndex.findNearest(Collections.singletonList(route), true, position, 1, Double.POSITIVE_INFINITY);
+        int index = hits.get(0).getIndex();
+        double t = Geodesy.segmentFraction(position.getLatitude(), position.getLongitude(), route.getLatitude(index - 1),
+            route.getLongitude(index - 1), route.getLatitude(index), route.getLongitude(index));
+        return lengthSums.prefix(index) + t * lengths[index];
+    }
+
+    /**
+     * Returns the total ascent along the route
+     * @return  the elevation gain in meters
+     */
+    public double getElevationGain() {
+        validate();
+        return gain;
+    }
+
+    /**
+     * Returns the total descent along the route
+     * @return  the elevation loss in meters, as a positive number
+     */
+    public double getElevationLoss() {
+        validate();
+        return loss;
+    }
+
+    /**
+     * Returns the ascent along the route between the specified points
+     *
+     * @param from  the index of the first point
+     * @param to    the index of the second point, not before the first
+     * @return  the elevation gain in meters
+     */
+    public double getElevationGain(int from, int to) {
+        validate();
+        checkIndex(from);
+        checkIndex(to);
+        return gainSums.prefix(to + 1) - gainSums.prefix(from + 1);
+    }
+
+    /**
+     * Returns the descent along the route between the specified points
+     *
+     * @param from  the index of the first point
+     * @param to    the index of the second point, not before the first
+     * @return  the elevation loss in meters, as a positive number
+     */
+    public double getElevationLoss(int from, int to) {
+        validate();
+        checkIndex(from);
+        checkIndex(to);
+        return lossSums.prefix(to + 1) - lossSums.prefix(from + 1);
+    }
+
+    /**
+     * Returns the time elapsed between the first and the last point with a
+     * time. Points are expected to have times from the start of a recording
+     * on, so this takes constant time.
+     *
+     * @return  the duration in milliseconds, 0 if less than two points have a time
+     */
+    public long getElapsedTime() {
+        int first = 0, last = route.size() - 1;
+        while(first < last && route.getTime(first) == RouteGeometry.NO_TIME) {
+            first++;
+        }
+        while(last > first && route.getTime(last) == RouteGeometry.NO_TIME) {
+            last--;
+        }
+        return first < last ? route.getTime(last) - route.getTime(first) : 0;
+    }
+
+    /**
+     * Updates the segments at and after the specified point, whose elevation changed
+     * @param index     the index of the point
+     */
+    void elevationChanged(int index) {
+        if(stale) {
+            return;
+        }
+        updateSegment(index);
+        if(index + 1 < size) {
+            updateSegment(index + 1);
+        }
+    }
+
+    private void changed(ListChangeListener.Change<? extends Waypoint> c) {
+        while(!stale && c.next()) {
+            if(c.wasReplaced() && c.getAddedSize() == c.getRemovedSize()) {
+                // Points replaced in place change their segments and the following ones
+                for(int i = c.getFrom();i <= c.getTo() && i < size;i++) {
+                    updateSegment(i);
+                }
+            }else if(!c.wasRemoved() && c.getFrom() == size) {
+                for(int i = c.getFrom();i < c.getTo();i++) {
+                    append(i);
+                }
+            }else{
+                stale = true;
+            }
+        }
+    }
+
+    /**
+     * Computes the columns and sums of all points if they are stale
+     */
+    private void validate() {
+        if(!stale) {
+            return;
+        }
+
+        size = route.size();
+        lengths = new double[size];
+        climbs = new double[size];
+        double[] gains = new double[size];
+        double[] losses = new double[size];
+        distance = gain = loss = 0;
+        RouteGeometry g = route.getGeometry();
+        GeodesyBatch.legLengths(g.latitudeColumn(), g.longitudeColumn(), 1, size, lengths, true);
+        for(int i = 1;i < size;i++) {
+            climbs[i] = climb(i);
+            gains[i] = Math.max(0, climbs[i]);
+            losses[i] = Math.max(0, -climbs[i]);
+            distance += lengths[i];
+            gain += gains[i];
+            loss += losses[i];
+        }
+        lengthSums.build(lengths, size);
+        gainSums.build(gains, size);
+        lossSums.build(losses, size);
+        stale = false;
+    }
+
+    private void append(int index) {
+        if(index == lengths.length) {
+            int capacity = Math.max(16, lengths.length + (lengths.length >> 1));
+            lengths = Arrays.copyOf(lengths, capacity);
+            climbs = Arrays.copyOf(climbs, capacity);
+        }
+
+        size++;
+        double length = index == 0 ? 0 : length(index);
+        double climb = index == 0 ? 0 : climb(index);
+        lengths[index] = length;
+        climbs[index] = climb;
+        lengthSums.append(length);
+        gainSums.append(Math.max(0, climb));
+        lossSums.append(Math.max(0, -climb));
+        distance += length;
+        gain += Math.max(0, climb);
+        loss += Math.max(0, -climb);
+    }
+
+    /**
+     * Computes the segment ending at the specified point again and applies
+     * its difference to the sums and totals.
+     */
+    private void updateSegment(int index) {
+        double length = index == 0 ? 0 : length(index);
+        double climb = index == 0 ? 0 : climb(index);
+        double dLength = length - lengths[index];
+        double dGain = Math.max(0, climb) - Math.max(0, climbs[index]);
+        double dLoss = Math.max(0, -climb) - Math.max(0, -climbs[index]);
+        lengths[index] = length;
+        climbs[index] = climb;
+        lengthSums.add(index, dLength);
+        gainSums.add(index, dGain);
+        lossSums.add(index, dLoss);
+        distance += dLength;
+        gain += dGain;
+        loss += dLoss;
+    }
+
+    private double length(int index) {
+        return Geodesy.distance(route.getLatitude(index - 1), route.getLongitude(index - 1),
+            route.getLatitude(index), route.getLongitude(index));
+    }
+
+    private double climb(int index) {
+        double climb = route.getElevation(index) - route.getElevation(index - 1);
+        return Double.isNaN(climb) ? 0 : climb;
+    }
+
+    private void checkIndex(int index) {
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    /**
+     * Fenwick tree of the prefix sums of a column
+     */
+    private static class Sums {
+        /** The tree, 1-based */
+        private double[] tree = new double[1];
+        private int size;
+
+        /**
+         * Builds the tree over the first n values in linear time
+         */
+        private void build(double[] values, int n) {
+            tree = new double[n + 1];
+            System.arraycopy(values, 0, tree, 1, n);
+            for(int i = 1;i <= n;i++) {
+                int parent = i + (i & -i);
+                if(parent <= n) {
+                    tree[parent] += tree[i];
+                }
+            }
+            size = n;
+        }
+
+        /**
+         * Appends a value, whose node covers the preceding values of its range
+         */
+        private void append(double value) {
+            if(size + 1 == tree.length) {
+                tree = Arrays.copyOf(tree, Math.max(16, tree.length + (tree.length >> 1)));
+            }
+            int i = ++size;
+            tree[i] = value + prefix(i - 1) - prefix(i - (i & -i));
+        }
+
+        private void add(int index, double delta) {
+            for(int i = index + 1;i <= size;i += i & -i) {
+                tree[i] += delta;
+            }
+        }
+
+        /**
+         * Returns the largest number of leading values whose sum is at most
+         * the specified sum, by descending the tree. The values must not be negative.
+         */
+        private int countAtMost(double sum) {
+            int count = 0;
+            for(int step = Integer.highestOneBit(Math.max(1, size));step > 0;step >>= 1) {
+                if(count + step <= size && tree[count + step] <= sum) {
+                    count += step;
+                    sum -= tree[count];
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Returns the sum of the specified number of leading values
+         */
+        private double prefix(int count) {
+            double sum = 0;
+            for(int i = count;i > 0;i -= i & -i) {
+                sum += tree[i];
+            }
+            return sum;
+        }
+    }
+}
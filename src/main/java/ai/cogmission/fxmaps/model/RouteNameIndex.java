@@ -0,0 +1,115 @@
+package ai.cogmission.fxmaps.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Index of the {@link Route}s of a {@link PersistentMap} by name: a hash map
+ * for exact lookups and a sorted map sharing the same entries for prefix
+ * lookups. Routes with the same name are kept in the order of the map's
+ * route list, so the first one is the one a scan of the list would find.
+ * Routes are also indexed by their id, which is unique.
+ *
+ * @author cogmission
+ * @see PersistentMap#getRoute(String)
+ */
+class RouteNameIndex {
+    private Map<String, List<Route>> routes = new HashMap<>();
+    private TreeMap<String, List<Route>> sortedRoutes = new TreeMap<>();
+    private Map<String, Route> ids = new HashMap<>();
+
+
+    /**
+     * Constructs a new {@code RouteNameIndex} of the specified routes
+     * @param routes    the routes to index
+     */
+    RouteNameIndex(List<Route> routes) {
+        for(Route r : routes) {
+            add(r);
+        }
+    }
+
+    /**
+     * Adds the specified route, which follows all indexed routes
+     * @param r     the route to add
+     */
+    void add(Route r) {
+        ids.put(r.getId(), r);
+        if(r.getName() == null) {
+            return;
+        }
+
+        List<Route> named = routes.get(r.getName());
+        if(named == null) {
+            named = new ArrayList<>(1);
+            routes.put(r.getName(), named);
+            sortedRoutes.put(r.getName(), named);
+        }
+        named.add(r);
+    }
+
+    /**
+     * Removes the specified route instance
+     * @param r     the route to remove
+     */
+    void remove(Route r) {
+        ids.remove(r.getId(), r);
+        List<Route> named = r.getName() == null ? null : routes.get(r.getName());
+        if(named == null) {
+            return;
+        }
+
+        for(int i = 0;i < named.size();i++) {
+            if(named.get(i) == r) {
+                named.remove(i);
+                break;
+            }
+        }
+        if(named.isEmpty()) {
+            routes.remove(r.getName());
+            sortedRoutes.remove(r.getName());
+        }
+    }
+
+    /**
+     * Returns the first route with the specified name
+     *
+     * @param name  the name
+     * @return  the route or null if none has the name
+     */
+    Route get(String name) {
+        List<Route> named = routes.get(name);
+        return named == null ? null : named.get(0);
+    }
+
+    /**
+     * Returns the route with the specified id
+     *
+     * @param id    the id
+     * @return  the route or null if none has the id
+     */
+    Route getById(String id) {
+        return ids.get(id);
+    }
+
+    /**
+     * Returns the routes whose names start with the specified prefix, in
+     * the order of their names.
+     *
+     * @param prefix    the prefix
+     * @return  the list of matching routes
+     */
+    List<Route> getByPrefix(String prefix) {
+        List<Route> matches = new ArrayList<>();
+        for(Map.Entry<String, List<Route>> e : sortedRoutes.tailMap(prefix, true).entrySet()) {
+            if(!e.getKey().startsWith(prefix)) {
+                break;
+            }
+            matches.addAll(e.getValue());
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,235 @@
+package ai.cogmission.fxmaps.model;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import javafx.collections.ListChangeListener;
+
+/**
+ * Simplified versions of the path of a {@link Route} for each zoom level of
+ * the map, so long tracks are drawn with about as many points as can be told
+ * apart on the screen, whatever their length.
+ * <p>
+ * The points are ranked once by the Douglas-Peucker algorithm in Web Mercator
+ * pixel coordinates at zoom level 0: each point's importance is its distance
+ * from the line which the simplification replaces it by, limited by the
+ * importance of the point which split its range. The points of a zoom level are
+ * those more important than {@link #TOLERANCE} pixels at that level, so each
+ * level holds the points of the levels below it, and is the Douglas-Peucker
+ * simplification of the route for that tolerance. Levels are computed from the
+ * importances when first requested and cached.
+ * </p><p>
+ * Any change to the route's points discards the importances and levels; they
+ * are computed again when next requested.
+ * </p>
+ *
+ * @author cogmission
+ * @see Route#getSimplification()
+ */
+public class RouteSimplification {
+    /** Highest zoom level with a level of its own; higher zoom levels use it */
+    public static final int MAX_ZOOM = 22;
+    /** Distance in pixels within which points are left out of a level */
+    public static final double TOLERANCE = 1;
+
+    /** Size in pixels of the map tile covering the whole earth at zoom level 0 */
+    private static final int TILE_SIZE = 256;
+    /** Latitude limit of the Web Mercator projection */
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    private final Route route;
+
+    /** Importance of each point in pixels at zoom level 0, null while stale */
+    private double[] importance;
+    /** Ascending indexes of the points of each zoom level, null until requested */
+    private int[][] levels = new int[MAX_ZOOM + 1][];
+
+
+    /**
+     * Constructs a new {@code RouteSimplification} following the changes of the specified route
+     * @param route     the route
+     */
+    RouteSimplification(Route route) {
+        this.route = route;
+        route.addListener((ListChangeListener<Waypoint>)c -> invalidate());
+    }
+
+    /**
+     * Returns the number of points of the route's simplification at the specified zoom level
+     *
+     * @param zoom  the zoom level
+     * @return  the number of points
+     */
+    public int getPointCount(int zoom) {
+        return getLevel(zoom).length;
+    }
+
+    /**
+     * Returns the path of the route's simplification at the specified zoom level
+     *
+     * @param zoom  the zoom level
+     * @return  the read-only path, whose {@link LatLon}s are created as they are requested
+     */
+    public List<LatLon> getPath(int zoom) {
+        return new LevelPath(getLevel(zoom));
+    }
+
+    /**
+     * Returns the path of the simplification at the specified zoom level of
+     * the specified range of the route's points, e.g. of the points of one of
+     * its lines. The first and last point of the range are always kept.
+     *
+     * @param from  the index of the first point
+     * @param to    the index after the last point
+     * @param zoom  the zoom level
+     * @return  the read-only path, whose {@link LatLon}s are created as they are requested
+     */
+    public List<LatLon> getPath(int from, int to, int zoom) {
+        if(from < 0 || to > route.size() || from > to) {
+            throw new IndexOutOfBoundsException("From: " + from + ", To: " + to + ", Size: " + route.size());
+        }
+        if(to - from < 3) {
+            int[] indexes = new int[to - from];
+            Arrays.setAll(indexes, i -> from + i);
+            return new LevelPath(indexes);
+        }
+
+        int[] level = getLevel(zoom);
+        int start = insertionPoint(level, from + 1), end = insertionPoint(level, to - 1);
+        int[] indexes = new int[end - start + 2];
+        indexes[0] = from;
+        System.arraycopy(level, start, indexes, 1, end - start);
+        indexes[indexes.length - 1] = to - 1;
+        return new LevelPath(indexes);
+    }
+
+    private void invalidate() {
+        importance = null;
+        Arrays.fill(levels, null);
+    }
+
+    /**
+     * Returns the indexes of the points of the specified zoom level, computing them if needed
+     */
+    private int[] getLevel(int zoom) {
+        zoom = Math.max(0, Math.min(MAX_ZOOM, zoom));
+        if(levels[zoom] == null) {
+            if(importance == null) {
+                importance = rank();
+            }
+            double tolerance = TOLERANCE / (1L << zoom);
+            int count = 0;
+            for(double d : importance) {
+                if(d > tolerance) {
+                    count++;
+                }
+            }
+            int[] level = new int[count];
+            for(int i = 0, k = 0;k < count;i++) {
+                if(importance[i] > tolerance) {
+                    level[k++] = i;
+                }
+            }
+            levels[zoom] = level;
+        }
+        return levels[zoom];
+    }
+
+    /**
+     * Computes the importance of each point by the Douglas-Peucker algorithm,
+     * splitting ranges off an explicit stack so that long routes cannot
+     * overflow the call stack.
+     */
+    private double[] rank() {
+        int n = route.size();
+        double[] x = new double[n], y = new double[n];
+        for(int i = 0;i < n;i++) {
+            x[i] = (route.getLongitude(i) + 180) / 360 * TILE_SIZE;
+            double sin = Math.sin(Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, route.getLatitude(i)))));
+            y[i] = (0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI)) * TILE_SIZE;
+        }
+
+        double[] importance = new double[n];
+        if(n == 0) {
+            return importance;
+        }
+        importance[0] = importance[n - 1] = Double.POSITIVE_INFINITY;
+
+        // Ranges between kept points, with the importance of the point that split them off
+        int[] first = new int[64], last = new int[64];
+        double[] limit = new double[64];
+        int top = 0;
+        first[0] = 0;
+        last[0] = n - 1;
+        limit[0] = Double.POSITIVE_INFINITY;
+        while(top >= 0) {
+            int a = first[top], b = last[top];
+            double cap = limit[top--];
+            if(b - a < 2) {
+                continue;
+            }
+
+            int farthest = -1;
+            double max = -1;
+            double dx = x[b] - x[a], dy = y[b] - y[a];
+            double lengthSq = dx * dx + dy * dy;
+            for(int i = a + 1;i < b;i++) {
+                double px = x[i] - x[a], py = y[i] - y[a];
+                double t = lengthSq == 0 ? 0 : Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSq));
+                double ex = px - t * dx, ey = py - t * dy;
+                double d = ex * ex + ey * ey;
+                if(d > max) {
+                    max = d;
+                    farthest = i;
+                }
+            }
+
+            double d = Math.min(cap, Math.sqrt(max));
+            importance[farthest] = d;
+            if(top + 2 >= first.length) {
+                first = Arrays.copyOf(first, first.length * 2);
+                last = Arrays.copyOf(last, last.length * 2);
+                limit = Arrays.copyOf(limit, limit.length * 2);
+            }
+            first[++top] = a;
+            last[top] = farthest;
+            limit[top] = d;
+            first[++top] = farthest;
+            last[top] = b;
+            limit[top] = d;
+        }
+        return importance;
+    }
+
+    /**
+     * Returns the index of the first entry of the ascending array which is not
+     * less than the specified value
+     */
+    private static int insertionPoint(int[] values, int value) {
+        int i = Arrays.binarySearch(values, value);
+        return i < 0 ? -i - 1 : i;
+    }
+
+    /**
+     * Read-only view of the route's points at the specified indexes
+     */
+    private class LevelPath extends AbstractList<LatLon> {
+        private final int[] indexes;
+
+        private LevelPath(int[] indexes) {
+            this.indexes = indexes;
+        }
+
+        @Override
+        public LatLon get(int index) {
+            int i = indexes[index];
+            return new LatLon(route.getLatitude(i), route.getLongitude(i));
+        }
+
+        @Override
+        public int size() {
+            return indexes.length;
+        }
+    }
+}
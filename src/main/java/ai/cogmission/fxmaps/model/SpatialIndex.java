@@ -0,0 +1,543 @@
+package ai.cogmission.fxmaps.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+import javafx.collections.ListChangeListener;
+
+/**
+ * Spatial index of the points and leg segments of the {@link Route}s of a
+ * {@link PersistentMap}, answering box, radius and k-nearest queries.
+ * <p>
+ * Each route has its own {@link StrTree}, whose entry {@code i} is the box of
+ * point {@code i} and of the segment from point {@code i - 1} to it. The route
+ * holds its tree, so the tree is shared by the indexes of all maps containing
+ * the route and by the route's own queries (see {@link RouteMetrics#getProgress(LatLon)}). Queries
+ * test the entries found against the route's current coordinates, so the trees
+ * may be stale as long as they still cover them:
+ * </p>
+ * <ul>
+ * <li>points appended to a route (e.g. while recording a track) are kept in an
+ * unindexed tail, which queries scan,</li>
+ * <li>a point replaced in place enlarges the boxes of its two entries,</li>
+ * <li>inserting or removing points moves the following entries to the tail.</li>
+ * </ul>
+ * A route's tree is rebuilt on the next query once its tail or enlarged entries
+ * exceed an eighth of its points. {@link #build()} builds all trees up front, in
+ * parallel for large maps, as done for imported GPX maps.
+ * <p>
+ * Coordinates are treated as a plane: segments and boxes crossing the 180th
+ * meridian are not supported. Distances are in meters (see {@link Geodesy}).
+ * The routes are searched one after another; maps hold few routes with many
+ * points each.
+ * </p>
+ *
+ * @author cogmission
+ * @see PersistentMap#getSpatialIndex()
+ */
+public class SpatialIndex {
+    /** Number of points a route's tail can always hold before its tree is rebuilt */
+    private static final int MIN_TAIL = 64;
+    /** Number of points of all routes above which {@link #build()} runs in parallel */
+    static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    private List<Route> routes = new ArrayList<>();
+    private Set<Route> indexed = Collections.newSetFromMap(new IdentityHashMap<>());
+
+
+    /**
+     * Constructs a new {@code SpatialIndex} of the specified routes. The
+     * routes' trees are built on the first query or by {@link #build()}.
+     *
+     * @param routes    the routes to index
+     */
+    SpatialIndex(List<Route> routes) {
+        for(Route r : routes) {
+            add(r);
+        }
+    }
+
+    /**
+     * Adds the specified route to the index
+     * @param r     the route to add
+     */
+    void add(Route r) {
+        if(indexed.add(r)) {
+            routes.add(r);
+        }
+    }
+
+    /**
+     * Removes the specified route from the index
+     * @param r     the route to remove
+     */
+    void remove(Route r) {
+        if(indexed.remove(r)) {
+            routes.removeIf(route -> route == r);
+        }
+    }
+
+    /**
+     * Removes all routes from the index
+     */
+    void clear() {
+        routes.clear();
+        indexed.clear();
+    }
+
+    /**
+     * Builds the trees of all routes which need one. The routes are built in
+     * parallel, and their trees' levels sorted in parallel, if the map holds
+     * more than {@link #PARALLEL_THRESHOLD} points.
+     */
+    public void build() {
+        long points = 0;
+        for(Route r : routes) {
+            points += r.size();
+        }
+        if(points > PARALLEL_THRESHOLD) {
+            routes.parallelStream().forEach(r -> r.getSpatialTree().validate(true));
+        }else{
+            for(Route r : routes) {
+                r.getSpatialTree().validate(false);
+            }
+        }
+    }
+
+    /**
+     * Returns the routes which have a point or a segment within the specified
+     * box, in the order they were added to the map.
+     *
+     * @param south     the southern latitude of the box
+     * @param north     the northern latitude of the box
+     * @param west      the western longitude of the box
+     * @param east      the eastern longitude of the box
+     * @return  the list of routes
+     */
+    public List<Route> findRoutes(double south, double north, double west, double east) {
+        List<Route> found = new ArrayList<>();
+        for(Route r : routes) {
+            RouteTree t = r.getSpatialTree();
+            t.validate(false);
+            if(!t.search(south, north, west, east, i -> !t.intersectsSegment(i, south, north, west, east))) {
+                found.add(r);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the points within the specified box, by route and position.
+     * The distance of the hits is 0.
+     *
+     * @param south     the southern latitude of the box
+     * @param north     the northern latitude of the box
+     * @param west      the western longitude of the box
+     * @param east      the eastern longitude of the box
+     * @return  the list of hits
+     */
+    public List<Hit> findPoints(double south, double north, double west, double east) {
+        return findInBox(false, south, north, west, east);
+    }
+
+    /**
+     * Returns the segments which pass through the specified box, by route and
+     * the position of the point they end at. The distance of the hits is 0.
+     *
+     * @param south     the southern latitude of the box
+     * @param north     the northern latitude of the box
+     * @param west      the western longitude of the box
+     * @param east      the eastern longitude of the box
+     * @return  the list of hits
+     */
+    public List<Hit> findSegments(double south, double north, double west, double east) {
+        return findInBox(true, south, north, west, east);
+    }
+
+    /**
+     * Returns the points within the specified distance of a position,
+     * closest first.
+     *
+     * @param center    the position
+     * @param radius    the distance in meters
+     * @return  the list of hits
+     */
+    public List<Hit> findPointsWithin(LatLon center, double radius) {
+        return findWithin(false, center, radius);
+    }
+
+    /**
+     * Returns the segments which pass within the specified distance of a
+     * position, closest first.
+     *
+     * @param center    the position
+     * @param radius    the distance in meters
+     * @return  the list of hits
+     */
+    public List<Hit> findSegmentsWithin(LatLon center, double radius) {
+        return findWithin(true, center, radius);
+    }
+
+    /**
+     * Returns the point closest to the specified position
+     *
+     * @param center    the position
+     * @return  the hit or null if no route has points
+     */
+    public Hit findNearestPoint(LatLon center) {
+        return findNearestPoint(center, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Returns the point closest to the specified position, if it is within
+     * the specified distance. The search stops at that distance.
+     *
+     * @param center        the position
+     * @param maxDistance   the distance in meters
+     * @return  the hit or null if no point is within the distance
+     */
+    public Hit findNearestPoint(LatLon center, double maxDistance) {
+        List<Hit> hits = findNearest(routes, false, center, 1, maxDistance);
+        return hits.isEmpty() ? null : hits.get(0);
+    }
+
+    /**
+     * Returns the specified number of points closest to a position, closest first
+     *
+     * @param center    the position
+     * @param k         the number of points
+     * @return  the list of at most k hits
+     */
+    public List<Hit> findNearestPoints(LatLon center, int k) {
+        return findNearest(routes, false, center, k, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Returns the specified number of segments closest to a position, closest first
+     *
+     * @param center    the position
+     * @param k         the number of segments
+     * @return  the list of at most k hits
+     */
+    public List<Hit> findNearestSegments(LatLon center, int k) {
+        return findNearest(routes, true, center, k, Double.POSITIVE_INFINITY);
+    }
+
+    private List<Hit> findInBox(boolean segments, double south, double north, double west, double east) {
+        List<Hit> hits = new ArrayList<>();
+        for(Route r : routes) {
+            RouteTree t = r.getSpatialTree();
+            t.validate(false);
+            t.search(south, north, west, east, i -> {
+                if(segments ? i > 0 && t.intersectsSegment(i, south, north, west, east) : t.isPointWithin(i, south, north, west, east)) {
+                    hits.add(new Hit(t.route, i, 0));
+                }
+                return true;
+            });
+        }
+        return hits;
+    }
+
+    private List<Hit> findWithin(boolean segments, LatLon center, double radius) {
+        double lat = center.getLatitude(), lon = center.getLongitude();
+        double dLat = Geodesy.latitudeDegrees(radius);
+        double dLon = Geodesy.longitudeDegrees(radius, lat);
+        List<Hit> hits = new ArrayList<>();
+        for(Route r : routes) {
+            RouteTree t = r.getSpatialTree();
+            t.validate(false);
+            t.search(lat - dLat, lat + dLat, lon - dLon, lon + dLon, i -> {
+                double d = t.distance(segments, i, lat, lon);
+                if(d <= radius) {
+                    hits.add(new Hit(t.route, i, d));
+                }
+                return true;
+            });
+        }
+        hits.sort((h1, h2) -> Double.compare(h1.distance, h2.distance));
+        return hits;
+    }
+
+    /**
+     * Best-first search: nodes are queued by the distance to their box, entries
+     * by their exact distance, so entries are dequeued in order of distance.
+     * The search ends with the first candidate beyond the maximum distance.
+     *
+     * @param routes        the routes to search
+     * @param segments      true to find segments, false to find points
+     * @param center        the position
+     * @param k             the number of hits
+     * @param maxDistance   the distance in meters beyond which nothing is found
+     * @return  the list of at most k hits, closest first
+     */
+    static List<Hit> findNearest(List<Route> routes, boolean segments, LatLon center, int k, double maxDistance) {
+        double lat = center.getLatitude(), lon = center.getLongitude();
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        for(Route r : routes) {
+            RouteTree t = r.getSpatialTree();
+            t.validate(false);
+            if(t.tree.size() > 0) {
+                int root = t.tree.getHeight() - 1;
+                queue.add(new Candidate(t, root, 0, t.boxDistance(root, 0, lat, lon)));
+            }
+            for(int i = t.indexed;i < t.route.size();i++) {
+                t.offer(queue, segments, i, lat, lon);
+            }
+        }
+
+        List<Hit> hits = new ArrayList<>(Math.min(k, 16));
+        while(hits.size() < k && !queue.isEmpty() && queue.peek().distance <= maxDistance) {
+            Candidate c = queue.poll();
+            RouteTree t = c.tree;
+            if(c.level == Candidate.ENTRY) {
+                hits.add(new Hit(t.route, c.node, c.distance));
+            }else if(c.level == 0) {
+                int i = t.tree.getEntry(c.node);
+                if(i < t.indexed) {
+                    t.offer(queue, segments, i, lat, lon);
+                }
+            }else{
+                for(int n = t.tree.getFirstChild(c.level, c.node);n < t.tree.getChildEnd(c.level, c.node);n++) {
+                    queue.add(new Candidate(t, c.level - 1, n, t.boxDistance(c.level - 1, n, lat, lon)));
+                }
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * A point or segment found by a query. A segment is identified by the
+     * position of the point it ends at; it starts at the preceding point.
+     */
+    public static final class Hit {
+        private final Route route;
+        private final int index;
+        private final double distance;
+
+        private Hit(Route route, int index, double distance) {
+            this.route = route;
+            this.index = index;
+            this.distance = distance;
+        }
+
+        /**
+         * Returns the route containing the point or segment
+         * @return  the route
+         */
+        public Route getRoute() {
+            return route;
+        }
+
+        /**
+         * Returns the position of the point, or of the point the segment ends at,
+         * in the route. Positions are only valid until the route is modified.
+         *
+         * @return  the index of the point
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Returns the distance from the query position to the point or to the
+         * closest point of the segment
+         *
+         * @return  the distance in meters
+         */
+        public double getDistance() {
+            return distance;
+        }
+
+        /**
+         * Returns the {@link Waypoint} of the point, or of the point the
+         * segment ends at, which is created for a track point.
+         *
+         * @return  the waypoint
+         */
+        public Waypoint getWaypoint() {
+            return route.getWaypoint(index);
+        }
+
+        @Override
+        public String toString() {
+            return "Hit [route=" + route.getName() + ", index=" + index + ", distance=" + distance + "]";
+        }
+    }
+
+    /**
+     * A node or entry queued by the k-nearest search
+     */
+    private static class Candidate implements Comparable<Candidate> {
+        /** The level of an entry whose exact distance is known, whose node is its id */
+        private static final int ENTRY = -1;
+
+        private final RouteTree tree;
+        private final int level;
+        private final int node;
+        private final double distance;
+
+        private Candidate(RouteTree tree, int level, int node, double distance) {
+            this.tree = tree;
+            this.level = level;
+            this.node = node;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+
+    /**
+     * The tree of one route, and the changes made to the route since it was
+     * built. The tree is held by its route (see {@link Route#getSpatialTree()}).
+     */
+    static class RouteTree {
+        private final Route route;
+        private StrTree tree;
+        /** The number of leading points whose entries in the tree are valid */
+        private int indexed;
+        /** The number of entries enlarged since the tree was built */
+        private int enlarged;
+
+        RouteTree(Route route) {
+            this.route = route;
+            route.addListener((ListChangeListener<Waypoint>)this::changed);
+        }
+
+        /**
+         * Builds the tree if there is none yet or the changes since it was
+         * built have grown too many.
+         */
+        private void validate(boolean parallel) {
+            int limit = Math.max(MIN_TAIL, indexed / 8);
+            if(tree != null && route.size() - indexed <= limit && enlarged <= limit) {
+                return;
+            }
+
+            int n = route.size();
+            RouteGeometry g = route.getGeometry();
+            double[] lat = g.getLatitudes(0, n), lon = g.getLongitudes(0, n);
+            double[] minLat = lat.clone(), maxLat = lat.clone();
+            double[] minLon = lon.clone(), maxLon = lon.clone();
+            for(int i = 1;i < n;i++) {
+                minLat[i] = Math.min(lat[i], lat[i - 1]);
+                maxLat[i] = Math.max(lat[i], lat[i - 1]);
+                minLon[i] = Math.min(lon[i], lon[i - 1]);
+                maxLon[i] = Math.max(lon[i], lon[i - 1]);
+            }
+            tree = new StrTree(minLat, maxLat, minLon, maxLon, parallel);
+            indexed = n;
+            enlarged = 0;
+        }
+
+        private void changed(ListChangeListener.Change<? extends Waypoint> c) {
+            while(c.next()) {
+                int from = c.getFrom();
+                if(from >= indexed) {
+                    continue;
+                }
+                if(c.wasReplaced() && c.getAddedSize() == c.getRemovedSize()) {
+                    // Points replaced in place, entries of the points and of the following segments cover them
+                    RouteGeometry g = route.getGeometry();
+                    for(int i = from;i < c.getTo();i++) {
+                        double lat = g.getLatitude(i), lon = g.getLongitude(i);
+                        for(int e = i;e <= i + 1 && e < indexed;e++) {
+                            tree.enlarge(e, lat, lat, lon, lon);
+                            enlarged++;
+                        }
+                    }
+                }else{
+                    // The entries from here on moved
+                    indexed = from;
+                }
+            }
+        }
+
+        /**
+         * Visits the entries of the tree intersecting the box, then all entries
+         * of the tail, until the visitor returns false.
+         */
+        private boolean search(double south, double north, double west, double east, IntPredicate visitor) {
+            if(!tree.search(south, north, west, east, i -> i >= indexed || visitor.test(i))) {
+                return false;
+            }
+            for(int i = indexed;i < route.size();i++) {
+                if(!visitor.test(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isPointWithin(int i, double south, double north, double west, double east) {
+            double lat = route.getLatitude(i), lon = route.getLongitude(i);
+            return lat >= south && lat <= north && lon >= west && lon <= east;
+        }
+
+        /**
+         * Returns a flag indicating whether the segment ending at the specified
+         * point, or the point itself if it is the first, intersects the box.
+         * The segment is clipped to the box (Liang-Barsky).
+         */
+        private boolean intersectsSegment(int i, double south, double north, double west, double east) {
+            if(i == 0) {
+                return isPointWithin(0, south, north, west, east);
+            }
+
+            double x1 = route.getLongitude(i - 1), y1 = route.getLatitude(i - 1);
+            double dx = route.getLongitude(i) - x1, dy = route.getLatitude(i) - y1;
+            double[] p = { -dx, dx, -dy, dy };
+            double[] q = { x1 - west, east - x1, y1 - south, north - y1 };
+            double t0 = 0, t1 = 1;
+            for(int k = 0;k < 4;k++) {
+                if(p[k] == 0) {
+                    if(q[k] < 0) {
+                        return false;
+                    }
+                }else{
+                    double t = q[k] / p[k];
+                    if(p[k] < 0) {
+                        t0 = Math.max(t0, t);
+                    }else{
+                        t1 = Math.min(t1, t);
+                    }
+                    if(t0 > t1) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the distance to the specified point, or to the segment ending
+         * at it, which is NaN for the first point, which ends no segment.
+         */
+        private double distance(boolean segment, int i, double lat, double lon) {
+            if(!segment) {
+                return Geodesy.distance(lat, lon, route.getLatitude(i), route.getLongitude(i));
+            }
+            return i == 0 ? Double.NaN : Geodesy.segmentDistance(lat, lon,
+                route.getLatitude(i - 1), route.getLongitude(i - 1), route.getLatitude(i), route.getLongitude(i));
+        }
+
+        private void offer(PriorityQueue<Candidate> queue, boolean segment, int i, double lat, double lon) {
+            double d = distance(segment, i, lat, lon);
+            if(!Double.isNaN(d)) {
+                queue.add(new Candidate(this, Candidate.ENTRY, i, d));
+            }
+        }
+
+        private double boxDistance(int level, int node, double lat, double lon) {
+            return Geodesy.boxDistance(lat, lon, tree.getMinLat(level, node), tree.getMaxLat(level, node),
+                tree.getMinLon(level, node), tree.getMaxLon(level, node));
+        }
+    }
+}
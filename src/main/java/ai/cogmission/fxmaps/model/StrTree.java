@@ -0,0 +1,303 @@
+package ai.cogmission.fxmaps.model;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Static R-tree over latitude/longitude boxes, bulk loaded by Sort-Tile-Recursive
+ * packing: the entries are sorted into vertical slices by longitude, each slice
+ * by latitude, and runs of {@link #FANOUT} consecutive entries become the
+ * children of one node. Levels are packed the same way up to a single root.
+ * <p>
+ * Each level is held in parallel arrays; the children of a node are a
+ * contiguous range of the level below, which packing a level keeps while
+ * it reorders the level's nodes. Entries are identified by their
+ * index in the arrays the tree was built from. The tree isn't modified after
+ * it was built, except that the box of an entry can be enlarged (see
+ * {@link #enlarge(int, double, double, double, double)}), which enlarges its
+ * ancestors so they keep covering it.
+ * </p>
+ *
+ * @author cogmission
+ * @see SpatialIndex
+ */
+class StrTree {
+    /** Number of children of each node */
+    static final int FANOUT = 16;
+    /** Number of entries above which the sorts run in parallel */
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+    /** Boxes of each level; level 0 holds the entries, the last level the root */
+    private double[][] minLat;
+    private double[][] maxLat;
+    private double[][] minLon;
+    private double[][] maxLon;
+    /** The range of children of each node of levels above 0 */
+    private int[][] childFrom;
+    private int[][] childTo;
+    /** The parent of each node below the root */
+    private int[][] parents;
+    /** The entry id at each position of level 0 */
+    private int[] entries;
+    /** The position in level 0 of each entry id */
+    private int[] positions;
+
+
+    /**
+     * Builds the tree over the specified boxes. The tree takes over the arrays.
+     *
+     * @param minLat    the southern latitudes of the entries
+     * @param maxLat    the northern latitudes of the entries
+     * @param minLon    the western longitudes of the entries
+     * @param maxLon    the eastern longitudes of the entries
+     * @param parallel  true to sort large levels in parallel
+     */
+    StrTree(double[] minLat, double[] maxLat, double[] minLon, double[] maxLon, boolean parallel) {
+        int n = minLat.length;
+        entries = new int[n];
+        for(int i = 0;i < n;i++) {
+            entries[i] = i;
+        }
+
+        int height = 1;
+        for(int count = n;count > 1;count = (count + FANOUT - 1) / FANOUT) {
+            height++;
+        }
+        this.minLat = new double[height][];
+        this.maxLat = new double[height][];
+        this.minLon = new double[height][];
+        this.maxLon = new double[height][];
+        this.childFrom = new int[height][];
+        this.childTo = new int[height][];
+        this.parents = new int[height][];
+
+        this.minLat[0] = minLat;
+        this.maxLat[0] = maxLat;
+        this.minLon[0] = minLon;
+        this.maxLon[0] = maxLon;
+        for(int level = 0;level < height - 1;level++) {
+            pack(level, parallel);
+        }
+
+        positions = new int[n];
+        for(int i = 0;i < n;i++) {
+            positions[entries[i]] = i;
+        }
+        for(int level = 1;level < height;level++) {
+            int[] parent = parents[level - 1] = new int[this.minLat[level - 1].length];
+            for(int i = 0;i < childFrom[level].length;i++) {
+                Arrays.fill(parent, childFrom[level][i], childTo[level][i], i);
+            }
+        }
+    }
+
+    /**
+     * Orders the nodes of the specified level into tiles and creates the
+     * level above, whose nodes each cover one run of {@link #FANOUT} nodes.
+     */
+    private void pack(int level, boolean parallel) {
+        int n = minLat[level].length;
+        int parentCount = (n + FANOUT - 1) / FANOUT;
+        int sliceSize = (int)Math.ceil(Math.sqrt(parentCount)) * FANOUT;
+        parallel &= n >= PARALLEL_THRESHOLD;
+
+        long[] keys = new long[n];
+        for(int i = 0;i < n;i++) {
+            keys[i] = sortKey(minLon[level][i] + maxLon[level][i], i);
+        }
+        sort(keys, 0, n, parallel);
+        for(int from = 0;from < n;from += sliceSize) {
+            int to = Math.min(n, from + sliceSize);
+            for(int k = from;k < to;k++) {
+                int i = (int)keys[k];
+                keys[k] = sortKey(minLat[level][i] + maxLat[level][i], i);
+            }
+            sort(keys, from, to, parallel);
+        }
+        reorder(level, keys);
+
+        double[] pMinLat = new double[parentCount], pMaxLat = new double[parentCount];
+        double[] pMinLon = new double[parentCount], pMaxLon = new double[parentCount];
+        int[] first = new int[parentCount];
+        int[] end = new int[parentCount];
+        for(int p = 0;p < parentCount;p++) {
+            int from = p * FANOUT, to = Math.min(n, from + FANOUT);
+            first[p] = from;
+            end[p] = to;
+            pMinLat[p] = pMinLon[p] = Double.POSITIVE_INFINITY;
+            pMaxLat[p] = pMaxLon[p] = Double.NEGATIVE_INFINITY;
+            for(int i = from;i < to;i++) {
+                pMinLat[p] = Math.min(pMinLat[p], minLat[level][i]);
+                pMaxLat[p] = Math.max(pMaxLat[p], maxLat[level][i]);
+                pMinLon[p] = Math.min(pMinLon[p], minLon[level][i]);
+                pMaxLon[p] = Math.max(pMaxLon[p], maxLon[level][i]);
+            }
+        }
+        minLat[level + 1] = pMinLat;
+        maxLat[level + 1] = pMaxLat;
+        minLon[level + 1] = pMinLon;
+        maxLon[level + 1] = pMaxLon;
+        childFrom[level + 1] = first;
+        childTo[level + 1] = end;
+    }
+
+    /**
+     * Moves the nodes of a level into the order of the specified sort keys,
+     * along with the nodes' entries or child ranges.
+     */
+    private void reorder(int level, long[] keys) {
+        int n = keys.length;
+        double[] nMinLat = new double[n], nMaxLat = new double[n], nMinLon = new double[n], nMaxLon = new double[n];
+        int[] nEntries = level == 0 ? new int[n] : null;
+        int[] nFrom = level > 0 ? new int[n] : null;
+        int[] nTo = level > 0 ? new int[n] : null;
+        for(int k = 0;k < n;k++) {
+            int i = (int)keys[k];
+            nMinLat[k] = minLat[level][i];
+            nMaxLat[k] = maxLat[level][i];
+            nMinLon[k] = minLon[level][i];
+            nMaxLon[k] = maxLon[level][i];
+            if(level == 0) {
+                nEntries[k] = entries[i];
+            }else{
+                nFrom[k] = childFrom[level][i];
+                nTo[k] = childTo[level][i];
+            }
+        }
+        minLat[level] = nMinLat;
+        maxLat[level] = nMaxLat;
+        minLon[level] = nMinLon;
+        maxLon[level] = nMaxLon;
+        if(level == 0) {
+            entries = nEntries;
+        }else{
+            childFrom[level] = nFrom;
+            childTo[level] = nTo;
+        }
+    }
+
+    /**
+     * Returns a key sorting by the specified coordinate, then by index
+     */
+    private static long sortKey(double coordinate, int index) {
+        int bits = Float.floatToIntBits((float)coordinate);
+        bits ^= (bits >> 31) & 0x7fffffff; // Orders negative floats as ints
+        return ((long)bits << 32) | index;
+    }
+
+    private static void sort(long[] keys, int from, int to, boolean parallel) {
+        if(parallel) {
+            Arrays.parallelSort(keys, from, to);
+        }else{
+            Arrays.sort(keys, from, to);
+        }
+    }
+
+    /**
+     * Returns the number of entries
+     * @return  the number of entries
+     */
+    int size() {
+        return entries.length;
+    }
+
+    /**
+     * Calls the visitor with the id of each entry whose box intersects
+     * the specified box, until the visitor returns false.
+     *
+     * @param minLat    the southern latitude of the box
+     * @param maxLat    the northern latitude of the box
+     * @param minLon    the western longitude of the box
+     * @param maxLon    the eastern longitude of the box
+     * @param visitor   the visitor of the entry ids, returning false to stop
+     * @return  false if the visitor stopped the search
+     */
+    boolean search(double minLat, double maxLat, double minLon, double maxLon, IntPredicate visitor) {
+        return entries.length == 0 || search(getHeight() - 1, 0, 1, minLat, maxLat, minLon, maxLon, visitor);
+    }
+
+    private boolean search(int level, int from, int to, double sLat, double nLat, double wLon, double eLon, IntPredicate visitor) {
+        double[] south = minLat[level], north = maxLat[level], west = minLon[level], east = maxLon[level];
+        for(int i = from;i < to;i++) {
+            if(south[i] > nLat || north[i] < sLat || west[i] > eLon || east[i] < wLon) {
+                continue;
+            }
+            if(level == 0) {
+                if(!visitor.test(entries[i])) {
+                    return false;
+                }
+            }else if(!search(level - 1, childFrom[level][i], childTo[level][i], sLat, nLat, wLon, eLon, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Enlarges the box of the specified entry and of its ancestors to
+     * cover the specified box.
+     *
+     * @param id        the id of the entry
+     * @param south     the southern latitude to cover
+     * @param north     the northern latitude to cover
+     * @param west      the western longitude to cover
+     * @param east      the eastern longitude to cover
+     */
+    void enlarge(int id, double south, double north, double west, double east) {
+        int i = positions[id];
+        for(int level = 0;level < getHeight();level++) {
+            minLat[level][i] = Math.min(minLat[level][i], south);
+            maxLat[level][i] = Math.max(maxLat[level][i], north);
+            minLon[level][i] = Math.min(minLon[level][i], west);
+            maxLon[level][i] = Math.max(maxLon[level][i], east);
+            if(level < getHeight() - 1) {
+                i = parents[level][i];
+            }
+        }
+    }
+
+    int getHeight() {
+        return minLat.length;
+    }
+
+    int getNodeCount(int level) {
+        return minLat[level].length;
+    }
+
+    double getMinLat(int level, int node) {
+        return minLat[level][node];
+    }
+
+    double getMaxLat(int level, int node) {
+        return maxLat[level][node];
+    }
+
+    double getMinLon(int level, int node) {
+        return minLon[level][node];
+    }
+
+    double getMaxLon(int level, int node) {
+        return maxLon[level][node];
+    }
+
+    /**
+     * Returns the first child of the specified node, which is above level 0
+     */
+    int getFirstChild(int level, int node) {
+        return childFrom[level][node];
+    }
+
+    /**
+     * Returns the end of the children of the specified node, which is above level 0
+     */
+    int getChildEnd(int level, int node) {
+        return childTo[level][node];
+    }
+
+    /**
+     * Returns the id of the entry at the specified position of level 0
+     */
+    int getEntry(int node) {
+        return entries[node];
+    }
+}
@@ -1,9 +1,17 @@
 package ai.cogmission.fxmaps.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
 
 /**
  *  Abstraction of a point along a given route, along with
  *  a visualization of that point in the form of a {@link Marker}
+ *  <p>
+ *  A waypoint created with a shared {@link MarkerStyle} only holds the style
+ *  and its icon's label; its {@link Marker} is created from them and from the
+ *  waypoint's position the first time {@link #getMarker()} is called.
+ *  </p>
  *  
  * @author cogmission
  *
@@ -12,7 +20,19 @@ public class Waypoint implements MapObject {
     protected LatLon latLon;
     protected Marker marker;
     
-    protected Polyline connection;
+    /** Style of the marker, which is created on request; null if constructed with a marker */
+    protected transient MarkerStyle markerStyle;
+    /** Label of the marker's icon when created from {@link #markerStyle} */
+    protected transient char label;
+    
+    /** The leg line, derived from the waypoints by the owning {@link Route} and never persisted */
+    protected transient Polyline connection;
+    
+    /** Last known position in the owning {@link Route}, validated on use */
+    transient int indexHint;
+    
+    /** Style of the leg ending at this waypoint, when it differs from its {@link Route}'s line style */
+    protected PolylineOptions legStyle;
     
     
     /**
@@ -25,6 +45,49 @@ public class Waypoint implements MapObject {
         this.marker = marker;
     }
     
+    /**
+     * Constructs a new {@code Waypoint} whose {@link Marker} is only created
+     * when requested, from the specified shared style.
+     * 
+     * @param latlon    latitude/longitude object, which is also the marker's position
+     * @param style     the marker's style
+     * @param label     the label of the marker's icon, from 'A' to 'Z'
+     */
+    public Waypoint(LatLon latlon, MarkerStyle style, char label) {
+        this.latLon = latlon;
+        this.markerStyle = style;
+        this.label = label;
+    }
+    
+    /**
+     * Creates a waypoint with a marker of the specified properties, which
+     * references a shared {@link MarkerStyle} if the icon is a {@link MarkerType}'s
+     * icon and is created with all of its objects otherwise.
+     * 
+     * @param ll            the coordinates and marker position
+     * @param icon          the icon path
+     * @param title         the marker's title
+     * @param visible       the marker's visibility
+     * @param animation     the marker's animation
+     * @return  the waypoint
+     */
+    static Waypoint create(LatLon ll, String icon, String title, boolean visible, Animation animation) {
+        MarkerStyle style = MarkerStyle.forIcon(icon, title, visible, animation);
+        if(style != null) {
+            return new Waypoint(ll, style, MarkerType.labelOf(icon));
+        }
+        
+        MarkerOptions opts = new MarkerOptions()
+            .position(ll)
+            .title(title)
+            .visible(visible)
+            .animation(animation);
+        if(icon != null) {
+            opts.icon(icon);
+        }
+        return new Waypoint(ll, new Marker(opts));
+    }
+    
     /**
      * Returns the {@link LatLon} object.
      * @return a LatLon
@@ -38,9 +101,79 @@ public class Waypoint implements MapObject {
      * @return a Marker
      */
     public Marker getMarker() {
+        if(marker == null && markerStyle != null) {
+            marker = markerStyle.createMarker(latLon, label);
+        }
         return marker;
     }
     
+    /**
+     * Returns a flag indicating whether this waypoint has a {@link Marker},
+     * without creating it.
+     * 
+     * @return  true if this waypoint has a marker, false if not
+     */
+    @JsonIgnore
+    public boolean hasMarker() {
+        return marker != null || markerStyle != null;
+    }
+    
+    /**
+     * Returns the shared style this waypoint's marker is created from
+     * 
+     * @return  the style or null if this waypoint was constructed with its marker
+     */
+    @JsonIgnore
+    public MarkerStyle getMarkerStyle() {
+        return markerStyle;
+    }
+    
+    /**
+     * Returns the label of the marker's icon, if created from a {@link MarkerStyle}
+     * @return  the label or 0
+     */
+    @JsonIgnore
+    public char getLabel() {
+        return label;
+    }
+    
+    /**
+     * Returns a flag indicating whether this waypoint's {@link Marker} object exists
+     * @return  true if created, false if not or if this waypoint has no marker
+     */
+    @JsonIgnore
+    public boolean isMarkerCreated() {
+        return marker != null;
+    }
+    
+    /**
+     * Returns the icon of the marker without creating it
+     */
+    String markerIcon() {
+        return marker != null ? marker.getMarkerOptions().getIcon() : markerStyle.getIcon(label);
+    }
+    
+    /**
+     * Returns the title of the marker without creating it
+     */
+    String markerTitle() {
+        return marker != null ? marker.getTitle() : markerStyle.getTitle();
+    }
+    
+    /**
+     * Returns the visibility of the marker without creating it
+     */
+    boolean markerVisible() {
+        return marker != null ? marker.getMarkerOptions().isVisible() : markerStyle.isVisible();
+    }
+    
+    /**
+     * Returns the animation of the marker without creating it
+     */
+    Animation markerAnimation() {
+        return marker != null ? marker.getMarkerOptions().getAnimation() : markerStyle.getAnimation();
+    }
+    
     /**
      * Adds the specified {@link Polyline} which connects 
      * (The line that proceeds this waypoint) this waypoint.
@@ -48,17 +181,45 @@ public class Waypoint implements MapObject {
      * @param line
      */
     public void setConnection(Polyline line) {
+        if(connection != null && connection.getWaypoint() == this) {
+            connection.setWaypoint(null);
+        }
         this.connection = line;
+        if(line != null) {
+            line.setWaypoint(this);
+        }
     }
     
     /**
      * Returns the {@link Polyline} which proceed this waypoint.
      * @return
      */
+    @JsonIgnore
     public Polyline getConnection() {
         return connection;
     }
     
+    /**
+     * Sets the style of the leg line ending at this waypoint, overriding 
+     * the line style of the owning {@link Route}.
+     * 
+     * @param style     the style (path is ignored) or null to use the route's style
+     */
+    public void setLegStyle(PolylineOptions style) {
+        this.legStyle = style;
+    }
+    
+    /**
+     * Returns the style of the leg line ending at this waypoint, or null if
+     * the line style of the owning {@link Route} applies.
+     * 
+     * @return  the leg style override or null
+     */
+    @JsonInclude(Include.NON_NULL)
+    public PolylineOptions getLegStyle() {
+        return legStyle;
+    }
+    
     /**
      * Overridden to return null;
      */
@@ -71,11 +232,31 @@ public class Waypoint implements MapObject {
     public int hashCode() {
         final int prime = 31;
         int result = 1;
-        result = prime * result + ((connection == null) ? 0 : connection.hashCode());
         result = prime * result + ((latLon == null) ? 0 : latLon.hashCode());
-        result = prime * result + ((marker == null) ? 0 : marker.hashCode());
+        result = prime * result + (marker != null ? marker.hashCode() : markerStyle != null ? markerHashCode() : 0);
         return result;
     }
+    
+    /**
+     * Returns the hash code the marker created from the style will have
+     * (see {@link Marker#hashCode()} and {@link MarkerOptions#hashCode()})
+     */
+    private int markerHashCode() {
+        int options = 31 * (31 + markerStyle.getIconPrefix().hashCode()) + (latLon == null ? 0 : latLon.hashCode());
+        return 31 + options;
+    }
+    
+    /**
+     * Returns the hash code of a {@code Waypoint} without a marker at the 
+     * specified coordinates, without creating one.
+     * 
+     * @param latitude      the latitude
+     * @param longitude     the longitude
+     * @return  the hash code
+     */
+    static int hashCode(double latitude, double longitude) {
+        return 31 * (31 + LatLon.hashCode(latitude, longitude));
+    }
 
     @Override
     public boolean equals(Object obj) {
@@ -86,22 +267,47 @@ public class Waypoint implements MapObject {
         if(getClass() != obj.getClass())
             return false;
         Waypoint other = (Waypoint)obj;
-        if(connection == null) {
-            if(other.connection != null)
+        if(legStyle == null) {
+            if(other.legStyle != null)
                 return false;
-        } else if(!connection.equals(other.connection))
+        } else if(!legStyle.styleEquals(other.legStyle))
             return false;
         if(latLon == null) {
             if(other.latLon != null)
                 return false;
         } else if(!latLon.equals(other.latLon))
             return false;
-        if(marker == null) {
-            if(other.marker != null)
+        if(!hasMarker()) {
+            if(other.hasMarker())
                 return false;
-        } else if(!marker.equals(other.marker))
+        } else if(!other.hasMarker()) {
             return false;
+        } else if(marker != null && other.marker != null) {
+            if(!marker.equals(other.marker))
+                return false;
+        } else if(!markerEquals(other)) {
+            return false;
+        }
         return true;
     }
     
+    /**
+     * Compares the markers as {@link MarkerOptions#equals(Object)} does, by
+     * the icon's color and the position, when either of them is not created.
+     */
+    private boolean markerEquals(Waypoint other) {
+        if(markerStyle != null && other.markerStyle != null) {
+            return markerStyle.getType() == other.markerStyle.getType();
+        }
+        
+        Waypoint created = marker != null ? this : other;
+        Waypoint styled = marker != null ? other : this;
+        MarkerOptions opts = created.marker.getMarkerOptions();
+        String icon = opts.getIcon();
+        if(icon == null || !icon.startsWith(styled.markerStyle.getIconPrefix() + "_")) {
+            return false;
+        }
+        return opts.getPosition() == null ? styled.latLon == null : opts.getPosition().equals(styled.latLon);
+    }
+    
 }
@@ -0,0 +1,360 @@
+package ai.cogmission.fxmaps.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javafx.collections.ObservableListBase;
+
+/**
+ * The observable list of a {@link Route}'s {@link Waypoint}s, over the route's
+ * {@link RouteGeometry}.
+ * <p>
+ * Every point's coordinates, elevation and time are held by the geometry. A
+ * {@link Waypoint} object is only held for points which were added as one;
+ * track points added by {@link Route#addPoint(double, double, double, long)}
+ * have none until they are requested through this list, when a waypoint without
+ * a marker is created and kept for them. Equality, hash codes and the
+ * {@link Route}'s own traversals don't create any waypoints.
+ * </p>
+ *
+ * @author cogmission
+ */
+class WaypointList extends ObservableListBase<Waypoint> {
+    private static final Waypoint[] EMPTY = new Waypoint[0];
+
+    private RouteGeometry geometry;
+    /** The waypoint of each point, null for track points not requested yet */
+    private Waypoint[] waypoints = EMPTY;
+    private boolean readOnly;
+    /** Notified of the waypoints created for track points, null until one is added */
+    private List<Consumer<Waypoint>> creationListeners;
+
+
+    WaypointList() {
+        this(new RouteGeometry(), EMPTY);
+    }
+
+    private WaypointList(RouteGeometry geometry, Waypoint[] waypoints) {
+        this.geometry = geometry;
+        this.waypoints = waypoints;
+    }
+
+    RouteGeometry getGeometry() {
+        return geometry;
+    }
+
+    /**
+     * Adds a listener which is notified of every waypoint this list creates
+     * for a track point when it is requested. Such creations are not changes
+     * of the list, so its {@code ListChangeListener}s are not notified.
+     *
+     * @param l     the listener to add
+     */
+    void addCreationListener(Consumer<Waypoint> l) {
+        if(creationListeners == null) {
+            creationListeners = new ArrayList<>(1);
+        }
+        creationListeners.add(l);
+    }
+
+    /**
+     * Removes the specified creation listener
+     * @param l     the listener to remove
+     */
+    void removeCreationListener(Consumer<Waypoint> l) {
+        if(creationListeners != null) {
+            creationListeners.remove(l);
+        }
+    }
+
+    /**
+     * Makes this list unmodifiable
+     */
+    void setReadOnly() {
+        this.readOnly = true;
+    }
+
+    /**
+     * Returns the waypoint held for the specified point without creating one
+     *
+     * @param index     the index of the point
+     * @return  the waypoint or null for a track point
+     */
+    Waypoint peek(int index) {
+        checkIndex(index);
+        return waypoints[index];
+    }
+
+    /**
+     * Returns a flag indicating whether the specified point is a track point:
+     * one without a marker or a leg style of its own.
+     *
+     * @param index     the index of the point
+     * @return  true for a track point, false for a marked waypoint
+     */
+    boolean isTrackPoint(int index) {
+        Waypoint w = peek(index);
+        return w == null || (!w.hasMarker() && w.getLegStyle() == null);
+    }
+
+    /**
+     * Returns the number of waypoint objects currently held
+     * @return  the number of held waypoints
+     */
+    int getWaypointCount() {
+        int count = 0;
+        for(int i = 0;i < geometry.size();i++) {
+            if(waypoints[i] != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Waypoint get(int index) {
+        Waypoint w = peek(index);
+        if(w == null) {
+            w = waypoints[index] = new Waypoint(new LatLon(geometry.getLatitude(index), geometry.getLongitude(index)), null);
+            w.indexHint = index;
+            if(creationListeners != null) {
+                for(Consumer<Waypoint> l : creationListeners) {
+                    l.accept(w);
+                }
+            }
+        }
+        return w;
+    }
+    
+    /**
+     * Returns the position of the specified waypoint instance. The search
+     * starts at the position the waypoint was last found at and proceeds
+     * outwards, so it takes as many steps as points were inserted or
+     * removed before the waypoint since.
+     * 
+     * @param w     the waypoint
+     * @return  the index of the waypoint or -1 if this list doesn't hold it
+     */
+    int indexOfInstance(Waypoint w) {
+        int size = geometry.size();
+        int hint = w.indexHint;
+        for(int d = 0;hint - d >= 0 || hint + d < size;d++) {
+            int i = hint + d;
+            if(i >= 0 && i < size && waypoints[i] == w) {
+                return w.indexHint = i;
+            }
+            i = hint - d;
+            if(d > 0 && i >= 0 && i < size && waypoints[i] == w) {
+                return w.indexHint = i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return geometry.size();
+    }
+
+    /**
+     * Finds the specified waypoint without creating waypoints for track points
+     */
+    @Override
+    public int indexOf(Object o) {
+        if(!(o instanceof Waypoint)) {
+            return -1;
+        }
+
+        Waypoint w = (Waypoint)o;
+        boolean trackPoint = !w.hasMarker() && w.getLegStyle() == null && w.getLatLon() != null;
+        for(int i = 0;i < geometry.size();i++) {
+            Waypoint held = waypoints[i];
+            if(held != null ? held.equals(w) : trackPoint && w.getClass() == Waypoint.class &&
+                Double.doubleToLongBits(geometry.getLatitude(i)) == Double.doubleToLongBits(w.getLatLon().getLatitude()) &&
+                    Double.doubleToLongBits(geometry.getLongitude(i)) == Double.doubleToLongBits(w.getLatLon().getLongitude())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Appends a track point, without creating a waypoint for it
+     */
+    void addPoint(double latitude, double longitude, double elevation, long time) {
+        checkWritable();
+        int index = geometry.size();
+        geometry.add(latitude, longitude, elevation, time);
+        ensureCapacity();
+        modCount++;
+        beginChange();
+        nextAdd(index, index + 1);
+        endChange();
+    }
+
+    @Override
+    public void add(int index, Waypoint w) {
+        checkWritable();
+        LatLon ll = w.getLatLon();
+        geometry.insert(index, ll.getLatitude(), ll.getLongitude(), Double.NaN, RouteGeometry.NO_TIME);
+        ensureCapacity();
+        System.arraycopy(waypoints, index, waypoints, index + 1, geometry.size() - index - 1);
+        waypoints[index] = w;
+        w.indexHint = index;
+        modCount++;
+        beginChange();
+        nextAdd(index, index + 1);
+        endChange();
+    }
+
+    /**
+     * Replaces the waypoint at the specified index, keeping the point's
+     * elevation and time.
+     */
+    @Override
+    public Waypoint set(int index, Waypoint w) {
+        checkWritable();
+        Waypoint old = get(index);
+        LatLon ll = w.getLatLon();
+        geometry.set(index, ll.getLatitude(), ll.getLongitude());
+        waypoints[index] = w;
+        w.indexHint = index;
+        beginChange();
+        nextSet(index, old);
+        endChange();
+        return old;
+    }
+
+    @Override
+    public Waypoint remove(int index) {
+        checkWritable();
+        Waypoint old = get(index);
+        geometry.remove(index, index + 1);
+        System.arraycopy(waypoints, index + 1, waypoints, index, geometry.size() - index);
+        waypoints[geometry.size()] = null;
+        modCount++;
+        beginChange();
+        nextRemove(index, old);
+        endChange();
+        return old;
+    }
+
+    /**
+     * Removes the specified range in one step. The removed points are reported
+     * as a detached list, so listeners only create the waypoints they request.
+     */
+    @Override
+    protected void removeRange(int from, int to) {
+        checkWritable();
+        if(from >= to) {
+            return;
+        }
+
+        WaypointList removed = new WaypointList(geometry.copy(from, to), Arrays.copyOfRange(waypoints, from, to));
+        removed.setReadOnly();
+        int size = geometry.size();
+        geometry.remove(from, to);
+        System.arraycopy(waypoints, to, waypoints, from, size - to);
+        Arrays.fill(waypoints, geometry.size(), size, null);
+        modCount++;
+        beginChange();
+        nextRemove(from, removed);
+        endChange();
+    }
+
+    @Override
+    public void clear() {
+        removeRange(0, size());
+    }
+
+    @Override
+    public boolean setAll(Collection<? extends Waypoint> col) {
+        checkWritable();
+        beginChange();
+        try {
+            clear();
+            addAll(col);
+        }finally{
+            endChange();
+        }
+        return true;
+    }
+
+    /**
+     * Releases the unused capacity of the geometry and the waypoint slots
+     */
+    void trimToSize() {
+        geometry.trimToSize();
+        if(waypoints.length > geometry.size()) {
+            waypoints = Arrays.copyOf(waypoints, geometry.size());
+        }
+    }
+
+    private void ensureCapacity() {
+        if(waypoints.length < geometry.size()) {
+            waypoints = Arrays.copyOf(waypoints, Math.max(geometry.size(), waypoints.length + (waypoints.length >> 1) + 1));
+        }
+    }
+
+    private void checkIndex(int index) {
+        if(index < 0 || index >= geometry.size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + geometry.size());
+        }
+    }
+
+    private void checkWritable() {
+        if(readOnly) {
+            throw new UnsupportedOperationException("Read-only waypoint list");
+        }
+    }
+
+    /**
+     * Compares without creating waypoints for track points: a track point
+     * equals a marker-less waypoint at the same coordinates.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof WaypointList)) {
+            return super.equals(o);
+        }
+        if(o == this) {
+            return true;
+        }
+
+        WaypointList other = (WaypointList)o;
+        if(size() != other.size()) {
+            return false;
+        }
+        for(int i = 0;i < size();i++) {
+            Waypoint w = waypoints[i];
+            Waypoint ow = other.waypoints[i];
+            if(w != null && ow != null) {
+                if(!w.equals(ow)) {
+                    return false;
+                }
+            }else if(!isTrackPoint(i) || !other.isTrackPoint(i) ||
+                Double.doubleToLongBits(geometry.getLatitude(i)) != Double.doubleToLongBits(other.geometry.getLatitude(i)) ||
+                    Double.doubleToLongBits(geometry.getLongitude(i)) != Double.doubleToLongBits(other.geometry.getLongitude(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Equal to {@link List#hashCode()} of the waypoints, without creating
+     * waypoints for track points.
+     */
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for(int i = 0;i < size();i++) {
+            Waypoint w = waypoints[i];
+            hash = 31 * hash + (w != null ? w.hashCode() : Waypoint.hashCode(geometry.getLatitude(i), geometry.getLongitude(i)));
+        }
+        return hash;
+    }
+}
@@ -21,6 +21,7 @@ import ai.cogmission.fxmaps.model.MapShapeOptions;
 import ai.cogmission.fxmaps.model.MapStore;
 import ai.cogmission.fxmaps.model.MapType;
 import ai.cogmission.fxmaps.model.Marker;
+import ai.cogmission.fxmaps.model.PersistentMap;
 import ai.cogmission.fxmaps.model.Polyline;
 import ai.cogmission.fxmaps.model.Route;
 import ai.cogmission.fxmaps.model.Waypoint;
@@ -140,6 +141,23 @@ public interface Map extends MapComponentInitializedListener {
      * @param mode  the mode to set
      */
     public void setMode(Mode mode);
+    /**
+     * Sets the distance in pixels within which a waypoint added by a click in 
+     * {@link Mode#ADD_WAYPOINTS} snaps to the nearest existing waypoint of the 
+     * selected map, taking over its coordinates. A tolerance of 0 (the default)
+     * adds waypoints at the clicked position.
+     * 
+     * @param pixels    the snap tolerance in pixels, or 0 to turn snapping off
+     */
+    public void setSnapTolerance(double pixels);
+    /**
+     * Returns the distance in pixels within which added waypoints snap to 
+     * existing ones.
+     * 
+     * @return  the snap tolerance in pixels, 0 if snapping is off
+     * @see #setSnapTolerance(double)
+     */
+    public double getSnapTolerance();
     /**
      * Returns the MapPane which is added to your client code.
      * 
@@ -162,6 +180,22 @@ public interface Map extends MapComponentInitializedListener {
      * @param ll    the lat/lon coordinates around which to center the map.
      */
     public void setCenter(LatLon ll);
+    /**
+     * Centers and zooms this {@code Map} so that all {@link Route}s of the 
+     * specified map are visible.
+     * 
+     * @param map   the map to fit
+     * @see PersistentMap#getBounds()
+     */
+    public void fitBounds(PersistentMap map);
+    /**
+     * Centers and zooms this {@code Map} so that the specified {@link Route}
+     * is visible.
+     * 
+     * @param route the route to fit
+     * @see Route#getBounds()
+     */
+    public void fitBounds(Route route);
     /**
      * Adds a {@link MapInitializedListener} to the {@code Map}
      * 
@@ -1,9 +1,8 @@
 package ai.cogmission.fxmaps.ui;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
-import java.util.stream.Collectors;
 
 import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
@@ -33,8 +32,11 @@ import ai.cogmission.fxmaps.event.MapEventHandler;
 import ai.cogmission.fxmaps.event.MapEventType;
 import ai.cogmission.fxmaps.event.MapInitializedListener;
 import ai.cogmission.fxmaps.event.MapReadyListener;
+import ai.cogmission.fxmaps.model.Animation;
 import ai.cogmission.fxmaps.model.DirectionsRoute;
+import ai.cogmission.fxmaps.model.Geodesy;
 import ai.cogmission.fxmaps.model.LatLon;
+import ai.cogmission.fxmaps.model.LatLonBounds;
 import ai.cogmission.fxmaps.model.Location;
 import ai.cogmission.fxmaps.model.Locator;
 import ai.cogmission.fxmaps.model.MapObject;
@@ -42,14 +44,17 @@ import ai.cogmission.fxmaps.model.MapOptions;
 import ai.cogmission.fxmaps.model.MapShape;
 import ai.cogmission.fxmaps.model.MapShapeOptions;
 import ai.cogmission.fxmaps.model.MapStore;
+import ai.cogmission.fxmaps.model.MapStoreWriter;
 import ai.cogmission.fxmaps.model.MapType;
 import ai.cogmission.fxmaps.model.Marker;
-import ai.cogmission.fxmaps.model.MarkerOptions;
+import ai.cogmission.fxmaps.model.MarkerStyle;
 import ai.cogmission.fxmaps.model.MarkerType;
 import ai.cogmission.fxmaps.model.PersistentMap;
 import ai.cogmission.fxmaps.model.Polyline;
 import ai.cogmission.fxmaps.model.PolylineOptions;
 import ai.cogmission.fxmaps.model.Route;
+import ai.cogmission.fxmaps.model.RouteGeometry;
+import ai.cogmission.fxmaps.model.SpatialIndex;
 import ai.cogmission.fxmaps.model.Waypoint;
 
 import com.lynden.gmapsfx.GoogleMapView;
@@ -82,6 +87,7 @@ public class MapPane extends StackPane implements Map {
     private BorderPane contentPane = new BorderPane();
     
     private static final MapOptions DEFAULT_MAP_OPTIONS = getDefaultMapOptions();
+    private static final MarkerStyle WAYPOINT_STYLE = MarkerStyle.of(MarkerType.GREEN, "Waypoint", true, Animation.NULL);
     private final MapEventHandler DEFAULT_MAPEVENT_HANDLER = getDefaultMapEventHandler();
     private MapStore MAP_STORE;
     private boolean defaultMapEventHandlerInstalled = true;
@@ -110,6 +116,14 @@ public class MapPane extends StackPane implements Map {
     
     protected Map.Mode currentMode = Map.Mode.NORMAL;
     
+    /** Distance in pixels within which clicked waypoints snap to existing ones, 0 for none */
+    protected double snapTolerance;
+    
+    /** The displayed {@link Route}s and the zoom levels their track lines are simplified for */
+    protected HashMap<Route, Integer> displayedRoutes = new HashMap<>();
+    /** Set while an update of the displayed track lines to the zoom level is scheduled */
+    private boolean zoomUpdatePending;
+    
     
     /**
      * Constructs a new {@code MapPane}
@@ -151,7 +165,7 @@ public class MapPane extends StackPane implements Map {
                     eraseRoute(editedRoute);
                     removeWaypoint(wp);
                     displayRoute(editedRoute);
-                    MAP_STORE.store();
+                    MAP_STORE.commit();
                 }else if((currMapObj instanceof MapShape)) {
                     Polyline p = (Polyline)currMapObj;
                     Route editedRoute = getRouteForLine(p);
@@ -159,7 +173,7 @@ public class MapPane extends StackPane implements Map {
                     eraseRoute(editedRoute);
                     removeWaypoint(editedWaypoint);
                     displayRoute(editedRoute);
-                    MAP_STORE.store();
+                    MAP_STORE.commit();
                 }
             });
             menu.getItems().add(deleteItem);
@@ -239,6 +253,53 @@ public class MapPane extends StackPane implements Map {
         }
     }
     
+    /**
+     * Sets the distance in pixels within which a waypoint added by a click in 
+     * {@link Mode#ADD_WAYPOINTS} snaps to the nearest existing waypoint of the 
+     * selected map. The nearest waypoint is found through the map's 
+     * {@link SpatialIndex}.
+     * 
+     * @param pixels    the snap tolerance in pixels, or 0 to turn snapping off
+     */
+    @Override
+    public void setSnapTolerance(double pixels) {
+        this.snapTolerance = Math.max(0, pixels);
+    }
+    
+    /**
+     * Returns the distance in pixels within which added waypoints snap to 
+     * existing ones.
+     * 
+     * @return  the snap tolerance in pixels, 0 if snapping is off
+     */
+    @Override
+    public double getSnapTolerance() {
+        return snapTolerance;
+    }
+    
+    /**
+     * Returns the coordinates of the existing waypoint nearest to the specified
+     * position within the snap tolerance at the current zoom level, or the 
+     * position itself if there is none or snapping is off.
+     * 
+     * @param ll    the clicked position
+     * @return  the position to add a waypoint at
+     */
+    private LatLon snap(LatLon ll) {
+        PersistentMap map = snapTolerance <= 0 ? null : MAP_STORE.getMap(MAP_STORE.getSelectedMapName());
+        if(map == null) {
+            return ll;
+        }
+        
+        double meters = snapTolerance * Geodesy.metersPerPixel(ll.getLatitude(), googleMap.getZoom());
+        SpatialIndex.Hit hit = map.getSpatialIndex().findNearestPoint(ll, meters);
+        if(hit == null) {
+            return ll;
+        }
+        Route r = hit.getRoute();
+        return new LatLon(r.getLatitude(hit.getIndex()), r.getLongitude(hit.getIndex()));
+    }
+    
     /**
      * Makes the right {@link DirectionsPane} visible or invisible.
      * @param b
@@ -272,6 +333,8 @@ public class MapPane extends StackPane implements Map {
                 centerMapOnLocal();
                 
                 MAP_STORE = MapStore.load(MapStore.DEFAULT_STORE_PATH);
+                MAP_STORE.setJournalEnabled(true);
+                MAP_STORE.setWriteBehindInterval(MapStoreWriter.DEFAULT_INTERVAL);
                 
                 DEFAULT_POLYLINE_OPTIONS = getDefaultPolylineOptions();
                 
@@ -383,6 +446,43 @@ public class MapPane extends StackPane implements Map {
     public void setCenter(LatLon ll) {
         googleMap.setCenter(ll.toLatLong());
     }
+    
+    /**
+     * Centers and zooms this {@code Map} so that all {@link Route}s of the 
+     * specified map are visible. The map's bounds are combined from the 
+     * bounds kept by its routes.
+     * 
+     * @param map   the map to fit
+     */
+    @Override
+    public void fitBounds(PersistentMap map) {
+        fitBounds(map.getBounds());
+    }
+    
+    /**
+     * Centers and zooms this {@code Map} so that the specified {@link Route}
+     * is visible.
+     * 
+     * @param route the route to fit
+     */
+    @Override
+    public void fitBounds(Route route) {
+        fitBounds(route.getBounds());
+    }
+    
+    /**
+     * Fits the map view to the specified bounds, if there are any
+     * @param bounds    the bounds or null
+     */
+    private void fitBounds(LatLonBounds bounds) {
+        if(bounds == null) {
+            return;
+        }
+        if(bounds.convert() == null) {
+            bounds.createUnderlying();
+        }
+        googleMap.fitBounds(bounds.convert());
+    }
 
     @Override
     public void addMapInializedListener(MapInitializedListener listener) {
@@ -461,13 +561,7 @@ public class MapPane extends StackPane implements Map {
      */
     @Override
     public Waypoint createWaypoint(LatLon latLon) {
-        MarkerOptions opts = new MarkerOptions()
-            .position(latLon)
-            .title("Waypoint")
-            .icon(MarkerType.GREEN.nextPath())
-            .visible(true);
-        
-        return new Waypoint(latLon, new Marker(opts));
+        return new Waypoint(latLon, WAYPOINT_STYLE, MarkerType.GREEN.next());
     }
 
     /**
@@ -484,13 +578,12 @@ public class MapPane extends StackPane implements Map {
     public void addNewWaypoint(Waypoint waypoint) {
         displayWaypoint(waypoint);
         
-        currentRoute.addWaypoint(waypoint);
-        if(currentRoute.size() > 1) {
-            Polyline poly = connectLastWaypoint(waypoint, null);
-            displayShape(poly);
+        Polyline poly = connectLastWaypoint(waypoint, null);
+        if(poly != null) {
+            displayLine(waypoint, poly);
         }
         
-        MAP_STORE.store();
+        MAP_STORE.commit();
     }
     
     /**
@@ -508,15 +601,14 @@ public class MapPane extends StackPane implements Map {
      */
     @Override
     public <T extends MapShapeOptions<T>>void addNewWaypoint(Waypoint waypoint, T polylineOptions) {
-        currentRoute.addWaypoint(waypoint);
+        Polyline poly = connectLastWaypoint(waypoint, polylineOptions);
         displayWaypoint(waypoint);
         
-        if(currentRoute.size() > 1) {
-            Polyline poly = connectLastWaypoint(waypoint, polylineOptions);
-            displayShape(poly);
+        if(poly != null) {
+            displayLine(waypoint, poly);
         }
         
-        MAP_STORE.store();
+        MAP_STORE.commit();
      }
     
     /**
@@ -547,24 +639,18 @@ public class MapPane extends StackPane implements Map {
     }
     
     /**
-     * Returns the {@link Polyline} which connects the specified {@link Waypoint}
+     * Adds the specified {@link Waypoint} to the current route through the 
+     * {@link MapStore}, which creates and journals its connecting line, and 
+     * returns the {@link Polyline} which connects it.
+     * 
      * @param   lastWaypoint        the newly added waypoint
-     * @param   polylineOptions     the line options to use for rendering
-     * @return  the connecting Polyline
+     * @param   polylineOptions     the line options to use for rendering (the
+     *                              path is derived from the waypoints)
+     * @return  the connecting Polyline, or null for the route's first waypoint
      */
     private <T extends MapShapeOptions<T>> Polyline connectLastWaypoint(Waypoint lastWaypoint, T polylineOptions) {
-        List<LatLon> l = new ArrayList<>();
-        l.add(currentRoute.getWaypoint(currentRoute.size() - 2).getLatLon());
-        l.add(currentRoute.getWaypoint(currentRoute.size() - 1).getLatLon());
-        
-        Polyline poly = new Polyline(polylineOptions == null ? 
-            PolylineOptions.copy(DEFAULT_POLYLINE_OPTIONS).path(l) : 
-                (PolylineOptions)polylineOptions);
-     
-        lastWaypoint.setConnection(poly);
-        
-        currentRoute.addLine(poly);
-        return poly;
+        return MAP_STORE.addWaypoint(currentRoute, lastWaypoint, polylineOptions == null ? 
+            DEFAULT_POLYLINE_OPTIONS : (PolylineOptions)polylineOptions);
     }
 
     /**
@@ -574,7 +660,7 @@ public class MapPane extends StackPane implements Map {
      */
     @Override
     public void removeWaypoint(Waypoint waypoint) {
-        currentRoute.removeWaypoint(waypoint);
+        MAP_STORE.removeWaypoint(currentRoute, waypoint);
     }
     
     /**
@@ -588,6 +674,17 @@ public class MapPane extends StackPane implements Map {
         googleMap.addMapShape(shape.convert());
     }
     
+    /**
+     * Adds the leg line of the specified {@link Waypoint} to this {@code Map}
+     * 
+     * @param wp    the waypoint whose leg is displayed
+     * @param line  the waypoint's leg line
+     */
+    private void displayLine(Waypoint wp, Polyline line) {
+        addLineMouseListener(wp, line);
+        googleMap.addMapShape(line.convert());
+    }
+    
     /**
      * Removes the specified {@link MapShape} from this {@code Map}
      * @param shape     the {@code MapShape} to remove
@@ -605,8 +702,8 @@ public class MapPane extends StackPane implements Map {
     public void addRoute(Route route) {
         PersistentMap currentMap = MAP_STORE.getMap(MAP_STORE.getSelectedMapName());
         if(currentMap.getRoute(route.getName()) == null) {
-            MAP_STORE.getMap(MAP_STORE.getSelectedMapName()).addRoute(route);
-            MAP_STORE.store();
+            MAP_STORE.addRoute(route);
+            MAP_STORE.commit();
         }
     }
     
@@ -617,8 +714,8 @@ public class MapPane extends StackPane implements Map {
      */
     @Override
     public void removeRoute(Route route) {
-        MAP_STORE.getMap(MAP_STORE.getSelectedMapName()).removeRoute(route);
-        MAP_STORE.store();
+        MAP_STORE.removeRoute(route);
+        MAP_STORE.commit();
     }
     
     /**
@@ -631,9 +728,9 @@ public class MapPane extends StackPane implements Map {
     public void clearRoute(Route route) {
         eraseRoute(route);
         
-        route.removeAllWaypoints();
+        MAP_STORE.clearRoute(route);
         
-        MAP_STORE.store();
+        MAP_STORE.commit();
     }
     
     /**
@@ -644,12 +741,16 @@ public class MapPane extends StackPane implements Map {
      * @param   route   the {@link Route} to erase
      */
     public void eraseRoute(Route route) {
-        for(Waypoint w : route.getWaypoints()) {
-            googleMap.removeMarker(w.getMarker().convert());
+        for(int i = 0;i < route.size();i++) {
+            // Track points have no markers
+            if(!route.isTrackPoint(i) && route.getWaypoint(i).hasMarker()) {
+                googleMap.removeMarker(route.getWaypoint(i).getMarker().convert());
+            }
         }
         for(Polyline line : route.getLines()) {
             googleMap.removeMapShape(line.convert());
         } 
+        displayedRoutes.remove(route);
     }
     
     /**
@@ -695,20 +796,74 @@ public class MapPane extends StackPane implements Map {
      */
     @Override
     public void displayRoute(Route route) {
-        for(Waypoint wp : route.getWaypoints()) {
-            if(route.getInterimMarkersVisible() || (!route.getInterimMarkersVisible() && 
-                (wp.equals(route.getOrigin()) || wp.equals(route.getDestination())))) {
-                
+        int last = route.size() - 1;
+        for(int i = 0;i <= last;i++) {
+            // Track points have no markers, and no waypoints unless requested
+            if(route.isTrackPoint(i)) {
+                continue;
+            }
+            
+            Waypoint wp = route.getWaypoint(i);
+            if(wp.hasMarker() && (route.getInterimMarkersVisible() || i == 0 || i == last)) {
                 displayWaypoint(wp);
             }
         }
         
-        for(Polyline p : route.getLines()) {
-            Waypoint wp = getWaypointForLine(route, p);
-            wp.setConnection(p);
-            
-            displayShape(p);
+        // Each leg line is linked to the waypoint it ends at, lines through track points to none.
+        // Lines through track points are drawn simplified for the zoom level.
+        int zoom = googleMap.getZoom();
+        for(Polyline line : route.getLines()) {
+            if(line.getOptions().getPath() instanceof RouteGeometry.Path) {
+                showTrackLine(route, line, zoom);
+                displayLine(null, line);
+            }
+        }
+        displayedRoutes.put(route, zoom);
+        for(int i = 1;i <= last;i++) {
+            if(!route.isTrackPoint(i) && route.getWaypoint(i).getConnection() != null) {
+                displayLine(route.getWaypoint(i), route.getWaypoint(i).getConnection());
+            }
+        }
+    }
+    
+    /**
+     * Draws the specified line through track points of the specified route with 
+     * the points of the route's simplification for the specified zoom level.
+     * 
+     * @param route     the route owning the line
+     * @param line      the line, whose path is a view of the route's geometry
+     * @param zoom      the zoom level
+     */
+    private void showTrackLine(Route route, Polyline line, int zoom) {
+        RouteGeometry.Path path = (RouteGeometry.Path)line.getOptions().getPath();
+        line.showPath(route.getSimplification().getPath(path.getFrom(), path.getTo(), zoom));
+    }
+    
+    /**
+     * Schedules drawing the displayed routes' track lines for the new zoom 
+     * level, once for any number of zoom changes in a row (see {@link #refresh()}).
+     */
+    private void zoomChanged() {
+        if(zoomUpdatePending) {
+            return;
         }
+        zoomUpdatePending = true;
+        Platform.runLater(() -> {
+            zoomUpdatePending = false;
+            int zoom = googleMap.getZoom();
+            for(Route route : displayedRoutes.keySet()) {
+                // Levels with as many points are the same, as each holds those of the levels below it
+                int shown = displayedRoutes.get(route);
+                if(route.getSimplification().getPointCount(shown) != route.getSimplification().getPointCount(zoom)) {
+                    for(Polyline line : route.getLines()) {
+                        if(line.getOptions().getPath() instanceof RouteGeometry.Path) {
+                            showTrackLine(route, line, zoom);
+                        }
+                    }
+                }
+                displayedRoutes.put(route, zoom);
+            }
+        });
     }
     
     /**
@@ -743,11 +898,11 @@ public class MapPane extends StackPane implements Map {
     
     /**
      * <p>
-     * Finds the Waypoint with the same path as the specified line's path.
-     * There are copies of Waypoints and Lines which are equal but do not 
-     * have the same underlying peer (JSObject). Therefore, picking lines
-     * on a map which aren't really displayed will result in context menu 
-     * actions that don't invoke anything. 
+     * Finds the Waypoint whose leg is the specified line. Lines and 
+     * Waypoints are looked up by identity in the current map's reverse
+     * indexes (see {@link PersistentMap#getWaypointForLine(Polyline)}), 
+     * since copies which are equal do not have the same underlying 
+     * peer (JSObject).
      * </p><p>
      * This method ensures that we reference the Waypoint and Polyline 
      * which are in the {@link Route}'s list of waypoint and lines which 
@@ -759,12 +914,11 @@ public class MapPane extends StackPane implements Map {
      */
     @Override
     public Waypoint getWaypointForLine(Route route, Polyline line) {
-        for(Waypoint wp : route.getWaypoints()) {
-            if(wp.getConnection() != null && wp.getConnection().getOptions().getPath().equals(line.getOptions().getPath())) {
-                return wp;
-            }
+        PersistentMap map = MAP_STORE.getMap(MAP_STORE.getSelectedMapName());
+        if(map == null || map.getRouteForLine(line) != route) {
+            return null;
         }
-        return null;
+        return map.getWaypointForLine(line);
     }
     
     /**
@@ -777,12 +931,12 @@ public class MapPane extends StackPane implements Map {
      */
     @Override
     public Polyline getLineForWaypoint(Route route, Waypoint wp) {
-        for(Polyline line : route.getLines()) {
-            if(wp.getConnection() != null && wp.getConnection().getOptions().getPath().equals(line.getOptions().getPath())) {
-                return line;
-            }
+        PersistentMap map = MAP_STORE.getMap(MAP_STORE.getSelectedMapName());
+        Polyline line = wp.getConnection();
+        if(map == null || line == null || map.getRouteForLine(line) != route) {
+            return null;
         }
-        return null;
+        return line;
     }
     
     /**
@@ -792,10 +946,8 @@ public class MapPane extends StackPane implements Map {
      */
     @Override
     public Route getRouteForWaypoint(Waypoint wp) {
-       Optional<Route> or = Optional.of(MAP_STORE.getMap(MAP_STORE.getSelectedMapName()).getRoutes().stream()
-           .filter(r -> r.getWaypoints().stream().anyMatch(w -> w.getLatLon().equals(wp.getLatLon())))
-           .collect(Collectors.toList()).get(0));
-       return or.isPresent() ? or.get() : null;
+        PersistentMap map = MAP_STORE.getMap(MAP_STORE.getSelectedMapName());
+        return map == null ? null : map.getRouteForWaypoint(wp);
     }
     
     /**
@@ -805,10 +957,8 @@ public class MapPane extends StackPane implements Map {
      */
     @Override
     public Route getRouteForLine(Polyline p) {
-        Optional<Route> or = Optional.of(MAP_STORE.getMap(MAP_STORE.getSelectedMapName()).getRoutes().stream()
-            .filter(r -> r.getLines().stream().anyMatch(l -> l.getOptions().getPath().equals(p.getOptions().getPath())))
-            .collect(Collectors.toList()).get(0));
-        return or.isPresent() ? or.get() : null;
+        PersistentMap map = MAP_STORE.getMap(MAP_STORE.getSelectedMapName());
+        return map == null ? null : map.getRouteForLine(p);
     }
     
     /**
@@ -865,7 +1015,7 @@ public class MapPane extends StackPane implements Map {
      */
     public void deleteMap(String mapName) {
         MAP_STORE.deleteMap(mapName);
-        MAP_STORE.store();
+        MAP_STORE.commit();
     }
     
     /**
@@ -875,11 +1025,9 @@ public class MapPane extends StackPane implements Map {
      * @param name  name of the {@link Route} to clear.
      */
     public void clearRoute(String name) {
-        for(Route r : MAP_STORE.getMap(MAP_STORE.getSelectedMapName()).getRoutes()) {
-            if(r.getName().equals(name)) {
-                clearRoute(r);                
-                break;
-            }
+        Route r = MAP_STORE.getMap(MAP_STORE.getSelectedMapName()).getRoute(name);
+        if(r != null) {
+            clearRoute(r);
         }
     }
 
@@ -1058,7 +1206,7 @@ public class MapPane extends StackPane implements Map {
             if(currentMode == Mode.ADD_WAYPOINTS) {
                 LatLong ll = new LatLong((JSObject) obj.getMember("latLng"));
                 
-                Waypoint waypoint = createWaypoint(new LatLon(ll.getLatitude(), ll.getLongitude()));
+                Waypoint waypoint = createWaypoint(snap(new LatLon(ll.getLatitude(), ll.getLongitude())));
                 
                 addNewWaypoint(waypoint);
                 
@@ -1073,5 +1221,6 @@ public class MapPane extends StackPane implements Map {
     private void createGoogleMap() {
         googleMap = mapComponent.createMap(userMapOptions == null ? 
             DEFAULT_MAP_OPTIONS.convert() : userMapOptions.convert());
+        googleMap.zoomProperty().addListener((v, o, n) -> zoomChanged());
     }
 }
@@ -1,23 +1,25 @@
 package ai.cogmission.fxmaps.xml;
 
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
 
+import ai.cogmission.fxmaps.model.Animation;
 import ai.cogmission.fxmaps.model.LatLon;
-import ai.cogmission.fxmaps.model.Marker;
-import ai.cogmission.fxmaps.model.MarkerOptions;
+import ai.cogmission.fxmaps.model.MarkerStyle;
 import ai.cogmission.fxmaps.model.MarkerType;
 import ai.cogmission.fxmaps.model.PersistentMap;
-import ai.cogmission.fxmaps.model.Polyline;
-import ai.cogmission.fxmaps.model.PolylineOptions;
 import ai.cogmission.fxmaps.model.Route;
+import ai.cogmission.fxmaps.model.RouteGeometry;
 import ai.cogmission.fxmaps.model.Waypoint;
-import ai.cogmission.fxmaps.ui.MapPane;
 
 import com.google.gson.annotations.SerializedName;
 
 
 public class GPXPersistentMap {
+    private static final MarkerStyle WAYPOINT_STYLE = MarkerStyle.of(MarkerType.GREEN, "Waypoint", true, Animation.NULL);
+    
     @SerializedName("trk")
     protected List<GPXTrack> tracks = new ArrayList<>();
     
@@ -85,15 +87,26 @@ public class GPXPersistentMap {
                 
                 for(GPXTrack track : gpxMap.getTracks()) {
                     Route route = new Route(track.name);
-                    for(GPXTrackPoint point : track.trackSegment.trackPoints) {
-                        Waypoint wp = createWaypoint(new LatLon(point.lat, point.lon));
-                        route.addWaypoint(wp);
-                        if(route.size() > 1) {
-                            connectWaypoints(route);
+                    List<GPXTrackPoint> points = track.trackSegment.trackPoints;
+                    for(int i = 0;i < points.size();i++) {
+                        GPXTrackPoint point = points.get(i);
+                        if(i == 0 || i == points.size() - 1) {
+                            // Only the start and the end of a track are marked
+                            Waypoint wp = createWaypoint(new LatLon(point.lat, point.lon));
+                            route.addWaypoint(wp);
+                            if(route.size() > 1) {
+                                connectWaypoints(route);
+                            }
+                            setElevationAndTime(route, point.ele, point.time);
+                        }else{
+                            route.addPoint(point.lat, point.lon, elevation(point.ele), time(point.time));
                         }
                     }
+                    route.trimToSize();
                     retVal.addRoute(route);
                 }
+                // Tracks can hold many points, index them in bulk (in parallel for large maps)
+                retVal.getSpatialIndex().build();
                 retVal.createUnderlying();
                 return retVal;
             }
@@ -110,6 +123,7 @@ public class GPXPersistentMap {
                         if(route.size() > 1) {
                             connectWaypoints(route);
                         }
+                        setElevationAndTime(route, point.ele, point.time);
                     }
                     retVal.addRoute(route);
                 }
@@ -128,6 +142,7 @@ public class GPXPersistentMap {
                     if(route.size() > 1) {
                         connectWaypoints(route);
                     }
+                    setElevationAndTime(route, point.ele, point.time);
                 }
                 retVal.addRoute(route);
                 retVal.createUnderlying();
@@ -139,28 +154,47 @@ public class GPXPersistentMap {
         }
     }
     
+    /**
+     * Creates a waypoint of the shared {@link #WAYPOINT_STYLE}, whose marker is
+     * only created when displayed.
+     */
     private static Waypoint createWaypoint(LatLon latLon) {
-        MarkerOptions opts = new MarkerOptions()
-            .position(latLon)
-            .title("Waypoint")
-            .icon(MarkerType.GREEN.nextPath())
-            .visible(true);
-        
-        return new Waypoint(latLon, new Marker(opts));
+        return new Waypoint(latLon, WAYPOINT_STYLE, MarkerType.GREEN.next());
     }
     
     private static void connectWaypoints(Route currentRoute) {
-        Waypoint lastWaypoint = null;
-        
-        List<LatLon> l = new ArrayList<>();
-        l.add(currentRoute.getWaypoint(currentRoute.size() - 2).getLatLon());
-        l.add((lastWaypoint = currentRoute.getWaypoint(currentRoute.size() - 1)).getLatLon());
+        currentRoute.addLeg(null);
+    }
+    
+    /**
+     * Sets the elevation and time of the route's last point
+     */
+    private static void setElevationAndTime(Route route, Double ele, String time) {
+        route.setElevation(route.size() - 1, elevation(ele));
+        route.setTime(route.size() - 1, time(time));
+    }
+    
+    private static double elevation(Double ele) {
+        return ele == null ? Double.NaN : ele;
+    }
+    
+    /**
+     * Converts the specified GPX (ISO-8601) time to milliseconds since the epoch
+     * 
+     * @param time  the time or null
+     * @return  the time in milliseconds or {@link RouteGeometry#NO_TIME} if missing or malformed
+     */
+    private static long time(String time) {
+        if(time == null) {
+            return RouteGeometry.NO_TIME;
+        }
         
-        Polyline poly = new Polyline(PolylineOptions.copy(MapPane.getDefaultPolylineOptions()).path(l));
-     
-        lastWaypoint.setConnection(poly);
-     
-        currentRoute.addLine(poly);
+        try {
+            return Instant.parse(time.trim()).toEpochMilli();
+        }catch(DateTimeParseException e) {
+            System.out.println("Skipping malformed GPX time: " + time);
+            return RouteGeometry.NO_TIME;
+        }
     }
     
     private static void validateTracks(GPXPersistentMap gpxMap) {
@@ -11,7 +11,7 @@ public class GPXRoutePoint {
     public double lon;
     
     @SerializedName("ele")
-    public double ele;
+    public Double ele;
     
     @SerializedName("name")
     public String name;
@@ -8,7 +8,7 @@ public class GPXTrackPoint {
     @SerializedName("@lon")
     protected double lon;
     @SerializedName("ele")
-    protected double ele;
+    protected Double ele;
     @SerializedName("time")
     protected String time;
     
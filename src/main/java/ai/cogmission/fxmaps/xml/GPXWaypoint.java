@@ -9,7 +9,7 @@ public class GPXWaypoint {
     @SerializedName("@lon")
     public double lon;
     @SerializedName("ele")
-    public double ele;
+    public Double ele;
     @SerializedName("name")
     public String name;
     @SerializedName("time")
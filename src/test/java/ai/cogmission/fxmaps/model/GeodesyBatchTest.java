@@ -0,0 +1,119 @@
+package ai.cogmission.fxmaps.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ai.cogmission.fxmaps.ui.Map;
+
+
+public class GeodesyBatchTest {
+
+    private double[] random(Random random, int n, double range) {
+        double[] values = new double[n];
+        for(int i = 0;i < n;i++) {
+            values[i] = (random.nextDouble() * 2 - 1) * range;
+        }
+        return values;
+    }
+
+    @Test
+    public void testMatchesScalar() {
+        Random random = new Random(5);
+        int n = 1000;
+        double[] lats = random(random, n, 80), lons = random(random, n, 180);
+        double[] lats2 = random(random, n, 80), lons2 = random(random, n, 180);
+        double[] lengths = new double[n], bearings = new double[n], pairs = new double[n];
+        double[] from = new double[n], segments = new double[n], vincenty = new double[n];
+        GeodesyBatch.legLengths(lats, lons, 1, n, lengths, false);
+        GeodesyBatch.bearings(lats, lons, 1, n, bearings, false);
+        GeodesyBatch.distances(lats, lons, lats2, lons2, 0, n, pairs, false);
+        GeodesyBatch.distances(10, 20, lats, lons, 0, n, from, false);
+        GeodesyBatch.segmentDistances(10, 20, lats, lons, 1, n, segments, false);
+        GeodesyBatch.vincentyDistances(lats, lons, lats2, lons2, 0, n, vincenty, false);
+
+        for(int i = 0;i < n;i++) {
+            assertEquals(Geodesy.distance(lats[i], lons[i], lats2[i], lons2[i]), pairs[i], 1e-6);
+            assertEquals(Geodesy.distance(10, 20, lats[i], lons[i]), from[i], 1e-6);
+            assertEquals(Geodesy.vincentyDistance(lats[i], lons[i], lats2[i], lons2[i]), vincenty[i], 1e-6);
+            if(i > 0) {
+                assertEquals(Geodesy.distance(lats[i - 1], lons[i - 1], lats[i], lons[i]), lengths[i], 1e-6);
+                assertEquals(Geodesy.bearing(lats[i - 1], lons[i - 1], lats[i], lons[i]), bearings[i], 1e-9);
+                assertEquals(Geodesy.segmentDistance(10, 20, lats[i - 1], lons[i - 1], lats[i], lons[i]), segments[i], 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        Random random = new Random(9);
+        int n = GeodesyBatch.PARALLEL_THRESHOLD * 3 + 17;
+        double[] lats = random(random, n, 80), lons = random(random, n, 180);
+        double[] sequential = new double[n], parallel = new double[n];
+        GeodesyBatch.legLengths(lats, lons, 1, n, sequential, false);
+        GeodesyBatch.legLengths(lats, lons, 1, n, parallel, true);
+        assertArrayEquals(sequential, parallel, 0);
+
+        GeodesyBatch.bearings(lats, lons, 1, n, sequential, false);
+        GeodesyBatch.bearings(lats, lons, 1, n, parallel, true);
+        assertArrayEquals(sequential, parallel, 0);
+    }
+
+    @Test
+    public void testKnownValues() {
+        // Flinders Peak to Buninyong, from Vincenty's paper
+        double lat1 = -(37 + 57 / 60.0 + 3.72030 / 3600), lon1 = 144 + 25 / 60.0 + 29.52440 / 3600;
+        double lat2 = -(37 + 39 / 60.0 + 10.15610 / 3600), lon2 = 143 + 55 / 60.0 + 35.38390 / 3600;
+        assertEquals(54972.271, Geodesy.vincentyDistance(lat1, lon1, lat2, lon2), 1e-3);
+        assertEquals(0, Geodesy.vincentyDistance(lat1, lon1, lat1, lon1), 0);
+
+        assertEquals(90, Geodesy.bearing(0, 0, 0, 1), 1e-9);
+        assertEquals(180, Geodesy.bearing(1, 0, 0, 0), 1e-9);
+        assertEquals(270, Geodesy.bearing(0, 1, 0, 0), 1e-9);
+    }
+
+    @Test
+    public void testDestinations() {
+        Random random = new Random(17);
+        int n = 1000;
+        double[] lats = random(random, n, 80), lons = random(random, n, 180);
+        double[] bearings = new double[n], meters = new double[n];
+        for(int i = 0;i < n;i++) {
+            bearings[i] = random.nextDouble() * 360;
+            meters[i] = random.nextDouble() * 1000000;
+        }
+        double[] outLats = new double[n], outLons = new double[n];
+        GeodesyBatch.destinations(lats, lons, bearings, meters, 0, n, outLats, outLons, false);
+
+        for(int i = 0;i < n;i++) {
+            assertEquals(meters[i], Geodesy.distance(lats[i], lons[i], outLats[i], outLons[i]), 1e-3);
+            double turn = Geodesy.bearing(lats[i], lons[i], outLats[i], outLons[i]) - bearings[i];
+            assertEquals(0, (turn + 540) % 360 - 180, 1e-6);
+            LatLon ll = Geodesy.destination(new LatLon(lats[i], lons[i]), bearings[i], meters[i]);
+            assertEquals(outLats[i], ll.getLatitude(), 0);
+            assertEquals(outLons[i], ll.getLongitude(), 0);
+        }
+
+        // Across the antimeridian
+        assertEquals(-179.5, Geodesy.destination(new LatLon(0, 179.5), 90, Geodesy.distance(0, 0, 0, 1)).getLongitude(), 1e-9);
+    }
+
+    @Test
+    public void testRouteColumns() {
+        Route r = Map.createRoute("r");
+        assertEquals(0, r.getLegLengths().length);
+        r.addPoint(0, 0);
+        r.addPoint(0, 1);
+        r.addPoint(1, 1);
+
+        assertArrayEquals(new double[] { 0, Geodesy.distance(0, 0, 0, 1), Geodesy.distance(0, 1, 1, 1) }, r.getLegLengths(), 1e-6);
+        double[] bearings = r.getBearings();
+        assertEquals(Double.NaN, bearings[0], 0);
+        assertEquals(90, bearings[1], 1e-9);
+        assertEquals(0, bearings[2], 1e-9);
+        assertEquals(Geodesy.distance(1, 1, 0, 1), r.getDistancesFrom(new LatLon(1, 1))[1], 1e-6);
+    }
+}
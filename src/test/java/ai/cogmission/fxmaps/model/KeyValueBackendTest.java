@@ -0,0 +1,132 @@
+package ai.cogmission.fxmaps.model;
+
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.createWaypoint;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.deleteStore;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.storePath;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ai.cogmission.fxmaps.ui.Map;
+
+
+public class KeyValueBackendTest {
+    private static final String LOG_PATH = storePath("testKeyValueMapStore.log");
+    private static final String STORE_PATH = storePath("testBackendMapStore.json");
+
+    @After
+    public void cleanUp() throws Exception {
+        deleteStore(LOG_PATH);
+        deleteStore(STORE_PATH);
+    }
+
+    private MapStore populate(MapStore store) {
+        for(String name : Arrays.asList("alpha", "beta")) {
+            store.addMap(name);
+            Route r = Map.createRoute(name + "Route");
+            store.addRoute(r);
+            for(int i = 0;i < KeyValueBackend.CHUNK_SIZE + 10;i++) {
+                store.addWaypoint(r, createWaypoint(20, -20 + i * 0.01));
+                r.addLeg(i == 3 ? new PolylineOptions().strokeColor("red") : null);
+            }
+            store.addRoute(Map.createRoute(name + "Empty"));
+        }
+        return store;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        MapStore store = populate(MapStore.open(new KeyValueBackend(LOG_PATH)));
+        store.store();
+        store.getBackend().close();
+
+        MapStore reopened = MapStore.open(new KeyValueBackend(LOG_PATH));
+        assertEquals(new TreeSet<>(Arrays.asList("alpha", "beta")), reopened.getMapNames());
+        assertEquals("beta", reopened.getSelectedMapName());
+        assertFalse(reopened.isMapLoaded("alpha"));
+
+        PersistentMap alpha = reopened.getMap("alpha");
+        assertEquals(store.getMap("alpha"), alpha);
+        assertFalse(alpha.isDirty());
+        Route route = alpha.getRoute("alphaRoute");
+        assertEquals(KeyValueBackend.CHUNK_SIZE + 10, route.size());
+        assertTrue(route.pathEquals(store.getMap("alpha").getRoute("alphaRoute")));
+        assertEquals("red", route.getLines().get(3).getOptions().getStrokeColor());
+
+        // A single route is read without its map
+        Route beta = reopened.getBackend().getRoute("beta", store.getMap("beta").getRoute("betaRoute").getId());
+        assertEquals(KeyValueBackend.CHUNK_SIZE + 10, beta.size());
+        assertFalse(reopened.isMapLoaded("beta"));
+        assertNull(reopened.getBackend().getRoute("beta", "missing"));
+
+        reopened.deleteMap("beta");
+        reopened.getBackend().close();
+        reopened = MapStore.open(new KeyValueBackend(LOG_PATH));
+        assertEquals(new TreeSet<>(Arrays.asList("alpha")), reopened.getMapNames());
+        assertTrue(((KeyValueBackend)reopened.getBackend()).getLog().keys("chunk\u001fbeta").isEmpty());
+        reopened.getBackend().close();
+    }
+
+    @Test
+    public void testMutationsApplyIncrementally() throws Exception {
+        MapStore store = populate(MapStore.open(new KeyValueBackend(LOG_PATH)));
+        store.store();
+        store.getBackend().close();
+
+        store = MapStore.open(new KeyValueBackend(LOG_PATH));
+        store.selectMap("alpha");
+        Route route = store.getMap("alpha").getRoute("alphaRoute");
+        Waypoint second = route.getWaypoint(1);
+        long size = ((KeyValueBackend)store.getBackend()).getLog().size();
+        store.addWaypoint(route, createWaypoint(30, 30));
+        store.removeWaypoint(route, second);
+        // Only the route's record and the changed chunks are written
+        assertTrue(((KeyValueBackend)store.getBackend()).getLog().size() - size < 25000);
+        assertFalse(route.isDirty());
+
+        Route added = Map.createRoute("added");
+        store.addRoute(added);
+        store.addWaypoint(added, createWaypoint(40, 40));
+        store.removeRoute(store.getMap("alpha").getRoute("alphaEmpty"));
+        assertFalse(store.getMap("alpha").isDirty());
+        store.getBackend().close();
+
+        // Persisted without a call to store()
+        MapStore reopened = MapStore.open(new KeyValueBackend(LOG_PATH));
+        PersistentMap alpha = reopened.getMap("alpha");
+        assertTrue(alpha.getRoute("alphaRoute").pathEquals(route));
+        assertEquals(30, alpha.getRoute("alphaRoute").getDestination().getLatLon().getLatitude(), 0);
+        assertEquals(1, alpha.getRoute("added").size());
+        assertNull(alpha.getRoute("alphaEmpty"));
+        assertEquals(store.getMap("alpha"), alpha);
+        reopened.getBackend().close();
+    }
+
+    @Test
+    public void testJsonFileBackend() throws Exception {
+        MapStore store = populate(MapStore.open(new JsonFileBackend(STORE_PATH)));
+        assertNotNull(store.store());
+        store.getBackend().close();
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertEquals(store.getMap("alpha"), loaded.getMap("alpha"));
+
+        MapStore reopened = MapStore.open(new JsonFileBackend(STORE_PATH));
+        assertEquals("beta", reopened.getSelectedMapName());
+        Route beta = store.getMap("beta").getRoute("betaRoute");
+        assertTrue(beta.pathEquals(reopened.getBackend().getRoute("beta", beta.getId())));
+        assertNull(reopened.getBackend().getRoute("beta", "missing"));
+        reopened.deleteMap("alpha");
+        reopened.store();
+        assertEquals(new TreeSet<>(Arrays.asList("beta")), MapStore.load(STORE_PATH).getMapNames());
+        assertEquals(store.getMap("beta"), MapStore.load(STORE_PATH).getMap("beta"));
+    }
+}
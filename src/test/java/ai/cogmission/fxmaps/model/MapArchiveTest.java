@@ -0,0 +1,124 @@
+package ai.cogmission.fxmaps.model;
+
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.createWaypoint;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.deleteStore;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.storePath;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ai.cogmission.fxmaps.ui.Map;
+
+
+public class MapArchiveTest {
+    private static final String ARCHIVE_PATH = storePath("testMapArchive.fxa");
+    private static final String STORE_PATH = storePath("testArchiveMapStore.json");
+
+    @After
+    public void cleanUp() throws Exception {
+        deleteStore(ARCHIVE_PATH);
+        deleteStore(STORE_PATH);
+    }
+
+    private PersistentMap createMap(String name, int routes) {
+        PersistentMap map = new PersistentMap(name);
+        map.setMapOptions(new MapOptions().center(new LatLon(20, -20)).zoom(9).mapType(MapType.TERRAIN));
+        for(int r = 0;r < routes;r++) {
+            Route route = Map.createRoute("route" + r);
+            for(int i = 0;i < 10;i++) {
+                route.addWaypoint(createWaypoint(20 + r, -20 + i * 0.5, "Waypoint " + i));
+                route.addLeg(i == 5 ? new PolylineOptions().strokeColor("red").strokeWeight(3) : null);
+            }
+            map.addRoute(route);
+        }
+        map.addRoute(Map.createRoute("empty"));
+        return map;
+    }
+
+    private MapStore storeArchive() throws Exception {
+        MapStore store = new MapStore(STORE_PATH);
+        store.addMap(createMap("alpha", 3));
+        store.addMap(createMap("beta", 2));
+        store.selectMap("beta");
+        assertTrue(store.storeArchive(ARCHIVE_PATH));
+        return store;
+    }
+
+    @Test
+    public void testOpensWithoutMaterializing() throws Exception {
+        MapStore store = storeArchive();
+        assertTrue(MapArchive.isArchive(Paths.get(ARCHIVE_PATH)));
+
+        MapStore archived = MapStore.load(ARCHIVE_PATH);
+        assertTrue(archived.isArchive());
+        assertEquals(new TreeSet<>(Arrays.asList("alpha", "beta")), archived.getMapNames());
+        assertEquals("beta", archived.getSelectedMapName());
+        assertFalse(archived.isMapLoaded("alpha"));
+
+        PersistentMap alpha = archived.getMap("alpha");
+        assertEquals(MapType.TERRAIN, alpha.getMapOptions().mapType);
+        assertEquals(4, alpha.getRoutes().size());
+        ArchivedRoute route = (ArchivedRoute)alpha.getRoute("route2");
+        assertEquals(10, route.size());
+        assertEquals(22, route.getLatitude(0), 0);
+        assertEquals(-15.5, route.getLongitude(9), 0);
+        assertFalse(route.isMaterialized());
+        assertFalse(alpha.isDirty());
+
+        // Waypoints are created on first access
+        Route original = store.getMap("alpha").getRoute("route2");
+        assertEquals(original.getId(), route.getId());
+        assertTrue(route.pathEquals(original));
+        assertTrue(route.isMaterialized());
+        assertSame(route.getWaypoint(0), route.getOrigin());
+        assertEquals("Waypoint 3", route.getWaypoint(3).getMarker().getTitle());
+        assertEquals(9, route.getLines().size());
+        assertEquals("red", route.getLines().get(4).getOptions().getStrokeColor());
+        assertEquals(0, alpha.getRoute("empty").size());
+    }
+
+    @Test
+    public void testIsReadOnly() throws Exception {
+        storeArchive();
+        byte[] bytes = Files.readAllBytes(Paths.get(ARCHIVE_PATH));
+
+        MapStore archived = MapStore.load(ARCHIVE_PATH);
+        Route route = archived.getMap("beta").getRoute("route0");
+        try {
+            route.addWaypoint(createWaypoint(0, 0, "Waypoint"));
+            throw new AssertionError("Archived route was modified");
+        }catch(UnsupportedOperationException e) {}
+        try {
+            route.getWaypoints().remove(0);
+            throw new AssertionError("Archived route was modified");
+        }catch(UnsupportedOperationException e) {}
+
+        assertNull(archived.store());
+        assertTrue(Arrays.equals(bytes, Files.readAllBytes(Paths.get(ARCHIVE_PATH))));
+    }
+
+    @Test
+    public void testExportsToStore() throws Exception {
+        MapStore store = storeArchive();
+
+        MapStore archived = MapStore.load(ARCHIVE_PATH);
+        archived.storeAs(STORE_PATH, false);
+        Path p = Paths.get(STORE_PATH);
+        assertFalse(MapArchive.isArchive(p));
+
+        MapStore exported = MapStore.load(STORE_PATH);
+        assertEquals(store.getMap("alpha"), exported.getMap("alpha"));
+        assertEquals(store.getMap("beta"), exported.getMap("beta"));
+    }
+}
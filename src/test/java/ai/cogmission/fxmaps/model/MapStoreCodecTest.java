@@ -0,0 +1,166 @@
+package ai.cogmission.fxmaps.model;
+
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.createWaypoint;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.deleteStore;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.storePath;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ai.cogmission.fxmaps.ui.Map;
+
+
+public class MapStoreCodecTest {
+    private static final String STORE_PATH = storePath("testCodecMapStore.bin");
+    private static final String EXPORT_PATH = storePath("testCodecMapStore.json");
+
+    @After
+    public void cleanUp() throws Exception {
+        deleteStore(STORE_PATH);
+        deleteStore(EXPORT_PATH);
+    }
+
+    private void addConnectedWaypoint(Route r, Waypoint w) {
+        r.addWaypoint(w);
+        r.addLeg(new PolylineOptions().strokeColor("red").strokeWeight(3).strokeOpacity(0.5).visible(true));
+    }
+
+    private PersistentMap createMap(String name, int waypoints) {
+        PersistentMap map = new PersistentMap(name);
+        map.setMapOptions(new MapOptions().center(new LatLon(20, -20)).zoom(9).mapType(MapType.TERRAIN).zoomControl(true));
+        Route r = Map.createRoute("route1");
+        for(int i = 0;i < waypoints;i++) {
+            addConnectedWaypoint(r, createWaypoint(20 + i * 0.001, -20 - i * 0.001));
+        }
+        map.addRoute(r);
+        return map;
+    }
+
+    @Test
+    public void testMapRoundTrip() throws Exception {
+        PersistentMap map = createMap("test", 20);
+
+        PersistentMap decoded = MapStoreCodec.decodeMap(MapStoreCodec.encodeMap(map));
+        assertEquals(map, decoded);
+
+        Route r = decoded.getRoute("route1");
+        assertEquals(map.getRoute("route1").getId(), r.getId());
+        assertEquals(19, r.getLines().size());
+        assertSame(r.getLines().get(0), r.getWaypoint(1).getConnection());
+        assertEquals("red", r.getLines().get(0).getOptions().getStrokeColor());
+        assertEquals(3, r.getLines().get(0).getOptions().getStrokeWeight(), 0);
+        List<Polyline> lines = map.getRoute("route1").getLines();
+        assertEquals(lines.size(), r.getLines().size());
+        for(int i = 0;i < lines.size();i++) {
+            assertTrue(lines.get(i).contentEquals(r.getLines().get(i)));
+        }
+        assertEquals(MapType.TERRAIN, decoded.getMapOptions().mapType);
+        assertEquals(9, decoded.getMapOptions().zoom);
+        assertEquals(new LatLon(20, -20), decoded.getMapOptions().center);
+    }
+
+    @Test
+    public void testLegStyleRoundTrip() throws Exception {
+        PersistentMap map = createMap("test", 5);
+        Route r = map.getRoute("route1");
+        r.addWaypoint(createWaypoint(21, -21));
+        r.addLeg(new PolylineOptions().strokeColor("blue").strokeWeight(3).strokeOpacity(0.5).visible(true));
+        assertNull(r.getWaypoint(4).getLegStyle());
+        assertNotNull(r.getWaypoint(5).getLegStyle());
+
+        PersistentMap decoded = MapStoreCodec.decodeMap(MapStoreCodec.encodeMap(map));
+        assertEquals(map, decoded);
+        Route dr = decoded.getRoute("route1");
+        assertEquals(5, dr.getLines().size());
+        assertEquals("red", dr.getLines().get(3).getOptions().getStrokeColor());
+        assertEquals("blue", dr.getLines().get(4).getOptions().getStrokeColor());
+        assertSame(dr.getLines().get(4), dr.getWaypoint(5).getConnection());
+    }
+
+    @Test
+    public void testTrackPointRoundTrip() throws Exception {
+        PersistentMap map = createMap("test", 3);
+        Route r = map.getRoute("route1");
+        r.setElevation(0, 5);
+        for(int i = 0;i < 100;i++) {
+            r.addPoint(21 + i * 0.001, -21, 10 + i, 1406572942487L + i * 1000);
+        }
+        addConnectedWaypoint(r, createWaypoint(22, -22));
+
+        for(PersistentMap decoded : new PersistentMap[] {
+            MapStoreCodec.decodeMap(MapStoreCodec.encodeMap(map)), MapStoreJson.decodeMap(MapStoreJson.encodeMap(map)) }) {
+
+            assertEquals(map, decoded);
+            Route dr = decoded.getRoute("route1");
+            assertEquals(104, dr.size());
+            assertEquals(4, dr.getWaypointObjectCount());
+            assertTrue(dr.isTrackPoint(50));
+            assertEquals(5, dr.getElevation(0), 0);
+            assertTrue(Double.isNaN(dr.getElevation(1)));
+            assertEquals(57, dr.getElevation(50), 0);
+            assertEquals(1406572942487L + 47000, dr.getTime(50));
+            assertEquals(RouteGeometry.NO_TIME, dr.getTime(103));
+            assertEquals(r.getLines().size(), dr.getLines().size());
+            for(int i = 0;i < r.getLines().size();i++) {
+                assertTrue(r.getLines().get(i).contentEquals(dr.getLines().get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryStoreAndJsonExport() throws Exception {
+        MapStore store = new MapStore(STORE_PATH);
+        store.setBinary(true);
+        store.addMap(createMap("alpha", 50));
+        store.addMap(createMap("beta", 50));
+        store.selectMap("beta");
+        assertNotNull(store.store());
+        assertTrue(MapStoreCodec.isBinary(Paths.get(STORE_PATH)));
+
+        assertNotNull(store.storeAs(EXPORT_PATH, false));
+        assertFalse(MapStoreCodec.isBinary(Paths.get(EXPORT_PATH)));
+        assertFalse(Files.exists(MapStoreIndex.indexPath(EXPORT_PATH)));
+        assertTrue(Files.size(Paths.get(STORE_PATH)) * 3 < Files.size(Paths.get(EXPORT_PATH)));
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertTrue(loaded.isBinary());
+        assertFalse(loaded.isMapLoaded("alpha"));
+        assertEquals("beta", loaded.getSelectedMapName());
+        assertEquals(store.getMap("alpha"), loaded.getMap("alpha"));
+
+        MapStore imported = MapStore.load(EXPORT_PATH);
+        assertFalse(imported.isBinary());
+        assertEquals(store.getMap("beta"), imported.getMap("beta"));
+    }
+
+    @Test
+    public void testFormatChangeConvertsUnloadedMaps() throws Exception {
+        MapStore store = new MapStore(STORE_PATH);
+        store.addMap(createMap("alpha", 10));
+        store.addMap(createMap("beta", 10));
+        store.store();
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertFalse(loaded.isBinary());
+        loaded.setBinary(true);
+        loaded.store();
+
+        // Without an index the binary file is read in full
+        Files.delete(MapStoreIndex.indexPath(STORE_PATH));
+        MapStore reloaded = MapStore.load(STORE_PATH);
+        assertTrue(reloaded.isBinary());
+        assertTrue(reloaded.isMapLoaded("alpha"));
+        assertEquals(store.getMap("alpha"), reloaded.getMap("alpha"));
+        assertEquals(store.getMap("beta"), reloaded.getMap("beta"));
+    }
+}
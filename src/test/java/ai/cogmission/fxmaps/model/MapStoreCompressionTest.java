@@ -0,0 +1,123 @@
+package ai.cogmission.fxmaps.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ai.cogmission.fxmaps.ui.Map;
+
+
+public class MapStoreCompressionTest {
+    private static final String STORE_PATH = System.getProperty("user.home").concat("/testCompressedMapStore.json");
+    private static final String PLAIN_PATH = System.getProperty("user.home").concat("/testPlainMapStore.json");
+
+    @After
+    public void cleanUp() throws Exception {
+        for(String path : new String[] { STORE_PATH, PLAIN_PATH }) {
+            for(int g = 0;g < 3;g++) {
+                Files.deleteIfExists(Paths.get(MapStoreFiles.generationPath(path, g)));
+                Files.deleteIfExists(MapStoreIndex.indexPath(MapStoreFiles.generationPath(path, g)));
+            }
+        }
+    }
+
+    private PersistentMap createMap(String name) {
+        PersistentMap map = new PersistentMap(name);
+        Route r = Map.createRoute("route1");
+        for(int i = 0;i < 50;i++) {
+            LatLon ll = new LatLon(20 + i * 0.01, -20);
+            MarkerOptions opts = new MarkerOptions()
+                .position(ll)
+                .title("Waypoint " + i)
+                .icon(MarkerType.GREEN.nextPath())
+                .visible(true);
+            r.addWaypoint(new Waypoint(ll, new Marker(opts)));
+            r.addLeg(null);
+        }
+        map.addRoute(r);
+        return map;
+    }
+
+    private MapStore createStore(String path) throws Exception {
+        MapStore store = new MapStore(path);
+        store.addMap(createMap("alpha"));
+        store.addMap(createMap("beta"));
+        store.selectMap("alpha");
+        return store;
+    }
+
+    @Test
+    public void testRoundTripLoadsLazily() throws Exception {
+        MapStore store = createStore(STORE_PATH);
+        store.setCompressed(true);
+        assertEquals("", store.store());
+        assertTrue(MapStoreCompression.isCompressed(Paths.get(STORE_PATH)));
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertTrue(loaded.isCompressed());
+        assertFalse(loaded.isMapLoaded("beta"));
+        assertEquals(store.getMap("beta"), loaded.getMap("beta"));
+        assertEquals(store.getMap("alpha"), loaded.getMap("alpha"));
+    }
+
+    @Test
+    public void testInflatesToPlainStore() throws Exception {
+        MapStore store = createStore(STORE_PATH);
+        store.setCompressed(true);
+        store.store();
+        String json = store.storeAs(PLAIN_PATH, false, false);
+
+        byte[] inflated = MapStoreCompression.decompress(Files.readAllBytes(Paths.get(STORE_PATH)));
+        assertEquals(json, new String(inflated, StandardCharsets.UTF_8));
+        assertTrue(Files.size(Paths.get(STORE_PATH)) < Files.size(Paths.get(PLAIN_PATH)));
+    }
+
+    @Test
+    public void testDetectedWithoutIndex() throws Exception {
+        for(boolean binary : new boolean[] { false, true }) {
+            MapStore store = createStore(STORE_PATH);
+            store.setBinary(binary);
+            store.setCompressed(true);
+            store.store();
+            Files.delete(MapStoreIndex.indexPath(STORE_PATH));
+
+            MapStore loaded = MapStore.load(STORE_PATH);
+            assertTrue(loaded.isCompressed());
+            assertEquals(binary, loaded.isBinary());
+            assertEquals("alpha", loaded.getSelectedMapName());
+            assertEquals(store.getMap("alpha"), loaded.getMap("alpha"));
+            assertEquals(store.getMap("beta"), loaded.getMap("beta"));
+            cleanUp();
+        }
+    }
+
+    @Test
+    public void testUnloadedMapsChangeEncoding() throws Exception {
+        createStore(STORE_PATH).store();
+        MapStore expected = MapStore.load(STORE_PATH);
+        PersistentMap beta = expected.getMap("beta");
+
+        // Plain to compressed, then compressed binary, then back to plain json
+        boolean[][] modes = { { false, true }, { true, true }, { false, false } };
+        for(boolean[] mode : modes) {
+            MapStore store = MapStore.load(STORE_PATH);
+            assertFalse(store.isMapLoaded("beta"));
+            store.setBinary(mode[0]);
+            store.setCompressed(mode[1]);
+            store.store();
+
+            Path p = Paths.get(STORE_PATH);
+            assertEquals(mode[1], MapStoreCompression.isCompressed(p));
+            assertEquals(mode[0], MapStoreCodec.isBinary(p));
+            assertEquals(beta, MapStore.load(STORE_PATH).getMap("beta"));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package ai.cogmission.fxmaps.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ai.cogmission.fxmaps.ui.Map;
+
+
+public class MapStoreFilesTest {
+    private static final String STORE_PATH = System.getProperty("user.home").concat("/testFilesMapStore.json");
+
+    @After
+    public void cleanUp() throws Exception {
+        for(int g = 0;g < 4;g++) {
+            Files.deleteIfExists(Paths.get(MapStoreFiles.generationPath(STORE_PATH, g)));
+            Files.deleteIfExists(MapStoreIndex.indexPath(MapStoreFiles.generationPath(STORE_PATH, g)));
+        }
+        Files.deleteIfExists(Paths.get(STORE_PATH.concat(MapStoreFiles.CORRUPT_EXTENSION)));
+    }
+
+    private PersistentMap createMap(String name) {
+        PersistentMap map = new PersistentMap(name);
+        Route r = Map.createRoute("route1");
+        for(int i = 0;i < 5;i++) {
+            LatLon ll = new LatLon(20 + i, -20);
+            MarkerOptions opts = new MarkerOptions()
+                .position(ll)
+                .title("Waypoint")
+                .icon(MarkerType.GREEN.nextPath())
+                .visible(true);
+            r.addWaypoint(new Waypoint(ll, new Marker(opts)));
+            r.addLeg(null);
+        }
+        map.addRoute(r);
+        return map;
+    }
+
+    /**
+     * Stores one snapshot containing only "alpha" followed by one containing
+     * "alpha" and "beta".
+     */
+    private MapStore storeTwoGenerations() throws Exception {
+        MapStore store = new MapStore(STORE_PATH);
+        store.addMap(createMap("alpha"));
+        store.selectMap("alpha");
+        assertNotNull(store.store());
+        store.addMap(createMap("beta"));
+        assertNotNull(store.store());
+        return store;
+    }
+
+    @Test
+    public void testWriteReplacesFile() throws Exception {
+        Path p = Paths.get(STORE_PATH);
+        MapStoreFiles.write(p, "first".getBytes(StandardCharsets.UTF_8));
+        MapStoreFiles.write(p, "second".getBytes(StandardCharsets.UTF_8));
+        assertArrayEquals("second".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(p));
+        assertFalse(Files.exists(Paths.get(STORE_PATH.concat(MapStoreFiles.TEMP_EXTENSION))));
+    }
+
+    @Test
+    public void testGenerationsRotate() throws Exception {
+        MapStore store = new MapStore(STORE_PATH);
+        store.setGenerations(2);
+        for(String name : new String[] { "a", "b", "c", "d" }) {
+            store.addMap(createMap(name));
+            store.store();
+        }
+
+        assertTrue(Files.exists(Paths.get(MapStoreFiles.generationPath(STORE_PATH, 1))));
+        assertTrue(Files.exists(Paths.get(MapStoreFiles.generationPath(STORE_PATH, 2))));
+        assertFalse(Files.exists(Paths.get(MapStoreFiles.generationPath(STORE_PATH, 3))));
+        assertEquals(4, MapStore.load(STORE_PATH).getMapNames().size());
+        assertEquals(3, MapStore.load(MapStoreFiles.generationPath(STORE_PATH, 1)).getMapNames().size());
+        assertEquals(2, MapStore.load(MapStoreFiles.generationPath(STORE_PATH, 2)).getMapNames().size());
+    }
+
+    @Test
+    public void testChecksumMismatchFallsBack() throws Exception {
+        MapStore store = storeTwoGenerations();
+
+        // Damage both maps' bytes without changing the file's length or modification time
+        Path p = Paths.get(STORE_PATH);
+        FileTime modified = Files.getLastModifiedTime(p);
+        byte[] bytes = Files.readAllBytes(p);
+        for(MapStoreIndex.Entry e : MapStoreIndex.read(STORE_PATH).getEntries()) {
+            bytes[(int)(e.offset + e.length / 2)] ^= 0x01;
+        }
+        Files.write(p, bytes);
+        Files.setLastModifiedTime(p, modified);
+
+        // The index still matches, so the store is opened without reading the maps
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertTrue(loaded.containsMap("alpha"));
+        assertTrue(loaded.containsMap("beta"));
+        assertFalse(Files.exists(Paths.get(STORE_PATH.concat(MapStoreFiles.CORRUPT_EXTENSION))));
+
+        // Only the previous generation holds a valid copy of alpha, none of beta
+        assertEquals(store.getMap("alpha"), loaded.getMap("alpha"));
+        assertNull(loaded.getMap("beta"));
+        assertFalse(loaded.containsMap("beta"));
+
+        // The next store serializes alpha again rather than copying its damaged section
+        assertNotNull(loaded.store());
+        MapStore reloaded = MapStore.load(STORE_PATH);
+        assertEquals(store.getMap("alpha"), reloaded.getMap("alpha"));
+        assertFalse(reloaded.containsMap("beta"));
+    }
+
+    @Test
+    public void testTornFileFallsBack() throws Exception {
+        storeTwoGenerations();
+
+        Path p = Paths.get(STORE_PATH);
+        byte[] bytes = Files.readAllBytes(p);
+        byte[] torn = new byte[bytes.length / 2];
+        System.arraycopy(bytes, 0, torn, 0, torn.length);
+        Files.write(p, torn);
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertTrue(loaded.containsMap("alpha"));
+        assertFalse(loaded.containsMap("beta"));
+        assertEquals("alpha", loaded.getSelectedMapName());
+        assertTrue(Files.exists(Paths.get(STORE_PATH.concat(MapStoreFiles.CORRUPT_EXTENSION))));
+    }
+
+    @Test
+    public void testMalformedStoreIsNotDeleted() throws Exception {
+        MapStore store = new MapStore(STORE_PATH);
+        store.setGenerations(0);
+        store.addMap(createMap("alpha"));
+        store.store();
+        assertFalse(Files.exists(Paths.get(MapStoreFiles.generationPath(STORE_PATH, 1))));
+
+        Path p = Paths.get(STORE_PATH);
+        Files.write(p, "{\"maps\":{\"alpha\":{\"routes\":[".getBytes(StandardCharsets.UTF_8));
+        Files.delete(MapStoreIndex.indexPath(STORE_PATH));
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertTrue(loaded.getMapNames().isEmpty());
+        assertTrue(Files.exists(p));
+    }
+}
@@ -0,0 +1,83 @@
+package ai.cogmission.fxmaps.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Fixtures shared by the {@link MapStore} tests
+ */
+final class MapStoreFixtures {
+
+    private MapStoreFixtures() {}
+
+    /**
+     * Returns the path of a test store in the user's home directory
+     *
+     * @param name  the file name of the store
+     * @return  the path
+     */
+    static String storePath(String name) {
+        return System.getProperty("user.home").concat("/" + name);
+    }
+
+    /**
+     * Deletes the store at the specified path, all of its files if it is
+     * sharded, its backup generations, and the index, journal and temporary
+     * files kept beside it.
+     *
+     * @param path  the path of the store
+     * @throws IOException  if a file could not be deleted
+     */
+    static void deleteStore(String path) throws IOException {
+        delete(new File(path));
+        Files.deleteIfExists(MapStoreFiles.tempPath(Paths.get(path)));
+        Files.deleteIfExists(MapStoreIndex.indexPath(path));
+        Files.deleteIfExists(MapStoreJournal.journalPath(path));
+        for(int g = 1;g <= MapStore.DEFAULT_GENERATIONS;g++) {
+            String generation = MapStoreFiles.generationPath(path, g);
+            Files.deleteIfExists(Paths.get(generation));
+            Files.deleteIfExists(MapStoreIndex.indexPath(generation));
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if(children != null) {
+            for(File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    /**
+     * Creates a visible waypoint titled "Waypoint" at the specified position
+     *
+     * @param lat   the latitude
+     * @param lon   the longitude
+     * @return  the waypoint
+     */
+    static Waypoint createWaypoint(double lat, double lon) {
+        return createWaypoint(lat, lon, "Waypoint");
+    }
+
+    /**
+     * Creates a visible waypoint with the specified title at the specified position
+     *
+     * @param lat   the latitude
+     * @param lon   the longitude
+     * @param title the marker's title
+     * @return  the waypoint
+     */
+    static Waypoint createWaypoint(double lat, double lon, String title) {
+        LatLon ll = new LatLon(lat, lon);
+        MarkerOptions opts = new MarkerOptions()
+            .position(ll)
+            .title(title)
+            .icon(MarkerType.GREEN.nextPath())
+            .visible(true);
+        return new Waypoint(ll, new Marker(opts));
+    }
+}
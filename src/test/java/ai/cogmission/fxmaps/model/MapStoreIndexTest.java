@@ -0,0 +1,128 @@
+package ai.cogmission.fxmaps.model;
+
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.createWaypoint;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.deleteStore;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.storePath;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ai.cogmission.fxmaps.ui.Map;
+
+
+public class MapStoreIndexTest {
+    private static final String STORE_PATH = storePath("testIndexMapStore.json");
+
+    @After
+    public void cleanUp() throws Exception {
+        deleteStore(STORE_PATH);
+    }
+
+    private MapStore createStore() {
+        MapStore store = new MapStore(STORE_PATH);
+        for(String name : Arrays.asList("alpha", "beta", "gamma")) {
+            store.addMap(name);
+            Route r = Map.createRoute(name + "Route");
+            store.addRoute(r);
+            for(int i = 0;i < 3;i++) {
+                store.addWaypoint(r, createWaypoint(20, -20 + i));
+            }
+        }
+        store.store();
+        return store;
+    }
+
+    @Test
+    public void testMapsLoadLazily() throws Exception {
+        createStore();
+
+        MapStoreIndex index = MapStoreIndex.read(STORE_PATH);
+        assertNotNull(index);
+        assertEquals(3, index.getEntries().size());
+        assertEquals(1, index.getEntries().get(0).getRouteCount());
+        assertEquals(3, index.getEntries().get(0).getWaypointCount());
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertEquals(new TreeSet<>(Arrays.asList("alpha", "beta", "gamma")), loaded.getMapNames());
+        assertEquals("gamma", loaded.getSelectedMapName());
+        assertFalse(loaded.isMapLoaded("alpha"));
+        assertFalse(loaded.isMapLoaded("beta"));
+        assertTrue(loaded.containsMap("beta"));
+
+        PersistentMap alpha = loaded.getMap("alpha");
+        assertTrue(loaded.isMapLoaded("alpha"));
+        assertEquals(3, alpha.getRoute("alphaRoute").size());
+        assertFalse(loaded.isMapLoaded("beta"));
+    }
+
+    @Test
+    public void testUnloadedMapsSurviveStore() throws Exception {
+        createStore();
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        loaded.selectMap("alpha");
+        loaded.addRoute(Map.createRoute("another"));
+        loaded.deleteMap("gamma");
+        loaded.store();
+        assertFalse(loaded.isMapLoaded("beta"));
+
+        MapStore reloaded = MapStore.load(STORE_PATH);
+        assertEquals(new TreeSet<>(Arrays.asList("alpha", "beta")), reloaded.getMapNames());
+        assertEquals(2, reloaded.getMap("alpha").getRoutes().size());
+        assertEquals(3, reloaded.getMap("beta").getRoute("betaRoute").size());
+        assertEquals(new LatLon(20, -18), reloaded.getMap("beta").getRoute("betaRoute").getDestination().getLatLon());
+    }
+
+    @Test
+    public void testStaleIndexIsIgnored() throws Exception {
+        createStore();
+
+        // Rewrite the store file behind the index's back
+        String json = new String(Files.readAllBytes(Paths.get(STORE_PATH)), StandardCharsets.UTF_8);
+        Files.write(Paths.get(STORE_PATH), (json + " ").getBytes(StandardCharsets.UTF_8));
+        assertNull(MapStoreIndex.read(STORE_PATH));
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertTrue(loaded.isMapLoaded("gamma"));
+        assertEquals(3, loaded.getMaps().size());
+        assertEquals(3, loaded.getMap("beta").getRoute("betaRoute").size());
+    }
+
+    @Test
+    public void testOnlyDirtyMapsAreSerialized() throws Exception {
+        createStore();
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        PersistentMap alpha = loaded.getMap("alpha");
+        PersistentMap beta = loaded.getMap("beta");
+        assertFalse(alpha.isDirty());
+        assertFalse(beta.isDirty());
+
+        // An untracked change to a clean map is not written, its previous section is reused
+        beta.width = 640;
+        alpha.getRoute("alphaRoute").addWaypoint(createWaypoint(30, -30));
+        assertTrue(alpha.isDirty());
+        loaded.store();
+        assertFalse(alpha.isDirty());
+
+        MapStore reloaded = MapStore.load(STORE_PATH);
+        assertEquals(4, reloaded.getMap("alpha").getRoute("alphaRoute").size());
+        assertEquals(0, reloaded.getMap("beta").getWidth(), 0);
+
+        beta.setWidth(640);
+        loaded.store();
+        assertEquals(640, MapStore.load(STORE_PATH).getMap("beta").getWidth(), 0);
+        assertEquals(loaded.getMap("gamma"), MapStore.load(STORE_PATH).getMap("gamma"));
+    }
+}
@@ -0,0 +1,152 @@
+package ai.cogmission.fxmaps.model;
+
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.createWaypoint;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.deleteStore;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.storePath;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ai.cogmission.fxmaps.ui.Map;
+
+
+public class MapStoreJournalTest {
+    private static final String STORE_PATH = storePath("testJournalMapStore.json");
+
+    @After
+    public void cleanUp() throws Exception {
+        deleteStore(STORE_PATH);
+    }
+
+    @Test
+    public void testReplayWithoutSnapshot() throws Exception {
+        MapStore store = new MapStore(STORE_PATH);
+        store.setJournalEnabled(true);
+        store.addMap("test");
+
+        Route r = Map.createRoute("route1");
+        store.addRoute(r);
+        store.addWaypoint(r, createWaypoint(20, -20), null);
+        store.addWaypoint(r, createWaypoint(20, -15), null);
+        store.addWaypoint(r, createWaypoint(20, -10), null);
+        store.removeWaypoint(r, r.getWaypoint(1));
+        store.commit();
+
+        // Nothing but the journal has been written
+        assertFalse(Files.exists(Paths.get(STORE_PATH)));
+        assertEquals(6, MapStoreJournal.read(STORE_PATH).size());
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        Route lr = loaded.getMap("test").getRoute("route1");
+        assertNotNull(lr);
+        assertEquals(r.getId(), lr.getId());
+        assertEquals(2, lr.size());
+        assertEquals(new LatLon(20, -20), lr.getOrigin().getLatLon());
+        assertEquals(new LatLon(20, -10), lr.getDestination().getLatLon());
+        assertEquals(1, lr.getLines().size());
+        assertEquals(6, loaded.getJournalSequence().longValue());
+    }
+
+    @Test
+    public void testReplayRestoresLegStyles() throws Exception {
+        MapStore store = new MapStore(STORE_PATH);
+        store.setJournalEnabled(true);
+        store.addMap("test");
+
+        Route r = Map.createRoute("route1");
+        store.addRoute(r);
+        store.addWaypoint(r, createWaypoint(20, -20), null);
+        store.addWaypoint(r, createWaypoint(20, -15), new PolylineOptions().strokeWeight(2).strokeColor("red"));
+        store.addWaypoint(r, createWaypoint(20, -10), new PolylineOptions().strokeWeight(4).strokeColor("blue").zIndex(3));
+        store.commit();
+        assertFalse(Files.exists(Paths.get(STORE_PATH)));
+
+        // The first style became the route's line style, the second one the destination's leg style
+        Route lr = MapStore.load(STORE_PATH).getMap("test").getRoute("route1");
+        assertEquals("red", lr.getLineStyle().getStrokeColor());
+        assertNull(lr.getWaypoint(1).getLegStyle());
+        assertEquals("blue", lr.getDestination().getLegStyle().getStrokeColor());
+        assertEquals(2, lr.getLines().size());
+        assertEquals("red", lr.getLines().get(0).getOptions().getStrokeColor());
+        assertEquals(2, lr.getLines().get(0).getOptions().getStrokeWeight(), 0);
+        assertEquals("blue", lr.getLines().get(1).getOptions().getStrokeColor());
+        assertEquals(4, lr.getLines().get(1).getOptions().getStrokeWeight(), 0);
+        assertEquals(3, lr.getLines().get(1).getOptions().getZIndex());
+        assertEquals(r.getLines().get(1).getOptions().getPath(), lr.getLines().get(1).getOptions().getPath());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        MapStore store = new MapStore(STORE_PATH);
+        store.setJournalEnabled(true);
+        store.setCompactionThreshold(4);
+        store.addMap("test");
+
+        Route r = Map.createRoute("route1");
+        store.addRoute(r);
+        store.addWaypoint(r, createWaypoint(20, -20));
+        store.commit();
+        assertFalse(Files.exists(Paths.get(STORE_PATH)));
+
+        store.addWaypoint(r, createWaypoint(20, -15));
+        store.commit();
+
+        // Threshold reached, journal folded into the snapshot
+        assertTrue(Files.exists(Paths.get(STORE_PATH)));
+        assertFalse(Files.exists(MapStoreJournal.journalPath(STORE_PATH)));
+
+        store.addWaypoint(r, createWaypoint(20, -10));
+        store.commit();
+        assertEquals(1, MapStoreJournal.read(STORE_PATH).size());
+        assertEquals(5, MapStoreJournal.read(STORE_PATH).get(0).getSequence());
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertEquals(3, loaded.getMap("test").getRoute("route1").size());
+    }
+
+    @Test
+    public void testEntriesInSnapshotAreNotReplayed() throws Exception {
+        MapStore store = new MapStore(STORE_PATH);
+        store.setJournalEnabled(true);
+        store.addMap("test");
+
+        Route r = Map.createRoute("route1");
+        store.addRoute(r);
+        store.addWaypoint(r, createWaypoint(20, -20));
+
+        // Simulate a crash between writing the snapshot and truncating the journal
+        byte[] journal = Files.readAllBytes(MapStoreJournal.journalPath(STORE_PATH));
+        store.store();
+        Files.write(MapStoreJournal.journalPath(STORE_PATH), journal);
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertEquals(1, loaded.getMap("test").getRoutes().size());
+        assertEquals(1, loaded.getMap("test").getRoute("route1").size());
+    }
+
+    @Test
+    public void testTornEntryIsIgnored() throws Exception {
+        MapStore store = new MapStore(STORE_PATH);
+        store.setJournalEnabled(true);
+        store.addMap("test");
+        store.addRoute(Map.createRoute("route1"));
+        store.setJournalEnabled(false);
+
+        Files.write(MapStoreJournal.journalPath(STORE_PATH), "{\"seq\":3,\"op\":\"ADD_WAY".getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.APPEND);
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertEquals(1, loaded.getMap("test").getRoutes().size());
+        assertEquals(2, loaded.getJournalSequence().longValue());
+    }
+}
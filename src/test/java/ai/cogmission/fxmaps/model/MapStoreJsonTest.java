@@ -0,0 +1,146 @@
+package ai.cogmission.fxmaps.model;
+
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.createWaypoint;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.deleteStore;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.storePath;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ai.cogmission.fxmaps.ui.Map;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+
+public class MapStoreJsonTest {
+    private static final String STORE_PATH = storePath("testJsonMapStore.json");
+
+    @After
+    public void cleanUp() throws Exception {
+        deleteStore(STORE_PATH);
+    }
+
+    /**
+     * The routes of {@link MapStoreTest}, the second one connected by legs
+     */
+    private PersistentMap createMap() {
+        Route r = Map.createRoute("name1");
+        r.addWaypoint(createWaypoint(20, -20, "Waypoint 1"));
+        r.addWaypoint(createWaypoint(20, -15, "Waypoint 2"));
+        r.addWaypoint(createWaypoint(20, -10, "Waypoint 3"));
+
+        MarkerType.reset();
+
+        Route r2 = Map.createRoute("name2");
+        r2.addWaypoint(createWaypoint(40, -40, "Waypoint 1"));
+        r2.addWaypoint(createWaypoint(40, -35, "Waypoint 2"));
+        r2.addLeg(new PolylineOptions().strokeWeight(2).strokeColor("red"));
+        r2.addWaypoint(createWaypoint(40, -30, "Waypoint 3"));
+        r2.addLeg(new PolylineOptions().strokeWeight(2).strokeColor("blue").zIndex(3));
+
+        PersistentMap map = new PersistentMap("test");
+        map.setMapOptions(new MapOptions().center(new LatLon(20, -20)).zoom(9).mapType(MapType.TERRAIN).zoomControl(true));
+        map.addRoute(r);
+        map.addRoute(r2);
+        map.addRoute(Map.createRoute("empty"));
+        return map;
+    }
+
+    @Test
+    public void testMatchesDataBinding() throws Exception {
+        PersistentMap map = createMap();
+        // State derived from the routes is part of neither encoding
+        map.getSpatialIndex().build();
+        for(Route r : map.getRoutes()) {
+            r.getMetrics();
+            r.getSimplification();
+        }
+        String json = new String(MapStoreJson.encodeMap(map), StandardCharsets.UTF_8);
+        assertEquals(new ObjectMapper().writeValueAsString(map), json);
+    }
+
+    @Test
+    public void testMapRoundTrip() throws Exception {
+        PersistentMap map = createMap();
+        byte[] json = MapStoreJson.encodeMap(map);
+
+        PersistentMap decoded = MapStoreJson.decodeMap(json);
+        assertEquals(map, decoded);
+        assertEquals(new String(json, StandardCharsets.UTF_8), new String(MapStoreJson.encodeMap(decoded), StandardCharsets.UTF_8));
+
+        assertEquals(MapType.TERRAIN, decoded.getMapOptions().mapType);
+        assertEquals(9, decoded.getMapOptions().zoom);
+        assertTrue(decoded.getMapOptions().zoomControl);
+
+        Route r = decoded.getRoute("name1");
+        assertEquals(map.getRoute("name1").getId(), r.getId());
+        assertSame(r.getWaypoint(0), r.getOrigin());
+        assertSame(r.getWaypoint(2), r.getDestination());
+        assertEquals(2, r.getLines().size());
+        assertNull(r.getLineStyle());
+
+        Route r2 = decoded.getRoute("name2");
+        assertEquals(2, r2.getLines().size());
+        assertEquals("red", r2.getLines().get(0).getOptions().getStrokeColor());
+        assertEquals("blue", r2.getLines().get(1).getOptions().getStrokeColor());
+        assertEquals(3, r2.getLines().get(1).getOptions().getZIndex());
+        assertSame(r2.getLines().get(1), r2.getDestination().getConnection());
+
+        assertEquals(0, decoded.getRoute("empty").size());
+    }
+
+    @Test
+    public void testSkipsDerivedAndUnknownFields() throws Exception {
+        String json = "{\"routes\":[{\"name\":\"r\",\"id\":\"1\",\"unknown\":{\"a\":[1,2]}," +
+            "\"lines\":[{\"options\":{\"strokeColor\":\"red\",\"path\":[]}}]," +
+            "\"waypoints\":[{\"latLon\":{\"latitude\":1.0,\"longitude\":2.0},\"marker\":null," +
+            "\"connection\":null},{\"latLon\":{\"latitude\":3.0,\"longitude\":4.0},\"marker\":null," +
+            "\"legStyle\":{\"strokeColor\":\"green\",\"zIndex\":2}}]}],\"name\":\"m\"}";
+
+        PersistentMap map = MapStoreJson.decodeMap(json.getBytes(StandardCharsets.UTF_8));
+        assertEquals("m", map.getName());
+        assertNull(map.getMapOptions());
+
+        Route r = map.getRoute("r");
+        assertEquals("1", r.getId());
+        assertEquals(2, r.size());
+        assertEquals(new LatLon(3, 4), r.getDestination().getLatLon());
+        assertEquals(1, r.getLines().size());
+        assertEquals("green", r.getLines().get(0).getOptions().getStrokeColor());
+        assertEquals(2, r.getLines().get(0).getOptions().getZIndex());
+    }
+
+    @Test
+    public void testStoreRoundTrip() throws Exception {
+        MapStore store = new MapStore(STORE_PATH);
+        store.addMap(createMap());
+        store.addMap("other");
+        store.selectMap("test");
+        String json = store.store();
+
+        // Without an index the store file is streamed in full
+        Files.delete(MapStoreIndex.indexPath(STORE_PATH));
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertTrue(loaded.isMapLoaded("test"));
+        assertEquals("test", loaded.getSelectedMapName());
+        assertEquals(store.getMap("test"), loaded.getMap("test"));
+        assertEquals(store.getMap("other"), loaded.getMap("other"));
+        assertEquals(json, loaded.store());
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testMalformedMapIsRejected() throws Exception {
+        byte[] json = MapStoreJson.encodeMap(createMap());
+        byte[] torn = new byte[json.length / 2];
+        System.arraycopy(json, 0, torn, 0, torn.length);
+        MapStoreJson.decodeMap(torn);
+    }
+}
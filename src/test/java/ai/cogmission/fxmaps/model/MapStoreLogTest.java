@@ -0,0 +1,158 @@
+package ai.cogmission.fxmaps.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class MapStoreLogTest {
+    private static final Path LOG_PATH = Paths.get(System.getProperty("user.home").concat("/testMapStore.log"));
+
+    @After
+    public void cleanUp() throws Exception {
+        Files.deleteIfExists(LOG_PATH);
+        Files.deleteIfExists(MapStoreFiles.tempPath(LOG_PATH));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testTransactions() throws Exception {
+        MapStoreLog log = MapStoreLog.open(LOG_PATH);
+        log.begin().put("a/1", bytes("one")).put("a/2", bytes("two")).put("b/1", bytes("three")).commit();
+
+        MapStoreLog.Transaction t = log.begin().put("a/1", bytes("uno")).deletePrefix("a/");
+        assertNull(t.get("a/1"));
+        assertArrayEquals(bytes("three"), t.get("b/1"));
+        // Nothing is visible before the commit
+        assertArrayEquals(bytes("one"), log.get("a/1"));
+        t.put("a/3", bytes("tres")).commit();
+        log.close();
+
+        log = MapStoreLog.open(LOG_PATH);
+        assertEquals(Arrays.asList("a/3"), Arrays.asList(log.keys("a/").toArray()));
+        assertFalse(log.contains("a/1"));
+        assertArrayEquals(bytes("tres"), log.get("a/3"));
+        assertArrayEquals(bytes("three"), log.get("b/1"));
+        log.close();
+    }
+
+    @Test
+    public void testTornTransactionIsDiscarded() throws Exception {
+        MapStoreLog log = MapStoreLog.open(LOG_PATH);
+        log.begin().put("key", bytes("committed")).commit();
+        long committed = log.size();
+        log.begin().put("key", bytes("torn")).put("other", bytes("torn")).commit();
+        log.close();
+
+        // Simulate a crash in the middle of writing the second transaction
+        try(RandomAccessFile file = new RandomAccessFile(LOG_PATH.toFile(), "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        log = MapStoreLog.open(LOG_PATH);
+        assertEquals(committed, log.size());
+        assertEquals(committed, Files.size(LOG_PATH));
+        assertArrayEquals(bytes("committed"), log.get("key"));
+        assertFalse(log.contains("other"));
+
+        log.begin().put("other", bytes("after")).commit();
+        log.close();
+        log = MapStoreLog.open(LOG_PATH);
+        assertArrayEquals(bytes("after"), log.get("other"));
+        log.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        MapStoreLog log = MapStoreLog.open(LOG_PATH);
+        byte[] value = new byte[64 * 1024];
+        for(int i = 0;i < 40;i++) {
+            value[0] = (byte)i;
+            log.begin().put("key", value).put("small", bytes("v" + i)).commit();
+        }
+
+        // Compacted automatically, in the background, once the overwritten
+        // values outweighed the live ones
+        log.awaitCompaction();
+        assertTrue(log.size() < MapStoreLog.COMPACTION_MINIMUM);
+        assertEquals(39, log.get("key")[0]);
+
+        log.begin().delete("key").commit();
+        log.compact();
+        assertTrue(log.size() < 100);
+        assertEquals(log.size(), log.getLiveBytes());
+        log.close();
+
+        log = MapStoreLog.open(LOG_PATH);
+        assertFalse(log.contains("key"));
+        assertArrayEquals(bytes("v39"), log.get("small"));
+        log.close();
+    }
+
+    @Test
+    public void testCommitsDuringCompactionAreKept() throws Exception {
+        MapStoreLog log = MapStoreLog.open(LOG_PATH);
+        for(int i = 0;i < 100;i++) {
+            log.begin().put("key", new byte[1024]).commit();
+        }
+
+        Thread compactor = new Thread(() -> {
+            try {
+                for(int i = 0;i < 20;i++) {
+                    log.compact();
+                }
+            }catch(Exception e) {
+                e.printStackTrace();
+            }
+        });
+        compactor.start();
+        for(int i = 0;i < 200;i++) {
+            log.begin().put("key/" + i, bytes("v" + i)).commit();
+        }
+        compactor.join();
+        log.close();
+
+        MapStoreLog reopened = MapStoreLog.open(LOG_PATH);
+        assertEquals(201, reopened.keys("key").size());
+        for(int i = 0;i < 200;i++) {
+            assertArrayEquals(bytes("v" + i), reopened.get("key/" + i));
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void testSmallValuesAreNotCompacted() throws Exception {
+        MapStoreLog log = MapStoreLog.open(LOG_PATH);
+        long size = 0;
+        for(int i = 0;i < 700;i++) {
+            MapStoreLog.Transaction t = log.begin();
+            for(int j = 0;j < 100;j++) {
+                t.put("point/" + i + "/" + j, bytes("v"));
+            }
+            t.commit();
+
+            // Without garbage the log only ever grows, past the compaction minimum
+            assertTrue(log.size() > size);
+            size = log.size();
+            assertTrue(log.getLiveBytes() <= size);
+        }
+        assertTrue(size > MapStoreLog.COMPACTION_MINIMUM);
+        assertFalse(Files.exists(MapStoreFiles.tempPath(LOG_PATH)));
+        log.close();
+    }
+}
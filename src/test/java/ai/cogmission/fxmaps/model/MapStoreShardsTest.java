@@ -0,0 +1,100 @@
+package ai.cogmission.fxmaps.model;
+
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.createWaypoint;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.deleteStore;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.storePath;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ai.cogmission.fxmaps.ui.Map;
+
+
+public class MapStoreShardsTest {
+    private static final String STORE_PATH = storePath("testShardedMapStore");
+
+    @After
+    public void cleanUp() throws Exception {
+        deleteStore(STORE_PATH);
+    }
+
+    private MapStore createStore() {
+        MapStore store = new MapStore(STORE_PATH);
+        store.setSharded(true);
+        for(String name : Arrays.asList("alpha", "beta", "gamma/delta")) {
+            store.addMap(name);
+            Route r = Map.createRoute(name + "Route");
+            store.addRoute(r);
+            for(int i = 0;i < 3;i++) {
+                store.addWaypoint(r, createWaypoint(20, -20 + i));
+            }
+        }
+        store.store();
+        return store;
+    }
+
+    @Test
+    public void testOnlyChangedMapsAreWritten() throws Exception {
+        MapStore store = createStore();
+        MapStoreShards shards = store.getShards();
+        assertEquals(3, shards.getWriteCount());
+        assertTrue(Files.exists(MapStoreShards.manifestPath(STORE_PATH)));
+        assertTrue(Files.exists(shards.mapPath("gamma/delta")));
+
+        store.store();
+        assertEquals(3, shards.getWriteCount());
+
+        store.selectMap("beta");
+        store.addWaypoint(store.getMap("beta").getRoute("betaRoute"), createWaypoint(25, -20));
+        store.store();
+        assertEquals(4, shards.getWriteCount());
+
+        store.deleteMap("alpha");
+        store.store();
+        assertFalse(Files.exists(shards.mapPath("alpha")));
+        assertEquals(4, shards.getWriteCount());
+    }
+
+    @Test
+    public void testMapsLoadFromTheirOwnFiles() throws Exception {
+        createStore();
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertTrue(loaded.isSharded());
+        assertEquals(new TreeSet<>(Arrays.asList("alpha", "beta", "gamma/delta")), loaded.getMapNames());
+        assertEquals("gamma/delta", loaded.getSelectedMapName());
+        assertFalse(loaded.isMapLoaded("alpha"));
+
+        assertEquals(3, loaded.getMap("alpha").getRoute("alphaRoute").size());
+        assertFalse(loaded.isMapLoaded("beta"));
+
+        // Storing writes nothing for unchanged or unloaded maps
+        loaded.store();
+        assertEquals(0, loaded.getShards().getWriteCount());
+        assertEquals(3, MapStore.load(STORE_PATH).getMap("beta").getRoute("betaRoute").size());
+    }
+
+    @Test
+    public void testJournalReplaysOntoShards() throws Exception {
+        createStore();
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        loaded.setJournalEnabled(true);
+        loaded.selectMap("alpha");
+        loaded.addRoute(Map.createRoute("another"));
+        loaded.commit();
+        loaded.close();
+
+        // Below the compaction threshold only the journal was written
+        assertTrue(Files.exists(MapStoreJournal.journalPath(STORE_PATH)));
+        assertEquals(0, loaded.getShards().getWriteCount());
+        assertEquals(2, MapStore.load(STORE_PATH).getMap("alpha").getRoutes().size());
+    }
+}
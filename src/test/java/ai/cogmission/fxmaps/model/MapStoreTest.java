@@ -104,7 +104,7 @@ public class MapStoreTest {
             String json = store.store();
             
             assertNotNull(json);
-            assertEquals(8762, json.length());
+            assertEquals(4286, json.length());
             
             //////////// Load /////////////
             
@@ -244,7 +244,7 @@ public class MapStoreTest {
             String json = store.store();
             
             assertNotNull(json);
-            assertEquals(11200, json.length());
+            assertEquals(4286, json.length());
             
             //////////// Load /////////////
             
@@ -256,6 +256,8 @@ public class MapStoreTest {
             assertNotNull(r1.getOrigin());
             assertNotNull(r1.getDestination());
             assertEquals(1, r1.getInterimWaypoints().size());
+            assertEquals(2, r1.getLines().size());
+            assertEquals(r1.getLines().get(1), r1.getDestination().getConnection());
             
             assertEquals(Waypoint.class, r1.getOrigin().getClass());
         }catch(Exception e) {
@@ -0,0 +1,130 @@
+package ai.cogmission.fxmaps.model;
+
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.createWaypoint;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.deleteStore;
+import static ai.cogmission.fxmaps.model.MapStoreFixtures.storePath;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ai.cogmission.fxmaps.ui.Map;
+
+
+public class MapStoreWriterTest {
+    private static final String STORE_PATH = storePath("testWriterMapStore.json");
+
+    @After
+    public void cleanUp() throws Exception {
+        deleteStore(STORE_PATH);
+    }
+
+    @Test
+    public void testCommitsAreCoalesced() throws Exception {
+        MapStore store = new MapStore(STORE_PATH);
+        store.setWriteBehindInterval(60000);
+        store.addMap("test");
+
+        Route r = Map.createRoute("route1");
+        store.addRoute(r);
+        store.commit();
+        for(int i = 0;i < 50;i++) {
+            store.addWaypoint(r, createWaypoint(20, -20 + i * 0.01));
+            store.commit();
+        }
+
+        MapStoreWriter writer = store.getWriter();
+        assertNotNull(writer);
+        assertEquals(51, writer.getQueuedCount());
+
+        // The first write happens immediately, everything after it waits for the interval
+        long deadline = System.currentTimeMillis() + 5000;
+        while(writer.getWrittenCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, writer.getWrittenCount());
+        assertTrue(writer.getCoalescedCount() > 0);
+
+        store.close();
+        assertNull(store.getWriter());
+        assertFalse(writer.isDirty());
+        assertTrue(writer.getWrittenCount() <= 2);
+        assertEquals(51, writer.getWrittenCount() + writer.getCoalescedCount());
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertEquals(50, loaded.getMap("test").getRoute("route1").size());
+    }
+
+    @Test
+    public void testFlushWritesPendingChanges() throws Exception {
+        MapStore store = new MapStore(STORE_PATH);
+        store.setWriteBehindInterval(60000);
+        store.addMap("test");
+        store.addRoute(Map.createRoute("route1"));
+        store.commit();
+        store.flush();
+
+        store.addRoute(Map.createRoute("route2"));
+        store.commit();
+        assertTrue(store.getWriter().isDirty());
+
+        store.flush();
+        assertFalse(store.getWriter().isDirty());
+        assertEquals(2, MapStore.load(STORE_PATH).getMap("test").getRoutes().size());
+
+        store.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testMutationsAreNotBlockedByWrite() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        JsonFileBackend backend = new JsonFileBackend(STORE_PATH) {
+            @Override
+            public Write store(java.util.Map<String, PersistentMap> loaded, Set<String> mapNames, String selectedMap) throws IOException {
+                Write write = super.store(loaded, mapNames, selectedMap);
+                return () -> {
+                    writing.countDown();
+                    try {
+                        release.await();
+                    }catch(InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    return write.write();
+                };
+            }
+        };
+        MapStore store = MapStore.open(backend);
+        store.setWriteBehindInterval(60000);
+        store.addMap("first");
+        store.commit();
+        writing.await();
+
+        // The writer thread is writing the captured maps without holding the store's monitor
+        store.addMap("second");
+        assertTrue(store.getMap("second").isDirty());
+        store.commit();
+        release.countDown();
+        store.close();
+
+        MapStore loaded = MapStore.load(STORE_PATH);
+        assertTrue(loaded.containsMap("first"));
+        assertTrue(loaded.containsMap("second"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosedWriterRejectsRequests() {
+        MapStore store = new MapStore(STORE_PATH);
+        MapStoreWriter writer = new MapStoreWriter(store, 1000);
+        writer.close();
+        writer.requestStore();
+    }
+}
@@ -0,0 +1,112 @@
+package ai.cogmission.fxmaps.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.junit.Test;
+
+
+public class MarkerStyleTest {
+    private static final MarkerStyle STYLE = MarkerStyle.of(MarkerType.GREEN, "Waypoint", true, Animation.NULL);
+
+    private Waypoint createWaypoint(LatLon ll, char label) {
+        MarkerOptions opts = new MarkerOptions()
+            .position(ll)
+            .title("Waypoint")
+            .icon(MarkerType.GREEN.iconPath(label))
+            .visible(true);
+        return new Waypoint(ll, new Marker(opts));
+    }
+
+    @Test
+    public void testStylesAreShared() {
+        assertSame(STYLE, MarkerStyle.of(MarkerType.GREEN, new String("Waypoint"), true, null));
+        assertSame(STYLE, MarkerStyle.forId(STYLE.getId()));
+        assertSame(STYLE, MarkerStyle.forIcon("http://metaware.us/images/markers/green_MarkerC.png", "Waypoint", true, Animation.NULL));
+        assertFalse(STYLE == MarkerStyle.of(MarkerType.RED, "Waypoint", true, Animation.NULL));
+        assertNull(MarkerStyle.forIcon("http://example.com/pin.png", "Waypoint", true, Animation.NULL));
+
+        assertSame(MarkerType.GREEN.iconPath('C'), MarkerType.GREEN.iconPath('C'));
+        String next = MarkerType.BLUE.nextPath();
+        assertSame(MarkerType.BLUE.iconPath(MarkerType.BLUE.chr()), next);
+        assertEquals('C', MarkerType.labelOf(STYLE.getIcon('C')));
+    }
+
+    @Test
+    public void testMarkerIsCreatedOnRequest() {
+        LatLon ll = new LatLon(20, -20);
+        Waypoint w = new Waypoint(ll, STYLE, 'B');
+        Waypoint created = createWaypoint(ll, 'B');
+        assertTrue(w.hasMarker());
+        assertFalse(w.isMarkerCreated());
+
+        // Equal to the same waypoint with a created marker, before and after creation
+        assertEquals(created, w);
+        assertEquals(w, created);
+        assertEquals(created.hashCode(), w.hashCode());
+        assertFalse(w.equals(createWaypoint(new LatLon(20, -21), 'B')));
+
+        Marker m = w.getMarker();
+        assertTrue(w.isMarkerCreated());
+        assertSame(m, w.getMarker());
+        assertSame(ll, m.getMarkerOptions().getPosition());
+        assertSame(STYLE.getIcon('B'), m.getMarkerOptions().getIcon());
+        assertEquals("Waypoint", m.getTitle());
+        assertEquals(created, w);
+        assertEquals(created.hashCode(), w.hashCode());
+    }
+
+    @Test
+    public void testStoredWithoutCreatingMarkers() throws Exception {
+        Route r = new Route("r");
+        for(int i = 0;i < 10;i++) {
+            r.addWaypoint(new Waypoint(new LatLon(20 + i, -20), STYLE, (char)('A' + i)));
+        }
+        PersistentMap map = new PersistentMap("m");
+        map.addRoute(r);
+
+        for(PersistentMap decoded : new PersistentMap[] {
+            MapStoreCodec.decodeMap(MapStoreCodec.encodeMap(map)), MapStoreJson.decodeMap(MapStoreJson.encodeMap(map)) }) {
+
+            Route dr = decoded.getRoute("r");
+            assertEquals(r, dr);
+            for(Waypoint w : dr.getWaypoints()) {
+                assertSame(STYLE, w.getMarkerStyle());
+                assertFalse(w.isMarkerCreated());
+            }
+            assertEquals('J', dr.getWaypoint(9).getLabel());
+        }
+        assertEquals(0, r.getWaypoints().stream().filter(Waypoint::isMarkerCreated).count());
+    }
+
+    @Test
+    public void testWaypointsShareStyleObjects() {
+        int n = 5000;
+        Route styled = new Route("styled");
+        for(int i = 0;i < n;i++) {
+            // A distinct icon String per waypoint, as read from a store file
+            String icon = new StringBuilder(MarkerType.GREEN.iconPath((char)('A' + i % 26))).toString();
+            styled.addWaypoint(Waypoint.create(new LatLon(20 + i * 0.0001, -20), icon, "Waypoint", true, Animation.NULL));
+        }
+
+        // No per waypoint markers or options, and one style and icon String per label
+        Set<MarkerStyle> styles = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<String> icons = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(Waypoint w : styled.getWaypoints()) {
+            assertFalse(w.isMarkerCreated());
+            styles.add(w.getMarkerStyle());
+            icons.add(w.markerIcon());
+        }
+        assertEquals(n, styled.size());
+        assertEquals(1, styles.size());
+        assertSame(STYLE, styles.iterator().next());
+        assertEquals(26, icons.size());
+    }
+}
@@ -2,8 +2,11 @@ package ai.cogmission.fxmaps.model;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.junit.Test;
@@ -126,9 +129,149 @@ public class PersistentMapTest {
             assertEquals(routes.get(0), r1);
             assertEquals(routes.get(1), r2);
             assertEquals(routes.get(2), r3);
+            assertTrue(routes.get(0).contentEquals(r1));
+            assertTrue(routes.get(1).contentEquals(r2));
+            assertTrue(routes.get(2).contentEquals(r3));
         }catch(Exception e) {
             e.printStackTrace();
         }
     }
+    
+    private Route createRoute(String name, double latitude) {
+        MarkerStyle style = MarkerStyle.of(MarkerType.BLUE, "Waypoint", true, Animation.NULL);
+        Route r = Map.createRoute(name);
+        for(int i = 0;i < 3;i++) {
+            r.addWaypoint(new Waypoint(new LatLon(latitude, -20 + i * 5), style, (char)('A' + i)));
+            r.addLeg(null);
+        }
+        return r;
+    }
+    
+    @Test
+    public void testReverseIndexes() {
+        PersistentMap map = new PersistentMap("test");
+        Route r1 = createRoute("r1", 20);
+        Route r2 = createRoute("r2", 20); // Equal paths, other instances
+        map.addRoute(r1);
+        
+        // Created on first lookup
+        Waypoint w = r1.getWaypoint(1);
+        assertSame(r1, map.getRouteForWaypoint(w));
+        assertSame(r1, map.getRouteForLine(w.getConnection()));
+        assertSame(w, map.getWaypointForLine(w.getConnection()));
+        assertNull(map.getRouteForWaypoint(r2.getWaypoint(1)));
+        assertNull(map.getRouteForLine(r2.getWaypoint(1).getConnection()));
+        
+        // Added route
+        map.addRoute(r2);
+        assertSame(r2, map.getRouteForWaypoint(r2.getWaypoint(2)));
+        assertSame(r2.getWaypoint(2), map.getWaypointForLine(r2.getWaypoint(2).getConnection()));
+        assertSame(r1, map.getRouteForWaypoint(w));
+        
+        // Added waypoint and leg
+        Waypoint added = new Waypoint(new LatLon(25, 0), MarkerStyle.of(MarkerType.RED, null, true, null), 'D');
+        r1.addWaypoint(added);
+        assertSame(r1, map.getRouteForWaypoint(added));
+        Polyline leg = r1.addLeg(null);
+        assertSame(r1, map.getRouteForLine(leg));
+        assertSame(added, map.getWaypointForLine(leg));
+        
+        // Rebuilt lines
+        Polyline old = w.getConnection();
+        r1.rebuildLines();
+        assertNull(map.getRouteForLine(old));
+        assertSame(r1, map.getRouteForLine(w.getConnection()));
+        assertSame(w, map.getWaypointForLine(w.getConnection()));
+        
+        // Removed waypoint
+        Polyline removedLeg = added.getConnection();
+        r1.removeWaypoint(added);
+        assertNull(map.getRouteForWaypoint(added));
+        assertNull(map.getRouteForLine(removedLeg));
+        assertNull(map.getWaypointForLine(removedLeg));
+        
+        // Track points
+        r1.addPoint(26, 1);
+        r1.addPoint(27, 2);
+        Polyline track = r1.getLines().get(r1.getLines().size() - 1);
+        assertSame(r1, map.getRouteForLine(track));
+        assertNull(map.getWaypointForLine(track));
+        // Indexed when created on request, not found by scanning
+        Waypoint trackPoint = r1.getWaypoint(r1.size() - 1);
+        assertSame(r1, map.getRouteForWaypoint(trackPoint));
+        
+        // Removed route
+        map.removeRoute(r1);
+        assertNull(map.getRouteForWaypoint(w));
+        assertNull(map.getRouteForLine(w.getConnection()));
+        assertNull(map.getRouteForLine(track));
+        assertNull(map.getRouteForWaypoint(trackPoint));
+        assertSame(r2, map.getRouteForWaypoint(r2.getWaypoint(0)));
+        
+        // No longer followed
+        Waypoint later = new Waypoint(new LatLon(30, 0), null);
+        r1.addWaypoint(later);
+        assertNull(map.getRouteForWaypoint(later));
+        assertNull(map.getRouteForWaypoint(r1.getWaypoint(r1.size() - 3)));
+    }
+    
+    @Test
+    public void testNameIndex() {
+        PersistentMap map = new PersistentMap("test");
+        for(int i = 0;i < 1000;i++) {
+            map.addRoute(Map.createRoute("route" + i));
+        }
+        Route first = map.getRoute("route7");
+        assertEquals("route7", first.getName());
+        assertNull(map.getRoute("route1000"));
+        
+        // Routes with the same name are found in list order
+        Route second = Map.createRoute("route7");
+        map.addRoute(second);
+        assertSame(first, map.getRoute("route7"));
+        
+        List<Route> prefixed = map.getRoutesByPrefix("route99");
+        assertEquals(11, prefixed.size());
+        assertEquals("route99", prefixed.get(0).getName());
+        assertEquals("route999", prefixed.get(10).getName());
+        assertEquals(112, map.getRoutesByPrefix("route7").size());
+        assertTrue(map.getRoutesByPrefix("x").isEmpty());
+        assertEquals(1001, map.getRoutesByPrefix("").size());
+        
+        map.removeRoute(first);
+        assertSame(second, map.getRoute("route7"));
+        map.removeRoute(second);
+        assertNull(map.getRoute("route7"));
+        
+        // Replaced route lists are indexed again
+        List<Route> routes = new ArrayList<>();
+        routes.add(first);
+        map.setRoutes(routes);
+        assertSame(first, map.getRoute("route7"));
+        assertNull(map.getRoute("route8"));
+    }
+    
+    @Test
+    public void testBounds() {
+        PersistentMap map = new PersistentMap("test");
+        assertNull(map.getBounds());
+        Route r1 = Map.createRoute("r1");
+        r1.addPoint(10, 10);
+        r1.addPoint(11, 12);
+        Route r2 = Map.createRoute("r2");
+        r2.addPoint(-5, 30);
+        map.addRoute(r1);
+        map.addRoute(r2);
+        map.addRoute(Map.createRoute("empty"));
+        
+        LatLonBounds b = map.getBounds();
+        assertEquals(-5, b.getSouthWest().getLatitude(), 0);
+        assertEquals(10, b.getSouthWest().getLongitude(), 0);
+        assertEquals(11, b.getNorthEast().getLatitude(), 0);
+        assertEquals(30, b.getNorthEast().getLongitude(), 0);
+        
+        map.removeRoute(r2);
+        assertEquals(12, map.getBounds().getNorthEast().getLongitude(), 0);
+    }
 
 }
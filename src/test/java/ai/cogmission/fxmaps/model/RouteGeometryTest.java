@@ -0,0 +1,91 @@
+package ai.cogmission.fxmaps.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class RouteGeometryTest {
+
+    private RouteGeometry createGeometry(int n) {
+        RouteGeometry g = new RouteGeometry();
+        for(int i = 0;i < n;i++) {
+            g.add(i, -i, Double.NaN, RouteGeometry.NO_TIME);
+        }
+        return g;
+    }
+
+    @Test
+    public void testInsertAndRemove() {
+        RouteGeometry g = createGeometry(10);
+        g.insert(0, 100, -100, Double.NaN, RouteGeometry.NO_TIME);
+        g.insert(5, 200, -200, Double.NaN, RouteGeometry.NO_TIME);
+        assertEquals(12, g.size());
+        assertEquals(100, g.getLatitude(0), 0);
+        assertEquals(3, g.getLatitude(4), 0);
+        assertEquals(-200, g.getLongitude(5), 0);
+        assertEquals(4, g.getLatitude(6), 0);
+
+        g.remove(0, 6);
+        assertEquals(6, g.size());
+        assertArrayEquals(new double[] { 4, 5, 6, 7, 8, 9 }, g.getLatitudes(0, 6), 0);
+        assertArrayEquals(new double[] { -4, -5, -6, -7, -8, -9 }, g.getLongitudes(0, 6), 0);
+    }
+
+    @Test
+    public void testOptionalColumns() {
+        RouteGeometry g = createGeometry(20);
+        assertFalse(g.hasElevations());
+        assertFalse(g.hasTimes());
+        long bytes = g.getColumnBytes();
+
+        g.setElevation(3, 12.5);
+        g.add(50, -50, 7, 1000L);
+        assertTrue(g.hasElevations());
+        assertTrue(g.hasTimes());
+        assertTrue(g.getColumnBytes() > bytes);
+        assertEquals(12.5, g.getElevation(3), 0);
+        assertTrue(Double.isNaN(g.getElevation(4)));
+        assertEquals(7, g.getElevation(20), 0);
+        assertEquals(1000L, g.getTime(20));
+        assertEquals(RouteGeometry.NO_TIME, g.getTime(3));
+
+        // Columns move along with the coordinates
+        g.remove(0, 3);
+        assertEquals(12.5, g.getElevation(0), 0);
+        assertEquals(1000L, g.getTime(17));
+
+        RouteGeometry copy = g.copy(15, 18);
+        assertEquals(3, copy.size());
+        assertEquals(50, copy.getLatitude(2), 0);
+        assertEquals(1000L, copy.getTime(2));
+
+        g.trimToSize();
+        assertEquals(18 * 8 * 4, g.getColumnBytes());
+    }
+
+    @Test
+    public void testPath() {
+        RouteGeometry g = createGeometry(5);
+        RouteGeometry.Path path = g.path(1, 4);
+        assertEquals(3, path.size());
+        assertEquals(new LatLon(1, -1), path.get(0));
+        assertEquals(new LatLon(3, -3), path.get(2));
+
+        g.add(5, -5, Double.NaN, RouteGeometry.NO_TIME);
+        path.extend(6);
+        List<LatLon> list = path;
+        assertEquals(5, list.size());
+        assertEquals(new LatLon(5, -5), list.get(4));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testIndexOutOfBounds() {
+        createGeometry(3).getLatitude(3);
+    }
+}
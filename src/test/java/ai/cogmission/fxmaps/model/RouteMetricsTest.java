@@ -0,0 +1,108 @@
+package ai.cogmission.fxmaps.model;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ai.cogmission.fxmaps.ui.Map;
+
+
+public class RouteMetricsTest {
+
+    private void assertMatchesScan(Route r, RouteMetrics m) {
+        double distance = 0, gain = 0, loss = 0;
+        double[] cumulative = m.getCumulativeDistances();
+        assertEquals(r.size(), cumulative.length);
+        for(int i = 1;i < r.size();i++) {
+            distance += Geodesy.distance(r.getLatitude(i - 1), r.getLongitude(i - 1), r.getLatitude(i), r.getLongitude(i));
+            double climb = r.getElevation(i) - r.getElevation(i - 1);
+            if(climb > 0) {
+                gain += climb;
+            }else if(climb < 0) {
+                loss -= climb;
+            }
+            assertEquals(distance, cumulative[i], 1e-3);
+        }
+        assertEquals(distance, m.getDistance(), 1e-3);
+        assertEquals(gain, m.getElevationGain(), 1e-6);
+        assertEquals(loss, m.getElevationLoss(), 1e-6);
+        if(r.size() > 0) {
+            assertEquals(distance, m.getDistance(r.size() - 1), 1e-3);
+        }
+    }
+
+    @Test
+    public void testTotals() {
+        Route r = Map.createRoute("r");
+        r.addPoint(0, 0, 100, 0);
+        r.addPoint(0, 1, 150, 60000);
+        r.addPoint(1, 1, 120, 120000);
+        r.addPoint(1, 2, Double.NaN, RouteGeometry.NO_TIME);
+
+        RouteMetrics m = r.getMetrics();
+        double degree = Geodesy.distance(0, 0, 0, 1);
+        assertEquals(degree, m.getDistance(1), 1e-6);
+        assertEquals(degree, m.getDistance(1, 2), 1e-3);
+        assertEquals(50, m.getElevationGain(), 0);
+        assertEquals(30, m.getElevationLoss(), 0);
+        assertEquals(0, m.getElevationGain(1, 2), 0);
+        assertEquals(120000, m.getElapsedTime());
+        assertMatchesScan(r, m);
+    }
+
+    @Test
+    public void testFollowsRouteChanges() {
+        Random random = new Random(11);
+        Route r = Map.createRoute("r");
+        for(int i = 0;i < 1000;i++) {
+            r.addPoint(40 + random.nextDouble() * 0.1, -75 + random.nextDouble() * 0.1, random.nextInt(100), i * 1000L);
+        }
+        RouteMetrics m = r.getMetrics();
+        assertMatchesScan(r, m);
+
+        for(int i = 0;i < 200;i++) {
+            int index = random.nextInt(r.size());
+            LatLon ll = new LatLon(40 + random.nextDouble() * 0.1, -75 + random.nextDouble() * 0.1);
+            switch(i % 5) {
+                case 0: r.addPoint(ll.getLatitude(), ll.getLongitude(), random.nextInt(100), (1000 + i) * 1000L); break;
+                case 1: r.setWaypoint(index, new Waypoint(ll, null)); break;
+                case 2: r.setElevation(index, random.nextInt(100)); break;
+                case 3: r.addWaypoint(index, new Waypoint(ll, null)); break;
+                default: r.getWaypoints().remove(index);
+            }
+            assertMatchesScan(r, m);
+        }
+    }
+
+    @Test
+    public void testPositionAndProgress() {
+        Random random = new Random(13);
+        Route r = Map.createRoute("r");
+        double lat = 40, lon = -75;
+        for(int i = 0;i < 100000;i++) {
+            lat += 0.0005 + random.nextGaussian() * 0.0001;
+            lon += random.nextGaussian() * 0.0003;
+            r.addPoint(lat, lon);
+        }
+        RouteMetrics m = r.getMetrics();
+        double[] cumulative = m.getCumulativeDistances();
+
+        for(int i = 0;i < 100;i++) {
+            int index = 1 + random.nextInt(r.size() - 1);
+            double t = random.nextDouble();
+            double distance = cumulative[index - 1] + t * (cumulative[index] - cumulative[index - 1]);
+            LatLon position = m.getPosition(distance);
+            assertEquals(r.getLatitude(index - 1) + t * (r.getLatitude(index) - r.getLatitude(index - 1)), position.getLatitude(), 1e-9);
+            assertEquals(r.getLongitude(index - 1) + t * (r.getLongitude(index) - r.getLongitude(index - 1)), position.getLongitude(), 1e-9);
+            assertEquals(distance, m.getProgress(position), 0.5);
+        }
+
+        // Distances beyond the ends are limited to the route
+        assertEquals(r.getLatitude(0), m.getPosition(-10).getLatitude(), 0);
+        assertEquals(r.getLatitude(r.size() - 1), m.getPosition(m.getDistance() + 10).getLatitude(), 0);
+        assertEquals(m.getDistance(), m.getProgress(new LatLon(lat + 1, lon)), 1e-3);
+        assertEquals(0, m.getProgress(new LatLon(39, -75)), 1e-6);
+    }
+}
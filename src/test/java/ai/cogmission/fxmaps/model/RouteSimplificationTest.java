@@ -0,0 +1,92 @@
+package ai.cogmission.fxmaps.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ai.cogmission.fxmaps.ui.Map;
+
+
+public class RouteSimplificationTest {
+
+    private Route createTrack(Random random, int n) {
+        Route r = Map.createRoute("r");
+        double lat = 40, lon = -75;
+        for(int i = 0;i < n;i++) {
+            lat += 0.0001 + random.nextGaussian() * 0.0001;
+            lon += random.nextGaussian() * 0.0001;
+            r.addPoint(lat, lon);
+        }
+        return r;
+    }
+
+    /**
+     * Asserts that the points left out of the path are within the tolerance
+     * of the line between the kept points around them
+     */
+    private void assertWithinTolerance(Route r, List<LatLon> path, int zoom) {
+        int k = 0;
+        for(int i = 0;i < r.size();i++) {
+            if(k < path.size() && path.get(k).getLatitude() == r.getLatitude(i) && path.get(k).getLongitude() == r.getLongitude(i)) {
+                k++;
+                continue;
+            }
+            LatLon before = path.get(k - 1), after = path.get(k);
+            double meters = RouteSimplification.TOLERANCE * Geodesy.metersPerPixel(r.getLatitude(i), zoom);
+            assertTrue(Geodesy.segmentDistance(r.getLatitude(i), r.getLongitude(i), before.getLatitude(),
+                before.getLongitude(), after.getLatitude(), after.getLongitude()) <= meters * 1.01);
+        }
+        assertEquals(path.size(), k);
+    }
+
+    @Test
+    public void testLevels() {
+        Random random = new Random(21);
+        Route r = createTrack(random, 50000);
+        RouteSimplification s = r.getSimplification();
+
+        int previous = 0;
+        for(int zoom = 0;zoom <= RouteSimplification.MAX_ZOOM;zoom++) {
+            int count = s.getPointCount(zoom);
+            assertTrue(count >= previous);
+            previous = count;
+
+            List<LatLon> path = s.getPath(zoom);
+            assertEquals(count, path.size());
+            assertEquals(r.getLatitude(0), path.get(0).getLatitude(), 0);
+            assertEquals(r.getLatitude(r.size() - 1), path.get(count - 1).getLatitude(), 0);
+            if(zoom % 4 == 0) {
+                assertWithinTolerance(r, path, zoom);
+            }
+        }
+
+        // Far fewer points where many share a pixel, almost all of them at the highest zoom levels
+        assertTrue(s.getPointCount(5) < 100);
+        assertTrue(s.getPointCount(12) < r.size() / 10);
+        assertTrue(s.getPointCount(RouteSimplification.MAX_ZOOM + 5) > r.size() * 0.99);
+    }
+
+    @Test
+    public void testRangeAndChanges() {
+        Random random = new Random(23);
+        Route r = createTrack(random, 1000);
+        RouteSimplification s = r.getSimplification();
+
+        List<LatLon> path = s.getPath(100, 200, 10);
+        assertEquals(r.getLatitude(100), path.get(0).getLatitude(), 0);
+        assertEquals(r.getLatitude(199), path.get(path.size() - 1).getLatitude(), 0);
+        assertTrue(path.size() < 100);
+        assertEquals(2, s.getPath(5, 7, 0).size());
+
+        // Edits discard the levels
+        int count = s.getPointCount(0);
+        r.addPoint(50, -75);
+        assertEquals(50, s.getPath(0).get(s.getPointCount(0) - 1).getLatitude(), 0);
+        r.getWaypoints().remove(r.size() - 1);
+        assertEquals(count, s.getPointCount(0));
+    }
+}
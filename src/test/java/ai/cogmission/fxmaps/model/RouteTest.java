@@ -2,6 +2,10 @@ package ai.cogmission.fxmaps.model;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
 import org.junit.Test;
 
 import ai.cogmission.fxmaps.ui.Map;
@@ -112,5 +116,202 @@ public class RouteTest {
 
 
     }
+    
+    @Test
+    public void testDirtyTracking() {
+        Route r = Map.createRoute("r");
+        LatLon ll = new LatLon(20, -20);
+        Waypoint w = new Waypoint(ll, new Marker(new MarkerOptions().position(ll).title("Waypoint 1")));
+        r.addWaypoint(w);
+        assertTrue(r.isDirty());
+        
+        r.setDirty(false);
+        r.addWaypoint(new Waypoint(ll, new Marker(new MarkerOptions().position(ll).title("Waypoint 2"))));
+        assertTrue(r.isDirty());
+        
+        r.setDirty(false);
+        r.removeWaypoint(w);
+        assertTrue(r.isDirty());
+        
+        PersistentMap map = new PersistentMap("m");
+        map.addRoute(r);
+        map.setDirty(false);
+        assertFalse(r.isDirty());
+        r.setLineStyle(new PolylineOptions().strokeColor("red"));
+        assertTrue(map.isDirty());
+    }
+    
+    @Test
+    public void testPreSerializeDoesNotAccumulate() {
+        Route r = Map.createRoute("r");
+        LatLon ll = new LatLon(20, -20);
+        r.addWaypoint(new Waypoint(ll, new Marker(new MarkerOptions().position(ll).title("Waypoint 1"))));
+        r.preSerialize();
+        r.preSerialize();
+        assertEquals(1, r.delegate.size());
+    }
+    
+    @Test
+    public void testTrackPoints() {
+        Route r = Map.createRoute("track");
+        LatLon ll = new LatLon(20, -20);
+        r.addWaypoint(new Waypoint(ll, new Marker(new MarkerOptions().position(ll).title("Start"))));
+        for(int i = 1;i <= 1000;i++) {
+            r.addPoint(20 + i * 0.001, -20, i, i * 1000L);
+        }
+        ll = new LatLon(21.001, -20);
+        r.addWaypoint(new Waypoint(ll, new Marker(new MarkerOptions().position(ll).title("End"))));
+        r.addLeg(null);
+        
+        assertEquals(1002, r.size());
+        assertEquals(2, r.getWaypointObjectCount());
+        // One line through all track points, one leg to the destination
+        assertEquals(2, r.getLines().size());
+        assertEquals(1001, r.getLines().get(0).getOptions().getPath().size());
+        assertTrue(r.isTrackPoint(500));
+        assertFalse(r.isTrackPoint(1001));
+        assertEquals(500, r.getElevation(500), 0);
+        assertEquals(500000L, r.getTime(500));
+        
+        // The list API still sees every point, creating waypoints only when requested
+        Waypoint w = r.getWaypoint(500);
+        assertEquals(new LatLon(20.5, -20), w.getLatLon());
+        assertNull(w.getMarker());
+        assertSame(w, r.getWaypoint(500));
+        assertEquals(3, r.getWaypointObjectCount());
+        assertEquals(500, r.getWaypoints().indexOf(w));
+        assertEquals(500, r.getWaypoints().indexOf(new Waypoint(new LatLon(20.5, -20), null)));
+        assertEquals(3, r.getWaypointObjectCount());
+        
+        // Equality doesn't depend on whether a track point's waypoint was created
+        Route copy = Map.createRoute("copy");
+        for(int i = 0;i < r.size();i++) {
+            if(r.isTrackPoint(i)) {
+                copy.addPoint(r.getLatitude(i), r.getLongitude(i));
+            }else{
+                copy.addWaypoint(r.getWaypoint(i));
+            }
+        }
+        assertTrue(r.pathEquals(copy));
+        assertEquals(r.getWaypoints().hashCode(), copy.getWaypoints().hashCode());
+        assertEquals(r.getWaypoints(), new ArrayList<>(copy.getWaypoints()));
+        
+        r.removeWaypoint(w);
+        assertEquals(1001, r.size());
+        assertEquals(2, r.getLines().size());
+        assertEquals(1000, r.getLines().get(0).getOptions().getPath().size());
+        assertEquals(501, r.getElevation(500), 0);
+    }
+    
+    @Test
+    public void testIdentity() {
+        Route r1 = Map.createRoute("r");
+        Route r2 = Map.createRoute("r");
+        for(int i = 0;i < 10;i++) {
+            r1.addWaypoint(new Waypoint(new LatLon(20, -20 + i), null));
+            r1.addLeg(null);
+            r2.addWaypoint(new Waypoint(new LatLon(20, -20 + i), null));
+            r2.addLeg(null);
+        }
+        
+        // Equal paths, but distinct routes
+        assertTrue(r1.pathEquals(r2));
+        assertFalse(r1.contentEquals(r2));
+        assertNotEquals(r1, r2);
+        assertTrue(r1.getLines().get(3).contentEquals(r2.getLines().get(3)));
+        assertNotEquals(r1.getLines().get(3), r2.getLines().get(3));
+        
+        // Hash codes don't change as routes are edited
+        Set<Route> set = new HashSet<>();
+        set.add(r1);
+        int hash = r1.hashCode();
+        r1.addWaypoint(new Waypoint(new LatLon(25, 0), null));
+        r1.removeWaypoint(r1.getWaypoint(0));
+        assertEquals(hash, r1.hashCode());
+        assertTrue(set.contains(r1));
+        assertFalse(set.contains(r2));
+        assertFalse(r1.pathEquals(r2));
+    }
+    
+    @Test
+    public void testWaypointLinkage() {
+        MarkerStyle style = MarkerStyle.of(MarkerType.BLUE, "Waypoint", true, Animation.NULL);
+        Route r = Map.createRoute("r");
+        Waypoint[] w = new Waypoint[10000];
+        for(int i = 0;i < w.length;i++) {
+            w[i] = new Waypoint(new LatLon(20, -20 + i * 0.001), style, 'A');
+            r.addWaypoint(w[i]);
+            r.addLeg(null);
+        }
+        
+        assertEquals(5000, r.indexOf(w[5000]));
+        assertSame(w[5000].getConnection(), r.getOutgoingLeg(w[4999]));
+        assertSame(w[5000], w[5000].getConnection().getWaypoint());
+        assertNull(r.getOutgoingLeg(w[w.length - 1]));
+        
+        // Equal waypoints which aren't the route's are found by equality
+        assertEquals(5000, r.indexOf(new Waypoint(new LatLon(20, -20 + 5000 * 0.001), style, 'A')));
+        assertEquals(-1, r.indexOf(new Waypoint(new LatLon(21, 0), style, 'A')));
+        
+        // Removing reconnects the successor's leg to the predecessor
+        Polyline removedLeg = w[5000].getConnection();
+        r.removeWaypoint(w[5000]);
+        assertEquals(w.length - 1, r.size());
+        assertEquals(w.length - 2, r.getLines().size());
+        assertFalse(r.getLines().contains(removedLeg));
+        assertNull(w[5000].getConnection());
+        assertNull(removedLeg.getWaypoint());
+        assertEquals(w[4999].getLatLon(), w[5001].getConnection().getOptions().getPath().get(0));
+        assertSame(w[5001].getConnection(), r.getOutgoingLeg(w[4999]));
+        assertEquals(5000, r.indexOf(w[5001]));
+        assertEquals(w.length - 2, r.indexOf(w[w.length - 1]));
+        
+        // Inserting shifts the following positions
+        Waypoint inserted = new Waypoint(new LatLon(25, 0), style, 'B');
+        r.addWaypoint(100, inserted);
+        assertEquals(100, r.indexOf(inserted));
+        assertEquals(101, r.indexOf(w[100]));
+        assertEquals(5001, r.indexOf(w[5001]));
+        assertEquals(99, r.indexOf(w[99]));
+        
+        // Removing the origin drops its successor's leg
+        Polyline originLeg = w[1].getConnection();
+        r.removeWaypoint(w[0]);
+        assertEquals(0, r.indexOf(w[1]));
+        assertNull(w[1].getConnection());
+        assertFalse(r.getLines().contains(originLeg));
+    }
+    
+    @Test
+    public void testBounds() {
+        Route r = Map.createRoute("bounds");
+        assertNull(r.getBounds());
+        for(int i = 0;i <= 100;i++) {
+            r.addPoint(10 + i * 0.01, 20 - i * 0.01);
+        }
+        LatLonBounds b = r.getBounds();
+        assertEquals(10, b.getSouthWest().getLatitude(), 1e-9);
+        assertEquals(19, b.getSouthWest().getLongitude(), 1e-9);
+        assertEquals(11, b.getNorthEast().getLatitude(), 1e-9);
+        assertEquals(20, b.getNorthEast().getLongitude(), 1e-9);
+        
+        // Added points extend the bounds
+        r.addPoint(12, 20.5);
+        r.addWaypoint(5, new Waypoint(new LatLon(9, 20), null));
+        assertEquals(9, r.getBounds().getSouthWest().getLatitude(), 1e-9);
+        assertEquals(12, r.getBounds().getNorthEast().getLatitude(), 1e-9);
+        assertEquals(20.5, r.getBounds().getNorthEast().getLongitude(), 1e-9);
+        
+        // Removing or replacing points on the edge shrinks them
+        r.getWaypoints().remove(r.size() - 1);
+        assertEquals(11, r.getBounds().getNorthEast().getLatitude(), 1e-9);
+        r.setWaypoint(5, new Waypoint(new LatLon(10.5, 19.5), null));
+        assertEquals(10, r.getBounds().getSouthWest().getLatitude(), 1e-9);
+        r.getWaypoints().subList(50, 102).clear();
+        assertEquals(19.5, r.getBounds().getSouthWest().getLongitude(), 1e-9);
+        
+        r.removeAllWaypoints();
+        assertNull(r.getBounds());
+    }
 
 }
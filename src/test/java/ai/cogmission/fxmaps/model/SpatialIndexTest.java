@@ -0,0 +1,151 @@
+package ai.cogmission.fxmaps.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ai.cogmission.fxmaps.ui.Map;
+
+
+public class SpatialIndexTest {
+
+    private Route createTrack(String name, Random random, int n) {
+        Route r = Map.createRoute(name);
+        double lat = 40 + random.nextDouble(), lon = -75 + random.nextDouble();
+        for(int i = 0;i < n;i++) {
+            lat += random.nextGaussian() * 0.001;
+            lon += random.nextGaussian() * 0.001;
+            r.addPoint(lat, lon);
+        }
+        return r;
+    }
+
+    /**
+     * Returns the sorted distances to all points, or to all segments, of the routes
+     */
+    private double[] distances(List<Route> routes, LatLon c, boolean segments) {
+        int count = 0;
+        for(Route r : routes) {
+            count += segments ? r.size() - 1 : r.size();
+        }
+        double[] distances = new double[count];
+        int k = 0;
+        for(Route r : routes) {
+            for(int i = segments ? 1 : 0;i < r.size();i++) {
+                distances[k++] = segments ?
+                    Geodesy.segmentDistance(c.getLatitude(), c.getLongitude(), r.getLatitude(i - 1), r.getLongitude(i - 1), r.getLatitude(i), r.getLongitude(i)) :
+                        Geodesy.distance(c.getLatitude(), c.getLongitude(), r.getLatitude(i), r.getLongitude(i));
+            }
+        }
+        Arrays.sort(distances);
+        return distances;
+    }
+
+    private void assertMatchesScan(PersistentMap map, Random random) {
+        LatLon c = new LatLon(40 + random.nextDouble(), -75 + random.nextDouble());
+        double[] points = distances(map.getRoutes(), c, false);
+        double[] segments = distances(map.getRoutes(), c, true);
+
+        List<SpatialIndex.Hit> nearest = map.getSpatialIndex().findNearestPoints(c, 5);
+        for(int i = 0;i < 5;i++) {
+            assertEquals(points[i], nearest.get(i).getDistance(), 1e-6);
+        }
+        List<SpatialIndex.Hit> nearestSegments = map.getSpatialIndex().findNearestSegments(c, 3);
+        for(int i = 0;i < 3;i++) {
+            assertEquals(segments[i], nearestSegments.get(i).getDistance(), 1e-6);
+        }
+
+        int within = 0, segmentsWithin = 0;
+        while(within < points.length && points[within] <= 2000) within++;
+        while(segmentsWithin < segments.length && segments[segmentsWithin] <= 2000) segmentsWithin++;
+        assertEquals(within, map.getSpatialIndex().findPointsWithin(c, 2000).size());
+        assertEquals(segmentsWithin, map.getSpatialIndex().findSegmentsWithin(c, 2000).size());
+    }
+
+    @Test
+    public void testQueriesMatchScan() {
+        Random random = new Random(42);
+        PersistentMap map = new PersistentMap("map");
+        for(int i = 0;i < 3;i++) {
+            map.addRoute(createTrack("r" + i, random, 5000));
+        }
+        map.getSpatialIndex().build();
+
+        for(int i = 0;i < 20;i++) {
+            assertMatchesScan(map, random);
+        }
+    }
+
+    @Test
+    public void testFollowsRouteChanges() {
+        Random random = new Random(7);
+        PersistentMap map = new PersistentMap("map");
+        map.addRoute(createTrack("r0", random, 2000));
+        map.addRoute(createTrack("r1", random, 2000));
+        map.getSpatialIndex().build();
+
+        for(int i = 0;i < 100;i++) {
+            Route r = map.getRoutes().get(random.nextInt(2));
+            LatLon ll = new LatLon(40 + random.nextDouble(), -75 + random.nextDouble());
+            int index = random.nextInt(r.size());
+            switch(i % 4) {
+                case 0: r.addPoint(ll.getLatitude(), ll.getLongitude()); break;
+                case 1: r.addWaypoint(index, new Waypoint(ll, null)); break;
+                case 2: r.getWaypoints().remove(index); break;
+                default: r.setWaypoint(index, new Waypoint(ll, null));
+            }
+            assertMatchesScan(map, random);
+        }
+
+        // Routes added to and removed from the map
+        Route added = createTrack("r2", random, 100);
+        map.addRoute(added);
+        assertMatchesScan(map, random);
+        map.removeRoute(map.getRoutes().get(0));
+        assertMatchesScan(map, random);
+    }
+
+    @Test
+    public void testFindInBox() {
+        PersistentMap map = new PersistentMap("map");
+        Route r = Map.createRoute("r");
+        r.addPoint(10, 10);
+        r.addPoint(10, 20);
+        r.addPoint(20, 20);
+        map.addRoute(r);
+        Route other = Map.createRoute("other");
+        other.addPoint(-10, -10);
+        map.addRoute(other);
+
+        // The first leg crosses the box without a point in it
+        SpatialIndex index = map.getSpatialIndex();
+        assertEquals(Arrays.asList(r), index.findRoutes(9, 11, 14, 16));
+        assertTrue(index.findPoints(9, 11, 14, 16).isEmpty());
+        List<SpatialIndex.Hit> segments = index.findSegments(9, 11, 14, 16);
+        assertEquals(1, segments.size());
+        assertEquals(1, segments.get(0).getIndex());
+
+        assertEquals(2, index.findPoints(-11, 11, -11, 11).size());
+        assertEquals(other, index.findNearestPoint(new LatLon(-9, -9)).getRoute());
+        assertTrue(index.findRoutes(30, 40, 30, 40).isEmpty());
+    }
+
+    @Test
+    public void testFindNearestPointWithinDistance() {
+        PersistentMap map = new PersistentMap("map");
+        Random random = new Random(3);
+        Route r = createTrack("r", random, 10000);
+        map.addRoute(r);
+
+        LatLon ll = new LatLon(r.getLatitude(5000) + 0.00001, r.getLongitude(5000));
+        SpatialIndex.Hit hit = map.getSpatialIndex().findNearestPoint(ll, 5);
+        assertEquals(map.getSpatialIndex().findNearestPoint(ll).getIndex(), hit.getIndex());
+        assertTrue(hit.getDistance() <= 5);
+        assertEquals(null, map.getSpatialIndex().findNearestPoint(new LatLon(0, 0), 1000));
+    }
+}